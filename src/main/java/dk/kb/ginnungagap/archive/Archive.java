@@ -2,6 +2,9 @@ package dk.kb.ginnungagap.archive;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
 
 /**
  * Interface for the archive possibilities for Ginnungagap.
@@ -27,6 +30,17 @@ public interface Archive extends Closeable {
      */
     File getFile(String warcId, String collectionId);
     
+    /**
+     * Opens a stream for a range of the bytes of a file in the archive, e.g. a single record of a WARC file.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The collection, where the file must be located.
+     * @param offset The offset of the range in the file.
+     * @param length The length of the range.
+     * @return The stream with the bytes of the range. It must be closed by the caller.
+     * @throws IOException If it fails to read the file.
+     */
+    InputStream openRange(String warcId, String collectionId, long offset, long length) throws IOException;
+    
     /**
      * Retrieve the checksum of a file in the archive.
      * @param warcId The id of a WARC file in the archive.
@@ -35,6 +49,15 @@ public interface Archive extends Closeable {
      */
     String getChecksum(String warcId, String collectionId);
     
+    /**
+     * Retrieve the checksums of all the files in a collection in the archive at once.
+     * Files without an agreed checksum might be left out, and must then be retrieved with 
+     * {@link #getChecksum(String, String)}.
+     * @param collectionId The collection with the files to have their checksums calculated.
+     * @return The checksums of the files, mapped by the ids of the files.
+     */
+    Map<String, String> getChecksums(String collectionId);
+    
     /**
      * Shutdown the archive, or any connections required for accessing the archive.
      */
@@ -0,0 +1,357 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.FileUtils;
+import dk.kb.ginnungagap.utils.RangeInputStream;
+
+/**
+ * Archive, which keeps the files retrieved from the wrapped archive in a cache directory,
+ * so they can be reused instead of being retrieved again.
+ *
+ * The total size of the cached files is kept within the given limit, by deleting the least recently used files.
+ * A retrieved file is verified against the checksum in the archive, before it is placed in the cache.
+ * When several threads request the same file at the same time, then it is only retrieved once, and the other
+ * threads wait for it.
+ *
+ * The cache takes ownership of the files delivered by the wrapped archive, and moves them into the cache
+ * directory, thus the wrapped archive must deliver copies of the files (like the bitrepository archive).
+ * The files in the cache directory are kept across restarts.
+ * A file delivered from the cache by {@link #getFile(String, String)} may be evicted, while it is still being used, 
+ * thus the size limit must leave room for several WARC files.
+ * The ranges are opened while holding the lock of the cache, thus a range cannot have its file evicted before it is
+ * opened, and an opened range can still be read after its file has been evicted.
+ */
+public class ArchiveCache implements Archive {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(ArchiveCache.class);
+
+    /** The suffix for the files, which are being placed in the cache.*/
+    protected static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    /** The maximum number of attempts to open a range, when its file is evicted before it can be opened.*/
+    protected static final int MAX_OPEN_RANGE_ATTEMPTS = 3;
+
+    /** The wrapped archive.*/
+    protected final Archive archive;
+    /** The directory for the cached files.*/
+    protected final File cacheDir;
+    /** The maximum total size of the cached files in bytes.*/
+    protected final long maxSize;
+
+    /** The cached files, mapped by their cache key, in the order from least to most recently used.*/
+    protected final Map<String, CachedFile> cachedFiles = new LinkedHashMap<String, CachedFile>(16, 0.75f, true);
+    /** The retrievals of files in progress, mapped by their cache key.*/
+    protected final Map<String, FutureTask<File>> retrievals = new HashMap<String, FutureTask<File>>();
+    /** The current total size of the cached files in bytes.*/
+    protected long size = 0L;
+
+    /** The number of requests for a file, which was in the cache or was being retrieved.*/
+    protected final AtomicLong hits = new AtomicLong();
+    /** The number of requests for a file, which had to be retrieved from the archive.*/
+    protected final AtomicLong misses = new AtomicLong();
+    /** The number of files deleted from the cache to keep it within its size limit.*/
+    protected final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param archive The archive to retrieve the files from.
+     * @param cacheDir The directory for the cached files.
+     * @param maxSize The maximum total size of the cached files in bytes.
+     */
+    public ArchiveCache(Archive archive, File cacheDir, long maxSize) {
+        ArgumentCheck.checkNotNull(archive, "Archive archive");
+        ArgumentCheck.checkNotNull(cacheDir, "File cacheDir");
+        ArgumentCheck.checkPositiveLong(maxSize, "long maxSize");
+        this.archive = archive;
+        this.cacheDir = FileUtils.getDirectory(cacheDir.getPath());
+        this.maxSize = maxSize;
+        loadCachedFiles();
+    }
+
+    /**
+     * Loads the files already in the cache directory, with the most recently modified as the most recently used.
+     * Files, which were never completely placed in the cache, are removed.
+     */
+    protected synchronized void loadCachedFiles() {
+        File[] collectionDirs = cacheDir.listFiles();
+        if(collectionDirs == null) {
+            return;
+        }
+        for(File collectionDir : collectionDirs) {
+            File[] files = collectionDir.listFiles();
+            if(!collectionDir.isDirectory() || files == null) {
+                continue;
+            }
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for(File f : files) {
+                if(f.getName().endsWith(TEMPORARY_FILE_SUFFIX)) {
+                    FileUtils.deleteFile(f);
+                } else if(f.isFile()) {
+                    addCachedFile(getCacheKey(f.getName(), collectionDir.getName()), f);
+                }
+            }
+        }
+        log.info("Loaded " + cachedFiles.size() + " cached files with a total size of " + size + " bytes.");
+        evict();
+    }
+
+    @Override
+    public boolean uploadFile(File file, String collectionId) {
+        return archive.uploadFile(file, collectionId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The file is delivered from the cache, if possible. Otherwise it is retrieved from the archive,
+     * verified and placed in the cache.
+     * The file must not be deleted or changed by the caller.
+     */
+    @Override
+    public File getFile(String warcId, String collectionId) {
+        String key = getCacheKey(warcId, collectionId);
+        FutureTask<File> retrieval;
+        boolean retrieve = false;
+        synchronized(this) {
+            CachedFile cachedFile = cachedFiles.get(key);
+            if(cachedFile != null) {
+                if(cachedFile.file.isFile()) {
+                    hits.incrementAndGet();
+                    return cachedFile.file;
+                }
+                log.warn("The cached file '" + cachedFile.file + "' has disappeared.");
+                cachedFiles.remove(key);
+                size -= cachedFile.size;
+            }
+            retrieval = retrievals.get(key);
+            if(retrieval == null) {
+                misses.incrementAndGet();
+                retrieval = new FutureTask<File>(() -> retrieveFile(warcId, collectionId));
+                retrievals.put(key, retrieval);
+                retrieve = true;
+            } else {
+                hits.incrementAndGet();
+            }
+        }
+
+        if(retrieve) {
+            try {
+                retrieval.run();
+            } finally {
+                synchronized(this) {
+                    retrievals.remove(key);
+                }
+            }
+        }
+        return getResult(retrieval, warcId, collectionId);
+    }
+
+    /**
+     * Waits for the retrieval of a file, and delivers its result.
+     * @param retrieval The retrieval of the file.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection.
+     * @return The retrieved file.
+     */
+    protected File getResult(FutureTask<File> retrieval, String warcId, String collectionId) {
+        try {
+            return retrieval.get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not retrieve the file '" + warcId + "' from collection '"
+                    + collectionId + "'.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the file '" + warcId
+                    + "' from collection '" + collectionId + "'.", e);
+        }
+    }
+
+    /**
+     * Retrieves the file from the archive, verifies it against the checksum in the archive,
+     * and places it in the cache.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection.
+     * @return The file in the cache.
+     */
+    protected File retrieveFile(String warcId, String collectionId) {
+        File collectionDir = FileUtils.getDirectory(cacheDir, collectionId);
+        File tmpFile = new File(collectionDir, warcId + TEMPORARY_FILE_SUFFIX);
+        File cachedFile = new File(collectionDir, warcId);
+
+        File retrievedFile = archive.getFile(warcId, collectionId);
+        if(!retrievedFile.renameTo(tmpFile)) {
+            FileUtils.forceMove(retrievedFile, tmpFile);
+        }
+
+        try {
+            String checksum = ChecksumUtils.calculateChecksum(tmpFile, ChecksumUtils.MD5_ALGORITHM).digestString;
+            String archiveChecksum = archive.getChecksum(warcId, collectionId);
+            if(!checksum.equalsIgnoreCase(archiveChecksum)) {
+                throw new IllegalStateException("The retrieved file '" + warcId + "' from collection '"
+                        + collectionId + "' has the checksum '" + checksum + "', but the archive has the checksum '"
+                        + archiveChecksum + "'.");
+            }
+            if(!tmpFile.renameTo(cachedFile)) {
+                throw new IllegalStateException("Could not place the file '" + tmpFile + "' in the cache.");
+            }
+        } finally {
+            if(tmpFile.exists()) {
+                FileUtils.deleteFile(tmpFile);
+            }
+        }
+
+        synchronized(this) {
+            addCachedFile(getCacheKey(warcId, collectionId), cachedFile);
+            evict();
+        }
+        return cachedFile;
+    }
+
+    /**
+     * Adds a file to the cache as the most recently used file.
+     * @param key The cache key of the file.
+     * @param file The file.
+     */
+    protected synchronized void addCachedFile(String key, File file) {
+        CachedFile replaced = cachedFiles.put(key, new CachedFile(file));
+        if(replaced != null) {
+            size -= replaced.size;
+        }
+        size += file.length();
+    }
+
+    /**
+     * Deletes the least recently used files, until the total size of the cache is within its limit.
+     * The most recently used file is always kept, even if it is larger than the limit by itself.
+     */
+    protected synchronized void evict() {
+        Iterator<CachedFile> iterator = cachedFiles.values().iterator();
+        while(size > maxSize && cachedFiles.size() > 1) {
+            CachedFile cachedFile = iterator.next();
+            iterator.remove();
+            size -= cachedFile.size;
+            if(cachedFile.file.exists()) {
+                FileUtils.deleteFile(cachedFile.file);
+            }
+            evictions.incrementAndGet();
+            log.debug("Evicted the file '" + cachedFile.file + "' from the cache.");
+        }
+    }
+
+    /**
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection.
+     * @return The key for the file in the cache.
+     */
+    protected String getCacheKey(String warcId, String collectionId) {
+        return collectionId + "/" + warcId;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The range is read from the cached file, thus only the first range of a file requires the file to be 
+     * retrieved from the archive.
+     * The file is opened while holding the lock of the cache, thus it cannot be evicted in the meantime.
+     * If another thread has evicted the file after it was delivered by {@link #getFile(String, String)}, then
+     * the file is retrieved again.
+     */
+    @Override
+    public InputStream openRange(String warcId, String collectionId, long offset, long length) 
+            throws IOException {
+        for(int attempt = 1; ; attempt++) {
+            File file = getFile(warcId, collectionId);
+            synchronized(this) {
+                if(file.isFile()) {
+                    return RangeInputStream.open(file, offset, length);
+                }
+            }
+            if(attempt >= MAX_OPEN_RANGE_ATTEMPTS) {
+                throw new IllegalStateException("The file '" + warcId + "' from collection '" + collectionId 
+                        + "' was evicted from the cache " + attempt + " times before it could be opened.");
+            }
+            log.debug("The file '" + file + "' was evicted before the range could be opened. Retrieving it again.");
+        }
+    }
+
+    @Override
+    public String getChecksum(String warcId, String collectionId) {
+        return archive.getChecksum(warcId, collectionId);
+    }
+
+    @Override
+    public Map<String, String> getChecksums(String collectionId) {
+        return archive.getChecksums(collectionId);
+    }
+
+    @Override
+    public void close() {
+        archive.close();
+    }
+
+    /** @return The number of requests for a file, which was in the cache or was being retrieved.*/
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return The number of requests for a file, which had to be retrieved from the archive.*/
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return The number of files deleted from the cache to keep it within its size limit.*/
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /** @return The current total size of the cached files in bytes.*/
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /** @return The maximum total size of the cached files in bytes.*/
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /** @return The number of cached files.*/
+    public synchronized int getNumberOfFiles() {
+        return cachedFiles.size();
+    }
+
+    /**
+     * A file in the cache, with the size it had when it was placed in the cache.
+     */
+    protected static class CachedFile {
+        /** The file.*/
+        protected final File file;
+        /** The size of the file.*/
+        protected final long size;
+
+        /**
+         * Constructor.
+         * @param file The file.
+         */
+        protected CachedFile(File file) {
+            this.file = file;
+            this.size = file.length();
+        }
+    }
+}
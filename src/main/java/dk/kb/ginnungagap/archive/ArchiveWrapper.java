@@ -1,6 +1,9 @@
 package dk.kb.ginnungagap.archive;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
 
 import javax.annotation.PostConstruct;
 
@@ -11,6 +14,7 @@ import dk.kb.ginnungagap.config.Configuration;
 
 /**
  * Wrapped archive.
+ * The files retrieved from the bitrepository archive are cached, when a cache size is configured.
  */
 @Component
 public class ArchiveWrapper implements Archive {
@@ -19,6 +23,8 @@ public class ArchiveWrapper implements Archive {
     protected Configuration conf;
     /** The wrapped archive, depending on the type of archive.*/
     protected Archive archive;
+    /** The cache of the retrieved files. Null, when the retrieved files are not cached.*/
+    protected ArchiveCache cache;
 
     /**
      * Initialization
@@ -29,6 +35,11 @@ public class ArchiveWrapper implements Archive {
             this.archive = new LocalArchive(conf.getLocalConfiguration().getLocalArchiveDir());
         } else {
             this.archive = new BitmagArchive(conf.getBitmagConf());
+            if(conf.getBitmagConf().getCacheSize() > 0) {
+                this.cache = new ArchiveCache(archive, conf.getBitmagConf().getCacheDir(), 
+                        conf.getBitmagConf().getCacheSize());
+                this.archive = cache;
+            }
         }
     }
     
@@ -42,13 +53,29 @@ public class ArchiveWrapper implements Archive {
         return archive.getFile(warcId, collectionId);
     }
 
+    @Override
+    public InputStream openRange(String warcId, String collectionId, long offset, long length) 
+            throws IOException {
+        return archive.openRange(warcId, collectionId, offset, length);
+    }
+
     @Override
     public String getChecksum(String warcId, String collectionId) {
         return archive.getChecksum(warcId, collectionId);
     }
+
+    @Override
+    public Map<String, String> getChecksums(String collectionId) {
+        return archive.getChecksums(collectionId);
+    }
     
     @Override
     public void close() {
         archive.close();
     }
+    
+    /** @return The cache of the retrieved files, or null if the retrieved files are not cached.*/
+    public ArchiveCache getCache() {
+        return cache;
+    }
 }
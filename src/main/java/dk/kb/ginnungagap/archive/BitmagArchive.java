@@ -1,6 +1,10 @@
 package dk.kb.ginnungagap.archive;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.bitrepository.access.getchecksums.conversation.ChecksumsCompletePillarEvent;
@@ -11,6 +15,7 @@ import dk.kb.ginnungagap.config.BitmagConfiguration;
 import dk.kb.ginnungagap.exception.ArgumentCheck;
 import dk.kb.ginnungagap.utils.ChecksumUtils;
 import dk.kb.ginnungagap.utils.FileUtils;
+import dk.kb.ginnungagap.utils.RangeInputStream;
 import dk.kb.yggdrasil.bitmag.Bitrepository;
 import dk.kb.yggdrasil.bitmag.BitrepositoryConfig;
 import dk.kb.yggdrasil.exceptions.YggdrasilException;
@@ -22,6 +27,12 @@ public class BitmagArchive implements Archive {
     /** The logger.*/
     private static final Logger log = LoggerFactory.getLogger(BitmagArchive.class);
     
+    /** 
+     * The file id for requesting the checksums of all the files in a collection.
+     * Yggdrasil requests the checksums for AllFileIDs, when no specific file id is given.
+     */
+    protected static final String ALL_FILE_IDS = null;
+    
     /** The bitrepository client from Yggdrasil.*/
     protected Bitrepository bitrepository;
     
@@ -68,9 +79,53 @@ public class BitmagArchive implements Archive {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * The bitrepository can only deliver whole files, thus the whole file is retrieved before the range is read.
+     * The files should therefore be cached, when ranges are read from the bitrepository.
+     */
+    @Override
+    public InputStream openRange(String warcId, String collectionId, long offset, long length) 
+            throws IOException {
+        return RangeInputStream.open(getFile(warcId, collectionId), offset, length);
+    }
+
     @Override
     public String getChecksum(String warcId, String collectionId) {
         Map<String, ChecksumsCompletePillarEvent> completeEvents = bitrepository.getChecksums(warcId, collectionId);
         return ChecksumUtils.getAgreedChecksum(completeEvents.values());
     }
+
+    /**
+     * {@inheritDoc}
+     * All the checksums are retrieved in a single GetChecksums conversation, which explicitly requests the checksums
+     * of all the files in the collection.
+     * Only the checksums, which all the pillars agree upon, are returned.
+     * A pillar might only deliver a partial result, when the collection has more files than the pillar delivers 
+     * in a single response. In that case only the checksums for the files delivered by all the pillars are returned,
+     * and the checksums of the remaining files must be retrieved individually.
+     */
+    @Override
+    public Map<String, String> getChecksums(String collectionId) {
+        Map<String, ChecksumsCompletePillarEvent> completeEvents = bitrepository.getChecksums(ALL_FILE_IDS, 
+                collectionId);
+        if(completeEvents == null || completeEvents.isEmpty()) {
+            throw new IllegalStateException("No pillars delivered the checksums for the collection '" 
+                    + collectionId + "'.");
+        }
+        List<String> partialPillars = new ArrayList<String>();
+        for(Map.Entry<String, ChecksumsCompletePillarEvent> event : completeEvents.entrySet()) {
+            if(event.getValue().isPartialResult()) {
+                partialPillars.add(event.getKey());
+            }
+        }
+        
+        Map<String, String> res = ChecksumUtils.getAgreedChecksums(completeEvents.values());
+        if(!partialPillars.isEmpty()) {
+            log.warn("The pillars " + partialPillars + " only delivered partial checksum results for the "
+                    + "collection '" + collectionId + "'. Only the checksums of the " + res.size() + " files "
+                    + "delivered by all the pillars are used, the rest must be retrieved individually.");
+        }
+        return res;
+    }
 }
@@ -2,9 +2,12 @@ package dk.kb.ginnungagap.archive;
 
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.config.Configuration;
-import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.cumulus.CumulusWrapper;
+import dk.kb.ginnungagap.utils.FileDigests;
 import dk.kb.ginnungagap.utils.FileUtils;
+import dk.kb.ginnungagap.utils.MetadataBuffer;
 import dk.kb.metadata.utils.GuidExtractionUtils;
 import org.jwat.common.Uri;
 import org.jwat.warc.WarcDigest;
@@ -13,16 +16,48 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+
 import java.io.File;
 import java.net.URISyntaxException;
 //import java.util.Collections;
 //import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * API for packaging data from Cumulus in Warc files and sending it to the Bitrepository.
  * 
+ * The packaging is locked per collection, thus records for different collections can be packaged at the same time.
+ * When the WARC file of a collection is finished, then its Warc packer is replaced by a new one under the lock of 
+ * the collection, and the finished WARC file is closed and uploaded outside the lock, thus the packaging 
+ * continues for all the collections, including the one being uploaded, while the upload proceeds.
+ * 
+ * If upload threads are configured, then the finished WARC files are put on a bounded queue, and uploaded in the 
+ * background by the upload threads, thus the packaging continues immediately in a new WARC file.
+ * If the queue is full, then the packaging waits until a WARC file has been taken from the queue.
+ * The records of a WARC file are reported back to Cumulus, when the upload of the WARC file has finished.
+ * The records are reported back in batches by the Cumulus write-back, which uses its own threads, when write-back
+ * threads are configured, thus the upload thread can continue with the next WARC file.
+ * 
+ * A Cumulus record can be packaged as a transaction (see {@link #packRecordAsTransaction(CumulusRecord, 
+ * RecordPackaging)}), which holds the lock of its collection while all its data is packaged. If the packaging 
+ * fails, then the Warc packer is rolled back to the start of the record, and if the Warc packer thereby has been 
+ * closed, then it is replaced and its WARC file is uploaded without the data of the failed record.
+ * 
+ * The packaging of each WARC file is journaled next to the WARC file (see {@link WarcPackingJournal}). 
+ * Before the first preservation run queries Cumulus, the WARC files left by a previous run, which stopped before 
+ * they were uploaded and reported, are recovered up to their last committed record, and then uploaded and 
+ * reported (see {@link #recoverWarcFiles()}), thus their records do not have to be packaged again. 
+ * The recovery is not performed when the preserver starts, since it would hold up the start of the application 
+ * while the WARC files are uploaded.
  */
 @Component
 public class BitmagPreserver {
@@ -36,26 +71,172 @@ public class BitmagPreserver {
     /** The configuration.*/
     @Autowired
     protected Configuration conf;
+    /** The Cumulus wrapper, for finding the packaged records again, when they are reported back. 
+     * May be null, in which case the records can only be reported back while they are still in use.*/
+    @Autowired(required = false)
+    protected CumulusWrapper cumulusWrapper;
 
     /** Mapping between active warc packers and their collection.*/
 //    protected final Map<String, WarcPacker> warcPackerForCollection = new HashMap<String, WarcPacker>(); // original
     protected final Map<String, WarcPacker> warcPackerForCollection =  new ConcurrentHashMap<String, WarcPacker>();
 //    protected final Map<String, WarcPacker> warcPackerForCollection = Collections.synchronizedMap(new HashMap<String, WarcPacker>();
+    /** The locks for the packaging in each collection, and for replacing the Warc packer of the collection.*/
+    protected final ConcurrentMap<String, Object> collectionLocks = new ConcurrentHashMap<String, Object>();
+    /** The executor for uploading the finished warc files in the background. 
+     * Null until the first background upload.*/
+    protected ThreadPoolExecutor uploadExecutor;
+    /** The number of warc files, which are waiting to be uploaded or are being uploaded in the background.*/
+    protected final AtomicInteger pendingUploads = new AtomicInteger(0);
+    /** The write-back of the results to Cumulus after the uploads. Null until the first write-back.*/
+    protected CumulusWriteBack writeBack;
+    /** The lock for the recovery of the WARC files left by a previous run.*/
+    protected final Object recoveryLock = new Object();
+    /** Whether the WARC files left by a previous run have been recovered and scheduled for upload.*/
+    protected boolean isRecoveryStarted = false;
+    /** Whether the recovered WARC files have been uploaded and their records written back.*/
+    protected boolean isRecovered = false;
+
+    /**
+     * Retrieves the lock for the packaging in a given Bitrepository collection.
+     * @param collectionId The id of the collection.
+     * @return The lock for the collection.
+     */
+    protected Object getCollectionLock(String collectionId) {
+        return collectionLocks.computeIfAbsent(collectionId, id -> new Object());
+    }
+
+    /**
+     * Recovers the WARC files, which were left in the temporary directory by a previous run, that stopped 
+     * before the WARC files had been uploaded and reported back to Cumulus, unless it already has been done.
+     * Each WARC file is truncated back to the last committed record in its journal, and then it is uploaded 
+     * to its collection, and its records are reported back, like any other finished WARC file.
+     * A WARC file, which already had been uploaded, only has its records reported back again.
+     * A WARC file, which cannot be recovered, is left in the temporary directory.
+     * 
+     * This must be called by the preservation before it queries Cumulus for the records to preserve, since it 
+     * waits until the recovered WARC files have been uploaded and their records written back. Otherwise the 
+     * records of the recovered WARC files would still be found by the query, and packaged again.
+     * @throws InterruptedException If it is interrupted while waiting for the uploads and write-backs.
+     */
+    public void recoverWarcFiles() throws InterruptedException {
+        synchronized(recoveryLock) {
+            if(isRecovered) {
+                return;
+            }
+            if(!isRecoveryStarted) {
+                isRecoveryStarted = true;
+                recoverJournaledWarcFiles();
+            }
+            waitForUploads();
+            waitForWriteBacks();
+            isRecovered = true;
+        }
+    }
+    
+    /**
+     * Recovers the WARC files of the journals in the temporary directory, and schedules their upload, or only 
+     * their write-back, if they already had been uploaded.
+     */
+    protected void recoverJournaledWarcFiles() {
+        for(WarcPackingJournal journal : WarcPackingJournal.findJournals(conf.getBitmagConf().getTempDir())) {
+            try {
+                WarcPacker wp = WarcPacker.recover(conf.getBitmagConf(), getCumulusServer(), journal);
+                log.info("Recovered the WARC file '" + wp.getWarcFile().getName() + "' for the collection '" 
+                        + wp.getCollectionId() + "' with " + wp.getPackagedCompleteRecords().size() + " complete and " 
+                        + wp.getPackagedMetadataRecords().size() + " metadata records.");
+                if(wp.isUploaded()) {
+                    log.info("The WARC file '" + wp.getWarcFile().getName() + "' has already been uploaded, "
+                            + "thus its records are only reported back.");
+                    wp.reportSucces(wp.getWarcFileChecksum(), getWriteBack());
+                } else {
+                    scheduleUpload(wp, wp.getCollectionId());
+                }
+            } catch (RuntimeException e) {
+                log.error("Could not recover the WARC file of the journal '" + journal.getJournalFile() + "'.", e);
+            }
+        }
+    }
+    
+    /**
+     * @return The Cumulus server, for finding the packaged records again. Null, if there is no Cumulus wrapper.
+     */
+    protected CumulusServer getCumulusServer() {
+        return cumulusWrapper == null ? null : cumulusWrapper.getServer();
+    }
 
     /**
      * Retrieves the Warc packer for a given Bitrepository collection.
      * If no Warc packer exists for the given Bitrepository collection, then a new one is created.
+     * The Warc packer must only be used while holding the lock of the collection, since it may otherwise be 
+     * replaced and uploaded while it is being used.
      * @param collectionId The id of the collection.
      * @return The Warc packer for a given Bitrepository collection.
      */
     protected WarcPacker getWarcPacker(String collectionId) {
-        synchronized(warcPackerForCollection) {
-            if(!warcPackerForCollection.containsKey(collectionId)) {
+        synchronized(getCollectionLock(collectionId)) {
+            WarcPacker wp = warcPackerForCollection.get(collectionId);
+            if(wp == null) {
                 log.debug("Create new WarPacker, collection: {}", collectionId);
-                warcPackerForCollection.put(collectionId, new WarcPacker(conf.getBitmagConf()));
+                wp = new WarcPacker(conf.getBitmagConf(), getCumulusServer(), collectionId);
+                warcPackerForCollection.put(collectionId, wp);
             }
             log.debug("Return WarcPacker for collection: {}", collectionId);
-            return warcPackerForCollection.get(collectionId);
+            return wp;
+        }
+    }
+    
+    /**
+     * Removes the Warc packer of the given collection, so it can be finished and uploaded, while the next 
+     * packaging in the collection is performed by a new Warc packer.
+     * @param collectionId The id of the collection.
+     * @return The removed Warc packer, or null if the collection did not have a Warc packer.
+     */
+    protected WarcPacker removeWarcPacker(String collectionId) {
+        synchronized(getCollectionLock(collectionId)) {
+            return warcPackerForCollection.remove(collectionId);
+        }
+    }
+    
+    /**
+     * Packages all the data of a Cumulus record as a single transaction in the collection of the record.
+     * The lock of the collection is held during the whole packaging, thus no other records are packaged in the 
+     * collection meanwhile, and the Warc packer of the collection is not replaced.
+     * If the packaging succeeds, then it is committed in the journal of the Warc packer, otherwise the Warc packer 
+     * is rolled back to the start of the record, and the failure is thrown.
+     * @param record The record to package.
+     * @param packaging The packaging of the data of the record, e.g. its Asset File and its metadata.
+     * @throws Exception If the packaging fails.
+     */
+    public void packRecordAsTransaction(CumulusRecord record, RecordPackaging packaging) throws Exception {
+        String collectionId = record.getFieldValue(Constants.FieldNames.COLLECTION_ID);
+        WarcPacker closedPacker = null;
+        try {
+            synchronized(getCollectionLock(collectionId)) {
+                WarcPacker wp = getWarcPacker(collectionId);
+                WarcPacker.Savepoint savepoint = wp.createSavepoint();
+                try {
+                    packaging.pack();
+                    wp.commit(savepoint);
+                } catch (Exception e) {
+                    log.warn("Rolling back the packaging of the record '" + record + "' in the collection '" 
+                            + collectionId + "'.");
+                    try {
+                        wp.rollback(savepoint);
+                    } catch (RuntimeException rollbackFailure) {
+                        log.error("Could not roll back the packaging of the record '" + record + "'.", 
+                                rollbackFailure);
+                        e.addSuppressed(rollbackFailure);
+                    }
+                    if(wp.isClosed()) {
+                        closedPacker = removeWarcPacker(collectionId);
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            if(closedPacker != null) {
+                scheduleUpload(closedPacker, collectionId);
+            }
         }
     }
     
@@ -64,11 +245,29 @@ public class BitmagPreserver {
      * @param record The record to package.
      */
     public void packRecordResource(CumulusRecord record) {
-        WarcPacker wp = getWarcPacker(record.getFieldValue(Constants.FieldNames.COLLECTION_ID));
-        log.debug("In packRecordResource");
-        File resourceFile = record.getFile();
-        wp.packRecordAssetFile(record, resourceFile);
-        wp.addRecordToPackagedList(record);
+        String collectionId = record.getFieldValue(Constants.FieldNames.COLLECTION_ID);
+        synchronized(getCollectionLock(collectionId)) {
+            WarcPacker wp = getWarcPacker(collectionId);
+            log.debug("In packRecordResource");
+            File resourceFile = record.getFile();
+            wp.packRecordAssetFile(record, resourceFile);
+            wp.addRecordToPackagedList(record);
+        }
+    }
+    
+    /**
+     * Packages the Asset File of a Cumulus record, with the digests already calculated for the file.
+     * @param record The record to package.
+     * @param fileDigests The digests of the Asset File.
+     */
+    public void packRecordResource(CumulusRecord record, FileDigests fileDigests) {
+        String collectionId = record.getFieldValue(Constants.FieldNames.COLLECTION_ID);
+        synchronized(getCollectionLock(collectionId)) {
+            WarcPacker wp = getWarcPacker(collectionId);
+            log.debug("In packRecordResource with file digests");
+            wp.packRecordAssetFile(record, fileDigests);
+            wp.addRecordToPackagedList(record);
+        }
     }
     
     /**
@@ -78,13 +277,38 @@ public class BitmagPreserver {
      */
     public void packRecordMetadata(CumulusRecord record, File metadataFile) {
         try {
-            WarcPacker wp = getWarcPacker(record.getFieldValue(Constants.FieldNames.COLLECTION_ID));
+            String collectionId = record.getFieldValue(Constants.FieldNames.COLLECTION_ID);
             log.debug("In packRecordMetadata");
             String fileGuid = GuidExtractionUtils.extractGuid(record.getFieldValue(Constants.FieldNames.GUID));
 
             Uri refersToUri = new Uri("urn:uuid:" + fileGuid);
-            wp.packMetadata(metadataFile, refersToUri, metadataFile.getName());
-            wp.addRecordToMetadataPackagedList(record);
+            synchronized(getCollectionLock(collectionId)) {
+                WarcPacker wp = getWarcPacker(collectionId);
+                wp.packMetadata(metadataFile, refersToUri, metadataFile.getName());
+                wp.addRecordToMetadataPackagedList(record);
+            }
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Could not package metadata.", e);
+        }
+    }
+    
+    /**
+     * Packages the buffered metadata of a given Cumulus Record
+     * @param record The Cumulus Record for the metadata.
+     * @param metadata The buffer with the transformed metadata for the Cumulus Record.
+     */
+    public void packRecordMetadata(CumulusRecord record, MetadataBuffer metadata) {
+        try {
+            String collectionId = record.getFieldValue(Constants.FieldNames.COLLECTION_ID);
+            log.debug("In packRecordMetadata with buffered metadata");
+            String fileGuid = GuidExtractionUtils.extractGuid(record.getFieldValue(Constants.FieldNames.GUID));
+
+            Uri refersToUri = new Uri("urn:uuid:" + fileGuid);
+            synchronized(getCollectionLock(collectionId)) {
+                WarcPacker wp = getWarcPacker(collectionId);
+                wp.packMetadata(metadata, refersToUri, metadata.getId());
+                wp.addRecordToMetadataPackagedList(record);
+            }
         } catch (URISyntaxException e) {
             throw new IllegalStateException("Could not package metadata.", e);
         }
@@ -100,9 +324,28 @@ public class BitmagPreserver {
         if(warcRecordId == null) {
             warcRecordId = metadataFile.getName();
         }
-        WarcPacker wp = getWarcPacker(collectionID);
-        log.debug("packRepresentationMetadata: WarcPacker created");
-        wp.packMetadata(metadataFile, null, warcRecordId);
+        synchronized(getCollectionLock(collectionID)) {
+            WarcPacker wp = getWarcPacker(collectionID);
+            log.debug("packRepresentationMetadata: WarcPacker created");
+            wp.packMetadata(metadataFile, null, warcRecordId);
+        }
+    }
+    
+    /**
+     * Packages the buffered metadata of a representation. 
+     * @param metadata The buffer with the metadata.
+     * @param collectionID The ID of the preservation collection, where the metadata must be preserved.
+     * @param warcRecordId The ID of the warc record.
+     */
+    public void packRepresentationMetadata(MetadataBuffer metadata, String collectionID, String warcRecordId) {
+        if(warcRecordId == null) {
+            warcRecordId = metadata.getId();
+        }
+        synchronized(getCollectionLock(collectionID)) {
+            WarcPacker wp = getWarcPacker(collectionID);
+            log.debug("packRepresentationMetadata with buffered metadata");
+            wp.packMetadata(metadata, null, warcRecordId);
+        }
     }
     
     /**
@@ -111,10 +354,16 @@ public class BitmagPreserver {
      */
     public void checkConditions() {
         log.debug("In checkConditions. ");
-        for(Map.Entry<String, WarcPacker> warc : warcPackerForCollection.entrySet()) {
-            if(warc.getValue().getSize() > conf.getBitmagConf().getWarcFileSizeLimit()) {
-                String collectionId = warc.getKey();
-                uploadWarcFile(collectionId);
+        for(String collectionId : warcPackerForCollection.keySet()) {
+            WarcPacker wp = null;
+            synchronized(getCollectionLock(collectionId)) {
+                WarcPacker current = warcPackerForCollection.get(collectionId);
+                if(current != null && current.getSize() > conf.getBitmagConf().getWarcFileSizeLimit()) {
+                    wp = removeWarcPacker(collectionId);
+                }
+            }
+            if(wp != null) {
+                scheduleUpload(wp, collectionId);
             }
         }
     }
@@ -130,35 +379,199 @@ public class BitmagPreserver {
         }
     }
     
+    /**
+     * Waits until all the warc files, which are uploaded in the background, have been uploaded.
+     * @throws InterruptedException If it is interrupted while waiting.
+     */
+    public void waitForUploads() throws InterruptedException {
+        synchronized(pendingUploads) {
+            while(pendingUploads.get() > 0) {
+                pendingUploads.wait();
+            }
+        }
+    }
+    
+    /**
+     * Waits until the results of all the uploaded warc files have been written back to Cumulus.
+     * @throws InterruptedException If it is interrupted while waiting.
+     */
+    public void waitForWriteBacks() throws InterruptedException {
+        getWriteBack().waitForWriteBacks();
+    }
+    
+    /**
+     * Retrieves the write-back to Cumulus, or creates it, if it does not already exist.
+     * @return The write-back of the results to Cumulus.
+     */
+    public synchronized CumulusWriteBack getWriteBack() {
+        if(writeBack == null) {
+            writeBack = new CumulusWriteBack(conf.getBitmagConf().getWriteBackThreads(), 
+                    conf.getBitmagConf().getWriteBackBatchSize(), conf.getBitmagConf().getWriteBackRetries());
+        }
+        return writeBack;
+    }
+    
+    /** @return The number of warc files, which are waiting to be uploaded or are being uploaded.*/
+    public int getNumberOfPendingUploads() {
+        return pendingUploads.get();
+    }
+    
+    /** @return The number of warc files in the queue, which are waiting for an upload thread.*/
+    public synchronized int getUploadQueueDepth() {
+        if(uploadExecutor == null) {
+            return 0;
+        }
+        return uploadExecutor.getQueue().size();
+    }
+    
+    /**
+     * Stops the background uploads and write-backs. The warc files already in the queue will still be uploaded,
+     * and the results already submitted will still be written back.
+     */
+    @PreDestroy
+    public synchronized void shutDown() {
+        if(uploadExecutor != null) {
+            uploadExecutor.shutdown();
+        }
+        if(writeBack != null) {
+            writeBack.shutDown();
+        }
+    }
+    
     /**
      * Performs the upload of the warc file for the given collection.
+     * The Warc packer of the collection is replaced, so the packaging in the collection can continue while
+     * the warc file is uploaded.
      * @param collectionId The id of the collection to upload to.
      */
-    protected synchronized void uploadWarcFile(String collectionId) {
-        synchronized(warcPackerForCollection) {
-            WarcPacker wp = warcPackerForCollection.get(collectionId);
-            log.debug("In uploadWarcFile: collectionId= {}, thread ID: {}", collectionId, Thread.currentThread().getId());
-            wp.close();
-            if(!wp.hasContent()) {
-                log.info("WARC file without content for collection '" + collectionId + "' will not be uploaded.");
-                FileUtils.deleteFile(wp.getWarcFile());
-                warcPackerForCollection.remove(collectionId);
-                return;
-            }
+    protected void uploadWarcFile(String collectionId) {
+        WarcPacker wp = removeWarcPacker(collectionId);
+        if(wp != null) {
+            scheduleUpload(wp, collectionId);
+        }
+    }
+    
+    /**
+     * Schedules the upload of the warc file of a Warc packer, which has been removed from its collection.
+     * If no upload threads are configured, then it is uploaded right away by the current thread.
+     * Otherwise it is put on the upload queue, which will block while the queue is full.
+     * @param wp The Warc packer with the warc file to upload.
+     * @param collectionId The id of the collection to upload to.
+     */
+    protected void scheduleUpload(WarcPacker wp, String collectionId) {
+        if(conf.getBitmagConf().getUploadThreads() < 1) {
+            uploadWarcPacker(wp, collectionId);
+            return;
+        }
+        
+        pendingUploads.incrementAndGet();
+        try {
+            getUploadExecutor().execute(() -> uploadInBackground(wp, collectionId));
+        } catch (RuntimeException e) {
+            finishPendingUpload();
+            throw e;
+        }
+    }
+    
+    /**
+     * Uploads the warc file of a Warc packer in the background.
+     * If the upload fails with an exception, then the records of the warc file are reported as failed.
+     * @param wp The Warc packer with the warc file to upload.
+     * @param collectionId The id of the collection to upload to.
+     */
+    protected void uploadInBackground(WarcPacker wp, String collectionId) {
+        try {
+            uploadWarcPacker(wp, collectionId);
+        } catch (RuntimeException e) {
+            log.error("Failed to upload the WARC file '" + wp.getWarcFile().getName() + "' to the collection '" 
+                    + collectionId + "'.", e);
+            wp.reportFailure("Could not upload the file to the archive: " + e.getMessage(), getWriteBack());
+        } finally {
+            finishPendingUpload();
+        }
+    }
+    
+    /**
+     * Registers that a pending upload has finished, and wakes up those waiting for the uploads.
+     */
+    protected void finishPendingUpload() {
+        synchronized(pendingUploads) {
+            pendingUploads.decrementAndGet();
+            pendingUploads.notifyAll();
+        }
+    }
+    
+    /**
+     * Retrieves the executor for the background uploads, or creates it, if it does not already exist.
+     * The executor has a bounded queue, and the submission of an upload blocks while the queue is full.
+     * @return The executor for the background uploads.
+     */
+    protected synchronized ThreadPoolExecutor getUploadExecutor() {
+        if(uploadExecutor == null) {
+            int uploadThreads = conf.getBitmagConf().getUploadThreads();
+            uploadExecutor = new ThreadPoolExecutor(uploadThreads, uploadThreads, 0L, TimeUnit.MILLISECONDS, 
+                    new ArrayBlockingQueue<Runnable>(conf.getBitmagConf().getUploadQueueSize()), 
+                    new BlockingSubmissionHandler());
+        }
+        return uploadExecutor;
+    }
+    
+    /**
+     * Finishes the warc file of a Warc packer, which has been removed from its collection, and uploads it.
+     * This is performed without holding the lock of the collection.
+     * @param wp The Warc packer with the warc file to upload.
+     * @param collectionId The id of the collection to upload to.
+     */
+    protected void uploadWarcPacker(WarcPacker wp, String collectionId) {
+        log.debug("In uploadWarcFile: collectionId= {}, thread ID: {}", collectionId, Thread.currentThread().getId());
+        wp.close();
+        if(!wp.hasContent()) {
+            log.info("WARC file without content for collection '" + collectionId + "' will not be uploaded.");
+            FileUtils.deleteFile(wp.getWarcFile());
+            return;
+        }
 
-            log.info("Uploading warc file for collection '" + collectionId + "'");
-            WarcDigest checksumDigest = ChecksumUtils.calculateChecksum(wp.getWarcFile(), ChecksumUtils.MD5_ALGORITHM);
+        log.info("Uploading warc file for collection '" + collectionId + "'");
+        WarcDigest checksumDigest = wp.getWarcFileChecksum();
 
-            boolean uploadSuccess = archive.uploadFile(wp.getWarcFile(), collectionId);
-            if(uploadSuccess) {
-                log.info("Successfully uploaded the WARC file '" + wp.getWarcFile().getName() + "'"); 
-                wp.reportSucces(checksumDigest);
-            } else {
-                log.warn("Failed to upload the file '" + wp.getWarcFile().getName() + "'. "
-                        + "Keeping it in temp dir: '" + conf.getBitmagConf().getTempDir().getAbsolutePath() + "'");
-                wp.reportFailure("Could not upload the file to the archive.");
+        boolean uploadSuccess = archive.uploadFile(wp.getWarcFile(), collectionId);
+        if(uploadSuccess) {
+            log.info("Successfully uploaded the WARC file '" + wp.getWarcFile().getName() + "'"); 
+            wp.reportSucces(checksumDigest, getWriteBack());
+        } else {
+            log.warn("Failed to upload the file '" + wp.getWarcFile().getName() + "'. "
+                    + "Keeping it in temp dir: '" + conf.getBitmagConf().getTempDir().getAbsolutePath() + "'");
+            wp.reportFailure("Could not upload the file to the archive.", getWriteBack());
+        }
+    }
+    
+    /**
+     * Handler for submissions to the upload executor, when its queue is full.
+     * It waits until there is room in the queue, instead of rejecting the upload.
+     */
+    protected static class BlockingSubmissionHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if(executor.isShutdown()) {
+                throw new RejectedExecutionException("The uploads of the WARC files have been shut down.");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the upload queue.", e);
             }
-            warcPackerForCollection.remove(collectionId);
         }
     }
+    
+    /**
+     * The packaging of the data of a Cumulus record, which is performed as a transaction.
+     */
+    public interface RecordPackaging {
+        /**
+         * Packages the data of the record.
+         * @throws Exception If the packaging fails.
+         */
+        void pack() throws Exception;
+    }
 }
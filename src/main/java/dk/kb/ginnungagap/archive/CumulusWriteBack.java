@@ -0,0 +1,365 @@
+package dk.kb.ginnungagap.archive;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.ginnungagap.cumulus.CachedCumulusRecord;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Writes the results of the preservation back to the Cumulus records, when their WARC file has been uploaded.
+ *
+ * The records are divided into batches, and the batches are written back by a bounded number of threads,
+ * thus the thread finishing the upload does not have to wait for the write-back of every record.
+ * If no threads are given, then the batches are written back by the thread which submits them.
+ * The update of a record is retried a number of times before the record is registered as failed,
+ * and a failed record does not stop the write-back of the other records.
+ * The write-backs of e.g. a WARC file can be submitted as a group (see {@link Group}), which runs an action, 
+ * when all the batches of the group have been written back.
+ */
+public class CumulusWriteBack {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(CumulusWriteBack.class);
+
+    /** The default delay in millis before retrying the update of a record.*/
+    public static final long DEFAULT_RETRY_DELAY = 1000L;
+
+    /** The maximum number of records in a batch.*/
+    protected final int batchSize;
+    /** The number of times the update of a record is retried after failing.*/
+    protected final int retries;
+    /** The delay in millis before retrying the update of a record.*/
+    protected long retryDelay = DEFAULT_RETRY_DELAY;
+    /** The executor for writing back the batches. Null, if the batches are written back by the submitting thread.*/
+    protected final ExecutorService executor;
+
+    /** The number of batches, which are waiting to be written back or are being written back.*/
+    protected final AtomicInteger pendingBatches = new AtomicInteger(0);
+    /** The number of records submitted for write-back.*/
+    protected final AtomicLong submittedRecords = new AtomicLong(0L);
+    /** The number of records, which have been updated.*/
+    protected final AtomicLong updatedRecords = new AtomicLong(0L);
+    /** The number of records, which could not be updated.*/
+    protected final AtomicLong failedRecords = new AtomicLong(0L);
+    /** The number of retried updates of records.*/
+    protected final AtomicLong retriedUpdates = new AtomicLong(0L);
+
+    /**
+     * Constructor.
+     * @param threads The number of threads writing back the batches. 0 for writing back the batches with the
+     * thread which submits them.
+     * @param batchSize The maximum number of records in a batch.
+     * @param retries The number of times the update of a record is retried after failing.
+     */
+    public CumulusWriteBack(int threads, int batchSize, int retries) {
+        ArgumentCheck.checkNotNegativeInt(threads, "int threads");
+        ArgumentCheck.checkPositiveInt(batchSize, "int batchSize");
+        ArgumentCheck.checkNotNegativeInt(retries, "int retries");
+        this.batchSize = batchSize;
+        this.retries = retries;
+        if(threads > 0) {
+            this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Writes back the update to the given records in batches.
+     * @param description The description of the records, e.g. the WARC file they were packaged in.
+     * @param records The records to update. The list is copied, thus it may be changed afterwards.
+     * @param update The update of a record.
+     */
+    public void writeBack(String description, List<CumulusRecord> records, Consumer<CumulusRecord> update) {
+        writeBack(description, records, r -> r, update);
+    }
+
+    /**
+     * Writes back the update to the records of the given items in batches.
+     * The record of each item is resolved by the thread writing back its batch, as part of the update, 
+     * thus a failure to resolve the record is retried like a failed update.
+     * @param description The description of the records, e.g. the WARC file they were packaged in.
+     * @param items The items with the records to update, e.g. handles for the records. The items are copied, 
+     * thus the collection may be changed afterwards.
+     * @param resolver Resolves the record of an item.
+     * @param update The update of a record.
+     */
+    public <T> void writeBack(String description, Collection<T> items, Function<T, CumulusRecord> resolver, 
+            Consumer<CumulusRecord> update) {
+        writeBack(description, items, resolver, update, null);
+    }
+
+    /**
+     * Writes back the update to the records of the given items in batches, as part of a group of write-backs.
+     * The record of each item is resolved by the thread writing back its batch, as part of the update, 
+     * thus a failure to resolve the record is retried like a failed update.
+     * @param description The description of the records, e.g. the WARC file they were packaged in.
+     * @param items The items with the records to update, e.g. handles for the records. The items are copied, 
+     * thus the collection may be changed afterwards.
+     * @param resolver Resolves the record of an item.
+     * @param update The update of a record.
+     * @param group The group of the write-back, which is told when each batch has been written back. May be null.
+     */
+    public <T> void writeBack(String description, Collection<T> items, Function<T, CumulusRecord> resolver, 
+            Consumer<CumulusRecord> update, Group group) {
+        ArgumentCheck.checkNotNull(items, "Collection<T> items");
+        ArgumentCheck.checkNotNull(resolver, "Function<T, CumulusRecord> resolver");
+        ArgumentCheck.checkNotNull(update, "Consumer<CumulusRecord> update");
+        if(items.isEmpty()) {
+            return;
+        }
+        log.debug("Writing back the {} records of {}", items.size(), description);
+        submittedRecords.addAndGet(items.size());
+        List<T> batch = new ArrayList<T>(Math.min(batchSize, items.size()));
+        for(T item : items) {
+            batch.add(item);
+            if(batch.size() == batchSize) {
+                submitBatch(description, batch, resolver, update, group);
+                batch = new ArrayList<T>(batchSize);
+            }
+        }
+        if(!batch.isEmpty()) {
+            submitBatch(description, batch, resolver, update, group);
+        }
+    }
+
+    /**
+     * Submits a batch for write-back, or writes it back right away, if there are no write-back threads.
+     * If the batch cannot be submitted, then its group is never finished.
+     * @param description The description of the records.
+     * @param batch The batch of items with the records.
+     * @param resolver Resolves the record of an item.
+     * @param update The update of a record.
+     * @param group The group of the write-back. May be null.
+     */
+    protected <T> void submitBatch(String description, List<T> batch, Function<T, CumulusRecord> resolver, 
+            Consumer<CumulusRecord> update, Group group) {
+        pendingBatches.incrementAndGet();
+        if(group != null) {
+            group.addBatch();
+        }
+        if(executor == null) {
+            writeBatch(description, batch, resolver, update, group);
+            return;
+        }
+        try {
+            executor.execute(() -> writeBatch(description, batch, resolver, update, group));
+        } catch (RuntimeException e) {
+            finishBatch();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes back a batch of records.
+     * The group of the batch is told, before those waiting for the write-backs are woken up.
+     * @param description The description of the records.
+     * @param batch The batch of items with the records.
+     * @param resolver Resolves the record of an item.
+     * @param update The update of a record.
+     * @param group The group of the write-back. May be null.
+     */
+    protected <T> void writeBatch(String description, List<T> batch, Function<T, CumulusRecord> resolver, 
+            Consumer<CumulusRecord> update, Group group) {
+        try {
+            int failures = 0;
+            for(T item : batch) {
+                if(writeRecord(item, resolver, update)) {
+                    updatedRecords.incrementAndGet();
+                } else {
+                    failedRecords.incrementAndGet();
+                    failures++;
+                }
+            }
+            if(failures > 0) {
+                log.warn("Could not write back " + failures + " of a batch of " + batch.size() + " records of "
+                        + description);
+            }
+        } finally {
+            if(group != null) {
+                group.finishBatch();
+            }
+            finishBatch();
+        }
+    }
+
+    /**
+     * Resolves and updates a record, and retries if it fails.
+     * The writes of a cached record are flushed as part of the update.
+     * @param item The item with the record.
+     * @param resolver Resolves the record of the item.
+     * @param update The update of the record.
+     * @return Whether the record was updated.
+     */
+    protected <T> boolean writeRecord(T item, Function<T, CumulusRecord> resolver, Consumer<CumulusRecord> update) {
+        for(int attempt = 0; ; attempt++) {
+            try {
+                CumulusRecord record = resolver.apply(item);
+                update.accept(record);
+                CachedCumulusRecord.flushWrites(record);
+                return true;
+            } catch (RuntimeException e) {
+                if(attempt >= retries) {
+                    log.error("Could not write back the preservation result to the record '" + item + "'.", e);
+                    return false;
+                }
+                log.info("Failed to write back the preservation result to the record '" + item
+                        + "'. Retrying.", e);
+                retriedUpdates.incrementAndGet();
+                if(!waitBeforeRetry()) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits before retrying an update.
+     * @return Whether the update should be retried, which it should not when the thread has been interrupted.
+     */
+    protected boolean waitBeforeRetry() {
+        if(retryDelay <= 0L) {
+            return true;
+        }
+        try {
+            Thread.sleep(retryDelay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting to retry the write-back.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Registers that a batch has finished, and wakes up those waiting for the write-backs.
+     */
+    protected void finishBatch() {
+        synchronized(pendingBatches) {
+            pendingBatches.decrementAndGet();
+            pendingBatches.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all the submitted batches have been written back.
+     * @throws InterruptedException If it is interrupted while waiting.
+     */
+    public void waitForWriteBacks() throws InterruptedException {
+        synchronized(pendingBatches) {
+            while(pendingBatches.get() > 0) {
+                pendingBatches.wait();
+            }
+        }
+    }
+
+    /**
+     * Stops the write-back threads. The batches already submitted will still be written back.
+     */
+    public void shutDown() {
+        if(executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /** @param retryDelay The delay in millis before retrying the update of a record.*/
+    public void setRetryDelay(long retryDelay) {
+        ArgumentCheck.checkNotNegativeLong(retryDelay, "long retryDelay");
+        this.retryDelay = retryDelay;
+    }
+
+    /** @return The number of batches, which are waiting to be written back or are being written back.*/
+    public int getNumberOfPendingBatches() {
+        return pendingBatches.get();
+    }
+
+    /** @return The number of records submitted for write-back.*/
+    public long getSubmittedRecords() {
+        return submittedRecords.get();
+    }
+
+    /** @return The number of records, which have been updated.*/
+    public long getUpdatedRecords() {
+        return updatedRecords.get();
+    }
+
+    /** @return The number of records, which could not be updated.*/
+    public long getFailedRecords() {
+        return failedRecords.get();
+    }
+
+    /** @return The number of retried updates of records.*/
+    public long getRetriedUpdates() {
+        return retriedUpdates.get();
+    }
+
+    /**
+     * A group of write-backs, e.g. those of the records of a WARC file, which runs an action, when all the 
+     * submitted batches of the group have been written back, e.g. deleting the journal of the WARC file.
+     * The action is run, when the last batch has been written back, or when the submission to the group ends 
+     * (see {@link #allSubmitted()}), whichever comes last, thus it is not run before all batches are submitted.
+     */
+    public static class Group {
+        /** The number of unfinished batches of the group, plus one until all batches have been submitted.*/
+        protected final AtomicInteger pendingBatches = new AtomicInteger(1);
+        /** The action to run, when all the batches of the group have been written back.*/
+        protected final Runnable whenWrittenBack;
+
+        /**
+         * Constructor.
+         * @param whenWrittenBack The action to run, when all the batches of the group have been written back.
+         */
+        public Group(Runnable whenWrittenBack) {
+            ArgumentCheck.checkNotNull(whenWrittenBack, "Runnable whenWrittenBack");
+            this.whenWrittenBack = whenWrittenBack;
+        }
+
+        /**
+         * Ends the submission of batches to the group.
+         * If the batches already have been written back, then the action is run right away.
+         */
+        public void allSubmitted() {
+            finishBatch();
+        }
+
+        /**
+         * Registers a batch of the group, which has been submitted.
+         */
+        protected void addBatch() {
+            pendingBatches.incrementAndGet();
+        }
+
+        /**
+         * Registers that a batch of the group has been written back, and runs the action after the last batch.
+         * A failure of the action is logged, thus it does not fail the write-back.
+         */
+        protected void finishBatch() {
+            if(pendingBatches.decrementAndGet() == 0) {
+                try {
+                    whenWrittenBack.run();
+                } catch (RuntimeException e) {
+                    log.error("Failure after the write-back of a group of records.", e);
+                }
+            }
+        }
+
+        /** @return Whether all the batches of the group have been submitted and written back.*/
+        public boolean isWrittenBack() {
+            return pendingBatches.get() == 0;
+        }
+    }
+}
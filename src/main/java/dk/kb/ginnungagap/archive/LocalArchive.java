@@ -1,11 +1,16 @@
 package dk.kb.ginnungagap.archive;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.jwat.warc.WarcDigest;
 
 import dk.kb.ginnungagap.utils.ChecksumUtils;
 import dk.kb.ginnungagap.utils.FileUtils;
+import dk.kb.ginnungagap.utils.RangeInputStream;
 
 /**
  * A local archive, which just places the files in a local 'archive' folder with subfolder for each collection.
@@ -44,10 +49,28 @@ public class LocalArchive implements Archive {
         return new File(collectionDir, warcId);
     }
 
+    @Override
+    public InputStream openRange(String warcId, String collectionId, long offset, long length) 
+            throws IOException {
+        return RangeInputStream.open(getFile(warcId, collectionId), offset, length);
+    }
+
     @Override
     public String getChecksum(String warcId, String collectionId) {
         WarcDigest digest = ChecksumUtils.calculateChecksum(getFile(warcId, collectionId), 
                 ChecksumUtils.MD5_ALGORITHM);
         return digest.digestString;
     }
+
+    @Override
+    public Map<String, String> getChecksums(String collectionId) {
+        File collectionDir = FileUtils.getDirectory(new File(archiveBaseDir, collectionId).getAbsolutePath());
+        Map<String, String> res = new HashMap<String, String>();
+        for(File f : collectionDir.listFiles()) {
+            if(f.isFile()) {
+                res.put(f.getName(), ChecksumUtils.calculateChecksum(f, ChecksumUtils.MD5_ALGORITHM).digestString);
+            }
+        }
+        return res;
+    }
 }
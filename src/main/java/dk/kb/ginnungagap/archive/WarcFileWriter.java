@@ -0,0 +1,232 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.UUID;
+
+import org.jwat.common.ContentType;
+import org.jwat.common.Uri;
+import org.jwat.warc.WarcConstants;
+import org.jwat.warc.WarcDigest;
+import org.jwat.warc.WarcRecord;
+import org.jwat.warc.WarcWriter;
+import org.jwat.warc.WarcWriterFactory;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Writes the records of a new WARC file, and digests the bytes of the WARC file while they are written.
+ *
+ * The records are written with the same headers as the WARC writer wrapper of Yggdrasil, but the output stream
+ * of the WARC writer is wrapped in a digest output stream, thus the running digest of the WARC file is updated
+ * with every byte on its way to the WARC file, and the WARC file is never read back for its digest.
+ * The WARC writer flushes each record when it is closed, thus the running digest covers the whole WARC file
+ * after each record.
+ */
+public class WarcFileWriter implements Closeable {
+    /** The size of the buffer of the WARC writer.*/
+    protected static final int WRITER_BUFFER_SIZE = 8192;
+    /** The prefix for the URIs of the record ids.*/
+    protected static final String UUID_URI_PREFIX = "urn:uuid:";
+
+    /** The id of the WARC file.*/
+    protected final String warcFileId;
+    /** The WARC file.*/
+    protected final File warcFile;
+    /** The output stream to the WARC file.*/
+    protected final FileOutputStream fileOut;
+    /** The WARC writer, which writes through the running digest to the WARC file.*/
+    protected final WarcWriter writer;
+    /** The id of the warc-info record, once it has been written.*/
+    protected Uri warcinfoRecordId;
+
+    /**
+     * Constructor.
+     * @param warcFile The new WARC file. It must not already exist.
+     * @param warcFileId The id of the WARC file.
+     * @param digest The running digest, which is updated with the bytes written to the WARC file.
+     * @throws IOException If the WARC file cannot be created.
+     */
+    protected WarcFileWriter(File warcFile, String warcFileId, MessageDigest digest) throws IOException {
+        this.warcFile = warcFile;
+        this.warcFileId = warcFileId;
+        this.fileOut = new FileOutputStream(warcFile);
+        this.writer = WarcWriterFactory.getWriter(new DigestOutputStream(fileOut, digest), WRITER_BUFFER_SIZE,
+                false);
+    }
+
+    /**
+     * Creates the writer for a new WARC file in the given directory.
+     * @param dir The directory for the WARC file.
+     * @param warcFileId The id of the WARC file, which is also the name of the WARC file.
+     * @param digest The running digest, which is updated with the bytes written to the WARC file.
+     * @return The writer for the new WARC file.
+     * @throws IOException If the WARC file already exists, or it cannot be created.
+     */
+    public static WarcFileWriter createWriter(File dir, String warcFileId, MessageDigest digest)
+            throws IOException {
+        ArgumentCheck.checkExistsDirectory(dir, "File dir");
+        ArgumentCheck.checkNotNullOrEmpty(warcFileId, "String warcFileId");
+        ArgumentCheck.checkNotNull(digest, "MessageDigest digest");
+        File warcFile = new File(dir, warcFileId);
+        if(warcFile.exists()) {
+            throw new IOException("The WARC file '" + warcFile.getAbsolutePath() + "' already exists.");
+        }
+        return new WarcFileWriter(warcFile, warcFileId, digest);
+    }
+
+    /**
+     * Writes the warc-info record of the WARC file.
+     * @param payload The payload of the warc-info record.
+     * @param blockDigest The block digest of the payload.
+     * @return The id of the warc-info record.
+     * @throws IOException If it fails to write the record.
+     */
+    public Uri writeWarcinfoRecord(byte[] payload, WarcDigest blockDigest) throws IOException {
+        warcinfoRecordId = createUuidUri(UUID.randomUUID().toString());
+        WarcRecord record = WarcRecord.createRecord(writer);
+        record.header.addHeader(WarcConstants.FN_WARC_TYPE, WarcConstants.RT_WARCINFO);
+        record.header.addHeader(WarcConstants.FN_WARC_DATE, new Date(), null);
+        record.header.addHeader(WarcConstants.FN_WARC_FILENAME, warcFileId);
+        record.header.addHeader(WarcConstants.FN_WARC_RECORD_ID, warcinfoRecordId, null);
+        record.header.addHeader(WarcConstants.FN_CONTENT_TYPE, WarcConstants.CT_APP_WARC_FIELDS);
+        writeRecord(record, new ByteArrayInputStream(payload), payload.length, blockDigest);
+        return warcinfoRecordId;
+    }
+
+    /**
+     * Writes a resource record.
+     * @param in The payload of the record.
+     * @param length The length of the payload.
+     * @param contentType The content type of the payload.
+     * @param blockDigest The block digest of the payload.
+     * @param uuid The UUID of the record.
+     * @return The id of the record.
+     * @throws IOException If it fails to write the record.
+     */
+    public Uri writeResourceRecord(InputStream in, long length, ContentType contentType, WarcDigest blockDigest,
+            String uuid) throws IOException {
+        Uri recordId = createUuidUri(uuid);
+        WarcRecord record = WarcRecord.createRecord(writer);
+        record.header.addHeader(WarcConstants.FN_WARC_TYPE, WarcConstants.RT_RESOURCE);
+        record.header.addHeader(WarcConstants.FN_WARC_TARGET_URI, recordId, null);
+        addCommonHeaders(record, recordId, contentType);
+        writeRecord(record, in, length, blockDigest);
+        return recordId;
+    }
+
+    /**
+     * Writes a metadata record.
+     * @param in The payload of the record.
+     * @param length The length of the payload.
+     * @param contentType The content type of the payload.
+     * @param refersTo The id of the record, which the metadata refers to. May be null.
+     * @param blockDigest The block digest of the payload.
+     * @param warcRecordId The id of the record.
+     * @param uuid The UUID of the metadata.
+     * @return The id of the record.
+     * @throws IOException If it fails to write the record.
+     */
+    public Uri writeMetadataRecord(InputStream in, long length, ContentType contentType, Uri refersTo,
+            WarcDigest blockDigest, String warcRecordId, String uuid) throws IOException {
+        Uri recordId = createUuidUri(warcRecordId);
+        WarcRecord record = WarcRecord.createRecord(writer);
+        record.header.addHeader(WarcConstants.FN_WARC_TYPE, WarcConstants.RT_METADATA);
+        record.header.addHeader(WarcConstants.FN_WARC_TARGET_URI, createUuidUri(uuid), null);
+        if(refersTo != null) {
+            record.header.addHeader(WarcConstants.FN_WARC_REFERS_TO, refersTo, null);
+        }
+        addCommonHeaders(record, recordId, contentType);
+        writeRecord(record, in, length, blockDigest);
+        return recordId;
+    }
+
+    /**
+     * Adds the headers, which all records after the warc-info record have.
+     * @param record The record.
+     * @param recordId The id of the record.
+     * @param contentType The content type of the payload of the record.
+     */
+    protected void addCommonHeaders(WarcRecord record, Uri recordId, ContentType contentType) {
+        record.header.addHeader(WarcConstants.FN_WARC_DATE, new Date(), null);
+        if(warcinfoRecordId != null) {
+            record.header.addHeader(WarcConstants.FN_WARC_WARCINFO_ID, warcinfoRecordId, null);
+        }
+        record.header.addHeader(WarcConstants.FN_WARC_RECORD_ID, recordId, null);
+        record.header.addHeader(WarcConstants.FN_CONTENT_TYPE, contentType, null);
+    }
+
+    /**
+     * Writes the header and the payload of a record, and closes the record, thus flushing it to the WARC file.
+     * @param record The record with its headers.
+     * @param in The payload of the record.
+     * @param length The length of the payload.
+     * @param blockDigest The block digest of the payload. May be null.
+     * @throws IOException If it fails to write the record.
+     */
+    protected void writeRecord(WarcRecord record, InputStream in, long length, WarcDigest blockDigest)
+            throws IOException {
+        if(blockDigest != null) {
+            record.header.addHeader(WarcConstants.FN_WARC_BLOCK_DIGEST, blockDigest, null);
+        }
+        record.header.addHeader(WarcConstants.FN_CONTENT_LENGTH, length, null);
+        writer.writeHeader(record);
+        writer.streamPayload(in);
+        writer.closeRecord();
+    }
+
+    /**
+     * Creates the URI for a UUID.
+     * @param uuid The UUID.
+     * @return The URI.
+     * @throws IOException If the UUID is not valid in an URI.
+     */
+    protected static Uri createUuidUri(String uuid) throws IOException {
+        try {
+            return new Uri(UUID_URI_PREFIX + uuid);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid record id '" + uuid + "'.", e);
+        }
+    }
+
+    /** @return The size of the WARC file, thus the offset of the next record.*/
+    public long getWarcFileSize() {
+        return warcFile.length();
+    }
+
+    /**
+     * Forces the written records of the WARC file to the disk.
+     * @throws IOException If the WARC file cannot be forced to the disk.
+     */
+    public void sync() throws IOException {
+        fileOut.getFD().sync();
+    }
+
+    /** @return The WARC file.*/
+    public File getWarcFile() {
+        return warcFile;
+    }
+
+    /** @return The id of the WARC file.*/
+    public String getWarcFileId() {
+        return warcFileId;
+    }
+
+    /**
+     * Closes the WARC writer and the WARC file.
+     * The running digest covers the whole WARC file afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        fileOut.close();
+    }
+}
@@ -3,32 +3,78 @@ package dk.kb.ginnungagap.archive;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Function;
 
 import org.jwat.common.ContentType;
 import org.jwat.common.Uri;
+import org.jwat.warc.WarcConstants;
 import org.jwat.warc.WarcDigest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.config.BitmagConfiguration;
+import dk.kb.ginnungagap.cumulus.CachedCumulusRecord;
 import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
+import dk.kb.ginnungagap.cumulus.CumulusRecordHandle;
 import dk.kb.ginnungagap.exception.ArgumentCheck;
 import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.FileDigests;
+import dk.kb.ginnungagap.utils.MetadataBuffer;
 import dk.kb.yggdrasil.exceptions.YggdrasilException;
 import dk.kb.yggdrasil.warc.Digest;
-import dk.kb.yggdrasil.warc.WarcWriterWrapper;
 
 /**
  * Packages the warc files.
+ * 
+ * A running MD5 digest of the WARC file is maintained while the records are written, by digesting the bytes on 
+ * their way to the WARC file (see {@link WarcFileWriter}), so the checksum of the whole WARC file is available 
+ * when the WARC packer is closed, without reading the WARC file again.
+ * 
+ * The offset and length of each record are added to the index of the WARC file as the record is written, 
+ * so the records can later be read directly from the WARC file (see {@link WarcRecordIndex}).
+ * 
+ * The packaged Cumulus records are registered by their handles (see {@link CumulusRecordHandle}) in hashed sets, 
+ * thus registering a record takes constant time, and the records are not kept alive by the WARC packer until the 
+ * WARC file is uploaded. The records are resolved from their handles, when the result is reported back to Cumulus.
+ * 
+ * The packaging of a Cumulus record can be rolled back to a savepoint taken before the record was packaged 
+ * (see {@link #createSavepoint()} and {@link #rollback(Savepoint)}), thus a record which fails during its 
+ * packaging does not leave any of its data in the WARC file. Since the WARC writer cannot be moved back, 
+ * the WARC file is closed, when it is truncated back to the savepoint, and the packaging must continue 
+ * in a new WARC file.
+ * 
+ * The WARC file of a collection has a packaging journal next to it (see {@link WarcPackingJournal}), which 
+ * records the written WARC records, the packaged Cumulus records and the transactions, thus the WARC file can be 
+ * recovered up to its last committed record (see {@link #recover(BitmagConfiguration, CumulusServer, 
+ * WarcPackingJournal)}), if the application stops before the WARC file has been uploaded and reported.
+ * The upload of the WARC file is journaled, when its success is reported, and the journal is deleted, when the 
+ * results have been written back to all the records, thus a WARC file, which was uploaded before the application 
+ * stopped, is only reported again, when it is recovered.
+ * The WARC file and its journal are not forced to the disk at every commit, but in groups: after a number of 
+ * commits, when the time since the last sync has passed an interval (see {@link BitmagConfiguration}), and when 
+ * the WARC packer is closed before the upload. A crash loses the records committed since the last sync, which are 
+ * then neither in the recovered WARC file nor reported back, thus they are packaged again by the next preservation.
  */
 public class WarcPacker implements Closeable {
     /** The logger.*/
@@ -37,31 +83,99 @@ public class WarcPacker implements Closeable {
     /** The content type for the metadata. */
     public static final String METADATA_CONTENT_TYPE = "text/xml";
     
-    /** The warc writer wrapper, for writing the warc records.*/
-    protected final WarcWriterWrapper warcWrapper;
-    /** The records which has been packaged in the warc file, but content file and metadata.*/
-    protected final List<CumulusRecord> packagedCompleteRecords;
-    /** The records whose metadata has been packaged in the warc file.*/
-    protected final List<CumulusRecord> packagedMetadataRecords;
+    /** The writer of the WARC file, for writing the warc records. Null for a recovered WARC file.*/
+    protected final WarcFileWriter warcWrapper;
+    /** The lock for writing to the WARC file and for closing it.*/
+    protected final Object writerLock = new Object();
+    /** The WARC file.*/
+    protected final File warcFile;
+    /** The id of the WARC file.*/
+    protected final String warcFileId;
+    /** The handles for the records which has been packaged in the warc file, both content file and metadata.*/
+    protected final Set<CumulusRecordHandle> packagedCompleteRecords;
+    /** The handles for the records whose metadata has been packaged in the warc file.*/
+    protected final Set<CumulusRecordHandle> packagedMetadataRecords;
     /** The configuration for the bitrepository.*/
     protected final BitmagConfiguration bitmagConf;
+    /** The Cumulus server, for finding the records which are no longer in use. May be null.*/
+    protected final CumulusServer cumulusServer;
     
     /** Whether or not the current WARC file has any content besides the warc-info.*/
     protected boolean hasContent;
     /** Whether or not this WARC packer is closed.*/
     protected boolean isClosed;
+    /** Whether or not the WARC file has been uploaded, as registered in its journal.*/
+    protected boolean isUploaded;
+    /** Whether or not the writer of the WARC file has been closed.*/
+    protected boolean isWriterClosed;
+    
+    /** The running MD5 digest of the WARC file, which is updated by the writer of the WARC file.*/
+    protected MessageDigest warcFileDigest;
+    /** The MD5 checksum of the whole WARC file. Only available after the WARC packer has been closed.*/
+    protected WarcDigest warcFileChecksum;
+    /** The index of the records in the WARC file. Null if the configuration has no index directory.*/
+    protected final WarcRecordIndex recordIndex;
+    /** The journal of the packaging of the WARC file. Null if the WARC file is not to be recovered.*/
+    protected final WarcPackingJournal journal;
+    /** The id of the collection, which the WARC file is to be uploaded to. Null if it is not journaled.*/
+    protected final String collectionId;
+    /** The number of commits since the WARC file and its journal were last forced to the disk.*/
+    protected int unsyncedCommits = 0;
+    /** The time in milliseconds, when the WARC file and its journal were last forced to the disk.*/
+    protected long lastSyncTime = System.currentTimeMillis();
 
     /**
      * Constructor.
+     * The packaged records can only be reported back, while they are still in use.
      * @param conf Configuration for the bitrepository.
      */
     public WarcPacker(BitmagConfiguration conf) {
+        this(conf, null);
+    }
+    
+    /**
+     * Constructor.
+     * The WARC file has no packaging journal, thus it cannot be recovered.
+     * @param conf Configuration for the bitrepository.
+     * @param cumulusServer The Cumulus server, for finding the packaged records, which are no longer in use, 
+     * when they are reported back. May be null.
+     */
+    public WarcPacker(BitmagConfiguration conf, CumulusServer cumulusServer) {
+        this(conf, cumulusServer, null);
+    }
+    
+    /**
+     * Constructor.
+     * @param conf Configuration for the bitrepository.
+     * @param cumulusServer The Cumulus server, for finding the packaged records, which are no longer in use, 
+     * when they are reported back. May be null.
+     * @param collectionId The id of the collection, which the WARC file is to be uploaded to. The packaging is 
+     * journaled next to the WARC file, for recovering it. May be null, if the WARC file is not to be recovered.
+     */
+    public WarcPacker(BitmagConfiguration conf, CumulusServer cumulusServer, String collectionId) {
         this.bitmagConf = conf;
-        this.packagedCompleteRecords = new ArrayList<CumulusRecord>();
-        this.packagedMetadataRecords = new ArrayList<CumulusRecord>();
+        this.cumulusServer = cumulusServer;
+        this.collectionId = collectionId;
+        this.isWriterClosed = false;
+        this.packagedCompleteRecords = new LinkedHashSet<CumulusRecordHandle>();
+        this.packagedMetadataRecords = new LinkedHashSet<CumulusRecordHandle>();
         
         try {
-            this.warcWrapper = WarcWriterWrapper.getWriter(conf.getTempDir(), UUID.randomUUID().toString());
+            this.warcFileDigest = MessageDigest.getInstance(ChecksumUtils.MD5_ALGORITHM);
+            this.warcWrapper = WarcFileWriter.createWriter(conf.getTempDir(), UUID.randomUUID().toString(), 
+                    warcFileDigest);
+            this.warcFile = warcWrapper.getWarcFile();
+            this.warcFileId = warcWrapper.getWarcFileId();
+            if(collectionId != null) {
+                this.journal = WarcPackingJournal.createJournal(conf.getTempDir(), warcFileId, collectionId);
+            } else {
+                this.journal = null;
+            }
+            if(conf.getIndexDir() != null) {
+                this.recordIndex = WarcRecordIndex.createIndex(conf.getIndexDir(), warcFileId);
+            } else {
+                this.recordIndex = null;
+            }
             writeWarcinfo();
             this.hasContent = false;
             this.isClosed = false;
@@ -70,18 +184,99 @@ public class WarcPacker implements Closeable {
         }
     }
     
+    /**
+     * Constructor for a recovered WARC file, which is closed.
+     * The WARC file was not written by this WARC packer, thus its checksum is calculated from the WARC file, 
+     * unless the WARC file already has been uploaded, in which case the checksum is taken from the journal.
+     * @param conf Configuration for the bitrepository.
+     * @param cumulusServer The Cumulus server, for finding the recovered records. May be null.
+     * @param journal The journal of the WARC file.
+     * @param state The committed state of the packaging of the WARC file, from its journal.
+     * @param warcFile The WARC file, which has been truncated to its last committed record. It does not exist, 
+     * when it has been uploaded.
+     * @param recordIndex The index of the records in the WARC file. May be null.
+     */
+    protected WarcPacker(BitmagConfiguration conf, CumulusServer cumulusServer, WarcPackingJournal journal, 
+            WarcPackingJournal.State state, File warcFile, WarcRecordIndex recordIndex) {
+        this.bitmagConf = conf;
+        this.cumulusServer = cumulusServer;
+        this.warcWrapper = null;
+        this.warcFile = warcFile;
+        this.warcFileId = journal.getWarcFileId();
+        this.journal = journal;
+        this.collectionId = state.getCollectionId();
+        this.recordIndex = recordIndex;
+        this.packagedCompleteRecords = new LinkedHashSet<CumulusRecordHandle>(state.getCompleteRecords());
+        this.packagedMetadataRecords = new LinkedHashSet<CumulusRecordHandle>(state.getMetadataRecords());
+        this.hasContent = state.hasContent();
+        this.isClosed = true;
+        this.isWriterClosed = true;
+        this.isUploaded = state.isUploaded();
+        this.warcFileDigest = null;
+        if(isUploaded) {
+            this.warcFileChecksum = state.getUploadedChecksum();
+        } else {
+            this.warcFileChecksum = ChecksumUtils.calculateChecksum(warcFile, ChecksumUtils.MD5_ALGORITHM);
+        }
+    }
+    
+    /**
+     * Recovers the WARC file of a packaging journal, which was left in the temporary directory, when the 
+     * application stopped before the WARC file had been uploaded and reported.
+     * The WARC file is truncated back to the end of its last committed record, and its index is reverted 
+     * accordingly. The WARC writer cannot reopen an existing WARC file, thus the recovered WARC packer is closed, 
+     * and its WARC file only has to be uploaded and reported like any other finished WARC file.
+     * If the journal shows, that the WARC file already has been uploaded (see {@link #isUploaded()}), then the 
+     * WARC file is not needed, and the records only have to be reported back.
+     * @param conf Configuration for the bitrepository.
+     * @param cumulusServer The Cumulus server, for finding the recovered records, when they are reported back.
+     * May be null.
+     * @param journal The journal of the WARC file.
+     * @return The closed WARC packer for the recovered WARC file.
+     */
+    public static WarcPacker recover(BitmagConfiguration conf, CumulusServer cumulusServer, 
+            WarcPackingJournal journal) {
+        ArgumentCheck.checkNotNull(journal, "WarcPackingJournal journal");
+        WarcPackingJournal.State state = journal.replay();
+        journal.truncate(state);
+        File warcFile = new File(journal.getJournalFile().getParentFile(), journal.getWarcFileId());
+        if(state.isUploaded()) {
+            return new WarcPacker(conf, cumulusServer, journal, state, warcFile, 
+                    WarcRecordIndex.getIndex(conf.getIndexDir(), journal.getWarcFileId()));
+        }
+        if(!warcFile.isFile() || warcFile.length() < state.getCommittedOffset()) {
+            throw new IllegalStateException("The WARC file '" + warcFile + "' is missing, or it does not contain "
+                    + "the records of its journal.");
+        }
+        if(warcFile.length() > state.getCommittedOffset()) {
+            log.info("Truncating the recovered WARC file '" + warcFile.getName() + "' from " + warcFile.length() 
+                    + " bytes back to its last committed record at " + state.getCommittedOffset() + " bytes.");
+            try (RandomAccessFile raf = new RandomAccessFile(warcFile, "rw")) {
+                raf.setLength(state.getCommittedOffset());
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not truncate the recovered WARC file '" + warcFile + "'.", e);
+            }
+        }
+        WarcRecordIndex recordIndex = WarcRecordIndex.getIndex(conf.getIndexDir(), journal.getWarcFileId());
+        if(recordIndex != null) {
+            recordIndex.truncate(state.getCommittedOffset());
+        }
+        return new WarcPacker(conf, cumulusServer, journal, state, warcFile, recordIndex);
+    }
+    
     /**
      * Write the warc info of the WARC file.
      * This should be done as the first thing after instantiating a new WARC file. 
-     * @throws YggdrasilException If it fails to write the warc info.
+     * @throws YggdrasilException If it fails to calculate the digest of the warc info.
+     * @throws IOException If it fails to write the warc info.
      */
-    protected void writeWarcinfo() throws YggdrasilException {
+    protected void writeWarcinfo() throws YggdrasilException, IOException {
         if(isClosed) {
             log.info("writeWarcinfo:, Stack traces: " +
                     Arrays.toString(Thread.currentThread().getStackTrace()).replace(',', '\n'));
         }
         ArgumentCheck.checkTrue(!isClosed, "WarcPacker must not be closed");
-        synchronized(warcWrapper) {
+        synchronized(writerLock) {
             Digest digestor = new Digest(bitmagConf.getAlgorithm());
             StringBuffer payload = new StringBuffer();
             payload.append(WarcInfoConstants.INFO_RECORD_HEADER);
@@ -102,8 +297,11 @@ public class WarcPacker implements Closeable {
             }
 
             byte[] warcInfoPayloadBytes = payload.toString().getBytes(StandardCharsets.UTF_8);
-            warcWrapper.writeWarcinfoRecord(warcInfoPayloadBytes,
+            long offset = warcWrapper.getWarcFileSize();
+            Uri uri = warcWrapper.writeWarcinfoRecord(warcInfoPayloadBytes,
                     digestor.getDigestOfBytes(warcInfoPayloadBytes));
+            journalRecord(uri == null ? WarcConstants.RT_WARCINFO : uri.toString(), offset, 
+                    WarcConstants.RT_WARCINFO);
         }
     }
 
@@ -119,8 +317,30 @@ public class WarcPacker implements Closeable {
         packResource(resourceFile, blockDigest, contentType, record.getUUID());
     }
     
+    /**
+     * Pack a record into the Warc file, using the digests already calculated for its Cumulus Asset file, 
+     * thus the file is only read while it is written to the Warc file.
+     * If the file has changed since the digests were calculated, or the digest for the block is missing, 
+     * then the block digest is calculated again.
+     * @param record The record from Cumulus.
+     * @param fileDigests The digests of the Cumulus Asset file for the record.
+     */
+    public synchronized void packRecordAssetFile(CumulusRecord record, FileDigests fileDigests) {
+        WarcDigest blockDigest = fileDigests.getDigest(bitmagConf.getAlgorithm());
+        if(blockDigest == null || !fileDigests.isUnchanged()) {
+            log.info("The digests of the file '" + fileDigests.getFile().getName() + "' cannot be used. "
+                    + "Calculating the block digest again.");
+            packRecordAssetFile(record, fileDigests.getFile());
+            return;
+        }
+        
+        packResource(fileDigests.getFile(), blockDigest, getContentType(record), record.getUUID());
+    }
+    
     /**
      * Packages a file in a WARC-resource.
+     * The digest of the content is calculated, while it is written, and it must be identical to the given 
+     * block digest, otherwise the file has changed since the block digest was calculated.
      * @param resourceFile The file with the content for the resource record.
      * @param blockDigest The digest for the warc record.
      * @param contentType The content type for the warc record (refers to the content of the file).
@@ -133,12 +353,24 @@ public class WarcPacker implements Closeable {
                     Arrays.toString(Thread.currentThread().getStackTrace()).replace(',', '\n'));
         }
         ArgumentCheck.checkTrue(!isClosed, "WarcPacker must not be closed");
-        synchronized(warcWrapper) {
-            try (InputStream in = new FileInputStream(resourceFile)) {
+        synchronized(writerLock) {
+            try (DigestInputStream in = new DigestInputStream(new FileInputStream(resourceFile), 
+                    MessageDigest.getInstance(blockDigest.algorithm))) {
+                long offset = warcWrapper.getWarcFileSize();
                 Uri uri = warcWrapper.writeResourceRecord(in, resourceFile.length(), contentType, blockDigest, uuid);
+                indexRecord(uuid, offset, WarcConstants.RT_RESOURCE, blockDigest);
                 log.debug("Packed file '" + resourceFile.getName() + "' for uuid '" + uuid + "', and the "
                         + "record received the URI:" + uri + "'");
                 hasContent = true;
+                
+                byte[] writtenDigest = in.getMessageDigest().digest();
+                if(blockDigest.digestBytes != null 
+                        && !MessageDigest.isEqual(writtenDigest, blockDigest.digestBytes)) {
+                    throw new IllegalStateException("The file '" + resourceFile.getName() + "' was changed during "
+                            + "the packaging. Expected digest '" + blockDigest.digestString + "', but packaged '" 
+                            + ChecksumUtils.createWarcDigest(blockDigest.algorithm, writtenDigest).digestString 
+                            + "'.");
+                }
             } catch (Exception e) {
                 throw new IllegalStateException("Could not package the metadata into the WARC file.", e);
             }
@@ -160,14 +392,16 @@ public class WarcPacker implements Closeable {
         ArgumentCheck.checkTrue(!isClosed, "WarcPacker must not be closed");
         ArgumentCheck.checkNotNullOrEmpty(warcRecordId, "String warcRecordId");
         log.info("WarcRecordId: {}", warcRecordId);
-        synchronized(warcWrapper) {
+        synchronized(writerLock) {
             try (InputStream in = new FileInputStream(metadataFile)) {
                 String uuid = metadataFile.getName();
                 Digest digestor = new Digest(bitmagConf.getAlgorithm());
                 WarcDigest blockDigest = digestor.getDigestOfFile(metadataFile);
+                long offset = warcWrapper.getWarcFileSize();
                 warcWrapper.writeMetadataRecord(in, metadataFile.length(), 
                         ContentType.parseContentType(METADATA_CONTENT_TYPE), refersTo, blockDigest, 
                         warcRecordId, uuid);
+                indexRecord(warcRecordId, offset, WarcConstants.RT_METADATA, blockDigest);
                 hasContent = true;
             } catch (Exception e) {
                 throw new IllegalStateException("Could not package the metadata into the WARC file.", e);
@@ -175,18 +409,99 @@ public class WarcPacker implements Closeable {
         }
     }
 
+    /**
+     * Packages buffered metadata.
+     * @param metadata The buffer with the metadata. The id of the buffer must be the same 
+     * as the UUID of the metadata record.
+     * @param refersTo Value for the refers-to elements in the warc record header. This may be null.
+     * @param warcRecordId The id of the WARC record.
+     */
+    protected void packMetadata(MetadataBuffer metadata, Uri refersTo, String warcRecordId) {
+        if(isClosed) {
+            log.info("packMetadata:, Stack traces: " +
+                    Arrays.toString(Thread.currentThread().getStackTrace()).replace(',', '\n'));
+        }
+        ArgumentCheck.checkTrue(!isClosed, "WarcPacker must not be closed");
+        ArgumentCheck.checkNotNullOrEmpty(warcRecordId, "String warcRecordId");
+        log.info("WarcRecordId: {}", warcRecordId);
+        synchronized(writerLock) {
+            try {
+                WarcDigest blockDigest;
+                try (InputStream in = metadata.getInputStream()) {
+                    blockDigest = ChecksumUtils.calculateChecksum(in, bitmagConf.getAlgorithm());
+                }
+                long offset = warcWrapper.getWarcFileSize();
+                try (InputStream in = metadata.getInputStream()) {
+                    warcWrapper.writeMetadataRecord(in, metadata.size(), 
+                            ContentType.parseContentType(METADATA_CONTENT_TYPE), refersTo, blockDigest, 
+                            warcRecordId, metadata.getId());
+                }
+                indexRecord(warcRecordId, offset, WarcConstants.RT_METADATA, blockDigest);
+                hasContent = true;
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not package the metadata into the WARC file.", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the record, which has just been written from the given offset, to the index and the journal of the 
+     * WARC file.
+     * The WARC writer flushes each record when it is closed, thus the size of the WARC file is the end of the record.
+     * Must be called while synchronized on the writer lock.
+     * @param recordId The id of the record.
+     * @param offset The offset of the record in the WARC file.
+     * @param type The WARC type of the record.
+     * @param blockDigest The block digest of the record.
+     */
+    protected void indexRecord(String recordId, long offset, String type, WarcDigest blockDigest) {
+        if(recordIndex != null) {
+            recordIndex.addEntry(recordId, offset, warcWrapper.getWarcFileSize() - offset, type, blockDigest);
+        }
+        journalRecord(recordId, offset, type);
+    }
+    
+    /**
+     * Adds the record, which has just been written from the given offset, to the journal of the WARC file.
+     * Must be called while synchronized on the writer lock.
+     * @param recordId The id of the record.
+     * @param offset The offset of the record in the WARC file.
+     * @param type The WARC type of the record.
+     */
+    protected void journalRecord(String recordId, long offset, String type) {
+        if(journal != null) {
+            journal.recordWritten(recordId, offset, warcWrapper.getWarcFileSize(), type);
+        }
+    }
+
+    /**
+     * Retrieves the MD5 checksum of the whole WARC file, which has been calculated while it was written.
+     * @return The MD5 checksum of the WARC file.
+     */
+    public WarcDigest getWarcFileChecksum() {
+        ArgumentCheck.checkTrue(isClosed, "WarcPacker must be closed");
+        return warcFileChecksum;
+    }
+
+    /**
+     * @return The index of the records in the WARC file. Null if the configuration has no index directory.
+     */
+    public WarcRecordIndex getRecordIndex() {
+        return recordIndex;
+    }
+
     /**
      * @return The current size of the warc file.
      */
     public long getSize() {
-        return warcWrapper.getWarcFileSize();
+        return warcFile.length();
     }
 
     /**
      * @return The warc file with the data.
      */
     public File getWarcFile() {
-        return warcWrapper.getWarcFile();
+        return warcFile;
     }
     
     /**
@@ -200,39 +515,273 @@ public class WarcPacker implements Closeable {
     /**
      * Close this warc packer, thus closing any streams and files.
      * This should be called before accessing the file and sending it to the archive.
+     * The writer flushes the rest of the WARC file through the running digest, which is then finished as the 
+     * checksum of the whole WARC file.
+     * The journal of a WARC file without content is deleted, since the WARC file will not be uploaded, 
+     * otherwise the WARC file and the journal are forced to the disk, before the WARC file is uploaded.
      */
     @Override
     public void close() {
-        synchronized(warcWrapper) {
+        synchronized(writerLock) {
             this.isClosed = true;
             try {
-                this.warcWrapper.close();
-            } catch (YggdrasilException e) {
+                closeWriter();
+                if(warcFileChecksum == null) {
+                    warcFileChecksum = ChecksumUtils.createWarcDigest(ChecksumUtils.MD5_ALGORITHM, 
+                            warcFileDigest.digest());
+                }
+                if(!hasContent) {
+                    deleteJournal();
+                } else if(journal != null && warcWrapper != null) {
+                    syncJournal();
+                }
+            } catch (IOException e) {
                 throw new IllegalStateException("Issue occured while closing the resources of the warc file", e);
             }
         }
     }
+    
+    /**
+     * Closes the writer of the WARC file, unless it already is closed.
+     * Must be called while synchronized on the writer lock.
+     * @throws IOException If it fails to close the writer.
+     */
+    protected void closeWriter() throws IOException {
+        if(!isWriterClosed) {
+            isWriterClosed = true;
+            warcWrapper.close();
+        }
+    }
+    
+    /**
+     * Creates a savepoint for the current end of the WARC file, before a Cumulus record is packaged.
+     * The savepoint begins a transaction in the journal, which must be ended by either committing it 
+     * (see {@link #commit(Savepoint)}) or rolling back to the savepoint.
+     * @return The savepoint.
+     */
+    public synchronized Savepoint createSavepoint() {
+        ArgumentCheck.checkTrue(!isClosed, "WarcPacker must not be closed");
+        synchronized(writerLock) {
+            try {
+                Savepoint res = new Savepoint(warcWrapper.getWarcFileSize(), (MessageDigest) warcFileDigest.clone(), 
+                        hasContent, packagedCompleteRecords.size(), packagedMetadataRecords.size());
+                if(journal != null) {
+                    journal.begin(res.offset);
+                }
+                return res;
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException("Cannot create a savepoint for the running digest of the WARC file.", 
+                        e);
+            }
+        }
+    }
+    
+    /**
+     * Rolls the WARC packer back to a savepoint, thus removing everything packaged since the savepoint.
+     * The records registered since the savepoint are removed from the packaged records.
+     * If anything has been written to the WARC file since the savepoint, then the WARC file is closed and 
+     * truncated back to the savepoint, and its running digest and index are reverted to the savepoint, 
+     * thus the WARC file only contains the records packaged before the savepoint. 
+     * Otherwise the WARC packer is kept open.
+     * @param savepoint The savepoint to roll back to.
+     */
+    public synchronized void rollback(Savepoint savepoint) {
+        ArgumentCheck.checkNotNull(savepoint, "Savepoint savepoint");
+        removeRecordsAfter(packagedCompleteRecords, savepoint.completeRecords);
+        removeRecordsAfter(packagedMetadataRecords, savepoint.metadataRecords);
+        synchronized(writerLock) {
+            if(journal != null) {
+                journal.rollback(savepoint.offset);
+            }
+            if(warcWrapper.getWarcFileSize() == savepoint.offset) {
+                return;
+            }
+            log.info("Truncating the WARC file '" + warcFileId + "' from " 
+                    + warcWrapper.getWarcFileSize() + " bytes back to " + savepoint.offset + " bytes.");
+            isClosed = true;
+            try {
+                closeWriter();
+                try (RandomAccessFile raf = new RandomAccessFile(warcWrapper.getWarcFile(), "rw")) {
+                    raf.setLength(savepoint.offset);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not truncate the WARC file '" 
+                        + warcFileId + "' back to the savepoint.", e);
+            }
+            try {
+                warcFileDigest = (MessageDigest) savepoint.digest.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException("Cannot restore the running digest of the WARC file.", e);
+            }
+            hasContent = savepoint.hasContent;
+            if(recordIndex != null) {
+                recordIndex.truncate(savepoint.offset);
+            }
+        }
+    }
+    
+    /**
+     * Commits the packaging since a savepoint, thus ending its transaction in the journal.
+     * The records packaged since the savepoint will thereby be recovered, if the application stops before the 
+     * WARC file has been uploaded, once the commit has been synced. The WARC file and the journal are forced to 
+     * the disk, when the configured number of commits or the configured interval since the last sync has been 
+     * reached.
+     * @param savepoint The savepoint, which began the transaction.
+     */
+    public synchronized void commit(Savepoint savepoint) {
+        ArgumentCheck.checkNotNull(savepoint, "Savepoint savepoint");
+        synchronized(writerLock) {
+            if(journal != null) {
+                journal.commit(warcFile.length());
+                unsyncedCommits++;
+                if(unsyncedCommits >= bitmagConf.getJournalSyncRecords() 
+                        || System.currentTimeMillis() - lastSyncTime >= bitmagConf.getJournalSyncInterval()) {
+                    syncJournal();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Forces the WARC file to the disk, and then journals the sync durably, thus everything journaled so far 
+     * survives a crash.
+     * Must be called while synchronized on the writer lock.
+     */
+    protected void syncJournal() {
+        try {
+            if(!isWriterClosed) {
+                warcWrapper.sync();
+            } else {
+                try (FileOutputStream out = new FileOutputStream(warcFile, true)) {
+                    out.getFD().sync();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not force the WARC file '" + warcFileId + "' to the disk.", e);
+        }
+        journal.sync(warcFile.length());
+        unsyncedCommits = 0;
+        lastSyncTime = System.currentTimeMillis();
+    }
+    
+    /**
+     * Removes the records registered after the given number of records.
+     * @param records The registered records, in the order they were registered.
+     * @param numberOfRecords The number of records to keep.
+     */
+    protected void removeRecordsAfter(Set<CumulusRecordHandle> records, int numberOfRecords) {
+        Iterator<CumulusRecordHandle> iterator = records.iterator();
+        for(int i = 0; iterator.hasNext(); i++) {
+            iterator.next();
+            if(i >= numberOfRecords) {
+                iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * @return The id of the collection, which the WARC file is to be uploaded to. 
+     * Null if the packaging is not journaled.
+     */
+    public String getCollectionId() {
+        return collectionId;
+    }
+    
+    /**
+     * @return Whether or not the WARC file has been uploaded, e.g. before the application stopped, when the WARC 
+     * file has been recovered.
+     */
+    public boolean isUploaded() {
+        return isUploaded;
+    }
+    
+    /**
+     * @return Whether or not this WARC packer is closed, e.g. after it has been rolled back.
+     */
+    public boolean isClosed() {
+        return isClosed;
+    }
 
     /**
      * Reports back to Cumulus, that the preservation was successful for all records.
+     * The upload of the WARC file is journaled first, and the journal is deleted, when all the records have been 
+     * reported back.
+     * The field writes of each record are flushed together, when the record has been updated.
      * Should only be called after the warc packer has been closed and send to the archive.
      * @param checksumDigest The digest for the whole WARC file.
      */
     public void reportSucces(WarcDigest checksumDigest) {
+        journalUpload(checksumDigest);
         Date now = new Date();
-        for(CumulusRecord r : packagedCompleteRecords) {
-            r.setStringValueInField(Constants.FieldNames.METADATA_PACKAGE_ID, warcWrapper.getWarcFileId());
-            r.setStringValueInField(Constants.FieldNames.RESOURCE_PACKAGE_ID, warcWrapper.getWarcFileId());
-            r.setStringValueInField(Constants.FieldNames.ARCHIVE_MD5, checksumDigest.digestString);
-            r.setDateValueInField(Constants.FieldNames.BEVARINGS_DATO, now);
-            CumulusPreservationUtils.setPreservationFinished(r);
-        }
-        for(CumulusRecord r : packagedMetadataRecords) {
-            r.setStringValueInField(Constants.FieldNames.METADATA_PACKAGE_ID, warcWrapper.getWarcFileId());
-            r.setDateValueInField(Constants.FieldNames.BEVARINGS_DATO, now);
-            CumulusPreservationUtils.setPreservationFinished(r);
+        Function<CumulusRecordHandle, CumulusRecord> resolver = resolveRecords(true);
+        for(CumulusRecordHandle handle : packagedCompleteRecords) {
+            reportCompleteRecordSucces(resolver.apply(handle), checksumDigest, now);
+        }
+        for(CumulusRecordHandle handle : packagedMetadataRecords) {
+            reportMetadataRecordSucces(resolver.apply(handle), now);
         }
+        deleteJournal();
+    }
 
+    /**
+     * Reports back to Cumulus through the write-back, that the preservation was successful for all records.
+     * The upload of the WARC file is journaled first, and the journal is deleted, when all the batches of the 
+     * records have been written back, thus the records are reported back again, but the WARC file is not 
+     * uploaded again, if the application stops before the write-back has finished.
+     * Should only be called after the warc packer has been closed and send to the archive.
+     * @param checksumDigest The digest for the whole WARC file.
+     * @param writeBack The write-back to Cumulus.
+     */
+    public void reportSucces(WarcDigest checksumDigest, CumulusWriteBack writeBack) {
+        journalUpload(checksumDigest);
+        Date now = new Date();
+        String description = "the WARC file '" + warcFileId + "'";
+        Function<CumulusRecordHandle, CumulusRecord> resolver = resolveRecords(true);
+        CumulusWriteBack.Group group = new CumulusWriteBack.Group(this::deleteJournal);
+        writeBack.writeBack(description, packagedCompleteRecords, resolver, 
+                r -> reportCompleteRecordSucces(r, checksumDigest, now), group);
+        writeBack.writeBack(description, packagedMetadataRecords, resolver, 
+                r -> reportMetadataRecordSucces(r, now), group);
+        group.allSubmitted();
+    }
+
+    /**
+     * Journals the upload of the WARC file with its checksum, unless it already has been journaled.
+     * @param checksumDigest The digest for the whole WARC file.
+     */
+    protected void journalUpload(WarcDigest checksumDigest) {
+        if(journal != null && !isUploaded) {
+            journal.uploaded(checksumDigest);
+        }
+        isUploaded = true;
+    }
+
+    /**
+     * Reports back to a Cumulus record, which has been completely packaged, that its preservation was successful.
+     * @param r The Cumulus record.
+     * @param checksumDigest The digest for the whole WARC file.
+     * @param now The date of the preservation.
+     */
+    protected void reportCompleteRecordSucces(CumulusRecord r, WarcDigest checksumDigest, Date now) {
+        r.setStringValueInField(Constants.FieldNames.METADATA_PACKAGE_ID, warcFileId);
+        r.setStringValueInField(Constants.FieldNames.RESOURCE_PACKAGE_ID, warcFileId);
+        r.setStringValueInField(Constants.FieldNames.ARCHIVE_MD5, checksumDigest.digestString);
+        r.setDateValueInField(Constants.FieldNames.BEVARINGS_DATO, now);
+        CumulusPreservationUtils.setPreservationFinished(r);
+        CachedCumulusRecord.flushWrites(r);
+    }
+
+    /**
+     * Reports back to a Cumulus record, which only had its metadata packaged, that its preservation was 
+     * successful.
+     * @param r The Cumulus record.
+     * @param now The date of the preservation.
+     */
+    protected void reportMetadataRecordSucces(CumulusRecord r, Date now) {
+        r.setStringValueInField(Constants.FieldNames.METADATA_PACKAGE_ID, warcFileId);
+        r.setDateValueInField(Constants.FieldNames.BEVARINGS_DATO, now);
+        CumulusPreservationUtils.setPreservationFinished(r);
+        CachedCumulusRecord.flushWrites(r);
     }
 
     /**
@@ -240,28 +789,103 @@ public class WarcPacker implements Closeable {
      * @param reason The message regarding the reason for the failure.
      */
     public void reportFailure(String reason) {
-        for(CumulusRecord r : packagedCompleteRecords) {
-            CumulusPreservationUtils.setPreservationFailed(r, reason);
+        Function<CumulusRecordHandle, CumulusRecord> resolver = resolveRecords(false);
+        for(CumulusRecordHandle handle : packagedCompleteRecords) {
+            reportRecordFailure(resolver.apply(handle), reason);
+        }
+        deleteJournal();
+    }
+
+    /**
+     * Report back to Cumulus through the write-back, that the preservation failed for all records.
+     * The journal of the WARC file is deleted, when all the batches of the records have been written back.
+     * @param reason The message regarding the reason for the failure.
+     * @param writeBack The write-back to Cumulus.
+     */
+    public void reportFailure(String reason, CumulusWriteBack writeBack) {
+        CumulusWriteBack.Group group = new CumulusWriteBack.Group(this::deleteJournal);
+        writeBack.writeBack("the failed WARC file '" + warcFileId + "'", packagedCompleteRecords, 
+                resolveRecords(false), r -> reportRecordFailure(r, reason), group);
+        group.allSubmitted();
+    }
+
+    /**
+     * Report back to a Cumulus record, that its preservation failed.
+     * @param r The Cumulus record.
+     * @param reason The message regarding the reason for the failure.
+     */
+    protected void reportRecordFailure(CumulusRecord r, String reason) {
+        CumulusPreservationUtils.setPreservationFailed(r, reason);
+        CachedCumulusRecord.flushWrites(r);
+    }
+    
+    /**
+     * Deletes the journal of the WARC file, when the WARC file no longer has to be recovered.
+     */
+    protected void deleteJournal() {
+        if(journal != null) {
+            journal.delete();
+        }
+    }
+    
+    /**
+     * Resolves the packaged records of the WARC file together, when they are reported back, thus the records
+     * no longer in use are found with a few batched queries instead of one query per record.
+     * If a record is not resolved together with the others, e.g. if the batched query fails, then it is resolved 
+     * by itself instead.
+     * @param withMetadataRecords Whether the records, which only had their metadata packaged, are reported back.
+     * @return The resolver of the packaged record of a handle.
+     */
+    protected Function<CumulusRecordHandle, CumulusRecord> resolveRecords(boolean withMetadataRecords) {
+        Map<CumulusRecordHandle, CumulusRecord> records = new HashMap<CumulusRecordHandle, CumulusRecord>();
+        if(cumulusServer != null) {
+            List<CumulusRecordHandle> handles = new ArrayList<CumulusRecordHandle>(packagedCompleteRecords);
+            if(withMetadataRecords) {
+                handles.addAll(packagedMetadataRecords);
+            }
+            try {
+                records = CumulusRecordHandle.resolveAll(handles, cumulusServer);
+            } catch (RuntimeException e) {
+                log.warn("Could not find the records of the WARC file '" + warcFileId + "' together. "
+                        + "They are found one at a time instead.", e);
+            }
         }
+        Map<CumulusRecordHandle, CumulusRecord> resolved = records;
+        return handle -> {
+            CumulusRecord record = resolved.get(handle);
+            return record != null ? record : resolveRecord(handle);
+        };
     }
     
     /**
-     * Adds the record to the list of packaged complete records, unless it already is part of the list.
+     * Resolves the packaged record of a handle by itself.
+     * @param handle The handle for the record.
+     * @return The record.
+     */
+    protected CumulusRecord resolveRecord(CumulusRecordHandle handle) {
+        return handle.resolve(cumulusServer);
+    }
+    
+    /**
+     * Adds the record to the packaged complete records, unless it already is part of them.
      * @param record The record 
      */
     public void addRecordToPackagedList(CumulusRecord record) {
-        if(!packagedCompleteRecords.contains(record)) {
-            packagedCompleteRecords.add(record);
+        CumulusRecordHandle handle = CumulusRecordHandle.forRecord(record);
+        if(packagedCompleteRecords.add(handle) && journal != null) {
+            journal.completeRecordPackaged(handle);
         }
     }
     
     /**
-     * Adds the record to the list of packaged metadata records, unless it already is part of the list.
+     * Adds the record to the packaged metadata records, unless it already is part of them or of the packaged 
+     * complete records.
      * @param record The record 
      */
     public void addRecordToMetadataPackagedList(CumulusRecord record) {
-        if(!packagedMetadataRecords.contains(record) && !packagedCompleteRecords.contains(record)) {
-            packagedMetadataRecords.add(record);
+        CumulusRecordHandle handle = CumulusRecordHandle.forRecord(record);
+        if(!packagedCompleteRecords.contains(handle) && packagedMetadataRecords.add(handle) && journal != null) {
+            journal.metadataRecordPackaged(handle);
         }
     }
 
@@ -288,16 +912,54 @@ public class WarcPacker implements Closeable {
     }
 
     /**
-     * @return The list of completely packaged records.
+     * @return The handles for the completely packaged records.
      */
-    public List<CumulusRecord> getPackagedCompleteRecords() {
+    public Collection<CumulusRecordHandle> getPackagedCompleteRecords() {
         return packagedCompleteRecords;
     }
 
     /**
-     * @return The list of metadata only packaged records.
+     * @return The handles for the metadata only packaged records.
      */
-    public List<CumulusRecord> getPackagedMetadataRecords() {
+    public Collection<CumulusRecordHandle> getPackagedMetadataRecords() {
         return packagedMetadataRecords;
     }
+    
+    /**
+     * The state of a WARC packer before a Cumulus record is packaged, which it can be rolled back to.
+     */
+    public static class Savepoint {
+        /** The size of the WARC file, thus the offset of the first record after the savepoint.*/
+        protected final long offset;
+        /** A copy of the running digest of the WARC file.*/
+        protected final MessageDigest digest;
+        /** Whether the WARC file had any content besides the warc-info.*/
+        protected final boolean hasContent;
+        /** The number of packaged complete records.*/
+        protected final int completeRecords;
+        /** The number of packaged metadata records.*/
+        protected final int metadataRecords;
+        
+        /**
+         * Constructor.
+         * @param offset The size of the WARC file.
+         * @param digest A copy of the running digest of the WARC file.
+         * @param hasContent Whether the WARC file had any content besides the warc-info.
+         * @param completeRecords The number of packaged complete records.
+         * @param metadataRecords The number of packaged metadata records.
+         */
+        protected Savepoint(long offset, MessageDigest digest, boolean hasContent, 
+                int completeRecords, int metadataRecords) {
+            this.offset = offset;
+            this.digest = digest;
+            this.hasContent = hasContent;
+            this.completeRecords = completeRecords;
+            this.metadataRecords = metadataRecords;
+        }
+        
+        /** @return The size of the WARC file, thus the offset of the first record after the savepoint.*/
+        public long getOffset() {
+            return offset;
+        }
+    }
 }
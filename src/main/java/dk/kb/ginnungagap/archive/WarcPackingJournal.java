@@ -0,0 +1,471 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bitrepository.common.utils.Base16Utils;
+import org.jwat.warc.WarcConstants;
+import org.jwat.warc.WarcDigest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.ginnungagap.cumulus.CumulusRecordHandle;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.FileUtils;
+
+/**
+ * Append-only journal of the packaging of a WARC file, which is kept next to the WARC file in the temporary
+ * directory, thus a WARC file, which was being packaged when the application stopped, can be recovered.
+ *
+ * Each line of the journal describes one event of the packaging:
+ * <br/>
+ * COLLECTION collection-id
+ * <br/>
+ * RECORD offset end type record-id
+ * <br/>
+ * COMPLETE uuid catalog-name
+ * <br/>
+ * METADATA uuid catalog-name
+ * <br/>
+ * BEGIN offset, COMMIT offset or ROLLBACK offset
+ * <br/>
+ * SYNC offset
+ * <br/>
+ * UPLOADED algorithm checksum
+ * <br/>
+ * The RECORD lines are appended, when a WARC record has been written to the WARC file, and the COMPLETE and
+ * METADATA lines, when a Cumulus record has been registered as packaged. The catalog name is the last field,
+ * since it may contain spaces. Cumulus records without catalog name or UUID cannot be found again, thus they are
+ * not journaled.
+ * The BEGIN, COMMIT and ROLLBACK lines delimit the packaging of a Cumulus record as a transaction, and the lines
+ * within a transaction only count, when the transaction has been committed.
+ * The UPLOADED line is appended, when the WARC file has been uploaded, with the checksum of the WARC file, thus 
+ * a WARC file, which was uploaded before the application stopped, only has its records reported back to Cumulus, 
+ * when it is recovered, and it is not uploaded again.
+ *
+ * Each line is appended and flushed to the journal file by itself, like the lines of the index of the WARC file,
+ * and a line, which was not completely written, is ignored when the journal is replayed.
+ * 
+ * The journal is committed to the disk in groups: the COMMIT lines are only flushed, and the SYNC line is 
+ * appended, when the WARC file and the journal are forced to the disk after a number of commits, or after some 
+ * time (see {@link #sync(long)}). The COLLECTION, SYNC and UPLOADED lines are appended durably: the journal is 
+ * forced to the disk before and after the line is written, thus they are only on the disk, when all the previous 
+ * lines are. The WARC file must be forced to the disk before the SYNC line is appended.
+ * A replay only counts the lines up to the last durable line, since the lines after it, and the WARC records they 
+ * refer to, may have been lost at a crash. Thus a crash loses the records committed since the last sync, which are 
+ * neither in the recovered WARC file nor reported back to Cumulus, and they are packaged again by the next 
+ * preservation.
+ * The journal is deleted, when the results of the WARC file have been written back to Cumulus.
+ */
+public class WarcPackingJournal {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(WarcPackingJournal.class);
+
+    /** The suffix for the journal files.*/
+    public static final String JOURNAL_FILE_SUFFIX = ".journal";
+    /** The separator between the fields of a journal line.*/
+    protected static final String FIELD_SEPARATOR = " ";
+
+    /** The journal line with the collection of the WARC file.*/
+    protected static final String LINE_COLLECTION = "COLLECTION";
+    /** The journal line for a WARC record, which has been written.*/
+    protected static final String LINE_RECORD = "RECORD";
+    /** The journal line for a Cumulus record, which has been completely packaged.*/
+    protected static final String LINE_COMPLETE = "COMPLETE";
+    /** The journal line for a Cumulus record, which only had its metadata packaged.*/
+    protected static final String LINE_METADATA = "METADATA";
+    /** The journal line for the beginning of a transaction.*/
+    protected static final String LINE_BEGIN = "BEGIN";
+    /** The journal line for the commit of a transaction.*/
+    protected static final String LINE_COMMIT = "COMMIT";
+    /** The journal line for the rollback of a transaction.*/
+    protected static final String LINE_ROLLBACK = "ROLLBACK";
+    /** The journal line for the forcing of the WARC file and the journal to the disk.*/
+    protected static final String LINE_SYNC = "SYNC";
+    /** The journal line for the upload of the WARC file.*/
+    protected static final String LINE_UPLOADED = "UPLOADED";
+
+    /** The journal file.*/
+    protected final File journalFile;
+
+    /**
+     * Constructor.
+     * @param journalFile The journal file.
+     */
+    public WarcPackingJournal(File journalFile) {
+        ArgumentCheck.checkNotNull(journalFile, "File journalFile");
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Retrieves the journal file for a given WARC file.
+     * @param dir The directory with the WARC file.
+     * @param warcId The id of the WARC file.
+     * @return The journal file.
+     */
+    public static File getJournalFile(File dir, String warcId) {
+        return new File(dir, warcId + JOURNAL_FILE_SUFFIX);
+    }
+
+    /**
+     * Creates the journal for a new WARC file, starting durably with the collection of the WARC file.
+     * @param dir The directory with the WARC file.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection, which the WARC file is to be uploaded to.
+     * @return The journal.
+     */
+    public static WarcPackingJournal createJournal(File dir, String warcId, String collectionId) {
+        ArgumentCheck.checkNotNullOrEmpty(collectionId, "String collectionId");
+        WarcPackingJournal res = new WarcPackingJournal(getJournalFile(dir, warcId));
+        res.appendDurably(LINE_COLLECTION, collectionId);
+        return res;
+    }
+
+    /**
+     * Finds the journals in a directory, e.g. those left in the temporary directory, when the application stopped.
+     * @param dir The directory.
+     * @return The journals in the directory.
+     */
+    public static List<WarcPackingJournal> findJournals(File dir) {
+        List<WarcPackingJournal> res = new ArrayList<WarcPackingJournal>();
+        File[] journalFiles = dir.listFiles((d, name) -> name.endsWith(JOURNAL_FILE_SUFFIX));
+        if(journalFiles != null) {
+            for(File journalFile : journalFiles) {
+                res.add(new WarcPackingJournal(journalFile));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Journals a WARC record, which has been written to the WARC file.
+     * @param recordId The id of the WARC record.
+     * @param offset The offset of the WARC record in the WARC file.
+     * @param end The end of the WARC record in the WARC file.
+     * @param type The WARC type of the record.
+     */
+    public void recordWritten(String recordId, long offset, long end, String type) {
+        append(LINE_RECORD, Long.toString(offset), Long.toString(end), type, recordId);
+    }
+
+    /**
+     * Journals a Cumulus record, which has been completely packaged.
+     * @param handle The handle for the Cumulus record.
+     */
+    public void completeRecordPackaged(CumulusRecordHandle handle) {
+        appendHandle(LINE_COMPLETE, handle);
+    }
+
+    /**
+     * Journals a Cumulus record, which has had its metadata packaged.
+     * @param handle The handle for the Cumulus record.
+     */
+    public void metadataRecordPackaged(CumulusRecordHandle handle) {
+        appendHandle(LINE_METADATA, handle);
+    }
+
+    /**
+     * Journals the beginning of a transaction.
+     * @param offset The size of the WARC file at the beginning of the transaction.
+     */
+    public void begin(long offset) {
+        append(LINE_BEGIN, Long.toString(offset));
+    }
+
+    /**
+     * Journals the commit of the current transaction.
+     * The commit only survives a crash, when it has been synced (see {@link #sync(long)}).
+     * @param offset The size of the WARC file at the end of the transaction.
+     */
+    public void commit(long offset) {
+        append(LINE_COMMIT, Long.toString(offset));
+    }
+
+    /**
+     * Journals durably, that the WARC file and the journal have been forced to the disk, thus the lines up to 
+     * this line survive a crash. The WARC file must have been forced to the disk before this is called.
+     * @param offset The size of the WARC file, when it was forced to the disk.
+     */
+    public void sync(long offset) {
+        appendDurably(LINE_SYNC, Long.toString(offset));
+    }
+
+    /**
+     * Journals the rollback of the current transaction.
+     * @param offset The size of the WARC file, which it is rolled back to.
+     */
+    public void rollback(long offset) {
+        append(LINE_ROLLBACK, Long.toString(offset));
+    }
+
+    /**
+     * Journals durably, that the WARC file has been uploaded.
+     * @param checksum The checksum of the uploaded WARC file.
+     */
+    public void uploaded(WarcDigest checksum) {
+        ArgumentCheck.checkNotNull(checksum, "WarcDigest checksum");
+        appendDurably(LINE_UPLOADED, checksum.algorithm, checksum.digestString);
+    }
+
+    /**
+     * Appends a line for a Cumulus record, unless the record cannot be found again.
+     * @param type The type of line.
+     * @param handle The handle for the Cumulus record.
+     */
+    protected void appendHandle(String type, CumulusRecordHandle handle) {
+        if(handle.getUUID() == null) {
+            log.debug("The record '" + handle + "' cannot be found again, thus it is not journaled.");
+            return;
+        }
+        append(type, handle.getUUID(), handle.getCatalogName());
+    }
+
+    /**
+     * Appends a line to the journal file, and flushes it.
+     * @param fields The fields of the line.
+     */
+    protected synchronized void append(String ... fields) {
+        String line = String.join(FIELD_SEPARATOR, fields) + "\n";
+        try (OutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write to the journal file '" + journalFile + "'", e);
+        }
+    }
+
+    /**
+     * Appends a line to the journal file durably, by forcing the journal file to the disk both before and after
+     * the line is written, thus the line is only on the disk, when all the previous lines are.
+     * @param fields The fields of the line.
+     */
+    protected synchronized void appendDurably(String ... fields) {
+        String line = String.join(FIELD_SEPARATOR, fields) + "\n";
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.getFD().sync();
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write to the journal file '" + journalFile + "'", e);
+        }
+    }
+
+    /**
+     * Replays the journal, and thereby finds the committed state of the packaging of the WARC file, as it was 
+     * when the journal last was synced.
+     * The lines after the last durable line (COLLECTION, SYNC or UPLOADED) are ignored, since they might not 
+     * have survived a crash. The lines of a transaction, which was neither committed nor rolled back, are 
+     * ignored, as is the last line, if it was not completely written.
+     * @return The committed state of the packaging.
+     */
+    public synchronized State replay() {
+        String content;
+        try {
+            content = new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the journal file '" + journalFile + "'", e);
+        }
+        if(!content.endsWith("\n")) {
+            log.warn("Ignoring the incomplete last line of the journal file '" + journalFile + "'.");
+            content = content.substring(0, content.lastIndexOf('\n') + 1);
+        }
+
+        String[] lines = content.split("\n");
+        int durableLines = 0;
+        for(int i = 0; i < lines.length; i++) {
+            if(isDurableLine(lines[i])) {
+                durableLines = i + 1;
+            }
+        }
+        
+        State state = new State();
+        List<String[]> transaction = null;
+        for(String line : Arrays.asList(lines).subList(0, durableLines)) {
+            state.durableLength += (line + "\n").getBytes(StandardCharsets.UTF_8).length;
+            if(line.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(FIELD_SEPARATOR, 2);
+            if(fields[0].equals(LINE_BEGIN)) {
+                transaction = new ArrayList<String[]>();
+            } else if(fields[0].equals(LINE_COMMIT)) {
+                if(transaction != null) {
+                    for(String[] transactionFields : transaction) {
+                        state.apply(transactionFields, line);
+                    }
+                }
+                transaction = null;
+            } else if(fields[0].equals(LINE_ROLLBACK)) {
+                transaction = null;
+            } else if(transaction != null) {
+                transaction.add(fields);
+            } else {
+                state.apply(fields, line);
+            }
+        }
+        if(state.getCollectionId() == null) {
+            throw new IllegalStateException("The journal file '" + journalFile + "' has no collection.");
+        }
+        return state;
+    }
+
+    /**
+     * Truncates the journal file back to its durable lines, thus the lines, which are ignored by the replay, 
+     * are not counted by a later replay, when more lines have been appended durably, e.g. when the recovered WARC 
+     * file has been uploaded.
+     * @param state The replayed state of the journal.
+     */
+    public synchronized void truncate(State state) {
+        if(journalFile.length() <= state.durableLength) {
+            return;
+        }
+        log.info("Truncating the journal file '" + journalFile + "' from " + journalFile.length() 
+                + " bytes back to its last durable line at " + state.durableLength + " bytes.");
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.setLength(state.durableLength);
+            raf.getFD().sync();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not truncate the journal file '" + journalFile + "'", e);
+        }
+    }
+
+    /**
+     * @param line A line of the journal.
+     * @return Whether the line was appended durably, thus all the lines before it are on the disk.
+     */
+    protected static boolean isDurableLine(String line) {
+        String type = line.split(FIELD_SEPARATOR, 2)[0];
+        return type.equals(LINE_COLLECTION) || type.equals(LINE_SYNC) || type.equals(LINE_UPLOADED);
+    }
+
+    /**
+     * Deletes the journal file, e.g. when the results of the WARC file have been written back to Cumulus.
+     */
+    public synchronized void delete() {
+        if(journalFile.exists()) {
+            FileUtils.deleteFile(journalFile);
+        }
+    }
+
+    /** @return The journal file.*/
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /** @return The id of the WARC file of the journal.*/
+    public String getWarcFileId() {
+        String name = journalFile.getName();
+        return name.substring(0, name.length() - JOURNAL_FILE_SUFFIX.length());
+    }
+
+    /**
+     * The committed state of the packaging of a WARC file, as found by replaying its journal.
+     */
+    public static class State {
+        /** The id of the collection of the WARC file.*/
+        protected String collectionId;
+        /** The end of the last committed WARC record.*/
+        protected long committedOffset = 0L;
+        /** Whether the committed WARC records contain anything besides the warc-info.*/
+        protected boolean hasContent = false;
+        /** The handles for the committed records, which were completely packaged.*/
+        protected final Set<CumulusRecordHandle> completeRecords = new LinkedHashSet<CumulusRecordHandle>();
+        /** The handles for the committed records, which only had their metadata packaged.*/
+        protected final Set<CumulusRecordHandle> metadataRecords = new LinkedHashSet<CumulusRecordHandle>();
+        /** The checksum of the WARC file, if it has been uploaded. Otherwise null.*/
+        protected WarcDigest uploadedChecksum;
+        /** The number of bytes of the journal file, which were replayed.*/
+        protected long durableLength = 0L;
+
+        /**
+         * Applies a committed journal line to the state.
+         * @param fields The type of the line, and the rest of the line.
+         * @param line The line, for the error message.
+         */
+        protected void apply(String[] fields, String line) {
+            try {
+                if(fields[0].equals(LINE_COLLECTION)) {
+                    collectionId = fields[1];
+                } else if(fields[0].equals(LINE_RECORD)) {
+                    String[] values = fields[1].split(FIELD_SEPARATOR, 4);
+                    committedOffset = Math.max(committedOffset, Long.parseLong(values[1]));
+                    if(!values[2].equals(WarcConstants.RT_WARCINFO)) {
+                        hasContent = true;
+                    }
+                } else if(fields[0].equals(LINE_COMPLETE)) {
+                    completeRecords.add(toHandle(fields[1]));
+                } else if(fields[0].equals(LINE_METADATA)) {
+                    CumulusRecordHandle handle = toHandle(fields[1]);
+                    if(!completeRecords.contains(handle)) {
+                        metadataRecords.add(handle);
+                    }
+                } else if(fields[0].equals(LINE_SYNC)) {
+                    // The sync only delimits the durable lines, which are applied.
+                } else if(fields[0].equals(LINE_UPLOADED)) {
+                    String[] values = fields[1].split(FIELD_SEPARATOR, 2);
+                    uploadedChecksum = ChecksumUtils.createWarcDigest(values[0], 
+                            Base16Utils.encodeBase16(values[1]));
+                } else {
+                    throw new IllegalStateException("Unknown journal line: '" + line + "'");
+                }
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalStateException("Invalid journal line: '" + line + "'", e);
+            }
+        }
+
+        /**
+         * @param values The UUID and catalog name of a Cumulus record from a journal line.
+         * @return The handle for the Cumulus record.
+         */
+        protected CumulusRecordHandle toHandle(String values) {
+            String[] uuidAndCatalog = values.split(FIELD_SEPARATOR, 2);
+            return CumulusRecordHandle.forIdentifier(uuidAndCatalog[1], uuidAndCatalog[0]);
+        }
+
+        /** @return The id of the collection of the WARC file.*/
+        public String getCollectionId() {
+            return collectionId;
+        }
+
+        /** @return The end of the last committed WARC record.*/
+        public long getCommittedOffset() {
+            return committedOffset;
+        }
+
+        /** @return Whether the committed WARC records contain anything besides the warc-info.*/
+        public boolean hasContent() {
+            return hasContent;
+        }
+
+        /** @return The handles for the committed records, which were completely packaged.*/
+        public Collection<CumulusRecordHandle> getCompleteRecords() {
+            return completeRecords;
+        }
+
+        /** @return The handles for the committed records, which only had their metadata packaged.*/
+        public Collection<CumulusRecordHandle> getMetadataRecords() {
+            return metadataRecords;
+        }
+
+        /** @return Whether the WARC file has been uploaded.*/
+        public boolean isUploaded() {
+            return uploadedChecksum != null;
+        }
+
+        /** @return The checksum of the WARC file, if it has been uploaded. Otherwise null.*/
+        public WarcDigest getUploadedChecksum() {
+            return uploadedChecksum;
+        }
+    }
+}
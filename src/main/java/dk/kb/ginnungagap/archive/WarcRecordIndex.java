@@ -0,0 +1,281 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jwat.warc.WarcDigest;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.utils.FileUtils;
+
+/**
+ * Index of the records in a WARC file, with the offset and length of each record in the WARC file.
+ * Thereby a record can be read directly from its offset, instead of parsing the WARC file from the beginning.
+ *
+ * The index is kept in a CDX-like sidecar file in the index directory, named after the id of the WARC file.
+ * Each line of the file describes one record:
+ * <br/>
+ * record-id offset length type digest
+ * <br/>
+ * The record-id is the id given to the record, when it was written (e.g. the UUID of the Cumulus record),
+ * and the digest is the block digest of the record, or '-' if it has no block digest.
+ * The lines are appended as the records are written, thus the index is complete when the WARC file is closed.
+ */
+public class WarcRecordIndex {
+    /** The suffix for the index files.*/
+    public static final String INDEX_FILE_SUFFIX = ".cdx";
+    /** The separator between the fields of an index line.*/
+    protected static final String FIELD_SEPARATOR = " ";
+    /** The value of the digest field, when the record has no digest.*/
+    protected static final String NO_DIGEST = "-";
+
+    /** The index file.*/
+    protected final File indexFile;
+    /** The entries of the index, mapped by their record id, in the order of the WARC file.*/
+    protected final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Constructor.
+     * If the index file already exists, then its entries are loaded.
+     * @param indexFile The index file.
+     */
+    public WarcRecordIndex(File indexFile) {
+        ArgumentCheck.checkNotNull(indexFile, "File indexFile");
+        this.indexFile = indexFile;
+        if(indexFile.isFile()) {
+            load();
+        }
+    }
+
+    /**
+     * Retrieves the index file for a given WARC file in the index directory.
+     * @param indexDir The index directory.
+     * @param warcId The id of the WARC file.
+     * @return The index file. It might not exist.
+     */
+    public static File getIndexFile(File indexDir, String warcId) {
+        return new File(indexDir, warcId + INDEX_FILE_SUFFIX);
+    }
+
+    /**
+     * Creates the index for a new WARC file in the index directory.
+     * The index directory is created, if it does not exist.
+     * @param indexDir The index directory.
+     * @param warcId The id of the new WARC file.
+     * @return The new index.
+     */
+    public static WarcRecordIndex createIndex(File indexDir, String warcId) {
+        FileUtils.getDirectory(indexDir.getPath());
+        return new WarcRecordIndex(getIndexFile(indexDir, warcId));
+    }
+
+    /**
+     * Retrieves the index for a WARC file from the index directory.
+     * @param indexDir The index directory. May be null, when no index directory is used.
+     * @param warcId The id of the WARC file.
+     * @return The index, or null if no index exists for the WARC file.
+     */
+    public static WarcRecordIndex getIndex(File indexDir, String warcId) {
+        if(indexDir == null || warcId == null) {
+            return null;
+        }
+        File indexFile = getIndexFile(indexDir, warcId);
+        if(!indexFile.isFile()) {
+            return null;
+        }
+        return new WarcRecordIndex(indexFile);
+    }
+
+    /**
+     * Adds an entry for a record, which has been written to the WARC file, and appends it to the index file.
+     * @param recordId The id of the record.
+     * @param offset The offset of the record in the WARC file.
+     * @param length The length of the whole record in the WARC file, including its headers.
+     * @param type The WARC type of the record.
+     * @param digest The block digest of the record. May be null.
+     */
+    public synchronized void addEntry(String recordId, long offset, long length, String type, WarcDigest digest) {
+        ArgumentCheck.checkNotNullOrEmpty(recordId, "String recordId");
+        ArgumentCheck.checkTrue(!recordId.contains(FIELD_SEPARATOR), "The record id must not contain spaces");
+        Entry entry = new Entry(recordId, offset, length, type,
+                digest == null ? NO_DIGEST : digest.toStringFull());
+        try (OutputStream out = new FileOutputStream(indexFile, true)) {
+            out.write((entry.toLine() + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write to the index file '" + indexFile + "'", e);
+        }
+        entries.put(recordId, entry);
+    }
+
+    /**
+     * Retrieves the entry for a record.
+     * If no record has exactly the given id, then the first record, whose id contains the given id, is returned.
+     * This is the same way the records are found, when the WARC file is parsed.
+     * @param recordId The id of the record.
+     * @return The entry of the record, or null if the record is not in the index.
+     */
+    public synchronized Entry getEntry(String recordId) {
+        Entry res = entries.get(recordId);
+        if(res == null) {
+            for(Entry entry : entries.values()) {
+                if(entry.getRecordId().contains(recordId)) {
+                    return entry;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Removes the entries of the records from the given offset and onwards, e.g. when the WARC file has been 
+     * truncated back to the offset. The index file is replaced through a temporary file.
+     * @param offset The offset in the WARC file.
+     */
+    public synchronized void truncate(long offset) {
+        if(!entries.values().removeIf(entry -> entry.getOffset() >= offset)) {
+            return;
+        }
+        File tmpFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            for(Entry entry : entries.values()) {
+                out.write((entry.toLine() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write the index file '" + tmpFile + "'", e);
+        }
+        if(!tmpFile.renameTo(indexFile)) {
+            FileUtils.forceMove(tmpFile, indexFile);
+        }
+    }
+
+    /** @return The number of records in the index.*/
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return The index file.*/
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * Deletes the index file, e.g. when the WARC file was never archived.
+     */
+    public synchronized void delete() {
+        entries.clear();
+        if(indexFile.exists()) {
+            FileUtils.deleteFile(indexFile);
+        }
+    }
+
+    /**
+     * Loads the entries from the index file.
+     */
+    protected void load() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(line.trim().isEmpty()) {
+                    continue;
+                }
+                Entry entry = Entry.fromLine(line);
+                entries.put(entry.getRecordId(), entry);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the index file '" + indexFile + "'", e);
+        }
+    }
+
+    /**
+     * The index entry for a single WARC record.
+     */
+    public static class Entry {
+        /** The number of fields in an index line.*/
+        protected static final int NUMBER_OF_FIELDS = 5;
+
+        /** The id of the record.*/
+        protected final String recordId;
+        /** The offset of the record in the WARC file.*/
+        protected final long offset;
+        /** The length of the record in the WARC file.*/
+        protected final long length;
+        /** The WARC type of the record.*/
+        protected final String type;
+        /** The block digest of the record, or '-' if it has none.*/
+        protected final String digest;
+
+        /**
+         * Constructor.
+         * @param recordId The id of the record.
+         * @param offset The offset of the record in the WARC file.
+         * @param length The length of the record in the WARC file.
+         * @param type The WARC type of the record.
+         * @param digest The block digest of the record, or '-' if it has none.
+         */
+        public Entry(String recordId, long offset, long length, String type, String digest) {
+            this.recordId = recordId;
+            this.offset = offset;
+            this.length = length;
+            this.type = type;
+            this.digest = digest;
+        }
+
+        /**
+         * Parses an entry from a line of the index file.
+         * @param line The line.
+         * @return The entry.
+         */
+        protected static Entry fromLine(String line) {
+            String[] fields = line.trim().split(FIELD_SEPARATOR);
+            if(fields.length != NUMBER_OF_FIELDS) {
+                throw new IllegalStateException("Invalid index line: '" + line + "'");
+            }
+            try {
+                return new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3],
+                        fields[4]);
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException("Invalid index line: '" + line + "'", e);
+            }
+        }
+
+        /** @return The entry as a line of the index file, without the line break.*/
+        protected String toLine() {
+            return recordId + FIELD_SEPARATOR + offset + FIELD_SEPARATOR + length + FIELD_SEPARATOR + type
+                    + FIELD_SEPARATOR + digest;
+        }
+
+        /** @return The id of the record.*/
+        public String getRecordId() {
+            return recordId;
+        }
+
+        /** @return The offset of the record in the WARC file.*/
+        public long getOffset() {
+            return offset;
+        }
+
+        /** @return The length of the record in the WARC file.*/
+        public long getLength() {
+            return length;
+        }
+
+        /** @return The WARC type of the record.*/
+        public String getType() {
+            return type;
+        }
+
+        /** @return The block digest of the record, or '-' if it has none.*/
+        public String getDigest() {
+            return digest;
+        }
+    }
+}
@@ -9,6 +9,19 @@ import dk.kb.yggdrasil.utils.HostName;
  * Configuration for the bitrepository.
  */
 public class BitmagConfiguration {
+    /** The name of the default index directory for the WARC record indexes, within the temporary directory.*/
+    public static final String DEFAULT_INDEX_DIR_NAME = "index";
+    /** The name of the default cache directory for the retrieved WARC files, within the temporary directory.*/
+    public static final String DEFAULT_CACHE_DIR_NAME = "cache";
+    /** The default number of records in a batch written back to Cumulus after an upload.*/
+    public static final int DEFAULT_WRITE_BACK_BATCH_SIZE = 100;
+    /** The default number of retries for writing back to a Cumulus record.*/
+    public static final int DEFAULT_WRITE_BACK_RETRIES = 2;
+    /** The default number of committed records between the forcing of a WARC file and its journal to the disk.*/
+    public static final int DEFAULT_JOURNAL_SYNC_RECORDS = 100;
+    /** The default maximum time in milliseconds between the forcing of a WARC file and its journal to the disk.*/
+    public static final long DEFAULT_JOURNAL_SYNC_INTERVAL = 1000L;
+    
     /** The settings directory.*/
     protected final File settingsDir;
     /** The private key file. May be null, when no authentication is used.*/
@@ -23,6 +36,31 @@ public class BitmagConfiguration {
     protected final File tempDir;
     /** The algorithm for packaging the warc-records.*/
     protected final String algorithm;
+    /** The number of threads uploading the finished warc files in the background. 
+     * If 0, then the warc files are uploaded by the thread which finishes them.*/
+    protected final int uploadThreads;
+    /** The maximum number of finished warc files waiting to be uploaded in the background.*/
+    protected final int uploadQueueSize;
+    /** The directory with the indexes of the records in the WARC files. 
+     * If null, then the default directory within the temporary directory is used.*/
+    protected File indexDir;
+    /** The directory for the cache of the WARC files retrieved from the archive. 
+     * If null, then the default directory within the temporary directory is used.*/
+    protected File cacheDir;
+    /** The maximum total size of the cached WARC files in bytes. If 0, then the retrieved files are not cached.*/
+    protected long cacheSize = 0L;
+    /** The number of threads writing the results back to Cumulus after the uploads. 
+     * If 0, then the results are written back by the thread which uploaded the warc file.*/
+    protected int writeBackThreads = 0;
+    /** The maximum number of records in a batch written back to Cumulus.*/
+    protected int writeBackBatchSize = DEFAULT_WRITE_BACK_BATCH_SIZE;
+    /** The number of times the write-back to a Cumulus record is retried after failing.*/
+    protected int writeBackRetries = DEFAULT_WRITE_BACK_RETRIES;
+    /** The maximum number of committed records, before the WARC file and its journal are forced to the disk.*/
+    protected int journalSyncRecords = DEFAULT_JOURNAL_SYNC_RECORDS;
+    /** The maximum time in milliseconds after the last forcing to the disk, before the WARC file and its journal 
+     * are forced to the disk again by a commit.*/
+    protected long journalSyncInterval = DEFAULT_JOURNAL_SYNC_INTERVAL;
 
     /**
      * Constructor.
@@ -35,6 +73,23 @@ public class BitmagConfiguration {
      */
     public BitmagConfiguration(File settingsDir, File privateKeyFile, int maxFailingPillars, int warcFileSizeLimit,
             File tempDir, String algorithm) {
+        this(settingsDir, privateKeyFile, maxFailingPillars, warcFileSizeLimit, tempDir, algorithm, 0, 1);
+    }
+    
+    /**
+     * Constructor.
+     * @param settingsDir The directory with bitrepository settings files.
+     * @param privateKeyFile The private key file. This may be null, if no key-file is used.
+     * @param maxFailingPillars The maximum number of failing pillars.
+     * @param warcFileSizeLimit The size limit of the warc files.
+     * @param tempDir The temporary directory for warc files.
+     * @param algorithm The algorithm for the packaging of the warc-records.
+     * @param uploadThreads The number of threads uploading the warc files in the background. 0 for no background
+     * uploads.
+     * @param uploadQueueSize The maximum number of warc files waiting to be uploaded in the background.
+     */
+    public BitmagConfiguration(File settingsDir, File privateKeyFile, int maxFailingPillars, int warcFileSizeLimit,
+            File tempDir, String algorithm, int uploadThreads, int uploadQueueSize) {
         this.settingsDir = settingsDir;
         this.privateKeyFile = privateKeyFile;
         this.maxNumberOfFailingPillars = maxFailingPillars;
@@ -42,6 +97,8 @@ public class BitmagConfiguration {
         this.warcFileSizeLimit = warcFileSizeLimit;
         this.tempDir = tempDir;
         this.algorithm = algorithm;
+        this.uploadThreads = uploadThreads;
+        this.uploadQueueSize = uploadQueueSize;
     }
     
     /** @return The settings directory.*/
@@ -72,6 +129,86 @@ public class BitmagConfiguration {
     public String getAlgorithm() {
         return algorithm;
     }
+    /** @return The number of threads uploading the warc files in the background. 0 for no background uploads.*/
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+    /** @return The maximum number of finished warc files waiting to be uploaded in the background.*/
+    public int getUploadQueueSize() {
+        return uploadQueueSize;
+    }
+    /** @return The directory with the indexes of the records in the WARC files.*/
+    public File getIndexDir() {
+        if(indexDir == null) {
+            return new File(tempDir, DEFAULT_INDEX_DIR_NAME);
+        }
+        return indexDir;
+    }
+    /** @param indexDir The directory with the indexes of the records in the WARC files.*/
+    public void setIndexDir(File indexDir) {
+        this.indexDir = indexDir;
+    }
+    /** @return The directory for the cache of the WARC files retrieved from the archive.*/
+    public File getCacheDir() {
+        if(cacheDir == null) {
+            return new File(tempDir, DEFAULT_CACHE_DIR_NAME);
+        }
+        return cacheDir;
+    }
+    /** @param cacheDir The directory for the cache of the WARC files retrieved from the archive.*/
+    public void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+    /** @return The maximum total size of the cached WARC files in bytes. 0 for no cache.*/
+    public long getCacheSize() {
+        return cacheSize;
+    }
+    /** @param cacheSize The maximum total size of the cached WARC files in bytes. 0 for no cache.*/
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+    /** @return The number of threads writing the results back to Cumulus. 0 for the upload thread.*/
+    public int getWriteBackThreads() {
+        return writeBackThreads;
+    }
+    /** @param writeBackThreads The number of threads writing the results back to Cumulus. 0 for the upload thread.*/
+    public void setWriteBackThreads(int writeBackThreads) {
+        this.writeBackThreads = writeBackThreads;
+    }
+    /** @return The maximum number of records in a batch written back to Cumulus.*/
+    public int getWriteBackBatchSize() {
+        return writeBackBatchSize;
+    }
+    /** @param writeBackBatchSize The maximum number of records in a batch written back to Cumulus.*/
+    public void setWriteBackBatchSize(int writeBackBatchSize) {
+        this.writeBackBatchSize = writeBackBatchSize;
+    }
+    /** @return The number of times the write-back to a Cumulus record is retried after failing.*/
+    public int getWriteBackRetries() {
+        return writeBackRetries;
+    }
+    /** @param writeBackRetries The number of times the write-back to a Cumulus record is retried after failing.*/
+    public void setWriteBackRetries(int writeBackRetries) {
+        this.writeBackRetries = writeBackRetries;
+    }
+    /** @return The maximum number of committed records, before the WARC file and its journal are synced.*/
+    public int getJournalSyncRecords() {
+        return journalSyncRecords;
+    }
+    /** @param journalSyncRecords The maximum number of committed records, before the WARC file and its journal 
+     * are synced. 1 for syncing at every commit.*/
+    public void setJournalSyncRecords(int journalSyncRecords) {
+        this.journalSyncRecords = journalSyncRecords;
+    }
+    /** @return The maximum time in milliseconds between the syncs of the WARC file and its journal.*/
+    public long getJournalSyncInterval() {
+        return journalSyncInterval;
+    }
+    /** @param journalSyncInterval The maximum time in milliseconds between the syncs of the WARC file and 
+     * its journal.*/
+    public void setJournalSyncInterval(long journalSyncInterval) {
+        this.journalSyncInterval = journalSyncInterval;
+    }
     
     /**
      * Generates a component id, which includes the hostname and a random UUID.
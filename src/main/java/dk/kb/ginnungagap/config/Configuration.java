@@ -37,6 +37,14 @@ import dk.kb.yggdrasil.utils.YamlTools;
  *       <li>warc_size_limit: $warc_size_limit</li>
  *       <li>temp_dir: $temp_dir</li>
  *       <li>algorithm: $algorithm</li>
+ *       <li>upload_threads: $upload_threads (optional - default 0, no background uploads)</li>
+ *       <li>upload_queue_size: $upload_queue_size (optional - default 1)</li>
+ *       <li>index_dir: $index_dir (optional - default the 'index' directory within the temp_dir)</li>
+ *       <li>cache_dir: $cache_dir (optional - default the 'cache' directory within the temp_dir)</li>
+ *       <li>cache_size: $cache_size in bytes (optional - default 0, no cache of retrieved WARC files)</li>
+ *       <li>write_back_threads: $write_back_threads (optional - default 0, written back by the upload thread)</li>
+ *       <li>write_back_batch_size: $write_back_batch_size (optional - default 100)</li>
+ *       <li>write_back_retries: $write_back_retries (optional - default 2)</li>
  *     </ul>
  *     <li>cumulus:</li>
  *     <ul>
@@ -49,6 +57,11 @@ import dk.kb.yggdrasil.utils.YamlTools;
  *     <ul>
  *       <li>interval: $interval</li>
  *       <li>retain_dir: $retain_dir</li>
+ *       <li>preservation_threads: $preservation_threads (optional - default 1)</li>
+ *       <li>archive_workflows: $archive_workflows (optional - default 1)</li>
+ *       <li>catalog_threads: $catalog_threads (optional - default 1)</li>
+ *       <li>watermark_dir: $watermark_dir (optional - default none, only full Cumulus queries)</li>
+ *       <li>full_sweep_interval: $full_sweep_interval in millis (optional - default 1 day)</li>
  *     </ul>
  *     <li>transformation:</li>
  *     <ul>
@@ -56,6 +69,8 @@ import dk.kb.yggdrasil.utils.YamlTools;
  *       <li>xslt_dir: $xslt_dir</li>
  *       <li>required_fields_file: $required_fields_file</li>
  *       <li>metadata_temp_dir: $metadata_temp_dir</li>
+ *       <li>warm_up: $warm_up (optional - default false)</li>
+ *       <li>metadata_buffer_size: $metadata_buffer_size (optional - default 0, no memory buffering)</li>
  *     </ul>
  *     <li>mail:</li>
  *     <ul>
@@ -64,6 +79,9 @@ import dk.kb.yggdrasil.utils.YamlTools;
  *     </ul>
  *   </ul>
  * </ul>
+ * The defaults of the thread settings (preservation_threads, catalog_threads, archive_workflows, upload_threads and
+ * write_back_threads) run everything sequentially. Settings above the defaults opt in to concurrency,
+ * whereby the Cumulus SDK is called from several threads at the same time.
  * 
  * This contains specific configurations for each part of the workflow.
  * 
@@ -92,6 +110,26 @@ public class Configuration {
     protected static final String CONF_BITREPOSITORY_TEMP_DIR = "temp_dir";
     /** The bitrepository algorithm leaf-element.*/
     protected static final String CONF_BITREPOSITORY_ALGORITHM = "algorithm";
+    /** The bitrepository number of background upload threads leaf-element.*/
+    protected static final String CONF_BITREPOSITORY_UPLOAD_THREADS = "upload_threads";
+    /** The bitrepository size of the background upload queue leaf-element.*/
+    protected static final String CONF_BITREPOSITORY_UPLOAD_QUEUE_SIZE = "upload_queue_size";
+    /** The bitrepository directory for the indexes of the WARC records leaf-element.*/
+    protected static final String CONF_BITREPOSITORY_INDEX_DIR = "index_dir";
+    /** The bitrepository directory for the cache of the retrieved WARC files leaf-element.*/
+    protected static final String CONF_BITREPOSITORY_CACHE_DIR = "cache_dir";
+    /** The bitrepository maximum size of the cache of the retrieved WARC files leaf-element.*/
+    protected static final String CONF_BITREPOSITORY_CACHE_SIZE = "cache_size";
+    /** The bitrepository number of threads writing back to Cumulus after the uploads leaf-element.*/
+    protected static final String CONF_BITREPOSITORY_WRITE_BACK_THREADS = "write_back_threads";
+    /** The bitrepository size of the batches written back to Cumulus leaf-element.*/
+    protected static final String CONF_BITREPOSITORY_WRITE_BACK_BATCH_SIZE = "write_back_batch_size";
+    /** The bitrepository number of retries for writing back to a Cumulus record leaf-element.*/
+    protected static final String CONF_BITREPOSITORY_WRITE_BACK_RETRIES = "write_back_retries";
+    /** The bitrepository number of committed records between the syncs of the packaging journal leaf-element.*/
+    protected static final String CONF_BITREPOSITORY_JOURNAL_SYNC_RECORDS = "journal_sync_records";
+    /** The bitrepository milliseconds between the syncs of the packaging journal leaf-element.*/
+    protected static final String CONF_BITREPOSITORY_JOURNAL_SYNC_INTERVAL = "journal_sync_interval";
     
     /** Cumulus node-element.*/
     protected static final String CONF_CUMULUS = "cumulus";
@@ -110,6 +148,16 @@ public class Configuration {
     protected static final String CONF_WORKFLOW_INTERVAL = "interval";
     /** The workflow retain directory path leaf-element.*/
     protected static final String CONF_WORKFLOW_RETAIN_DIR = "retain_dir";
+    /** [OPTIONAL] The workflow number of preservation threads per catalog leaf-element. Default 1.*/
+    protected static final String CONF_WORKFLOW_PRESERVATION_THREADS = "preservation_threads";
+    /** [OPTIONAL] The workflow number of archive intensive workflows running at the same time. Default 1.*/
+    protected static final String CONF_WORKFLOW_ARCHIVE_WORKFLOWS = "archive_workflows";
+    /** [OPTIONAL] The workflow number of catalogs, whose steps run at the same time. Default 1.*/
+    protected static final String CONF_WORKFLOW_CATALOG_THREADS = "catalog_threads";
+    /** [OPTIONAL] The workflow directory for the watermarks of the incremental Cumulus queries.*/
+    protected static final String CONF_WORKFLOW_WATERMARK_DIR = "watermark_dir";
+    /** [OPTIONAL] The workflow interval in millis between full Cumulus queries. Default 1 day.*/
+    protected static final String CONF_WORKFLOW_FULL_SWEEP_INTERVAL = "full_sweep_interval";
     
     /** Transformation node-element.*/
     protected static final String CONF_TRANSFORMATION = "transformation";
@@ -121,6 +169,10 @@ public class Configuration {
     protected static final String CONF_TRANSFORMATION_REQUIRED_FIELDS_FILE = "required_fields_file";
     /** Transformation metadata temp file leaf-element.*/
     protected static final String CONF_TRANSFORMATION_METADATA_TEMP_FILE= "metadata_temp_dir";
+    /** Transformation warm up leaf-element.*/
+    protected static final String CONF_TRANSFORMATION_WARM_UP = "warm_up";
+    /** Transformation metadata buffer size leaf-element.*/
+    protected static final String CONF_TRANSFORMATION_METADATA_BUFFER_SIZE = "metadata_buffer_size";
     
     /** Local node-element.*/
     protected static final String CONF_LOCAL = "local";
@@ -239,7 +291,56 @@ public class Configuration {
             throw new ArgumentCheck("The algorithm '" + algorithm + "' is not supported.", e);
         }
         
-        return new BitmagConfiguration(settingsDir, keyFile, maxFailingPillars, warcSizeLimit, tempDir, algorithm);
+        int uploadThreads = 0;
+        if(map.containsKey(CONF_BITREPOSITORY_UPLOAD_THREADS)) {
+            uploadThreads = (Integer) map.get(CONF_BITREPOSITORY_UPLOAD_THREADS);
+            ArgumentCheck.checkNotNegativeInt(uploadThreads, CONF_BITREPOSITORY_UPLOAD_THREADS);
+        }
+        int uploadQueueSize = 1;
+        if(map.containsKey(CONF_BITREPOSITORY_UPLOAD_QUEUE_SIZE)) {
+            uploadQueueSize = (Integer) map.get(CONF_BITREPOSITORY_UPLOAD_QUEUE_SIZE);
+            ArgumentCheck.checkPositiveInt(uploadQueueSize, CONF_BITREPOSITORY_UPLOAD_QUEUE_SIZE);
+        }
+        
+        BitmagConfiguration res = new BitmagConfiguration(settingsDir, keyFile, maxFailingPillars, warcSizeLimit, 
+                tempDir, algorithm, uploadThreads, uploadQueueSize);
+        if(map.containsKey(CONF_BITREPOSITORY_INDEX_DIR)) {
+            res.setIndexDir(FileUtils.getDirectory((String) map.get(CONF_BITREPOSITORY_INDEX_DIR)));
+        }
+        if(map.containsKey(CONF_BITREPOSITORY_CACHE_DIR)) {
+            res.setCacheDir(FileUtils.getDirectory((String) map.get(CONF_BITREPOSITORY_CACHE_DIR)));
+        }
+        if(map.containsKey(CONF_BITREPOSITORY_CACHE_SIZE)) {
+            long cacheSize = ((Number) map.get(CONF_BITREPOSITORY_CACHE_SIZE)).longValue();
+            ArgumentCheck.checkNotNegativeLong(cacheSize, CONF_BITREPOSITORY_CACHE_SIZE);
+            res.setCacheSize(cacheSize);
+        }
+        if(map.containsKey(CONF_BITREPOSITORY_WRITE_BACK_THREADS)) {
+            int writeBackThreads = (Integer) map.get(CONF_BITREPOSITORY_WRITE_BACK_THREADS);
+            ArgumentCheck.checkNotNegativeInt(writeBackThreads, CONF_BITREPOSITORY_WRITE_BACK_THREADS);
+            res.setWriteBackThreads(writeBackThreads);
+        }
+        if(map.containsKey(CONF_BITREPOSITORY_WRITE_BACK_BATCH_SIZE)) {
+            int writeBackBatchSize = (Integer) map.get(CONF_BITREPOSITORY_WRITE_BACK_BATCH_SIZE);
+            ArgumentCheck.checkPositiveInt(writeBackBatchSize, CONF_BITREPOSITORY_WRITE_BACK_BATCH_SIZE);
+            res.setWriteBackBatchSize(writeBackBatchSize);
+        }
+        if(map.containsKey(CONF_BITREPOSITORY_WRITE_BACK_RETRIES)) {
+            int writeBackRetries = (Integer) map.get(CONF_BITREPOSITORY_WRITE_BACK_RETRIES);
+            ArgumentCheck.checkNotNegativeInt(writeBackRetries, CONF_BITREPOSITORY_WRITE_BACK_RETRIES);
+            res.setWriteBackRetries(writeBackRetries);
+        }
+        if(map.containsKey(CONF_BITREPOSITORY_JOURNAL_SYNC_RECORDS)) {
+            int journalSyncRecords = (Integer) map.get(CONF_BITREPOSITORY_JOURNAL_SYNC_RECORDS);
+            ArgumentCheck.checkPositiveInt(journalSyncRecords, CONF_BITREPOSITORY_JOURNAL_SYNC_RECORDS);
+            res.setJournalSyncRecords(journalSyncRecords);
+        }
+        if(map.containsKey(CONF_BITREPOSITORY_JOURNAL_SYNC_INTERVAL)) {
+            long journalSyncInterval = ((Number) map.get(CONF_BITREPOSITORY_JOURNAL_SYNC_INTERVAL)).longValue();
+            ArgumentCheck.checkNotNegativeLong(journalSyncInterval, CONF_BITREPOSITORY_JOURNAL_SYNC_INTERVAL);
+            res.setJournalSyncInterval(journalSyncInterval);
+        }
+        return res;
     }
     
     /**
@@ -276,8 +377,30 @@ public class Configuration {
         
         int interval = (int) map.get(CONF_WORKFLOW_INTERVAL);
         File retainDir = FileUtils.getDirectory((String) map.get(CONF_WORKFLOW_RETAIN_DIR));
+        int preservationThreads = WorkflowConfiguration.DEFAULT_PRESERVATION_THREADS;
+        if(map.containsKey(CONF_WORKFLOW_PRESERVATION_THREADS)) {
+            preservationThreads = (int) map.get(CONF_WORKFLOW_PRESERVATION_THREADS);
+        }
+        int archiveWorkflows = WorkflowConfiguration.DEFAULT_ARCHIVE_WORKFLOWS;
+        if(map.containsKey(CONF_WORKFLOW_ARCHIVE_WORKFLOWS)) {
+            archiveWorkflows = (int) map.get(CONF_WORKFLOW_ARCHIVE_WORKFLOWS);
+        }
+        int catalogThreads = WorkflowConfiguration.DEFAULT_CATALOG_THREADS;
+        if(map.containsKey(CONF_WORKFLOW_CATALOG_THREADS)) {
+            catalogThreads = (int) map.get(CONF_WORKFLOW_CATALOG_THREADS);
+        }
         
-        return new WorkflowConfiguration(interval, retainDir);
+        WorkflowConfiguration res = new WorkflowConfiguration(interval, retainDir, preservationThreads, 
+                archiveWorkflows, catalogThreads);
+        if(map.containsKey(CONF_WORKFLOW_WATERMARK_DIR)) {
+            res.setWatermarkDir(FileUtils.getDirectory((String) map.get(CONF_WORKFLOW_WATERMARK_DIR)));
+        }
+        if(map.containsKey(CONF_WORKFLOW_FULL_SWEEP_INTERVAL)) {
+            long fullSweepInterval = ((Number) map.get(CONF_WORKFLOW_FULL_SWEEP_INTERVAL)).longValue();
+            ArgumentCheck.checkNotNegativeLong(fullSweepInterval, CONF_WORKFLOW_FULL_SWEEP_INTERVAL);
+            res.setFullSweepInterval(fullSweepInterval);
+        }
+        return res;
     }
     
     /**
@@ -306,8 +429,18 @@ public class Configuration {
         ArgumentCheck.checkExistsNormalFile(requiredFieldsFile, "RequireFieldsFile");
         
         RequiredFields requiredFields = RequiredFields.loadRequiredFieldsFile(requiredFieldsFile);
+        boolean warmUp = false;
+        if(map.containsKey(CONF_TRANSFORMATION_WARM_UP)) {
+            warmUp = (Boolean) map.get(CONF_TRANSFORMATION_WARM_UP);
+        }
+        int metadataBufferSize = 0;
+        if(map.containsKey(CONF_TRANSFORMATION_METADATA_BUFFER_SIZE)) {
+            metadataBufferSize = (Integer) map.get(CONF_TRANSFORMATION_METADATA_BUFFER_SIZE);
+            ArgumentCheck.checkNotNegativeInt(metadataBufferSize, CONF_TRANSFORMATION_METADATA_BUFFER_SIZE);
+        }
         
-        return new TransformationConfiguration(xsltDir, xsdDir, metadataTempDir, requiredFields);
+        return new TransformationConfiguration(xsltDir, xsdDir, metadataTempDir, requiredFields, warmUp, 
+                metadataBufferSize);
     }
     
     /**
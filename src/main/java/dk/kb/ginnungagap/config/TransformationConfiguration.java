@@ -14,6 +14,11 @@ public class TransformationConfiguration {
     protected final File metadataTempDir;
     /** The required fields from Cumulus for making the transformation.*/
     protected final RequiredFields requiredFields;
+    /** Whether the XSLT scripts should be test-run when they are compiled at startup.*/
+    protected final boolean warmUp;
+    /** The maximum size in bytes of metadata kept in memory during the preservation, before it is spooled to 
+     * the metadata temp dir. If 0, then the metadata is always written to files in the metadata temp dir.*/
+    protected final int metadataBufferSize;
     
     /**
      * Constructor.
@@ -23,10 +28,39 @@ public class TransformationConfiguration {
      * @param requiredFields The required fields.
      */
     public TransformationConfiguration(File xsltDir, File xsdDir, File metadataTempDir, RequiredFields requiredFields) {
+        this(xsltDir, xsdDir, metadataTempDir, requiredFields, false);
+    }
+    
+    /**
+     * Constructor.
+     * @param xsltDir The directory with XSLT files.
+     * @param xsdDir The directory with XSD files.
+     * @param metadataTempDir The temporary directory, where the metadata files are stored.
+     * @param requiredFields The required fields.
+     * @param warmUp Whether the XSLT scripts should be test-run when they are compiled at startup.
+     */
+    public TransformationConfiguration(File xsltDir, File xsdDir, File metadataTempDir, RequiredFields requiredFields,
+            boolean warmUp) {
+        this(xsltDir, xsdDir, metadataTempDir, requiredFields, warmUp, 0);
+    }
+    
+    /**
+     * Constructor.
+     * @param xsltDir The directory with XSLT files.
+     * @param xsdDir The directory with XSD files.
+     * @param metadataTempDir The temporary directory, where the metadata files are stored.
+     * @param requiredFields The required fields.
+     * @param warmUp Whether the XSLT scripts should be test-run when they are compiled at startup.
+     * @param metadataBufferSize The maximum size in bytes of metadata kept in memory. 0 for no memory buffering.
+     */
+    public TransformationConfiguration(File xsltDir, File xsdDir, File metadataTempDir, RequiredFields requiredFields,
+            boolean warmUp, int metadataBufferSize) {
         this.xsdDir = xsdDir;
         this.xsltDir = xsltDir;
         this.metadataTempDir = metadataTempDir;
         this.requiredFields = requiredFields;
+        this.warmUp = warmUp;
+        this.metadataBufferSize = metadataBufferSize;
     }
     
     /** @return The required fields. */
@@ -45,4 +79,12 @@ public class TransformationConfiguration {
     public File getMetadataTempDir() {
         return metadataTempDir;
     }
+    /** @return Whether the XSLT scripts should be test-run when they are compiled at startup.*/
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+    /** @return The maximum size in bytes of metadata kept in memory. 0 for no memory buffering.*/
+    public int getMetadataBufferSize() {
+        return metadataBufferSize;
+    }
 }
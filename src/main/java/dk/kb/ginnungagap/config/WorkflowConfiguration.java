@@ -12,19 +12,48 @@ public class WorkflowConfiguration {
     protected final int interval;
     /** The directory, where the retained files should be stored.*/
     protected final File retainDir;
+    /** The number of threads for preparing the records of a catalog for preservation.*/
+    protected final int preservationThreads;
+    /** The number of archive intensive workflows, which are allowed to run at the same time.*/
+    protected final int archiveWorkflows;
+    /** The number of catalogs, whose steps are run at the same time within a workflow.*/
+    protected final int catalogThreads;
+    /** The directory for the watermarks of the incremental Cumulus queries. 
+     * If null, then every query is a full query.*/
+    protected File watermarkDir;
+    /** The interval in millis between the full queries, when the incremental queries are used.*/
+    protected long fullSweepInterval = DEFAULT_FULL_SWEEP_INTERVAL;
 
     /** The default update retention; 180 days ~ 6 months.*/
     protected static final int DEFAULT_UPDATE_RETENTION = 180;
+    /** The default number of preservation threads per catalog; a single thread means sequential preservation.*/
+    public static final int DEFAULT_PRESERVATION_THREADS = 1;
+    /** The default number of archive intensive workflows running at the same time; one at a time.*/
+    public static final int DEFAULT_ARCHIVE_WORKFLOWS = 1;
+    /** The default number of catalog threads; a single thread means the catalogs are handled sequentially.*/
+    public static final int DEFAULT_CATALOG_THREADS = 1;
+    /** The default interval between the full queries; 1 day.*/
+    public static final long DEFAULT_FULL_SWEEP_INTERVAL = 24 * 60 * 60 * 1000L;
 
     /**
      * Constructor.
      * @param interval The interval for running the workflows.
      * @param retainDir The retain directory.
+     * @param preservationThreads The number of threads per catalog for preparing records for preservation.
+     * @param archiveWorkflows The number of archive intensive workflows, which may run at the same time.
+     * @param catalogThreads The number of catalogs, whose steps may run at the same time within a workflow.
      */
-    public WorkflowConfiguration(int interval, File retainDir) {
+    public WorkflowConfiguration(int interval, File retainDir, int preservationThreads, int archiveWorkflows, 
+            int catalogThreads) {
         ArgumentCheck.checkExistsDirectory(retainDir, "File retainDir");
+        ArgumentCheck.checkPositiveInt(preservationThreads, "int preservationThreads");
+        ArgumentCheck.checkPositiveInt(archiveWorkflows, "int archiveWorkflows");
+        ArgumentCheck.checkPositiveInt(catalogThreads, "int catalogThreads");
         this.interval = interval;
         this.retainDir = retainDir;
+        this.preservationThreads = preservationThreads;
+        this.archiveWorkflows = archiveWorkflows;
+        this.catalogThreads = catalogThreads;
     }
 
     /**
@@ -40,4 +69,42 @@ public class WorkflowConfiguration {
     public File getRetainDir() {
         return retainDir;
     }
+    
+    /**
+     * @return The number of threads per catalog for preparing records for preservation.
+     */
+    public int getPreservationThreads() {
+        return preservationThreads;
+    }
+    
+    /**
+     * @return The number of archive intensive workflows, which may run at the same time.
+     */
+    public int getArchiveWorkflows() {
+        return archiveWorkflows;
+    }
+    
+    /**
+     * @return The number of catalogs, whose steps may run at the same time within a workflow.
+     */
+    public int getCatalogThreads() {
+        return catalogThreads;
+    }
+    
+    /** @return The directory for the watermarks of the incremental Cumulus queries. Null for only full queries.*/
+    public File getWatermarkDir() {
+        return watermarkDir;
+    }
+    /** @param watermarkDir The directory for the watermarks of the incremental Cumulus queries.*/
+    public void setWatermarkDir(File watermarkDir) {
+        this.watermarkDir = watermarkDir;
+    }
+    /** @return The interval in millis between the full queries, when the incremental queries are used.*/
+    public long getFullSweepInterval() {
+        return fullSweepInterval;
+    }
+    /** @param fullSweepInterval The interval in millis between the full queries.*/
+    public void setFullSweepInterval(long fullSweepInterval) {
+        this.fullSweepInterval = fullSweepInterval;
+    }
 }
@@ -27,6 +27,7 @@ import org.springframework.web.context.request.async.DeferredResult;
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.ginnungagap.archive.ArchiveWrapper;
+import dk.kb.ginnungagap.archive.WarcRecordIndex;
 import dk.kb.ginnungagap.config.Configuration;
 import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
 import dk.kb.ginnungagap.cumulus.CumulusWrapper;
@@ -144,6 +145,7 @@ public class MetadataController {
     
     /**
      * Retrieves the metadata file from the archive. 
+     * The metadata record is read directly from its offset in the WARC file, when the WARC file has an index.
      * @param filename The name for the file containing the metadata.
      * @param metadataType The type of metadata, METS or KBIDS.
      * @param record The Cumulus record with information about which WARC file the metadata is in, and the name 
@@ -155,7 +157,6 @@ public class MetadataController {
             throws Exception {
         String warcId = record.getFieldValue(Constants.FieldNames.METADATA_PACKAGE_ID);
         String collectionId = record.getFieldValue(Constants.FieldNames.COLLECTION_ID);
-        File warcFile = archiveWrapper.getFile(warcId, collectionId);
         
         File outputFile = new File(conf.getBitmagConf().getTempDir(), filename);
         String recordId = null;
@@ -169,7 +170,8 @@ public class MetadataController {
             recordId = CumulusPreservationUtils.getMetadataUUID(record);
         }
         
-        WarcUtils.extractRecord(warcFile, recordId, outputFile);
+        WarcRecordIndex index = WarcRecordIndex.getIndex(conf.getBitmagConf().getIndexDir(), warcId);
+        WarcUtils.extractRecord(archiveWrapper, warcId, collectionId, index, recordId, outputFile);
         log.trace("Metadata file extracted.");
         return outputFile;
     }
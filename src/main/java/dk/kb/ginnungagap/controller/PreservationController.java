@@ -9,6 +9,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.view.RedirectView;
 
+import dk.kb.ginnungagap.archive.BitmagPreserver;
 import dk.kb.ginnungagap.workflow.PreservationWorkflow;
 
 /**
@@ -25,6 +26,9 @@ public class PreservationController {
     /** The preservation workflow.*/
     @Autowired
     protected PreservationWorkflow workflow;
+    /** The preserver, for the status of the uploads of the WARC files.*/
+    @Autowired
+    protected BitmagPreserver preserver;
 
     /**
      * View for the workflows.
@@ -34,6 +38,7 @@ public class PreservationController {
     @RequestMapping("/" + PATH)
     public String getWorkflow(Model model) {
         model.addAttribute("workflow", workflow);
+        model.addAttribute("preserver", preserver);
 
         return PATH;
     }
@@ -1,5 +1,6 @@
 package dk.kb.ginnungagap.controller;
 
+import dk.kb.ginnungagap.archive.ArchiveWrapper;
 import dk.kb.ginnungagap.workflow.ValidationWorkflow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +25,9 @@ public class ValidationController {
     /** The validation workflow.*/
     @Autowired
     protected ValidationWorkflow workflow;
+    /** The archive, for the status of the cache of the retrieved WARC files.*/
+    @Autowired
+    protected ArchiveWrapper archive;
 
     /**
      * View for the workflows.
@@ -33,6 +37,7 @@ public class ValidationController {
     @RequestMapping("/" + PATH)
     public String getWorkflow(Model model) {
         model.addAttribute("workflow", workflow);
+        model.addAttribute("cache", archive.getCache());
 
         return PATH;
     }
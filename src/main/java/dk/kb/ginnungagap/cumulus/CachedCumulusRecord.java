@@ -0,0 +1,349 @@
+package dk.kb.ginnungagap.cumulus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Cumulus record with a read-through cache of its field values, and a buffer which coalesces its field writes.
+ *
+ * Every call is delegated to the wrapped record, except for the reads of field values, which have already been
+ * read through this cache. Each of these avoided reads is a call to the Cumulus SDK, which is saved.
+ * 
+ * The field writes are reflected in the cache immediately, but they are buffered until the record is flushed,
+ * thus each field is only written once to Cumulus per flush, with the latest value of the field.
+ * The buffered writes are flushed in the order in which the fields were first written.
+ * The record is flushed automatically before any call, which depends on the fields being persisted
+ * (e.g. writing the field metadata or validating the fields), and before the wrapped record is read for a field
+ * with a buffered write, which is not in the cache. Otherwise the record must be flushed explicitly, when the 
+ * handling of the record is finished.
+ *
+ * The cache is scoped to the processing of a single record, and it does not see changes made to the
+ * record elsewhere (e.g. through the Cumulus client).
+ */
+public class CachedCumulusRecord extends CumulusRecord {
+    /** The types of reads of a field value, which are cached separately.*/
+    protected enum ReadType {
+        /** Read through getFieldValue.*/
+        STRING,
+        /** Read through getFieldValueOrNull.*/
+        STRING_OR_NULL,
+        /** Read through getFieldValueForNonStringField.*/
+        NON_STRING,
+        /** Read through getFieldLongValue.*/
+        LONG,
+        /** Read through getFieldDateValue.*/
+        DATE
+    }
+
+    /** The wrapped Cumulus record.*/
+    protected final CumulusRecord record;
+    /** The cached field values, mapped by field name and type of read. The values may be null.*/
+    protected final Map<String, Map<ReadType, Object>> fieldValues = new HashMap<String, Map<ReadType, Object>>();
+    /** The cached UUID of the record.*/
+    protected String uuid;
+    /** Whether the UUID of the record is cached.*/
+    protected boolean uuidCached = false;
+    /** The cached file of the record.*/
+    protected File file;
+    /** Whether the file of the record is cached.*/
+    protected boolean fileCached = false;
+    /** The cached master asset flag of the record. Null if not read.*/
+    protected Boolean masterAsset;
+
+    /** The number of field reads delegated to the Cumulus SDK.*/
+    protected long sdkReads = 0L;
+    /** The number of field reads served from the cache, thus the number of avoided calls to the Cumulus SDK.*/
+    protected long cachedReads = 0L;
+    
+    /** The buffered field writes, mapped by field name, in the order the fields were first written.*/
+    protected final Map<String, Runnable> pendingWrites = new LinkedHashMap<String, Runnable>();
+    /** The number of field writes requested.*/
+    protected long requestedWrites = 0L;
+    /** The number of field writes delegated to the Cumulus SDK.*/
+    protected long sdkWrites = 0L;
+
+    /**
+     * Constructor.
+     * @param record The Cumulus record to cache the field values of.
+     */
+    public CachedCumulusRecord(CumulusRecord record) {
+        super(null, null);
+        ArgumentCheck.checkNotNull(record, "CumulusRecord record");
+        this.record = record;
+    }
+
+    /**
+     * Wraps a Cumulus record in a cache, unless it already is cached.
+     * @param record The Cumulus record.
+     * @return The cached Cumulus record.
+     */
+    public static CachedCumulusRecord wrap(CumulusRecord record) {
+        if(record instanceof CachedCumulusRecord) {
+            return (CachedCumulusRecord) record;
+        }
+        return new CachedCumulusRecord(record);
+    }
+
+    @Override
+    public String getFieldValue(String fieldName) {
+        return readField(fieldName, ReadType.STRING, () -> record.getFieldValue(fieldName));
+    }
+
+    @Override
+    public String getFieldValueOrNull(String fieldName) {
+        return readField(fieldName, ReadType.STRING_OR_NULL, () -> record.getFieldValueOrNull(fieldName));
+    }
+
+    @Override
+    public String getFieldValueForNonStringField(String fieldName) {
+        return readField(fieldName, ReadType.NON_STRING, () -> record.getFieldValueForNonStringField(fieldName));
+    }
+
+    @Override
+    public Long getFieldLongValue(String fieldName) {
+        return readField(fieldName, ReadType.LONG, () -> record.getFieldLongValue(fieldName));
+    }
+
+    @Override
+    public Date getFieldDateValue(String fieldName) {
+        return readField(fieldName, ReadType.DATE, () -> record.getFieldDateValue(fieldName));
+    }
+
+    @Override
+    public synchronized String getUUID() {
+        if(uuidCached) {
+            cachedReads++;
+            return uuid;
+        }
+        if(pendingWrites.containsKey(Constants.FieldNames.GUID)) {
+            flush();
+        }
+        sdkReads++;
+        uuid = record.getUUID();
+        uuidCached = true;
+        return uuid;
+    }
+
+    @Override
+    public synchronized File getFile() {
+        if(fileCached) {
+            cachedReads++;
+            return file;
+        }
+        sdkReads++;
+        file = record.getFile();
+        fileCached = true;
+        return file;
+    }
+
+    @Override
+    public synchronized boolean isMasterAsset() {
+        if(masterAsset != null) {
+            cachedReads++;
+            return masterAsset;
+        }
+        sdkReads++;
+        masterAsset = record.isMasterAsset();
+        return masterAsset;
+    }
+
+    @Override
+    public synchronized void setStringValueInField(String fieldName, String value) {
+        bufferWrite(fieldName, () -> record.setStringValueInField(fieldName, value));
+        Map<ReadType, Object> values = invalidateField(fieldName);
+        values.put(ReadType.STRING, value);
+        values.put(ReadType.STRING_OR_NULL, value);
+    }
+
+    @Override
+    public synchronized void setStringEnumValueForField(String fieldName, String value) {
+        bufferWrite(fieldName, () -> record.setStringEnumValueForField(fieldName, value));
+        invalidateField(fieldName);
+    }
+
+    @Override
+    public synchronized void setDateValueInField(String fieldName, Date value) {
+        bufferWrite(fieldName, () -> record.setDateValueInField(fieldName, value));
+        invalidateField(fieldName).put(ReadType.DATE, value);
+    }
+
+    @Override
+    public synchronized void setNewAssetReference(File newFile) {
+        flush();
+        record.setNewAssetReference(newFile);
+        fileCached = false;
+    }
+
+    @Override
+    public synchronized void writeFieldMetadata(OutputStream out) throws IOException {
+        flush();
+        record.writeFieldMetadata(out);
+    }
+
+    @Override
+    public synchronized void validateFieldsExists(Collection<String> fieldNames) {
+        flush();
+        record.validateFieldsExists(fieldNames);
+    }
+
+    @Override
+    public synchronized void validateFieldsHasValue(Collection<String> fieldNames) {
+        flush();
+        record.validateFieldsHasValue(fieldNames);
+    }
+
+    @Override
+    public synchronized void addMasterAsset(CumulusRecord masterAssetRecord) {
+        flush();
+        flushWrites(masterAssetRecord);
+        record.addMasterAsset(unwrap(masterAssetRecord));
+        masterAsset = null;
+    }
+
+    @Override
+    public synchronized void createRelationToRecord(CumulusRecord relatedRecord, String fieldName, 
+            String relation) {
+        flush();
+        flushWrites(relatedRecord);
+        record.createRelationToRecord(unwrap(relatedRecord), fieldName, relation);
+        masterAsset = null;
+        invalidateField(fieldName);
+    }
+
+    /**
+     * Writes the buffered field writes to the wrapped record.
+     * If a write fails, then it and the following writes are kept in the buffer, and the failure is thrown.
+     */
+    public synchronized void flush() {
+        Iterator<Runnable> iterator = pendingWrites.values().iterator();
+        while(iterator.hasNext()) {
+            iterator.next().run();
+            iterator.remove();
+            sdkWrites++;
+        }
+    }
+
+    /**
+     * Flushes the buffered field writes of a Cumulus record, if it is a cached record.
+     * @param cumulusRecord The Cumulus record, which may be cached.
+     */
+    public static void flushWrites(CumulusRecord cumulusRecord) {
+        if(cumulusRecord instanceof CachedCumulusRecord) {
+            ((CachedCumulusRecord) cumulusRecord).flush();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return record.toString();
+    }
+
+    /**
+     * Reads the value of a field, either from the cache or from the wrapped record.
+     * Failures are not cached, thus a failed read is retried by the next read of the field.
+     * @param fieldName The name of the field.
+     * @param type The type of read.
+     * @param sdkRead The read of the value from the wrapped record.
+     * @return The value of the field. May be null.
+     */
+    @SuppressWarnings("unchecked")
+    protected synchronized <T> T readField(String fieldName, ReadType type, Supplier<T> sdkRead) {
+        Map<ReadType, Object> values = fieldValues.get(fieldName);
+        if(values != null && values.containsKey(type)) {
+            cachedReads++;
+            return (T) values.get(type);
+        }
+        if(pendingWrites.containsKey(fieldName)) {
+            flush();
+        }
+        sdkReads++;
+        T value = sdkRead.get();
+        if(values == null) {
+            values = new EnumMap<ReadType, Object>(ReadType.class);
+            fieldValues.put(fieldName, values);
+        }
+        values.put(type, value);
+        return value;
+    }
+
+    /**
+     * Buffers a field write, which replaces any buffered write for the same field.
+     * @param fieldName The name of the field.
+     * @param write The write of the field to the wrapped record.
+     */
+    protected void bufferWrite(String fieldName, Runnable write) {
+        requestedWrites++;
+        // Replacing an entry of the linked map keeps the position of the first write of the field.
+        pendingWrites.put(fieldName, write);
+    }
+
+    /**
+     * Removes all the cached values of a field, since it has been changed.
+     * The UUID is also removed, when the GUID field is changed.
+     * @param fieldName The name of the field.
+     * @return The now empty map for the cached values of the field.
+     */
+    protected Map<ReadType, Object> invalidateField(String fieldName) {
+        if(Constants.FieldNames.GUID.equals(fieldName)) {
+            uuidCached = false;
+        }
+        Map<ReadType, Object> values = new EnumMap<ReadType, Object>(ReadType.class);
+        fieldValues.put(fieldName, values);
+        return values;
+    }
+
+    /**
+     * @param cumulusRecord The Cumulus record, which may be cached.
+     * @return The wrapped record, if the record is cached, otherwise the record itself.
+     */
+    protected static CumulusRecord unwrap(CumulusRecord cumulusRecord) {
+        if(cumulusRecord instanceof CachedCumulusRecord) {
+            return ((CachedCumulusRecord) cumulusRecord).getRecord();
+        }
+        return cumulusRecord;
+    }
+
+    /** @return The wrapped Cumulus record.*/
+    public CumulusRecord getRecord() {
+        return record;
+    }
+
+    /** @return The number of field reads delegated to the Cumulus SDK.*/
+    public synchronized long getSdkReads() {
+        return sdkReads;
+    }
+
+    /** @return The number of field reads served from the cache, thus the number of avoided calls to the SDK.*/
+    public synchronized long getCachedReads() {
+        return cachedReads;
+    }
+
+    /** @return The number of field writes delegated to the Cumulus SDK.*/
+    public synchronized long getSdkWrites() {
+        return sdkWrites;
+    }
+
+    /** @return The number of field writes, which were replaced by a later write of the same field before being 
+     * flushed, thus the number of avoided calls to the SDK.*/
+    public synchronized long getCoalescedWrites() {
+        return requestedWrites - sdkWrites - pendingWrites.size();
+    }
+
+    /** @return The number of buffered field writes, which have not yet been flushed.*/
+    public synchronized int getPendingWrites() {
+        return pendingWrites.size();
+    }
+}
@@ -1,6 +1,7 @@
 package dk.kb.ginnungagap.cumulus;
 
 import java.io.File;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.UUID;
 
@@ -22,6 +23,7 @@ import org.w3c.dom.Element;
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.FileDigests;
 import dk.kb.ginnungagap.utils.StringUtils;
 
 /**
@@ -44,6 +46,21 @@ public class CumulusPreservationUtils {
         resetMetadataGuid(record);
     }
     
+    /**
+     * Initializes the Cumulus record for preservation, and calculates the digests of its asset file for packaging.
+     * The asset file is only read once, for both the file-checksum of the record and the packaging digest.
+     * @param record The Cumulus record to be initialized.
+     * @param packagingAlgorithm The algorithm for the digest used when packaging the asset file.
+     * @return The digests of the asset file.
+     */
+    public static FileDigests initialiseRecordForPreservation(CumulusRecord record, String packagingAlgorithm) {
+        initIntellectualEntityUUID(record);
+        FileDigests res = initRecordChecksum(record, packagingAlgorithm);
+        
+        resetMetadataGuid(record);
+        return res;
+    }
+    
     /**
      * Initializes the representation part of the Cumulus record for preservation.
      * @param record The Cumulus record to have its representaiton initialized.
@@ -120,6 +137,23 @@ public class CumulusPreservationUtils {
         record.setStringValueInField(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER, md5Digest.digestString);
     }
     
+    /**
+     * Calculates the MD5 digest and the packaging digest of the asset file for the cumulus record in one read, 
+     * and initializes the file-checksum for the cumulus record, unless it already has one.
+     * @param record The Cumulus record to have its checksum initialized.
+     * @param packagingAlgorithm The algorithm for the digest used when packaging the asset file.
+     * @return The digests of the asset file.
+     */
+    public static FileDigests initRecordChecksum(CumulusRecord record, String packagingAlgorithm) {
+        FileDigests digests = FileDigests.calculate(record.getFile(), ChecksumUtils.MD5_ALGORITHM, 
+                packagingAlgorithm);
+        if(record.getFieldValueOrNull(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER) == null) {
+            record.setStringValueInField(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER, 
+                    digests.getDigest(ChecksumUtils.MD5_ALGORITHM).digestString);
+        }
+        return digests;
+    }
+    
     /**
      * Sets the preservation status to successfully finished.
      * Also removes any existing error messages.
@@ -157,6 +191,29 @@ public class CumulusPreservationUtils {
      * @param ieRawFile The file for the raw IE metadata output.
      */
     public static void createIErawFile(String ieUUID, String metadataUUID, String fileUUID, File ieRawFile) {
+        createIEraw(ieUUID, metadataUUID, fileUUID, new StreamResult(ieRawFile));
+    }
+    
+    /**
+     * Writes the raw XML for the intellectual entity to a stream, for the transformation.
+     * It has the same format as the file created by {@link #createIErawFile(String, String, String, File)}.
+     * @param ieUUID The UUID for the intellectual entity.
+     * @param metadataUUID The UUID for the metadata object.
+     * @param fileUUID The UUID for the file. This may be null.
+     * @param out The output stream for the raw IE metadata.
+     */
+    public static void writeIEraw(String ieUUID, String metadataUUID, String fileUUID, OutputStream out) {
+        createIEraw(ieUUID, metadataUUID, fileUUID, new StreamResult(out));
+    }
+    
+    /**
+     * Creates the raw XML for the intellectual entity, and writes it to the result.
+     * @param ieUUID The UUID for the intellectual entity.
+     * @param metadataUUID The UUID for the metadata object.
+     * @param fileUUID The UUID for the file. This may be null.
+     * @param result The result for the raw IE metadata output.
+     */
+    protected static void createIEraw(String ieUUID, String metadataUUID, String fileUUID, StreamResult result) {
         try {
             DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
             DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
@@ -185,7 +242,6 @@ public class CumulusPreservationUtils {
             transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
 
             DOMSource source = new DOMSource(doc);
-            StreamResult result = new StreamResult(ieRawFile);
 
             transformer.transform(source, result);
         } catch(Exception e) {
@@ -1,5 +1,8 @@
 package dk.kb.ginnungagap.cumulus;
 
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
 import java.util.EnumSet;
 
 import com.canto.cumulus.constants.CombineMode;
@@ -14,6 +17,11 @@ import dk.kb.cumulus.utils.StringUtils;
  * Utility class for generating the necessary Cumulus Queries for the different tasks of the preservation service.
  */
 public class CumulusQueryUtils {
+    /** The name of the Cumulus field with the date for the latest modification of the record.*/
+    protected static final String FIELD_RECORD_MODIFICATION_DATE = "Record Modification Date";
+    /** The format for the dates in the queries.*/
+    protected static final String QUERY_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    
     /**
      * The default query for extracting all the preservation ready items from a given catalog.
      * The records must have the preservation state 'ready for archival' and have the registration state
@@ -23,6 +31,19 @@ public class CumulusQueryUtils {
      * @return The Cumulus query.
      */
     public static CumulusQuery getPreservationAllQuery(String catalogName) {
+        return getPreservationAllQuery(catalogName, null);
+    }
+    
+    /**
+     * The query for extracting the preservation ready items from a given catalog, which have been modified since
+     * a given date. Otherwise it is the same as {@link #getPreservationAllQuery(String)}.
+     * 
+     * @param catalogName The name of the catalog.
+     * @param modifiedSince The date, which the records must have been modified after. If null, then all the
+     * preservation ready records are found.
+     * @return The Cumulus query.
+     */
+    public static CumulusQuery getPreservationAllQuery(String catalogName, Date modifiedSince) {
         ArgumentCheck.checkNotNullOrEmpty(catalogName, "String catalogName");
         String query = String.format(
                 StringUtils.replaceSpacesToTabs("%s is %s\nand %s is %s\nand %s is %s"),
@@ -32,6 +53,7 @@ public class CumulusQueryUtils {
                 Constants.FieldValues.REGISTRATIONSTATE_FINISHED,
                 Constants.FieldNames.CATALOG_NAME,
                 catalogName);
+        query = addModifiedSince(query, modifiedSince);
         EnumSet<FindFlag> findFlags = EnumSet.of(
                 FindFlag.FIND_MISSING_FIELDS_ARE_ERROR, 
                 FindFlag.FIND_MISSING_STRING_LIST_VALUES_ARE_ERROR);    
@@ -47,6 +69,19 @@ public class CumulusQueryUtils {
      * @return The Cumulus query.
      */
     public static CumulusQuery getPreservationUpdateQuery(String catalogName) {
+        return getPreservationUpdateQuery(catalogName, null);
+    }
+    
+    /**
+     * Creates the query for the extraction of cumulus record which should have its preservation updated, and which
+     * have been modified since a given date. Otherwise it is the same as {@link #getPreservationUpdateQuery(String)}.
+     * 
+     * @param catalogName The name of the catalog.
+     * @param modifiedSince The date, which the records must have been modified after. If null, then all the
+     * records ready for update are found.
+     * @return The Cumulus query.
+     */
+    public static CumulusQuery getPreservationUpdateQuery(String catalogName, Date modifiedSince) {
         ArgumentCheck.checkNotNullOrEmpty(catalogName, "String catalogName");
         String query = String.format(
                 StringUtils.replaceSpacesToTabs("%s is %s\nand %s is %s\nand %s is %s"),
@@ -56,6 +91,7 @@ public class CumulusQueryUtils {
                 Constants.FieldValues.REGISTRATIONSTATE_FINISHED,
                 Constants.FieldNames.CATALOG_NAME,
                 catalogName);
+        query = addModifiedSince(query, modifiedSince);
         EnumSet<FindFlag> findFlags = EnumSet.of(
                 FindFlag.FIND_MISSING_FIELDS_ARE_ERROR, 
                 FindFlag.FIND_MISSING_STRING_LIST_VALUES_ARE_ERROR);    
@@ -149,6 +185,39 @@ public class CumulusQueryUtils {
         return new CumulusQuery(query, findFlags, CombineMode.FIND_NEW);
     }
     
+    /**
+     * The query for extracting the records with any of the given UUIDs, e.g. for finding the records packaged 
+     * in a WARC file with a single query instead of one query per record.
+     * 
+     * The record must have the 'GUID' field contain one of the UUIDs, and it must belong to the given catalog.
+     * The Cumulus GUID has a prefix, thus the UUIDs can only be matched with 'contains', and the records found 
+     * must have their UUIDs compared exactly with the given UUIDs.
+     * The catalog condition is combined with each of the UUID conditions, thus the query gives the same records
+     * whether Cumulus combines the lines from left to right, or evaluates 'and' before 'or'.
+     * 
+     * @param catalogName The name of the catalog.
+     * @param uuids The UUIDs of the Cumulus records to find. Must not be empty.
+     * @return The query for finding the Cumulus records with the given UUIDs.
+     */
+    public static CumulusQuery getQueryForSpecificUUIDs(String catalogName, Collection<String> uuids) {
+        ArgumentCheck.checkNotNullOrEmpty(catalogName, "String catalogName");
+        ArgumentCheck.checkNotNull(uuids, "Collection<String> uuids");
+        StringBuilder query = new StringBuilder();
+        for(String uuid : uuids) {
+            ArgumentCheck.checkNotNullOrEmpty(uuid, "String uuid");
+            if(query.length() > 0) {
+                query.append(StringUtils.replaceSpacesToTabs("\nor "));
+            }
+            query.append(String.format(StringUtils.replaceSpacesToTabs("%s contains %s\nand %s is %s"), 
+                    Constants.FieldNames.GUID, uuid, Constants.FieldNames.CATALOG_NAME, catalogName));
+        }
+        EnumSet<FindFlag> findFlags = EnumSet.of(
+                FindFlag.FIND_MISSING_FIELDS_ARE_ERROR, 
+                FindFlag.FIND_MISSING_STRING_LIST_VALUES_ARE_ERROR);    
+
+        return new CumulusQuery(query.toString(), findFlags, CombineMode.FIND_NEW);
+    }
+    
     /**
      * The query for extracting records containing a specific record name.
      * 
@@ -184,6 +253,22 @@ public class CumulusQueryUtils {
      * @return The query for all the records in a Cumulus catalog.
      */
     public static CumulusQuery getQueryForPreservationValidation(String catalogName, String value) {
+        return getQueryForPreservationValidation(catalogName, value, null);
+    }
+    
+    /**
+     * The query for extracting the records which requires a given type of preservation validation from a given 
+     * catalog, and which have been modified since a given date.
+     * Otherwise it is the same as {@link #getQueryForPreservationValidation(String, String)}.
+     * 
+     * @param catalogName The name of the catalog.
+     * @param value The expected value for the preservation validation field.
+     * @param modifiedSince The date, which the records must have been modified after. If null, then all the
+     * records requiring the validation are found.
+     * @return The query for the records in a Cumulus catalog.
+     */
+    public static CumulusQuery getQueryForPreservationValidation(String catalogName, String value, 
+            Date modifiedSince) {
         ArgumentCheck.checkNotNullOrEmpty(catalogName, "String catalogName");
         String query = String.format(StringUtils.replaceSpacesToTabs("%s is %s\nand %s is %s\nand %s is %s"),
                 Constants.FieldNames.REGISTRATIONSTATE,
@@ -192,6 +277,7 @@ public class CumulusQueryUtils {
                 value,
                 Constants.FieldNames.CATALOG_NAME,
                 catalogName);        
+        query = addModifiedSince(query, modifiedSince);
         EnumSet<FindFlag> findFlags = EnumSet.of(
                 FindFlag.FIND_MISSING_FIELDS_ARE_ERROR, 
                 FindFlag.FIND_MISSING_STRING_LIST_VALUES_ARE_ERROR);    
@@ -223,4 +309,20 @@ public class CumulusQueryUtils {
 
         return new CumulusQuery(query, findFlags, CombineMode.FIND_NEW);
     }
+    
+    /**
+     * Adds the condition, that the records must have been modified after a given date, to a query.
+     * @param query The query.
+     * @param modifiedSince The date. If null, then the query is returned unchanged.
+     * @return The query with the condition.
+     */
+    protected static String addModifiedSince(String query, Date modifiedSince) {
+        if(modifiedSince == null) {
+            return query;
+        }
+        // The operator 'is after' contains a space, thus the tabs are inserted directly.
+        return query + String.format("\nand\t%s\tis after\t%s",
+                FIELD_RECORD_MODIFICATION_DATE,
+                new SimpleDateFormat(QUERY_DATE_FORMAT).format(modifiedSince));
+    }
 }
@@ -0,0 +1,243 @@
+package dk.kb.ginnungagap.cumulus;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusRecordCollection;
+import dk.kb.cumulus.CumulusServer;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Compact handle for a Cumulus record, which is identified by the name of its catalog and its UUID.
+ *
+ * The handle only keeps a weak reference to the Cumulus record, thus the record can be garbage collected while the
+ * handle is kept, e.g. while the WARC file with the record is waiting to be uploaded.
+ * The record is resolved again when it is needed, either from the weak reference, if the record is still in use,
+ * or by finding the record in its catalog on the Cumulus server.
+ * The records of many handles, e.g. all the records of a WARC file, should be resolved together, thus the records 
+ * no longer in use are found with one query per catalog instead of one query per record.
+ *
+ * A record without a catalog name or UUID cannot be found again, thus its handle keeps a strong reference to the
+ * record, and it is identified by the record itself.
+ */
+public class CumulusRecordHandle {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(CumulusRecordHandle.class);
+
+    /** The maximum number of UUIDs in a single query, when resolving the records of many handles.*/
+    protected static final int MAX_UUIDS_PER_QUERY = 500;
+
+    /** The name of the catalog of the record. Null if the record cannot be found again.*/
+    protected final String catalogName;
+    /** The UUID of the record. Null if the record cannot be found again.*/
+    protected final String uuid;
+    /** The weak reference to the record, while it is in use.*/
+    protected final WeakReference<CumulusRecord> recordReference;
+    /** The strong reference to the record, when it cannot be found again. Otherwise null.*/
+    protected final CumulusRecord unidentifiedRecord;
+
+    /**
+     * Constructor.
+     * @param catalogName The name of the catalog of the record. May be null.
+     * @param uuid The UUID of the record. May be null.
+     * @param record The record.
+     */
+    public CumulusRecordHandle(String catalogName, String uuid, CumulusRecord record) {
+        ArgumentCheck.checkNotNull(record, "CumulusRecord record");
+        if(catalogName == null || catalogName.isEmpty() || uuid == null || uuid.isEmpty()) {
+            this.catalogName = null;
+            this.uuid = null;
+            this.unidentifiedRecord = record;
+        } else {
+            // The catalog names are shared by all the handles of the catalog.
+            this.catalogName = catalogName.intern();
+            this.uuid = uuid;
+            this.unidentifiedRecord = null;
+        }
+        this.recordReference = new WeakReference<CumulusRecord>(record);
+    }
+
+    /**
+     * Constructor for the handle of a record, which is not in use.
+     * @param catalogName The name of the catalog of the record.
+     * @param uuid The UUID of the record.
+     */
+    protected CumulusRecordHandle(String catalogName, String uuid) {
+        this.catalogName = catalogName.intern();
+        this.uuid = uuid;
+        this.unidentifiedRecord = null;
+        this.recordReference = new WeakReference<CumulusRecord>(null);
+    }
+
+    /**
+     * Creates the handle for a Cumulus record, which is not in use, from the name of its catalog and its UUID,
+     * e.g. when a packaged record is recovered. The record is found on the Cumulus server, when it is resolved.
+     * @param catalogName The name of the catalog of the record.
+     * @param uuid The UUID of the record.
+     * @return The handle for the record.
+     */
+    public static CumulusRecordHandle forIdentifier(String catalogName, String uuid) {
+        ArgumentCheck.checkNotNullOrEmpty(catalogName, "String catalogName");
+        ArgumentCheck.checkNotNullOrEmpty(uuid, "String uuid");
+        return new CumulusRecordHandle(catalogName, uuid);
+    }
+
+    /**
+     * Creates the handle for a Cumulus record, from the name of its catalog and its UUID.
+     * @param record The record.
+     * @return The handle for the record.
+     */
+    public static CumulusRecordHandle forRecord(CumulusRecord record) {
+        ArgumentCheck.checkNotNull(record, "CumulusRecord record");
+        return new CumulusRecordHandle(record.getFieldValueOrNull(Constants.FieldNames.CATALOG_NAME),
+                record.getUUID(), record);
+    }
+
+    /**
+     * Resolves the Cumulus record of this handle.
+     * If the record has been garbage collected, then it is found in its catalog on the Cumulus server.
+     * @param server The Cumulus server. May be null, if the records are not to be found on the server.
+     * @return The Cumulus record.
+     */
+    public CumulusRecord resolve(CumulusServer server) {
+        if(unidentifiedRecord != null) {
+            return unidentifiedRecord;
+        }
+        CumulusRecord record = recordReference.get();
+        if(record != null) {
+            return record;
+        }
+        if(server == null) {
+            throw new IllegalStateException("Cannot find the record '" + this + "' without a Cumulus server.");
+        }
+        record = server.findCumulusRecord(catalogName, uuid);
+        if(record == null) {
+            throw new IllegalStateException("Could not find the record '" + this + "' in Cumulus.");
+        }
+        return record;
+    }
+
+    /**
+     * Resolves the Cumulus records of many handles, e.g. all the records packaged in a WARC file.
+     * The records still in use are taken from the handles, and the other records are found on the Cumulus server 
+     * with one query per catalog for up to {@link #MAX_UUIDS_PER_QUERY} records, instead of one query per record.
+     * @param handles The handles for the records.
+     * @param server The Cumulus server.
+     * @return The resolved records mapped by their handles. The handles of the records, which could not be found, 
+     * are not in the map.
+     */
+    public static Map<CumulusRecordHandle, CumulusRecord> resolveAll(Collection<CumulusRecordHandle> handles, 
+            CumulusServer server) {
+        ArgumentCheck.checkNotNull(handles, "Collection<CumulusRecordHandle> handles");
+        ArgumentCheck.checkNotNull(server, "CumulusServer server");
+        Map<CumulusRecordHandle, CumulusRecord> res = new HashMap<CumulusRecordHandle, CumulusRecord>();
+        Map<String, Map<String, CumulusRecordHandle>> unresolved = 
+                new LinkedHashMap<String, Map<String, CumulusRecordHandle>>();
+        for(CumulusRecordHandle handle : handles) {
+            CumulusRecord record = handle.unidentifiedRecord != null ? handle.unidentifiedRecord 
+                    : handle.recordReference.get();
+            if(record != null) {
+                res.put(handle, record);
+            } else {
+                unresolved.computeIfAbsent(handle.catalogName, c -> new HashMap<String, CumulusRecordHandle>())
+                        .put(handle.uuid, handle);
+            }
+        }
+        for(Map.Entry<String, Map<String, CumulusRecordHandle>> catalog : unresolved.entrySet()) {
+            List<String> uuids = new ArrayList<String>(catalog.getValue().keySet());
+            for(int i = 0; i < uuids.size(); i += MAX_UUIDS_PER_QUERY) {
+                CumulusRecordCollection items = server.getItems(catalog.getKey(), 
+                        CumulusQueryUtils.getQueryForSpecificUUIDs(catalog.getKey(), 
+                                uuids.subList(i, Math.min(i + MAX_UUIDS_PER_QUERY, uuids.size()))));
+                for(CumulusRecord record : items) {
+                    CumulusRecordHandle handle = getMatchingHandle(catalog.getValue(), catalog.getKey(), record);
+                    if(handle != null && !res.containsKey(handle)) {
+                        res.put(handle, record);
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Finds the handle for a record found by the query for many UUIDs.
+     * The query can only match the UUIDs with 'contains', thus it might also find other records, e.g. a record
+     * whose GUID contains the UUID of a handle as part of a longer value. 
+     * The UUID of the record must therefore equal the UUID of the handle, and the record must belong to the catalog
+     * of the handle.
+     * @param handles The unresolved handles of the catalog, mapped by their UUIDs.
+     * @param catalogName The name of the catalog.
+     * @param record The record found by the query.
+     * @return The handle with the UUID of the record, or null if the record does not belong to any of the handles.
+     */
+    protected static CumulusRecordHandle getMatchingHandle(Map<String, CumulusRecordHandle> handles, 
+            String catalogName, CumulusRecord record) {
+        String recordUUID = record.getUUID();
+        CumulusRecordHandle handle = recordUUID == null ? null : handles.get(recordUUID);
+        if(handle == null || !handle.uuid.equals(recordUUID)) {
+            log.debug("Ignoring the record with UUID '" + recordUUID + "', which does not have the UUID of any of "
+                    + "the records to resolve in catalog '" + catalogName + "'.");
+            return null;
+        }
+        String recordCatalogName = record.getFieldValueOrNull(Constants.FieldNames.CATALOG_NAME);
+        if(recordCatalogName != null && !recordCatalogName.equals(catalogName)) {
+            log.debug("Ignoring the record with UUID '" + recordUUID + "' from catalog '" + recordCatalogName 
+                    + "', when resolving the records of catalog '" + catalogName + "'.");
+            return null;
+        }
+        return handle;
+    }
+
+    /** @return The name of the catalog of the record. Null if the record cannot be found again.*/
+    public String getCatalogName() {
+        return catalogName;
+    }
+
+    /** @return The UUID of the record. Null if the record cannot be found again.*/
+    public String getUUID() {
+        return uuid;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) {
+            return true;
+        }
+        if(!(o instanceof CumulusRecordHandle)) {
+            return false;
+        }
+        CumulusRecordHandle other = (CumulusRecordHandle) o;
+        if(unidentifiedRecord != null || other.unidentifiedRecord != null) {
+            return unidentifiedRecord == other.unidentifiedRecord;
+        }
+        return uuid.equals(other.uuid) && catalogName.equals(other.catalogName);
+    }
+
+    @Override
+    public int hashCode() {
+        if(unidentifiedRecord != null) {
+            return System.identityHashCode(unidentifiedRecord);
+        }
+        return Objects.hash(catalogName, uuid);
+    }
+
+    @Override
+    public String toString() {
+        if(unidentifiedRecord != null) {
+            return unidentifiedRecord.toString();
+        }
+        return catalogName + ":" + uuid;
+    }
+}
@@ -0,0 +1,279 @@
+package dk.kb.ginnungagap.cumulus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Properties;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.cumulus.CumulusQuery;
+import dk.kb.cumulus.CumulusRecordCollection;
+import dk.kb.cumulus.CumulusServer;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.utils.FileUtils;
+
+/**
+ * The high-water mark for the Cumulus query of a workflow step, so the query only has to find the records,
+ * which have been modified since the last successful run of the step.
+ *
+ * The watermark is the start time of the last successful run, and it is persisted in a properties file.
+ * A full query is performed, when there is no watermark, or when the full sweep interval has passed since the
+ * last full query, thus records missed by the incremental queries are found eventually.
+ * The incremental queries overlap the previous run, to allow for differences between the clocks of this service
+ * and the Cumulus server.
+ *
+ * Without a watermark file every query is a full query, though the query metrics are still registered.
+ */
+public class QueryWatermark {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(QueryWatermark.class);
+
+    /** The suffix for the watermark files.*/
+    public static final String WATERMARK_FILE_SUFFIX = ".properties";
+    /** The overlap in millis between an incremental query and the run of the watermark; 10 minutes.*/
+    public static final long OVERLAP = 10 * 60 * 1000L;
+    /** The property for the watermark.*/
+    protected static final String PROPERTY_WATERMARK = "watermark";
+    /** The property for the time of the last full query.*/
+    protected static final String PROPERTY_LAST_FULL_SWEEP = "last_full_sweep";
+
+    /** The file with the watermark. May be null, when only full queries are used.*/
+    protected final File watermarkFile;
+    /** The interval in millis between the full queries.*/
+    protected final long fullSweepInterval;
+
+    /** The start time of the last successful run. Null if none.*/
+    protected Long watermark;
+    /** The start time of the last successful run with a full query. Null if none.*/
+    protected Long lastFullSweep;
+    /** The start time of the current run, which has not yet been committed. Null if none.*/
+    protected Long pendingRunStart;
+    /** Whether the current run, which has not yet been committed, used a full query.*/
+    protected boolean pendingFullSweep;
+
+    /** The time in millis of the latest query. -1 before any queries.*/
+    protected long lastQueryTime = -1L;
+    /** The number of records found by the latest query. -1 before any queries.*/
+    protected long lastHitCount = -1L;
+    /** Whether the latest query was a full query.*/
+    protected boolean lastQueryFull = true;
+    /** The total time in millis of all the queries.*/
+    protected long totalQueryTime = 0L;
+    /** The total number of records found by all the queries.*/
+    protected long totalHitCount = 0L;
+    /** The number of full queries.*/
+    protected long numberOfFullQueries = 0L;
+    /** The number of incremental queries.*/
+    protected long numberOfIncrementalQueries = 0L;
+
+    /**
+     * Constructor.
+     * If the watermark file exists, then the watermark is loaded from it.
+     * @param watermarkFile The file with the watermark. May be null, when only full queries are used.
+     * @param fullSweepInterval The interval in millis between the full queries.
+     */
+    public QueryWatermark(File watermarkFile, long fullSweepInterval) {
+        ArgumentCheck.checkNotNegativeLong(fullSweepInterval, "long fullSweepInterval");
+        this.watermarkFile = watermarkFile;
+        this.fullSweepInterval = fullSweepInterval;
+        if(watermarkFile != null && watermarkFile.isFile()) {
+            load();
+        }
+    }
+
+    /**
+     * Retrieves the watermark for a given name in the watermark directory.
+     * @param watermarkDir The watermark directory. If null, then a watermark only using full queries is returned.
+     * @param name The name of the watermark, e.g. the name of the step and the catalog.
+     * @param fullSweepInterval The interval in millis between the full queries.
+     * @return The watermark.
+     */
+    public static QueryWatermark getWatermark(File watermarkDir, String name, long fullSweepInterval) {
+        ArgumentCheck.checkNotNullOrEmpty(name, "String name");
+        if(watermarkDir == null) {
+            return new QueryWatermark(null, fullSweepInterval);
+        }
+        File dir = FileUtils.getDirectory(watermarkDir.getPath());
+        String fileName = name.replaceAll("[^A-Za-z0-9._-]", "_") + WATERMARK_FILE_SUFFIX;
+        return new QueryWatermark(new File(dir, fileName), fullSweepInterval);
+    }
+
+    /**
+     * @return The date, which the records must have been modified after, or null if a full query is required.
+     */
+    public synchronized Date getModifiedSince() {
+        if(watermarkFile == null || watermark == null || lastFullSweep == null
+                || System.currentTimeMillis() - lastFullSweep >= fullSweepInterval) {
+            return null;
+        }
+        return new Date(watermark - OVERLAP);
+    }
+
+    /**
+     * Finds the records with the query for the watermark, and registers the duration and hit count of the query.
+     * The run is not registered as the new watermark until it is committed.
+     * @param server The Cumulus server.
+     * @param catalogName The name of the catalog.
+     * @param queryForModifiedSince Creates the query for the records modified since a given date, or for all the
+     * records when the date is null.
+     * @return The records found by the query.
+     */
+    public CumulusRecordCollection findItems(CumulusServer server, String catalogName,
+            Function<Date, CumulusQuery> queryForModifiedSince) {
+        Date modifiedSince = getModifiedSince();
+        long start = System.currentTimeMillis();
+        CumulusRecordCollection items = server.getItems(catalogName, queryForModifiedSince.apply(modifiedSince));
+        long queryTime = System.currentTimeMillis() - start;
+        int hits = items.getCount();
+        synchronized(this) {
+            pendingRunStart = start;
+            pendingFullSweep = modifiedSince == null;
+            registerQuery(pendingFullSweep, queryTime, hits);
+        }
+        if(modifiedSince == null) {
+            log.info("Full query of catalog '" + catalogName + "' found " + hits + " records in " + queryTime
+                    + " ms.");
+        } else {
+            log.info("Incremental query of catalog '" + catalogName + "' for records modified since "
+                    + modifiedSince + " found " + hits + " records in " + queryTime + " ms.");
+        }
+        return items;
+    }
+
+    /**
+     * Registers the metrics of a query.
+     * @param fullQuery Whether it was a full query.
+     * @param queryTime The time of the query in millis.
+     * @param hits The number of records found by the query.
+     */
+    protected synchronized void registerQuery(boolean fullQuery, long queryTime, long hits) {
+        lastQueryFull = fullQuery;
+        lastQueryTime = queryTime;
+        lastHitCount = hits;
+        totalQueryTime += queryTime;
+        totalHitCount += hits;
+        if(fullQuery) {
+            numberOfFullQueries++;
+        } else {
+            numberOfIncrementalQueries++;
+        }
+    }
+
+    /**
+     * Commits the current run as successful, thus its start time becomes the new watermark.
+     * Must only be called, when all the records found by the query have been handled.
+     */
+    public synchronized void commit() {
+        if(pendingRunStart == null) {
+            return;
+        }
+        watermark = pendingRunStart;
+        if(pendingFullSweep) {
+            lastFullSweep = pendingRunStart;
+        }
+        pendingRunStart = null;
+        if(watermarkFile != null) {
+            save();
+        }
+    }
+
+    /**
+     * Loads the watermark from the watermark file.
+     */
+    protected void load() {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(watermarkFile)) {
+            properties.load(in);
+            watermark = parseTime(properties.getProperty(PROPERTY_WATERMARK));
+            lastFullSweep = parseTime(properties.getProperty(PROPERTY_LAST_FULL_SWEEP));
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Could not load the watermark file '" + watermarkFile + "'. Performs a full query.", e);
+            watermark = null;
+            lastFullSweep = null;
+        }
+    }
+
+    /**
+     * Saves the watermark to the watermark file.
+     * The file is replaced through a temporary file, thus a crash cannot leave a partial watermark file.
+     */
+    protected void save() {
+        Properties properties = new Properties();
+        properties.setProperty(PROPERTY_WATERMARK, Long.toString(watermark));
+        if(lastFullSweep != null) {
+            properties.setProperty(PROPERTY_LAST_FULL_SWEEP, Long.toString(lastFullSweep));
+        }
+        File tmpFile = new File(watermarkFile.getParentFile(), watermarkFile.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            properties.store(out, "Watermark for the incremental Cumulus queries");
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write the watermark file '" + tmpFile + "'", e);
+        }
+        if(!tmpFile.renameTo(watermarkFile)) {
+            FileUtils.forceMove(tmpFile, watermarkFile);
+        }
+    }
+
+    /**
+     * @param value The time as text. May be null.
+     * @return The time, or null if no value.
+     */
+    protected static Long parseTime(String value) {
+        if(value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return Long.parseLong(value.trim());
+    }
+
+    /** @return The start time of the last successful run. Null if none.*/
+    public synchronized Long getWatermark() {
+        return watermark;
+    }
+
+    /** @return The start time of the last successful run with a full query. Null if none.*/
+    public synchronized Long getLastFullSweep() {
+        return lastFullSweep;
+    }
+
+    /** @return The time in millis of the latest query. -1 before any queries.*/
+    public synchronized long getLastQueryTime() {
+        return lastQueryTime;
+    }
+
+    /** @return The number of records found by the latest query. -1 before any queries.*/
+    public synchronized long getLastHitCount() {
+        return lastHitCount;
+    }
+
+    /** @return Whether the latest query was a full query.*/
+    public synchronized boolean isLastQueryFull() {
+        return lastQueryFull;
+    }
+
+    /** @return The total time in millis of all the queries.*/
+    public synchronized long getTotalQueryTime() {
+        return totalQueryTime;
+    }
+
+    /** @return The total number of records found by all the queries.*/
+    public synchronized long getTotalHitCount() {
+        return totalHitCount;
+    }
+
+    /** @return The number of full queries.*/
+    public synchronized long getNumberOfFullQueries() {
+        return numberOfFullQueries;
+    }
+
+    /** @return The number of incremental queries.*/
+    public synchronized long getNumberOfIncrementalQueries() {
+        return numberOfIncrementalQueries;
+    }
+}
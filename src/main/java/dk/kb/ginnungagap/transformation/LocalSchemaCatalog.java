@@ -0,0 +1,190 @@
+package dk.kb.ginnungagap.transformation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+import dk.kb.yggdrasil.utils.YamlTools;
+
+/**
+ * Catalog for resolving schema locations to the XSD files in the local XSD directory.
+ * 
+ * The catalog is defined in the file 'schema_catalog.yml' in the XSD directory, in the format:
+ * <ul>
+ *   <li>schema_catalog:</li>
+ *   <ul>
+ *     <li>$schema location 1: $local XSD file 1</li>
+ *     <li>$schema location 2: $local XSD file 2</li>
+ *     <li>...</li>
+ *   </ul>
+ * </ul>
+ * 
+ * Relative schema locations within the local XSD files are resolved the default way, relative to the local 
+ * schema importing it. Any other schema location, which is not in the catalog, is also resolved the default way, 
+ * e.g. by retrieving it over the network. This is logged once for each schema location, since the schema ought 
+ * to be added to the catalog.
+ */
+public class LocalSchemaCatalog implements LSResourceResolver {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(LocalSchemaCatalog.class);
+    
+    /** The name of the catalog file in the XSD directory.*/
+    public static final String CATALOG_FILE_NAME = "schema_catalog.yml";
+    /** The root element of the catalog file.*/
+    protected static final String CATALOG_ROOT = "schema_catalog";
+    /** The prefix of the local file URIs.*/
+    protected static final String FILE_URI_PREFIX = "file:";
+    
+    /** The directory with the XSD files.*/
+    protected final File xsdDir;
+    /** Mapping between the schema locations and the local XSD files.*/
+    protected final Map<String, File> schemaFiles;
+    /** The schema locations outside the catalog, which have been logged.*/
+    protected final Set<String> uncatalogedLocations;
+    /** For creating the inputs for the resolved XSD files.*/
+    protected final DOMImplementationLS domImplementation;
+
+    /**
+     * Constructor.
+     * @param xsdDir The directory with the XSD files and the catalog file.
+     */
+    public LocalSchemaCatalog(File xsdDir) {
+        ArgumentCheck.checkExistsDirectory(xsdDir, "File xsdDir");
+        this.xsdDir = xsdDir;
+        this.schemaFiles = loadCatalog(new File(xsdDir, CATALOG_FILE_NAME));
+        this.uncatalogedLocations = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        try {
+            this.domImplementation = (DOMImplementationLS) DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .getDOMImplementation();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Cannot instantiate the schema catalog.", e);
+        }
+    }
+    
+    /**
+     * Loads the mapping between the schema locations and the local XSD files from the catalog file.
+     * If the catalog file does not exist, then the catalog is empty.
+     * @param catalogFile The catalog file.
+     * @return The mapping between the schema locations and the local XSD files.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    protected Map<String, File> loadCatalog(File catalogFile) {
+        Map<String, File> res = new LinkedHashMap<String, File>();
+        if(!catalogFile.isFile()) {
+            log.warn("No schema catalog at '" + catalogFile.getAbsolutePath() + "'.");
+            return res;
+        }
+        try {
+            LinkedHashMap<String, LinkedHashMap> map = YamlTools.loadYamlSettings(catalogFile);
+            ArgumentCheck.checkTrue(map.containsKey(CATALOG_ROOT), "Schema catalog '" 
+                    + catalogFile.getAbsolutePath() + "' must contain the element '" + CATALOG_ROOT + "'.");
+            LinkedHashMap<String, String> entries = map.get(CATALOG_ROOT);
+            for(Map.Entry<String, String> entry : entries.entrySet()) {
+                File xsdFile = new File(xsdDir, entry.getValue());
+                ArgumentCheck.checkExistsNormalFile(xsdFile, "Schema catalog entry for '" + entry.getKey() + "'");
+                res.put(entry.getKey(), xsdFile);
+            }
+        } catch (YggdrasilException e) {
+            throw new ArgumentCheck("The file '" + catalogFile.getAbsolutePath() + "' cannot be parsed", e);
+        }
+        return res;
+    }
+    
+    /**
+     * Retrieves the local XSD file for the given schema location.
+     * @param schemaLocation The schema location.
+     * @return The local XSD file, or null if the schema location is not in the catalog.
+     */
+    public File getSchemaFile(String schemaLocation) {
+        return schemaFiles.get(schemaLocation);
+    }
+    
+    /**
+     * Retrieves the sources for all the local XSD files in the catalog, in the order of the catalog.
+     * Each XSD file is only delivered once, even if several schema locations refer to it.
+     * @return The sources for the local XSD files.
+     */
+    public Source[] getSchemaSources() {
+        List<Source> res = new ArrayList<Source>();
+        for(File xsdFile : new LinkedHashSet<File>(schemaFiles.values())) {
+            res.add(new StreamSource(xsdFile.toURI().toString()));
+        }
+        return res.toArray(new Source[res.size()]);
+    }
+    
+    /**
+     * Extracts the schema locations from the value of a 'xsi:schemaLocation' attribute, which are not in 
+     * the catalog. The value consists of pairs of namespace and schema location.
+     * @param schemaLocationValue The value of the schema location attribute.
+     * @return The schema locations of the value, which are not in the catalog. Empty if all are in the catalog.
+     */
+    public List<String> getUncatalogedLocations(String schemaLocationValue) {
+        List<String> res = new ArrayList<String>();
+        String[] tokens = schemaLocationValue.trim().split("\\s+");
+        for(int i = 1; i < tokens.length; i += 2) {
+            if(!schemaFiles.containsKey(tokens[i])) {
+                res.add(tokens[i]);
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * Logs a schema location, which is not in the catalog, the first time it is reported.
+     * @param schemaLocation The schema location, which is not in the catalog.
+     * @param consequence The description of how the schema location is handled instead.
+     */
+    public void logUncatalogedLocation(String schemaLocation, String consequence) {
+        if(uncatalogedLocations.add(schemaLocation)) {
+            log.warn("The schema location '" + schemaLocation + "' is not in the local schema catalog in '" 
+                    + xsdDir.getAbsolutePath() + "', thus " + consequence);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * A schema location, which is neither in the catalog nor relative to a local XSD file, is logged and 
+     * resolved the default way.
+     */
+    @Override
+    public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId, 
+            String baseURI) {
+        if(systemId == null) {
+            return null;
+        }
+        File xsdFile = getSchemaFile(systemId);
+        if(xsdFile == null) {
+            if(!systemId.startsWith(FILE_URI_PREFIX) && (baseURI == null || !baseURI.startsWith(FILE_URI_PREFIX) 
+                    || systemId.contains(":"))) {
+                logUncatalogedLocation(systemId, "the schema for the namespace '" + namespaceURI 
+                        + "' must be retrieved.");
+            }
+            return null;
+        }
+        
+        LSInput res = domImplementation.createLSInput();
+        res.setSystemId(xsdFile.toURI().toString());
+        res.setPublicId(publicId);
+        res.setBaseURI(baseURI);
+        return res;
+    }
+}
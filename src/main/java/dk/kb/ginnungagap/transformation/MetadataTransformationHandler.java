@@ -1,37 +1,55 @@
 package dk.kb.ginnungagap.transformation;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.PostConstruct;
-import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 import dk.kb.ginnungagap.config.Configuration;
 import dk.kb.ginnungagap.utils.StringUtils;
-import dk.kb.yggdrasil.exceptions.YggdrasilException;
-import dk.kb.yggdrasil.xslt.XmlEntityResolver;
 import dk.kb.yggdrasil.xslt.XmlErrorHandler;
-import dk.kb.yggdrasil.xslt.XmlValidationResult;
-import dk.kb.yggdrasil.xslt.XmlValidator;
 
 /**
  * Handler for the metadata transformers.
+ * 
+ * All the XSLT scripts in the XSLT directory are compiled once, when the handler is initialized, 
+ * and the metadata transformers can afterwards be used by several threads at the same time.
+ * If the warm-up is enabled, then each XSLT script is also test-run once during the initialization.
+ * 
+ * The transformed metadata can be validated and have its schema locations extracted while it is being 
+ * transformed, so the transformed metadata does not have to be parsed again afterwards.
  */
 @Component
 public class MetadataTransformationHandler {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(MetadataTransformationHandler.class);
+    
+    /** The suffix for the XSLT files.*/
+    protected static final String XSLT_FILE_SUFFIX = ".xsl";
+    /** The minimal XML document used for test-running the XSLT scripts during the warm-up.*/
+    protected static final String WARM_UP_DOCUMENT = "<record/>";
     
     /** The name for the transformation script for catalog structmaps.*/
     public static final String TRANSFORMATION_SCRIPT_FOR_CATALOG_STRUCTMAP = "transformCatalogStructmap.xsl";
@@ -47,8 +65,10 @@ public class MetadataTransformationHandler {
     /** The directory with the XSLT files.*/
     protected File xsltDir;
     
-    /** The xml validator.*/
-    protected XmlValidator xmlValidator;
+    /** The validator for the local XSD schemas.*/
+    protected SchemaValidator schemaValidator;
+    /** The factory for the serializers of the transformed metadata.*/
+    protected SAXTransformerFactory serializerFactory;
     
     /** The configuration. */
     @Autowired
@@ -60,8 +80,54 @@ public class MetadataTransformationHandler {
     @PostConstruct
     protected void initialize() {
         this.xsltDir = conf.getTransformationConf().getXsltDir();
-        this.transformers = new HashMap<String, MetadataTransformer>();
-        this.xmlValidator = new XmlValidator();
+        this.transformers = new ConcurrentHashMap<String, MetadataTransformer>();
+        this.schemaValidator = new SchemaValidator(conf.getTransformationConf().getXsdDir());
+        this.serializerFactory = (SAXTransformerFactory) TransformerFactory.newInstance();
+        
+        compileTransformers();
+        if(conf.getTransformationConf().isWarmUp()) {
+            warmUpTransformers();
+        }
+    }
+    
+    /**
+     * Compiles all the XSLT scripts in the XSLT directory.
+     * Scripts which cannot be compiled are skipped, and will fail when they are retrieved.
+     */
+    protected void compileTransformers() {
+        File[] xsltFiles = xsltDir.listFiles();
+        if(xsltFiles == null) {
+            log.warn("Cannot list the XSLT files in the directory '" + xsltDir.getAbsolutePath() + "'.");
+            return;
+        }
+        for(File xsltFile : xsltFiles) {
+            if(!xsltFile.isFile() || !xsltFile.getName().endsWith(XSLT_FILE_SUFFIX)) {
+                continue;
+            }
+            try {
+                transformers.put(xsltFile.getName(), new MetadataTransformer(xsltFile));
+            } catch (RuntimeException e) {
+                log.warn("Could not compile the XSLT file '" + xsltFile.getAbsolutePath() + "'.", e);
+            }
+        }
+        log.info("Compiled " + transformers.size() + " XSLT scripts from '" + xsltDir.getAbsolutePath() + "'.");
+    }
+    
+    /**
+     * Test-runs each of the compiled XSLT scripts on a minimal XML document, so the first actual 
+     * transformations will not have to pay for the initial loading of the transformation classes.
+     * The results and the failures of the test-runs are ignored.
+     */
+    protected void warmUpTransformers() {
+        for(Map.Entry<String, MetadataTransformer> transformer : transformers.entrySet()) {
+            try {
+                transformer.getValue().transformXmlMetadata(
+                        new ByteArrayInputStream(WARM_UP_DOCUMENT.getBytes(StandardCharsets.UTF_8)), 
+                        new ByteArrayOutputStream());
+            } catch (RuntimeException e) {
+                log.debug("The warm-up of the XSLT script '" + transformer.getKey() + "' failed.", e);
+            }
+        }
     }
     
     /**
@@ -70,84 +136,117 @@ public class MetadataTransformationHandler {
      * @return The transformer.
      */
     public MetadataTransformer getTransformer(String name) {
-        if(!transformers.containsKey(name)) {
+        MetadataTransformer transformer = transformers.get(name);
+        if(transformer == null) {
             File xsltFile = new File(xsltDir, name);
             if(!xsltFile.exists()) {
                 throw new IllegalArgumentException("The XSLT file '" + xsltFile.getAbsolutePath() + 
                         "' does not exist.");
             }
-            transformers.put(name, new MetadataTransformer(xsltFile));
+            transformer = transformers.computeIfAbsent(name, n -> new MetadataTransformer(xsltFile));
         } 
-        return transformers.get(name);
+        return transformer;
     }
     
     
     /**
-     * Validates the transformed metadata.
+     * Validates the transformed metadata against the local XSD schemas.
      * @param metadata The metadata input stream.
      * @throws IOException If an IO exception occurs when trying to validate the metadata.
      * If the validation itself fails, then an IllegalStateException will be thrown instead.
      */
     public void validate(InputStream metadata) throws IOException {
-        XmlEntityResolver entityResolver = null;
         XmlErrorHandler errorHandler = new XmlErrorHandler();
-        XmlValidationResult validationResult = new XmlValidationResult();
-
+        SAXException failure = null;
         try {
-            boolean res = xmlValidator.testDefinedValidity(metadata, entityResolver, errorHandler, validationResult);
-
-            if(!res) {
-                String fatalErrors = StringUtils.listToString(errorHandler.fatalErrors, "\n");
-                String errors = StringUtils.listToString(errorHandler.errors, "\n");
-                String warnings = StringUtils.listToString(errorHandler.warnings, "\n");
-                throw new IllegalStateException("Failed validation: \nfatal errors: " + fatalErrors
-                        + "\n other errors: " + errors + " \nwarnings: " + warnings);
+            schemaValidator.validate(metadata, errorHandler);
+        } catch (SAXException e) {
+            failure = e;
+        }
+        checkValidation(errorHandler, failure);
+    }
+    
+    /**
+     * Transforms the metadata, and validates the transformed metadata against the local XSD schemas and extracts 
+     * its schema locations, while it is being transformed.
+     * The transformed metadata is serialized to the output stream exactly as by the transformer itself, 
+     * and it is only delivered once, thus it does not have to be parsed again for the validation or for the
+     * extraction of the schema locations.
+     * @param transformer The transformer for the metadata.
+     * @param metadata The metadata input stream.
+     * @param out The output stream where the transformed metadata is delivered.
+     * @return The collection of unique schema locations of the transformed metadata.
+     * @throws IOException If it fails to deliver the transformed metadata to the output stream.
+     * If the validation fails, then an IllegalStateException will be thrown instead.
+     */
+    public Collection<String> transformAndValidate(MetadataTransformer transformer, InputStream metadata, 
+            OutputStream out) throws IOException {
+        XmlErrorHandler errorHandler = new XmlErrorHandler();
+        SchemaLocationCollector collector = new SchemaLocationCollector(
+                schemaValidator.newValidatorHandler(errorHandler), 
+                createSerializer(transformer, out));
+        SAXResult result = new SAXResult(collector);
+        result.setLexicalHandler(collector);
+        
+        transformer.transformXmlMetadata(metadata, result);
+        out.flush();
+        checkValidation(errorHandler, null);
+        return collector.getSchemaLocations();
+    }
+    
+    /**
+     * Creates the serializer of the transformed metadata, which writes it in the same way as the transformer 
+     * would have written it directly to the output stream.
+     * @param transformer The transformer for the metadata.
+     * @param out The output stream for the serialized metadata.
+     * @return The serializer.
+     */
+    protected TransformerHandler createSerializer(MetadataTransformer transformer, OutputStream out) {
+        TransformerHandler serializer;
+        try {
+            synchronized(serializerFactory) {
+                serializer = serializerFactory.newTransformerHandler();
             }
-        } catch (YggdrasilException e) {
-            throw new IOException("Could not validate the metadata.", e);
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("Cannot create a serializer for the transformed metadata.", e);
+        }
+        serializer.getTransformer().setOutputProperties(transformer.getOutputProperties());
+        serializer.setResult(new StreamResult(out));
+        return serializer;
+    }
+    
+    /**
+     * Checks the result of a validation, and throws an exception if the validation failed.
+     * @param errorHandler The error handler with the warnings and errors of the validation.
+     * @param failure The exception, which aborted the validation. Null, if the validation was not aborted.
+     */
+    protected void checkValidation(XmlErrorHandler errorHandler, SAXException failure) {
+        if(failure != null || !errorHandler.fatalErrors.isEmpty() || !errorHandler.errors.isEmpty()) {
+            String fatalErrors = StringUtils.listToString(errorHandler.fatalErrors, "\n");
+            String errors = StringUtils.listToString(errorHandler.errors, "\n");
+            String warnings = StringUtils.listToString(errorHandler.warnings, "\n");
+            throw new IllegalStateException("Failed validation: \nfatal errors: " + fatalErrors
+                    + "\n other errors: " + errors + " \nwarnings: " + warnings, failure);
         }
     }
     
     /**
      * Retrieves the schema versions of a given XML metadata stream.
      * Will only retrieve each schema location once.
+     * The schema locations are collected while the metadata is streamed, thus the metadata is not kept in memory.
      * @param metadata The XML metadata input stream.
      * @return The collection of unique schemalocations.
      */
     public Collection<String> getMetadataStandards(InputStream metadata) {
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(metadata);
+            SchemaLocationCollector collector = new SchemaLocationCollector();
+            XMLReader reader = schemaValidator.createReader();
+            reader.setContentHandler(collector);
+            reader.parse(new InputSource(metadata));
 
-            return getNamespaceLocation(document);
+            return collector.getSchemaLocations();
         } catch(Exception e) {
             throw new IllegalStateException("Could not extract the metadata standards.", e);
         }
     }
-    
-    /**
-     * Retrieves the namespace locations of a given node, and all the subnodes.
-     * @param node The node.
-     * @return The namespaces of the current node and all its subnodes.
-     */
-    protected Set<String> getNamespaceLocation(Node node) {
-        Set<String> res = new HashSet<String>();
-        for(int i = 0; i < node.getChildNodes().getLength(); i++) {
-            Node n = node.getChildNodes().item(i);
-            if(n.hasChildNodes()) {
-                res.addAll(getNamespaceLocation(n));
-            }
-        }
-        if(node.hasAttributes()) {
-            Node schemaLocation = node.getAttributes().getNamedItemNS(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, 
-                    "schemaLocation");
-            if(schemaLocation != null) {
-                res.add(schemaLocation.getNodeValue());
-            }
-        }
-        
-        return res;
-    }
 }
@@ -4,25 +4,37 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Properties;
 
+import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import dk.kb.ginnungagap.exception.ArgumentCheck;
-import dk.kb.metadata.Cleaner;
+import dk.kb.metadata.TransformationContext;
 import dk.kb.yggdrasil.xslt.XslErrorListener;
-import dk.kb.yggdrasil.xslt.XslTransformer;
 import dk.kb.yggdrasil.xslt.XslUriResolver;
 
 /**
  * Transforms XML metadata through XSLT scripts.
+ * 
+ * The XSLT script is compiled once into a thread-safe Templates object, when the transformer is instantiated.
+ * Each thread performing transformations is given its own Transformer from the compiled script, 
+ * thus the same metadata transformer can be used by several threads at the same time.
  */
 public class MetadataTransformer {
     /** The XSLT file with the XML transformation.*/
     protected final File xsltFile;
-    /** The XSL transformer.*/
-    protected final XslTransformer xslTransformer;
+    /** The compiled XSLT script.*/
+    protected final Templates templates;
+    /** The transformer for each thread, created from the compiled XSLT script.*/
+    protected final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>();
 
     /**
      * Constructor.
@@ -32,39 +44,82 @@ public class MetadataTransformer {
         ArgumentCheck.checkExistsNormalFile(xsltFile, "File xsltFile");
         try {
             this.xsltFile = xsltFile;
-            this.xslTransformer = XslTransformer.getTransformer(xsltFile);
-        } catch (TransformerException e) {
+            this.templates = TransformerFactory.newInstance().newTemplates(new StreamSource(xsltFile));
+        } catch (TransformerConfigurationException e) {
             throw new ArgumentCheck("Cannot instantiate a XSL transformer from the file '" + xsltFile + "'.", e);
         }
     }
 
+    /** @return The XSLT file with the XML transformation.*/
+    public File getXsltFile() {
+        return xsltFile;
+    }
+
     /**
      * Transforms metadata, and deliver the content into a file. 
      * @param metadata The stream with metadata.
      * @param out Where the output must be delivered.
      */
     public void transformXmlMetadata(InputStream metadata, OutputStream out) {
-        transform(metadata, out, xslTransformer);
+        transform(metadata, new StreamResult(out), getTransformer());
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not deliver the transformed metadata to the output stream.", e);
+        }
+    }
+    
+    /**
+     * Transforms metadata, and deliver the content to the given result, e.g. a SAX result for further processing
+     * of the transformed metadata without serializing it in between.
+     * @param metadata The stream with metadata.
+     * @param result The result where the output must be delivered.
+     */
+    public void transformXmlMetadata(InputStream metadata, Result result) {
+        transform(metadata, result, getTransformer());
+    }
+    
+    /** @return The output properties of the XSLT script, e.g. the encoding and the indentation.*/
+    public Properties getOutputProperties() {
+        return templates.getOutputProperties();
+    }
+    
+    /**
+     * Retrieves the transformer for the current thread, or creates it from the compiled XSLT script, 
+     * if the current thread does not already have one.
+     * @return The transformer for the current thread.
+     */
+    protected Transformer getTransformer() {
+        Transformer transformer = transformers.get();
+        if(transformer == null) {
+            try {
+                transformer = templates.newTransformer();
+            } catch (TransformerConfigurationException e) {
+                throw new IllegalStateException("Cannot create a transformer from the XSLT file '" + xsltFile + "'.", 
+                        e);
+            }
+            transformers.set(transformer);
+        }
+        return transformer;
     }
     
     /**
      * Performs the transformation of the metadata based on the given xsl transformation.
+     * The transformation is performed within its own transformation context, thus the java helper methods
+     * used by the XSLT scripts will not share state with any other transformation.
      * @param xmlFile The metadata input stream.
-     * @param out The output stream where the transformed metadata is delivered.
-     * @param transformer The transformer for the metadata.
+     * @param result The result where the transformed metadata is delivered.
+     * @param transformer The transformer for the metadata. Must not be used by other threads at the same time.
      */
-    protected void transform(InputStream xmlFile, OutputStream out, XslTransformer transformer) {
-        try {
-            Cleaner.cleanStuff();
-
-            XslUriResolver uriResolver = new XslUriResolver();
-            XslErrorListener errorListener = new XslErrorListener();
+    protected void transform(InputStream xmlFile, Result result, Transformer transformer) {
+        XslErrorListener errorListener = new XslErrorListener();
+        transformer.setURIResolver(new XslUriResolver());
+        transformer.setErrorListener(errorListener);
 
-            Source source = new StreamSource(xmlFile);
-            byte[] bytes = transformer.transform(source, uriResolver, errorListener);
-
-            out.write(bytes);
-            out.flush();
+        Source source = new StreamSource(xmlFile);
+        TransformationContext.open();
+        try {
+            transformer.transform(source, result);
             
             if(errorListener.hasErrors()) {
                 throw new IllegalStateException("Failed transformation: fatal errors: " + errorListener.fatalErrors 
@@ -72,8 +127,9 @@ public class MetadataTransformer {
             }
         } catch (TransformerException e) {
             throw new IllegalStateException("Could not perform the transformation of the metadata", e);
-        } catch (IOException e) {
-            throw new IllegalStateException("Could not deliver the transformed metadata to the output stream.", e);
+        } finally {
+            TransformationContext.close();
+            transformer.reset();
         }
     }
 }
@@ -0,0 +1,190 @@
+package dk.kb.ginnungagap.transformation;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Collects the schema locations of a XML document from its SAX events,
+ * while delivering the events unchanged to each of the underlying handlers.
+ *
+ * Thereby a XML document can be serialized, validated and have its schema locations extracted in a single pass.
+ * The handlers receive the same events, thus the validation cannot change what is serialized
+ * (e.g. add the default attributes of the schemas).
+ * The lexical events (comments, CDATA, etc.) are only delivered to the handlers, which are lexical handlers.
+ */
+public class SchemaLocationCollector implements ContentHandler, LexicalHandler {
+    /** The name of the schema location attribute.*/
+    protected static final String SCHEMA_LOCATION_ATTRIBUTE = "schemaLocation";
+
+    /** The handlers, which receive the SAX events.*/
+    protected final ContentHandler[] handlers;
+    /** The unique schema locations of the document.*/
+    protected final Set<String> schemaLocations = new HashSet<String>();
+
+    /**
+     * Constructor.
+     * @param handlers The handlers, which must receive the SAX events.
+     */
+    public SchemaLocationCollector(ContentHandler ... handlers) {
+        this.handlers = handlers;
+    }
+
+    /** @return The unique schema locations of the document.*/
+    public Collection<String> getSchemaLocations() {
+        return schemaLocations;
+    }
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+        for(ContentHandler handler : handlers) {
+            handler.setDocumentLocator(locator);
+        }
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        for(ContentHandler handler : handlers) {
+            handler.startDocument();
+        }
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        for(ContentHandler handler : handlers) {
+            handler.endDocument();
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        for(ContentHandler handler : handlers) {
+            handler.startPrefixMapping(prefix, uri);
+        }
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        for(ContentHandler handler : handlers) {
+            handler.endPrefixMapping(prefix);
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        String schemaLocation = atts.getValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI,
+                SCHEMA_LOCATION_ATTRIBUTE);
+        if(schemaLocation != null) {
+            schemaLocations.add(schemaLocation);
+        }
+        for(ContentHandler handler : handlers) {
+            handler.startElement(uri, localName, qName, atts);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        for(ContentHandler handler : handlers) {
+            handler.endElement(uri, localName, qName);
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        for(ContentHandler handler : handlers) {
+            handler.characters(ch, start, length);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        for(ContentHandler handler : handlers) {
+            handler.ignorableWhitespace(ch, start, length);
+        }
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        for(ContentHandler handler : handlers) {
+            handler.processingInstruction(target, data);
+        }
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException {
+        for(ContentHandler handler : handlers) {
+            handler.skippedEntity(name);
+        }
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        for(ContentHandler handler : handlers) {
+            if(handler instanceof LexicalHandler) {
+                ((LexicalHandler) handler).startDTD(name, publicId, systemId);
+            }
+        }
+    }
+
+    @Override
+    public void endDTD() throws SAXException {
+        for(ContentHandler handler : handlers) {
+            if(handler instanceof LexicalHandler) {
+                ((LexicalHandler) handler).endDTD();
+            }
+        }
+    }
+
+    @Override
+    public void startEntity(String name) throws SAXException {
+        for(ContentHandler handler : handlers) {
+            if(handler instanceof LexicalHandler) {
+                ((LexicalHandler) handler).startEntity(name);
+            }
+        }
+    }
+
+    @Override
+    public void endEntity(String name) throws SAXException {
+        for(ContentHandler handler : handlers) {
+            if(handler instanceof LexicalHandler) {
+                ((LexicalHandler) handler).endEntity(name);
+            }
+        }
+    }
+
+    @Override
+    public void startCDATA() throws SAXException {
+        for(ContentHandler handler : handlers) {
+            if(handler instanceof LexicalHandler) {
+                ((LexicalHandler) handler).startCDATA();
+            }
+        }
+    }
+
+    @Override
+    public void endCDATA() throws SAXException {
+        for(ContentHandler handler : handlers) {
+            if(handler instanceof LexicalHandler) {
+                ((LexicalHandler) handler).endCDATA();
+            }
+        }
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        for(ContentHandler handler : handlers) {
+            if(handler instanceof LexicalHandler) {
+                ((LexicalHandler) handler).comment(ch, start, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package dk.kb.ginnungagap.transformation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Validates XML documents against the schemas in the local schema catalog.
+ * 
+ * All the XSD files in the catalog are compiled once into one immutable schema, which is shared by all the 
+ * validations, thus a validation only costs a single SAX parse of the document. Several threads may validate 
+ * at the same time.
+ * 
+ * A document, whose root element refers to a schema location, which is not in the catalog, is instead validated 
+ * against the schemas it refers to, which are resolved through the catalog or retrieved the default way, like 
+ * before the catalog was compiled. This fallback is logged once for each schema location, since the XSD file 
+ * ought to be added to the catalog. Schema locations outside the catalog on the inner elements of a document, 
+ * which is validated against the catalog, are also logged, since their elements are only validated as far as 
+ * the schemas in the catalog declare them.
+ */
+public class SchemaValidator {
+    /** The catalog with the local schemas.*/
+    protected final LocalSchemaCatalog catalog;
+    /** The schema for the validations, compiled from the XSD files in the catalog.*/
+    protected final Schema schema;
+    /** The schema for the documents, which refer to schema locations outside the catalog.*/
+    protected final Schema fallbackSchema;
+    /** The factory for the SAX parsers.*/
+    protected final SAXParserFactory parserFactory;
+
+    /**
+     * Constructor.
+     * @param xsdDir The directory with the XSD files and the schema catalog.
+     * @throws IllegalStateException If the XSD files in the catalog cannot be compiled.
+     */
+    public SchemaValidator(File xsdDir) {
+        this.catalog = new LocalSchemaCatalog(xsdDir);
+        try {
+            SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            schemaFactory.setResourceResolver(catalog);
+            this.schema = schemaFactory.newSchema(catalog.getSchemaSources());
+            this.fallbackSchema = schemaFactory.newSchema();
+        } catch (SAXException e) {
+            throw new IllegalStateException("Cannot instantiate the schema for the validation.", e);
+        }
+        
+        this.parserFactory = SAXParserFactory.newInstance();
+        this.parserFactory.setNamespaceAware(true);
+    }
+    
+    /** @return The catalog with the local schemas.*/
+    public LocalSchemaCatalog getCatalog() {
+        return catalog;
+    }
+    
+    /**
+     * Validates a XML document against the schemas in the catalog, or against the schemas it refers to, if 
+     * its root element refers to a schema location, which is not in the catalog.
+     * The warnings and errors of the validation are delivered to the error handler.
+     * @param xml The XML document.
+     * @param errorHandler The handler for the warnings and errors of the validation.
+     * @throws IOException If it fails to read the XML document.
+     * @throws SAXException If the XML document cannot be parsed, or if the error handler fails.
+     */
+    public void validate(InputStream xml, ErrorHandler errorHandler) throws IOException, SAXException {
+        XMLReader reader = createReader();
+        reader.setContentHandler(newValidatorHandler(errorHandler));
+        reader.setErrorHandler(errorHandler);
+        reader.parse(new InputSource(xml));
+    }
+    
+    /**
+     * Creates a handler, which validates the SAX events of a XML document against the schemas in the catalog, 
+     * or against the schemas it refers to, if its root element refers to a schema location, which is not in 
+     * the catalog.
+     * It can be used for validating a document while it is being produced, e.g. by a transformation.
+     * @param errorHandler The handler for the warnings and errors of the validation.
+     * @return The validating handler.
+     */
+    public ContentHandler newValidatorHandler(ErrorHandler errorHandler) {
+        return new SchemaSelectingHandler(errorHandler);
+    }
+    
+    /**
+     * @return A new XML reader.
+     * @throws SAXException If it fails to create the XML reader.
+     */
+    protected XMLReader createReader() throws SAXException {
+        try {
+            synchronized(parserFactory) {
+                return parserFactory.newSAXParser().getXMLReader();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Cannot create a XML parser.", e);
+        }
+    }
+    
+    /**
+     * Handler, which chooses the schema for the validation at the root element of the document, and then 
+     * delivers the SAX events to a validator handler for that schema.
+     * The events before the root element are held back until the validator handler has been created.
+     */
+    protected class SchemaSelectingHandler implements ContentHandler {
+        /** The handler for the warnings and errors of the validation.*/
+        protected final ErrorHandler errorHandler;
+        /** The prefix mappings before the root element, as pairs of prefix and namespace.*/
+        protected final List<String[]> prefixMappings = new ArrayList<String[]>();
+        /** The locator of the document, if any.*/
+        protected Locator locator;
+        /** Whether the document has started.*/
+        protected boolean isStarted = false;
+        /** The validator handler, once the root element has been reached.*/
+        protected ValidatorHandler validatorHandler;
+        /** Whether the document is validated against the schemas in the catalog.*/
+        protected boolean isCataloged;
+        
+        /**
+         * Constructor.
+         * @param errorHandler The handler for the warnings and errors of the validation.
+         */
+        protected SchemaSelectingHandler(ErrorHandler errorHandler) {
+            this.errorHandler = errorHandler;
+        }
+        
+        /**
+         * Creates the validator handler for the schema of the document, and delivers the events held back to it.
+         * @param uncataloged The schema locations of the root element, which are not in the catalog.
+         * @throws SAXException If the validator handler fails.
+         */
+        protected void selectSchema(List<String> uncataloged) throws SAXException {
+            isCataloged = uncataloged.isEmpty();
+            if(isCataloged) {
+                validatorHandler = schema.newValidatorHandler();
+            } else {
+                for(String schemaLocation : uncataloged) {
+                    catalog.logUncatalogedLocation(schemaLocation, "the documents referring to it are validated "
+                            + "against the schemas they refer to.");
+                }
+                validatorHandler = fallbackSchema.newValidatorHandler();
+                validatorHandler.setResourceResolver(catalog);
+            }
+            validatorHandler.setErrorHandler(errorHandler);
+            if(locator != null) {
+                validatorHandler.setDocumentLocator(locator);
+            }
+            if(isStarted) {
+                validatorHandler.startDocument();
+            }
+            for(String[] prefixMapping : prefixMappings) {
+                validatorHandler.startPrefixMapping(prefixMapping[0], prefixMapping[1]);
+            }
+            prefixMappings.clear();
+        }
+        
+        /**
+         * Extracts the schema locations of the attributes of an element, which are not in the catalog.
+         * @param atts The attributes of the element.
+         * @return The schema locations, which are not in the catalog. Empty if it has no schema locations.
+         */
+        protected List<String> getUncatalogedLocations(Attributes atts) {
+            String schemaLocation = atts.getValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, 
+                    SchemaLocationCollector.SCHEMA_LOCATION_ATTRIBUTE);
+            if(schemaLocation == null) {
+                return new ArrayList<String>();
+            }
+            return catalog.getUncatalogedLocations(schemaLocation);
+        }
+        
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            this.locator = locator;
+            if(validatorHandler != null) {
+                validatorHandler.setDocumentLocator(locator);
+            }
+        }
+        
+        @Override
+        public void startDocument() throws SAXException {
+            isStarted = true;
+        }
+        
+        @Override
+        public void endDocument() throws SAXException {
+            if(validatorHandler == null) {
+                selectSchema(new ArrayList<String>());
+            }
+            validatorHandler.endDocument();
+        }
+        
+        @Override
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            if(validatorHandler == null) {
+                prefixMappings.add(new String[]{prefix, uri});
+            } else {
+                validatorHandler.startPrefixMapping(prefix, uri);
+            }
+        }
+        
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            if(validatorHandler != null) {
+                validatorHandler.endPrefixMapping(prefix);
+            }
+        }
+        
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) 
+                throws SAXException {
+            List<String> uncataloged = getUncatalogedLocations(atts);
+            if(validatorHandler == null) {
+                selectSchema(uncataloged);
+            } else if(isCataloged) {
+                for(String schemaLocation : uncataloged) {
+                    catalog.logUncatalogedLocation(schemaLocation, "the elements referring to it are only "
+                            + "validated as far as the schemas in the catalog declare them.");
+                }
+            }
+            validatorHandler.startElement(uri, localName, qName, atts);
+        }
+        
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            validatorHandler.endElement(uri, localName, qName);
+        }
+        
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if(validatorHandler != null) {
+                validatorHandler.characters(ch, start, length);
+            }
+        }
+        
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            if(validatorHandler != null) {
+                validatorHandler.ignorableWhitespace(ch, start, length);
+            }
+        }
+        
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            if(validatorHandler != null) {
+                validatorHandler.processingInstruction(target, data);
+            }
+        }
+        
+        @Override
+        public void skippedEntity(String name) throws SAXException {
+            if(validatorHandler != null) {
+                validatorHandler.skippedEntity(name);
+            }
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package dk.kb.ginnungagap.utils;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import org.bitrepository.access.getchecksums.conversation.ChecksumsCompletePillarEvent;
+import org.bitrepository.bitrepositoryelements.ChecksumDataForChecksumSpecTYPE;
 import org.bitrepository.bitrepositoryelements.ChecksumType;
 import org.bitrepository.client.eventhandler.OperationEvent.OperationEventType;
 import org.bitrepository.common.utils.Base16Utils;
@@ -21,6 +30,10 @@ import dk.kb.yggdrasil.warc.Digest;
 public class ChecksumUtils {
     /** MD5 algorithm name.*/
     public static final String MD5_ALGORITHM = "MD5";
+    /** The encoding of the digests.*/
+    protected static final String DIGEST_ENCODING = "base16";
+    /** The size of the buffer when reading the file for calculating the checksums.*/
+    protected static final int IO_BUFFER_SIZE = 64*1024;
 
     /**
      * Calculates the checksum of a file with a given checksum.
@@ -39,6 +52,76 @@ public class ChecksumUtils {
         }
     }
 
+    /**
+     * Calculates the checksums of a file for several algorithms, while only reading the file once.
+     * @param file The file to calculate the checksums of.
+     * @param algorithms The algorithms for the checksum calculations.
+     * @return The checksums of the file wrapped in WarcDigests, mapped by their algorithm.
+     */
+    public static Map<String, WarcDigest> calculateChecksums(File file, String ... algorithms) {
+        ArgumentCheck.checkExistsNormalFile(file, "File file");
+        Map<String, MessageDigest> messageDigests = new LinkedHashMap<String, MessageDigest>();
+        try {
+            for(String algorithm : algorithms) {
+                if(!messageDigests.containsKey(algorithm)) {
+                    messageDigests.put(algorithm, MessageDigest.getInstance(algorithm));
+                }
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Could not calculate the checksums of the file '" 
+                    + file.getAbsolutePath() + "'", e);
+        }
+        
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int bytesRead;
+            while((bytesRead = in.read(buffer)) != -1) {
+                for(MessageDigest md : messageDigests.values()) {
+                    md.update(buffer, 0, bytesRead);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not calculate the checksums of the file '" 
+                    + file.getAbsolutePath() + "'", e);
+        }
+        
+        Map<String, WarcDigest> res = new LinkedHashMap<String, WarcDigest>();
+        for(Map.Entry<String, MessageDigest> md : messageDigests.entrySet()) {
+            res.put(md.getKey(), createWarcDigest(md.getKey(), md.getValue().digest()));
+        }
+        return res;
+    }
+    
+    /**
+     * Calculates the checksum of the content of a stream. The stream is read to the end, but not closed.
+     * @param in The stream with the content to calculate the checksum of.
+     * @param algorithm The algorithm for the checksum calculation.
+     * @return The checksum of the content wrapped in a WarcDigest.
+     */
+    public static WarcDigest calculateChecksum(InputStream in, String algorithm) {
+        try {
+            MessageDigest md = MessageDigest.getInstance(algorithm);
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int bytesRead;
+            while((bytesRead = in.read(buffer)) != -1) {
+                md.update(buffer, 0, bytesRead);
+            }
+            return createWarcDigest(algorithm, md.digest());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException("Could not calculate the checksum of the stream.", e);
+        }
+    }
+    
+    /**
+     * Wraps the bytes of a digest in a WarcDigest.
+     * @param algorithm The algorithm of the digest.
+     * @param digest The bytes of the digest.
+     * @return The WarcDigest.
+     */
+    public static WarcDigest createWarcDigest(String algorithm, byte[] digest) {
+        return WarcDigest.createWarcDigest(algorithm, digest, DIGEST_ENCODING, Base16Utils.decodeBase16(digest));
+    }
+
     /**
      * Validates that a collection of checksum complete pillar events have the same checksum for the same file. 
      * It will throw an exception if no results are found.
@@ -71,4 +154,42 @@ public class ChecksumUtils {
         }
         return checksums.iterator().next();
     }
+
+    /**
+     * Extracts the checksums, which all the pillars agree upon, from the checksum complete pillar events 
+     * for the files of a whole collection.
+     * Files which are not delivered by all the pillars, or which have different checksums at the pillars,
+     * are left out of the result.
+     * It will throw an exception if no results are found, or if any pillar failed to deliver its results.
+     * @param checksumEvents The checksum complete pillar events for the collection.
+     * @return The agreed checksums mapped by the file ids.
+     */
+    public static Map<String, String> getAgreedChecksums(Collection<ChecksumsCompletePillarEvent> checksumEvents) {
+        Set<ChecksumType> csType = new HashSet<>();
+        Map<String, String> res = null;
+        for(ChecksumsCompletePillarEvent event : checksumEvents) {
+            if(event.getEventType() != OperationEventType.COMPONENT_COMPLETE) {
+                throw new IllegalStateException("A component failed to deliver checksum results, "
+                        + "thus not valid result: " + event);
+            }
+            csType.add(event.getChecksumType().getChecksumType());
+            Map<String, String> pillarChecksums = new HashMap<>();
+            for(ChecksumDataForChecksumSpecTYPE item : event.getChecksums().getChecksumDataItems()) {
+                pillarChecksums.put(item.getFileID(), Base16Utils.decodeBase16(item.getChecksumValue()));
+            }
+            if(res == null) {
+                res = pillarChecksums;
+            } else {
+                res.entrySet().retainAll(pillarChecksums.entrySet());
+            }
+        }
+
+        if(res == null) {
+            throw new IllegalStateException("No results -> No checksums for the collection.");
+        }
+        if(csType.size() > 1) {
+            throw new IllegalStateException("Too many checksum types: '" + csType + "'");
+        }
+        return res;
+    }
 }
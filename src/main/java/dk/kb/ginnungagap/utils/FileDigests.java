@@ -0,0 +1,71 @@
+package dk.kb.ginnungagap.utils;
+
+import java.io.File;
+import java.util.Map;
+
+import org.jwat.warc.WarcDigest;
+
+/**
+ * The digests of a file, which have all been calculated by reading the file once.
+ * 
+ * The size and last modification date of the file are kept along with the digests, 
+ * so it can be checked whether the file has been changed since the digests were calculated.
+ */
+public class FileDigests {
+    /** The file.*/
+    protected final File file;
+    /** The size of the file, when the digests were calculated.*/
+    protected final long length;
+    /** The last modification date of the file, when the digests were calculated.*/
+    protected final long lastModified;
+    /** The digests of the file, mapped by their algorithm.*/
+    protected final Map<String, WarcDigest> digests;
+    
+    /**
+     * Constructor.
+     * @param file The file.
+     * @param length The size of the file, when the digests were calculated.
+     * @param lastModified The last modification date of the file, when the digests were calculated.
+     * @param digests The digests of the file, mapped by their algorithm.
+     */
+    public FileDigests(File file, long length, long lastModified, Map<String, WarcDigest> digests) {
+        this.file = file;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.digests = digests;
+    }
+    
+    /**
+     * Calculates the digests of a file for the given algorithms, by reading the file once.
+     * @param file The file.
+     * @param algorithms The algorithms for the digests.
+     * @return The digests of the file.
+     */
+    public static FileDigests calculate(File file, String ... algorithms) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        return new FileDigests(file, length, lastModified, ChecksumUtils.calculateChecksums(file, algorithms));
+    }
+
+    /** @return The file.*/
+    public File getFile() {
+        return file;
+    }
+    
+    /**
+     * Retrieves the digest of the file for the given algorithm.
+     * @param algorithm The algorithm of the digest.
+     * @return The digest, or null if no digest was calculated for the algorithm.
+     */
+    public WarcDigest getDigest(String algorithm) {
+        return digests.get(algorithm);
+    }
+    
+    /**
+     * Checks whether the file still has the same size and modification date, as when the digests were calculated.
+     * @return Whether the file seems unchanged since the digests were calculated.
+     */
+    public boolean isUnchanged() {
+        return file.isFile() && file.length() == length && file.lastModified() == lastModified;
+    }
+}
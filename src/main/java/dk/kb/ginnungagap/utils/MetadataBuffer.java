@@ -0,0 +1,169 @@
+package dk.kb.ginnungagap.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Buffer for metadata, which is kept in memory until it exceeds the size threshold,
+ * after which the metadata is spooled to a file in the spool directory.
+ *
+ * The metadata is written to the buffer as an output stream, and can afterwards be read any number of times
+ * through new input streams. The buffer can be reused for other metadata, after it has been reset,
+ * whereby any spool file is deleted, but the memory is kept.
+ */
+public class MetadataBuffer extends OutputStream {
+    /** The initial size of the memory buffer.*/
+    protected static final int INITIAL_BUFFER_SIZE = 8*1024;
+    /** The suffix for the spool files.*/
+    protected static final String SPOOL_FILE_SUFFIX = ".spool";
+
+    /** The directory where the metadata is spooled, when it exceeds the threshold.*/
+    protected final File spoolDir;
+    /** The maximum number of bytes kept in memory.*/
+    protected final int threshold;
+
+    /** The id of the current metadata, e.g. the UUID of the metadata record.*/
+    protected String id;
+    /** The memory buffer.*/
+    protected byte[] buffer;
+    /** The number of bytes in the buffer, or in the spool file when spooled.*/
+    protected long count;
+    /** The spool file. Null, when the metadata is kept in memory.*/
+    protected File spoolFile;
+    /** The output stream to the spool file. Null, when not spooling or when closed.*/
+    protected OutputStream spoolOut;
+
+    /**
+     * Constructor.
+     * @param spoolDir The directory where the metadata is spooled, when it exceeds the threshold.
+     * @param threshold The maximum number of bytes kept in memory.
+     */
+    public MetadataBuffer(File spoolDir, int threshold) {
+        ArgumentCheck.checkExistsDirectory(spoolDir, "File spoolDir");
+        ArgumentCheck.checkPositiveInt(threshold, "int threshold");
+        this.spoolDir = spoolDir;
+        this.threshold = threshold;
+        this.buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, threshold)];
+        this.count = 0L;
+    }
+
+    /**
+     * Resets the buffer for new metadata. Any spool file is deleted.
+     * @param id The id of the new metadata.
+     */
+    public void reset(String id) {
+        closeSpoolFile();
+        if(spoolFile != null) {
+            FileUtils.deleteFile(spoolFile);
+            spoolFile = null;
+        }
+        this.count = 0L;
+        this.id = id;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(spoolFile == null && count + len > threshold) {
+            spool();
+        }
+        if(spoolFile != null) {
+            ArgumentCheck.checkTrue(spoolOut != null, "The metadata buffer must not be closed");
+            spoolOut.write(b, off, len);
+        } else {
+            ensureCapacity((int) count + len);
+            System.arraycopy(b, off, buffer, (int) count, len);
+        }
+        count += len;
+    }
+
+    /**
+     * Ensures the capacity of the memory buffer. It can at most grow to the threshold.
+     * @param capacity The required capacity.
+     */
+    protected void ensureCapacity(int capacity) {
+        if(capacity > buffer.length) {
+            int newSize = Math.min(Math.max(buffer.length * 2, capacity), threshold);
+            buffer = Arrays.copyOf(buffer, newSize);
+        }
+    }
+
+    /**
+     * Moves the content of the memory buffer to a new spool file, and continues writing to the spool file.
+     * @throws IOException If it fails to create or write the spool file.
+     */
+    protected void spool() throws IOException {
+        spoolFile = File.createTempFile("metadata-" + id + "-", SPOOL_FILE_SUFFIX, spoolDir);
+        spoolOut = new FileOutputStream(spoolFile);
+        spoolOut.write(buffer, 0, (int) count);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(spoolOut != null) {
+            spoolOut.flush();
+        }
+    }
+
+    /**
+     * Closes the output of the buffer. The content can still be read, until the buffer is reset.
+     */
+    @Override
+    public void close() {
+        closeSpoolFile();
+    }
+
+    /**
+     * Closes the output stream to the spool file, if it is open.
+     */
+    protected void closeSpoolFile() {
+        if(spoolOut != null) {
+            try {
+                spoolOut.close();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not close the spool file '" + spoolFile + "'", e);
+            }
+            spoolOut = null;
+        }
+    }
+
+    /**
+     * Retrieves a new input stream with the content of the buffer.
+     * @return The input stream with the content of the buffer.
+     * @throws IOException If it fails to read the spool file.
+     */
+    public InputStream getInputStream() throws IOException {
+        if(spoolFile != null) {
+            flush();
+            return new FileInputStream(spoolFile);
+        }
+        return new ByteArrayInputStream(buffer, 0, (int) count);
+    }
+
+    /** @return The id of the current metadata.*/
+    public String getId() {
+        return id;
+    }
+
+    /** @return The number of bytes of the current metadata.*/
+    public long size() {
+        return count;
+    }
+
+    /** @return Whether the current metadata has exceeded the threshold and been spooled to a file.*/
+    public boolean isSpooled() {
+        return spoolFile != null;
+    }
+}
@@ -0,0 +1,100 @@
+package dk.kb.ginnungagap.utils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+/**
+ * Input stream for a range of the bytes in a file.
+ * The file channel is positioned at the start of the range, thus the bytes before the range are never read,
+ * and the stream ends at the end of the range.
+ */
+public class RangeInputStream extends FilterInputStream {
+    /** The size of the buffer for reading the range.*/
+    protected static final int BUFFER_SIZE = 64*1024;
+
+    /** The number of bytes left in the range.*/
+    protected long remaining;
+
+    /**
+     * Constructor.
+     * @param in The stream, which must be positioned at the start of the range.
+     * @param length The length of the range.
+     */
+    protected RangeInputStream(InputStream in, long length) {
+        super(in);
+        this.remaining = length;
+    }
+
+    /**
+     * Opens a stream for a range of the bytes in a file.
+     * @param file The file.
+     * @param offset The offset of the range in the file.
+     * @param length The length of the range.
+     * @return The stream for the range.
+     * @throws IOException If it fails to open the file.
+     */
+    public static RangeInputStream open(File file, long offset, long length) throws IOException {
+        ArgumentCheck.checkExistsNormalFile(file, "File file");
+        ArgumentCheck.checkNotNegativeLong(offset, "long offset");
+        ArgumentCheck.checkNotNegativeLong(length, "long length");
+        if(offset + length > file.length()) {
+            throw new IllegalStateException("The range of " + length + " bytes from offset " + offset
+                    + " is beyond the end of the file '" + file + "' of " + file.length() + " bytes.");
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new RangeInputStream(new BufferedInputStream(in, BUFFER_SIZE), length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(remaining <= 0) {
+            return -1;
+        }
+        int res = in.read();
+        if(res != -1) {
+            remaining--;
+        }
+        return res;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(remaining <= 0) {
+            return -1;
+        }
+        int res = in.read(b, off, (int) Math.min(len, remaining));
+        if(res > 0) {
+            remaining -= res;
+        }
+        return res;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long res = in.skip(Math.min(n, remaining));
+        remaining -= res;
+        return res;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
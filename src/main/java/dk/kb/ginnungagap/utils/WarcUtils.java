@@ -1,19 +1,26 @@
 package dk.kb.ginnungagap.utils;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 import org.jwat.warc.WarcReader;
 import org.jwat.warc.WarcReaderFactory;
 import org.jwat.warc.WarcRecord;
 
+import dk.kb.ginnungagap.archive.Archive;
+import dk.kb.ginnungagap.archive.WarcRecordIndex;
+
 /**
  * Class for utility methods regarding WARC files.
  */
 public class WarcUtils {
+    /** The size of the buffer, when reading a record from its offset in the WARC file.*/
+    protected static final int RECORD_BUFFER_SIZE = 64*1024;
     
     /**
      * Extracts a record from a WARC file and delivers it to the output file.
@@ -24,7 +31,23 @@ public class WarcUtils {
      * if an error occurs while reading the WARC file or writing to the output file.
      */
     public static void extractRecord(File warcFile, String recordId, File outputFile) throws IOException {
-        try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(warcFile))) {
+        extractRecord(warcFile, null, recordId, outputFile);
+    }
+    
+    /**
+     * Extracts a record from a WARC file and delivers it to the output file.
+     * If the index of the WARC file contains the record, then the record is read directly from its offset,
+     * otherwise the WARC file is parsed from the beginning until the record is found.
+     * @param warcFile The WARC file with the record.
+     * @param index The index of the records in the WARC file. May be null.
+     * @param recordId The ID of the record to extract.
+     * @param outputFile The file where the record will be delivered.
+     * @throws IOException If the WARC files does not contain a record with the given id, or
+     * if an error occurs while reading the WARC file or writing to the output file.
+     */
+    public static void extractRecord(File warcFile, WarcRecordIndex index, String recordId, File outputFile) 
+            throws IOException {
+        try (WarcReader reader = getReader(warcFile, index, recordId)) {
             WarcRecord warcRecord = getWarcRecord(reader, recordId);
 
             try (OutputStream os = new FileOutputStream(outputFile)) {
@@ -36,6 +59,64 @@ public class WarcUtils {
 
     }
     
+    /**
+     * Extracts a record from a WARC file in the archive and delivers it to the output file.
+     * If the index of the WARC file contains the record, then only the bytes of the record are read from 
+     * the archive, otherwise the whole WARC file is retrieved from the archive and parsed until the record is found.
+     * @param archive The archive with the WARC file.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection with the WARC file.
+     * @param index The index of the records in the WARC file. May be null.
+     * @param recordId The ID of the record to extract.
+     * @param outputFile The file where the record will be delivered.
+     * @throws IOException If the WARC files does not contain a record with the given id, or
+     * if an error occurs while reading the WARC file or writing to the output file.
+     */
+    public static void extractRecord(Archive archive, String warcId, String collectionId, WarcRecordIndex index,
+            String recordId, File outputFile) throws IOException {
+        WarcRecordIndex.Entry entry = null;
+        if(index != null) {
+            entry = index.getEntry(recordId);
+        }
+        if(entry == null) {
+            extractRecord(archive.getFile(warcId, collectionId), recordId, outputFile);
+            return;
+        }
+        
+        try (InputStream in = archive.openRange(warcId, collectionId, entry.getOffset(), entry.getLength());
+                WarcReader reader = WarcReaderFactory.getReader(in)) {
+            WarcRecord warcRecord = getWarcRecord(reader, recordId);
+
+            try (OutputStream os = new FileOutputStream(outputFile)) {
+                StreamUtils.copyInputStreamToOutputStream(warcRecord.getPayloadContent(), os);
+            }
+        }
+    }
+    
+    /**
+     * Opens a reader for the WARC file, which starts at the offset of the record, if the index contains the record.
+     * Otherwise the reader starts at the beginning of the WARC file.
+     * The record must afterwards be found with {@link #getWarcRecord(WarcReader, String)}, which will find it 
+     * as the first record, when the reader starts at its offset.
+     * @param warcFile The WARC file.
+     * @param index The index of the records in the WARC file. May be null.
+     * @param recordId The id of the record.
+     * @return The reader for the WARC file.
+     * @throws IOException If it fails to open the WARC file.
+     */
+    public static WarcReader getReader(File warcFile, WarcRecordIndex index, String recordId) throws IOException {
+        WarcRecordIndex.Entry entry = null;
+        if(index != null) {
+            entry = index.getEntry(recordId);
+        }
+        FileInputStream in = new FileInputStream(warcFile);
+        if(entry != null && entry.getOffset() + entry.getLength() <= warcFile.length()) {
+            in.getChannel().position(entry.getOffset());
+            return WarcReaderFactory.getReader(new BufferedInputStream(in, RECORD_BUFFER_SIZE));
+        }
+        return WarcReaderFactory.getReader(in);
+    }
+    
     /**
      * Retrieves the WARC record from the WARC file.
      * Will throw an exception, if the record is not found.
@@ -34,7 +34,7 @@ public class ImportWorkflow extends Workflow {
         List<WorkflowStep> steps = new ArrayList<WorkflowStep>();
         for(String catalogName : conf.getCumulusConf().getCatalogs()) {
             steps.add(new ImportationStep(cumulusWrapper.getServer(), archive, catalogName, 
-                    conf.getWorkflowConf().getRetainDir()));
+                    conf.getWorkflowConf().getRetainDir(), conf.getBitmagConf().getIndexDir()));
         }
         return steps;
     }
@@ -48,6 +48,11 @@ public class ImportWorkflow extends Workflow {
     public Long getInterval() {
         return -1L;
     }
+    
+    @Override
+    public boolean isArchiveIntensive() {
+        return true;
+    }
 
     @Override
     public String getName() {
@@ -43,8 +43,11 @@ public class PreservationWorkflow extends Workflow {
     protected Collection<WorkflowStep> createSteps() {
         List<WorkflowStep> steps = new ArrayList<>();
         for(String catalogName : conf.getCumulusConf().getCatalogs()) {
-            steps.add(new PreservationStep(conf.getTransformationConf(), cumulusWrapper.getServer(), 
-                    transformationHandler, preserver, catalogName));
+            PreservationStep step = new PreservationStep(conf.getTransformationConf(), cumulusWrapper.getServer(), 
+                    transformationHandler, preserver, catalogName, conf.getWorkflowConf().getPreservationThreads(),
+                    conf.getBitmagConf().getAlgorithm());
+            step.setWatermark(getQueryWatermark("preservation-" + catalogName));
+            steps.add(step);
         }
         steps.add(new PreservationFinalizationStep(preserver));
         return steps;
@@ -64,4 +67,9 @@ public class PreservationWorkflow extends Workflow {
     public Long getInterval() {
         return conf.getWorkflowConf().getInterval();
     }
+    
+    @Override
+    public boolean isArchiveIntensive() {
+        return true;
+    }
 }
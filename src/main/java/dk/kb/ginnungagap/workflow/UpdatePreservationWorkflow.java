@@ -45,8 +45,10 @@ public class UpdatePreservationWorkflow extends Workflow {
     protected Collection<WorkflowStep> createSteps() {
         List<WorkflowStep> steps = new ArrayList<WorkflowStep>();
         for(String catalogName : conf.getCumulusConf().getCatalogs()) {
-            steps.add(new UpdatePreservationStep(conf.getTransformationConf(), cumulusWrapper.getServer(), 
-                    transformationHandler, preserver, catalogName));
+            UpdatePreservationStep step = new UpdatePreservationStep(conf.getTransformationConf(), 
+                    cumulusWrapper.getServer(), transformationHandler, preserver, catalogName);
+            step.setWatermark(getQueryWatermark("update-" + catalogName));
+            steps.add(step);
         }
         steps.add(new PreservationFinalizationStep(preserver));
         return steps;
@@ -43,8 +43,12 @@ public class ValidationWorkflow extends Workflow {
     protected Collection<WorkflowStep> createSteps() {
         List<WorkflowStep> steps = new ArrayList<WorkflowStep>();
         for(String catalogName : conf.getCumulusConf().getCatalogs()) {
-            steps.add(new SimpleValidationStep(server.getServer(), catalogName, archive));
-            steps.add(new FullValidationStep(server.getServer(), catalogName, archive, conf));
+            SimpleValidationStep simpleStep = new SimpleValidationStep(server.getServer(), catalogName, archive);
+            simpleStep.setWatermark(getQueryWatermark("simple-validation-" + catalogName));
+            steps.add(simpleStep);
+            FullValidationStep fullStep = new FullValidationStep(server.getServer(), catalogName, archive, conf);
+            fullStep.setWatermark(getQueryWatermark("full-validation-" + catalogName));
+            steps.add(fullStep);
         }
         return steps;
     }
@@ -58,6 +62,11 @@ public class ValidationWorkflow extends Workflow {
     public Long getInterval() {
         return -1L;
     }
+    
+    @Override
+    public boolean isArchiveIntensive() {
+        return true;
+    }
 
     @Override
     public String getName() {
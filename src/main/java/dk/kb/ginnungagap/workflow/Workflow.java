@@ -2,20 +2,29 @@ package dk.kb.ginnungagap.workflow;
 
 import dk.kb.ginnungagap.MailDispatcher;
 import dk.kb.ginnungagap.config.Configuration;
+import dk.kb.ginnungagap.cumulus.QueryWatermark;
 import dk.kb.ginnungagap.utils.CalendarUtils;
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
+import dk.kb.ginnungagap.workflow.schedule.WorkflowScheduler;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowState;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
 
 import javax.annotation.PostConstruct;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Abstract class for workflows.
@@ -30,13 +39,13 @@ public abstract class Workflow extends TimerTask {
     protected static final String WORKFLOW_MUST_BE_RUN_MANUALLY = "Must be run manual";
     
     /** The date for the next run of the workflow.*/
-    protected Date nextRun;
+    protected volatile Date nextRun;
     /** The current state of the workflow.*/
-    protected WorkflowState state = WorkflowState.NOT_RUNNING;
+    protected volatile WorkflowState state = WorkflowState.NOT_RUNNING;
     /** The status of this workflow.*/
     protected String status = "Has not run yet";
     /** The current step running.*/
-    protected WorkflowStep currentStep = null;
+    protected volatile WorkflowStep currentStep = null;
     /** The steps for the workflow.*/
     protected List<WorkflowStep> steps = new ArrayList<>();
     /** The time it took for the latest run. Set to -1 before any runs.*/
@@ -50,6 +59,10 @@ public abstract class Workflow extends TimerTask {
     /** The mail dispatcher.*/
     @Autowired
     protected MailDispatcher mailer;
+    /** The scheduler, which runs the workflow. Lazy, since the scheduler depends on the workflows.*/
+    @Autowired(required = false)
+    @Lazy
+    protected WorkflowScheduler scheduler;
 
     /**
      * Initialization
@@ -71,6 +84,17 @@ public abstract class Workflow extends TimerTask {
      */
     abstract Long getInterval();
     
+    /**
+     * Retrieves the watermark for the incremental Cumulus query of a step in this workflow.
+     * When no watermark directory is configured, then the watermark only uses full queries.
+     * @param name The name of the watermark, which must be unique for the step and its catalog.
+     * @return The watermark.
+     */
+    protected QueryWatermark getQueryWatermark(String name) {
+        return QueryWatermark.getWatermark(conf.getWorkflowConf().getWatermarkDir(), name, 
+                conf.getWorkflowConf().getFullSweepInterval());
+    }
+    
     /**
      * @return The name of the workflow
      */
@@ -81,9 +105,38 @@ public abstract class Workflow extends TimerTask {
      */
     abstract String getDescription();
     
+    /**
+     * Whether the workflow uses the archive intensively, e.g. by uploading or retrieving WARC files.
+     * The scheduler limits the number of archive intensive workflows, which run at the same time.
+     * @return Whether the workflow uses the archive intensively. Default false.
+     */
+    public boolean isArchiveIntensive() {
+        return false;
+    }
+    
+    /**
+     * @return Whether the workflow is waiting and the time for its next run has come.
+     */
+    public boolean isReadyToRun() {
+        Date next = nextRun;
+        return state == WorkflowState.WAITING && next != null && next.getTime() <= System.currentTimeMillis();
+    }
+    
+    /**
+     * @return The number of millis until the next run of the workflow, or null if the workflow is not waiting 
+     * for a next run.
+     */
+    public Long getDelayUntilNextRun() {
+        Date next = nextRun;
+        if(state != WorkflowState.WAITING || next == null) {
+            return null;
+        }
+        return Math.max(0L, next.getTime() - System.currentTimeMillis());
+    }
+    
     @Override
     public void run() {
-        if(state == WorkflowState.WAITING && nextRun.getTime() <= System.currentTimeMillis()) {
+        if(isReadyToRun()) {
             WorkflowReport report = new WorkflowReport(this);
             try {
                 lastRunTime = 0L;
@@ -104,15 +157,104 @@ public abstract class Workflow extends TimerTask {
     
     /**
      * The method for actually running the workflow.
-     * Goes through all steps, check if they have to be run, and runs them one after the other.
+     * Goes through all steps, check if they have to be run, and runs them.
+     * The consecutive steps for specific catalogs are run by {@link #runCatalogSteps(List, WorkflowReport)}, 
+     * and a step for all catalogs (e.g. a finalization step) is only run after the steps before it have finished.
      * @param report The report.
      */
     protected void runWorkflowSteps(WorkflowReport report) {
+        List<WorkflowStep> catalogSteps = new ArrayList<WorkflowStep>();
         for(WorkflowStep step : steps) {
+            if(step.getCatalogName() != null) {
+                catalogSteps.add(step);
+                continue;
+            }
+            runCatalogSteps(catalogSteps, report);
+            catalogSteps.clear();
+            runStep(step, report);
+        }
+        runCatalogSteps(catalogSteps, report);
+    }
+    
+    /**
+     * Runs the given step, if it has to be run, and adds its time to the time of this run.
+     * @param step The step.
+     * @param report The report.
+     */
+    protected void runStep(WorkflowStep step, WorkflowReport report) {
+        if(step.runForCatalog(catalogForNextRun)) {
+            performStep(step, report);
+        }
+        lastRunTime += step.getTimeForLastRun();
+    }
+    
+    /**
+     * Runs the steps for specific catalogs.
+     * When more than one catalog thread is configured, then the catalogs are handled at the same time, 
+     * though the steps for the same catalog are still run one after the other.
+     * In that case, the time of this run is increased by the time until all the steps have finished, instead of
+     * the sum of the times of the steps.
+     * @param catalogSteps The steps for specific catalogs, in the order of the workflow.
+     * @param report The report.
+     */
+    protected void runCatalogSteps(List<WorkflowStep> catalogSteps, WorkflowReport report) {
+        Map<String, List<WorkflowStep>> stepsForCatalogs = new LinkedHashMap<String, List<WorkflowStep>>();
+        for(WorkflowStep step : catalogSteps) {
             if(step.runForCatalog(catalogForNextRun)) {
-                performStep(step, report);
+                stepsForCatalogs.computeIfAbsent(step.getCatalogName(), 
+                        c -> new ArrayList<WorkflowStep>()).add(step);
+            }
+        }
+        int numberOfThreads = 1;
+        if(stepsForCatalogs.size() > 1) {
+            numberOfThreads = Math.min(stepsForCatalogs.size(), conf.getWorkflowConf().getCatalogThreads());
+        }
+        if(numberOfThreads <= 1) {
+            for(WorkflowStep step : catalogSteps) {
+                runStep(step, report);
+            }
+            return;
+        }
+        
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for(List<WorkflowStep> stepsForCatalog : stepsForCatalogs.values()) {
+                futures.add(executor.submit(() -> {
+                    for(WorkflowStep step : stepsForCatalog) {
+                        performStep(step, report);
+                    }
+                }));
+            }
+            waitForCatalogSteps(futures);
+        } finally {
+            executor.shutdownNow();
+            lastRunTime += System.currentTimeMillis() - start;
+        }
+    }
+    
+    /**
+     * Waits for all the steps of the catalogs to finish, even if some of them fail.
+     * @param futures The futures for the steps of each catalog.
+     */
+    protected void waitForCatalogSteps(List<Future<?>> futures) {
+        RuntimeException failure = null;
+        for(Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if(failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                            : new IllegalStateException("Failure while running the catalog steps", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while running the catalog steps", e);
             }
-            lastRunTime += step.getTimeForLastRun();
+        }
+        if(failure != null) {
+            throw failure;
         }
     }
     
@@ -137,19 +279,21 @@ public abstract class Workflow extends TimerTask {
     }
     
     /**
-     * Start the workflow by setting the nextRun time to 'now'.
-     * It will not actually start the workflow immediately, but it will trigger that the timertask is executed 
-     * the next time it is executed by the scheduler.
+     * Start the workflow by setting the nextRun time to 'now', and dispatching it directly to the scheduler.
+     * The workflow is run as soon as its executor and the archive admission allows it.
      * @param catalogForNextRun The name of the catalog for next run. Null for all catalogs.
      */
     public void startManually(String catalogForNextRun) {
-        this.nextRun = new Date(System.currentTimeMillis());
-        this.state = WorkflowState.WAITING;
         if(catalogForNextRun == null || catalogForNextRun.isEmpty()) {
             this.catalogForNextRun = null;
         } else {
             this.catalogForNextRun = catalogForNextRun;
         }
+        this.nextRun = new Date(System.currentTimeMillis());
+        this.state = WorkflowState.WAITING;
+        if(scheduler != null) {
+            scheduler.dispatch(this);
+        }
     }
     
     /**
@@ -1,30 +1,49 @@
 package dk.kb.ginnungagap.workflow.schedule;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import dk.kb.ginnungagap.config.Configuration;
+import dk.kb.ginnungagap.config.WorkflowConfiguration;
 import dk.kb.ginnungagap.workflow.ImportWorkflow;
 import dk.kb.ginnungagap.workflow.PreservationWorkflow;
 import dk.kb.ginnungagap.workflow.UpdatePreservationWorkflow;
 import dk.kb.ginnungagap.workflow.ValidationWorkflow;
+import dk.kb.ginnungagap.workflow.Workflow;
 
 /**
  * The workflow scheduler for scheduling the workflows.
  * 
- * Wraps a ScheduledExecutorService, which checks whether to run any of workflows once every second.
- * It is the workflows themselves, who checks their conditions and performs their tasks if the conditions are met.
+ * Each workflow has its own ScheduledExecutorService, thus a long running workflow does not delay the others.
+ * Instead of polling the workflows, the next check of a workflow is scheduled for the time of its next run, 
+ * and a workflow started manually is dispatched directly to its executor.
+ * It is still the workflows themselves, who checks their conditions and performs their tasks.
+ * 
+ * The workflows, which uses the archive intensively (preservation, validation and import), must acquire a 
+ * permit before running, thus only the configured number of them runs at the same time.
  */
 @Service
 public class WorkflowScheduler {
-    /** The interval for the timer, so it .*/
-    protected static final long TIMER_INTERVAL = 1000L;
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(WorkflowScheduler.class);
+    
+    /** The delay before the first check of the workflows.*/
+    protected static final long INITIAL_DELAY = 1000L;
     
     /** The preservation workflow.*/
     @Autowired
@@ -38,9 +57,16 @@ public class WorkflowScheduler {
     /** The import workflow.*/
     @Autowired
     ImportWorkflow importWorkflow;
+    /** The configuration.*/
+    @Autowired
+    Configuration conf;
     
-    /** The timer for running the TimerTasks.*/
-    ScheduledExecutorService executorService;
+    /** The executor for each workflow.*/
+    protected final Map<Workflow, ScheduledExecutorService> executors = new HashMap<>();
+    /** The pending check of each workflow.*/
+    protected final Map<Workflow, ScheduledFuture<?>> pendingChecks = new HashMap<>();
+    /** The permits for running the archive intensive workflows.*/
+    protected Semaphore archivePermits;
     
     /**
      * Method for shutting down this service.
@@ -52,23 +78,106 @@ public class WorkflowScheduler {
         validationWorkflow.cancel();
         importWorkflow.cancel();
         
-        executorService.shutdownNow();
+        synchronized(this) {
+            for(ScheduledExecutorService executor : executors.values()) {
+                executor.shutdownNow();
+            }
+            pendingChecks.clear();
+        }
     }
     
     /**
      * Scedules the workflows.
      */
     @PostConstruct
-    public void scheduleWorkflows() {
-        executorService = Executors.newSingleThreadScheduledExecutor();
+    public synchronized void scheduleWorkflows() {
+        int permits = WorkflowConfiguration.DEFAULT_ARCHIVE_WORKFLOWS;
+        if(conf != null) {
+            permits = conf.getWorkflowConf().getArchiveWorkflows();
+        }
+        archivePermits = new Semaphore(permits, true);
         
-        executorService.scheduleAtFixedRate(preservationWorkflow, TIMER_INTERVAL, 
-                TIMER_INTERVAL, TimeUnit.MILLISECONDS);
-        executorService.scheduleAtFixedRate(updateWorkflow, TIMER_INTERVAL, 
-                TIMER_INTERVAL, TimeUnit.MILLISECONDS);
-        executorService.scheduleAtFixedRate(validationWorkflow, TIMER_INTERVAL, 
-                TIMER_INTERVAL, TimeUnit.MILLISECONDS);
-        executorService.scheduleAtFixedRate(importWorkflow, TIMER_INTERVAL, 
-                TIMER_INTERVAL, TimeUnit.MILLISECONDS);
+        for(Workflow workflow : getWorkflows()) {
+            String threadName = "workflow-" + workflow.getClass().getSimpleName();
+            executors.put(workflow, Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, threadName)));
+            schedule(workflow, INITIAL_DELAY);
+        }
+    }
+    
+    /**
+     * Dispatches a workflow directly to its executor, e.g. when it has been started manually.
+     * @param workflow The workflow to dispatch.
+     */
+    public void dispatch(Workflow workflow) {
+        schedule(workflow, 0L);
+    }
+    
+    /**
+     * Schedules the next check of a workflow, and cancels its pending check.
+     * @param workflow The workflow.
+     * @param delay The delay in millis before the check.
+     */
+    protected synchronized void schedule(Workflow workflow, long delay) {
+        ScheduledExecutorService executor = executors.get(workflow);
+        if(executor == null || executor.isShutdown()) {
+            log.debug("Cannot schedule the workflow '" + workflow.getClass().getSimpleName() + "', since the "
+                    + "scheduler is not running.");
+            return;
+        }
+        ScheduledFuture<?> pendingCheck = pendingChecks.get(workflow);
+        if(pendingCheck != null) {
+            pendingCheck.cancel(false);
+        }
+        pendingChecks.put(workflow, executor.schedule(() -> checkWorkflow(workflow), delay, 
+                TimeUnit.MILLISECONDS));
+    }
+    
+    /**
+     * Runs the workflow, if it is ready to run, and schedules its next check afterwards.
+     * An archive intensive workflow waits for a permit before running.
+     * @param workflow The workflow to check.
+     */
+    protected void checkWorkflow(Workflow workflow) {
+        try {
+            if(workflow.isReadyToRun()) {
+                if(workflow.isArchiveIntensive()) {
+                    runWithArchivePermit(workflow);
+                } else {
+                    workflow.run();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.debug("Interrupted while waiting to run the workflow '" + workflow.getName() + "'.", e);
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            log.warn("Failure while running the workflow '" + workflow.getName() + "'.", e);
+        }
+        Long delay = workflow.getDelayUntilNextRun();
+        if(delay != null) {
+            schedule(workflow, delay);
+        }
+    }
+    
+    /**
+     * Runs an archive intensive workflow, when a permit is available.
+     * @param workflow The workflow to run.
+     * @throws InterruptedException If interrupted while waiting for a permit.
+     */
+    protected void runWithArchivePermit(Workflow workflow) throws InterruptedException {
+        if(!archivePermits.tryAcquire()) {
+            log.info("The workflow '" + workflow.getName() + "' waits for other archive intensive workflows.");
+            archivePermits.acquire();
+        }
+        try {
+            workflow.run();
+        } finally {
+            archivePermits.release();
+        }
+    }
+    
+    /** @return The workflows of this scheduler.*/
+    protected List<Workflow> getWorkflows() {
+        return Arrays.asList(preservationWorkflow, updateWorkflow, validationWorkflow, importWorkflow);
     }
 }
@@ -27,13 +27,13 @@ public abstract class WorkflowStep {
     protected static final String STATUS_FAILED = "Failed";
     
     /** The status of the workflow.*/
-    protected String status;
+    protected volatile String status;
     /** The results of the last run.*/
-    protected String resultsOfLastRun;
+    protected volatile String resultsOfLastRun;
     /** The time it has taken for the last run, in millis.*/
-    protected long timeForLastRun;
+    protected volatile long timeForLastRun;
     /** The start time for the current run (0 when not running)*/
-    protected long currentRunStart = 0L;
+    protected volatile long currentRunStart = 0L;
     /** The name of the catalog, which this steps runs for.*/
     protected final String catalog;
 
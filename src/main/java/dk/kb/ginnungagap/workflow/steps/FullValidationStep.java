@@ -2,9 +2,16 @@ package dk.kb.ginnungagap.workflow.steps;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.jwat.warc.WarcDigest;
@@ -16,15 +23,23 @@ import org.slf4j.LoggerFactory;
 
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.Archive;
+import dk.kb.ginnungagap.archive.WarcRecordIndex;
 import dk.kb.ginnungagap.config.Configuration;
 import dk.kb.ginnungagap.utils.ChecksumUtils;
-import dk.kb.ginnungagap.utils.FileUtils;
-import dk.kb.ginnungagap.utils.StreamUtils;
+import dk.kb.ginnungagap.utils.WarcUtils;
 
 /**
- * Workflow step for simple validation of a specific Cumulus catalog.
+ * Workflow step for full validation of a specific Cumulus catalog.
+ * 
+ * The Cumulus records are grouped by the WARC file with their resource, so each WARC file is only retrieved 
+ * from the archive once. The checksum of the whole WARC file is calculated while the WARC records 
+ * of the Cumulus records are validated in a single sequential scan of the WARC file.
+ * 
+ * When a single Cumulus record is validated, its WARC record is read directly from its offset in the WARC file, 
+ * when the WARC file has an index, otherwise the WARC file is parsed from the beginning until it is found.
  */
 public class FullValidationStep extends ValidationStep {
     /** The logger.*/
@@ -34,6 +49,10 @@ public class FullValidationStep extends ValidationStep {
     protected final Archive archive;
     /** The configuration.*/
     protected final Configuration conf;
+    /** The prefix of the WARC record ids for the records with an UUID.*/
+    protected static final String UUID_RECORD_ID_PREFIX = "urn:uuid:";
+    /** The size of the buffer, when reading the rest of a WARC file for its checksum.*/
+    protected static final int BUFFER_SIZE = 64*1024;
     
     /**
      * Constructor.
@@ -53,6 +72,207 @@ public class FullValidationStep extends ValidationStep {
         return "Full Validation Step for '" + catalogName + "'";
     }
 
+    @Override
+    public void performStep(WorkflowReport report) throws Exception {
+        CumulusRecordCollection items = findItems();
+        Map<String, List<CumulusRecord>> recordsPerWarcFile = new LinkedHashMap<String, List<CumulusRecord>>();
+        for(CumulusRecord record : items) {
+            String warcId = record.getFieldValueOrNull(Constants.FieldNames.RESOURCE_PACKAGE_ID);
+            if(warcId == null || warcId.isEmpty()) {
+                validateRecord(record, report);
+                continue;
+            }
+            if(!recordsPerWarcFile.containsKey(warcId)) {
+                recordsPerWarcFile.put(warcId, new ArrayList<CumulusRecord>());
+            }
+            recordsPerWarcFile.get(warcId).add(record);
+        }
+        
+        for(Map.Entry<String, List<CumulusRecord>> warcFileRecords : recordsPerWarcFile.entrySet()) {
+            validateWarcFile(warcFileRecords.getKey(), warcFileRecords.getValue(), report);
+        }
+        setResultOfRun("Validated " + items.getCount() + " records in " + recordsPerWarcFile.size() 
+                + " WARC files.");
+        watermark.commit();
+    }
+    
+    /**
+     * Validates all the Cumulus records with their resource in the same WARC file.
+     * The WARC file is retrieved once, and the checksum of the WARC file is calculated while the WARC records 
+     * of the Cumulus records are validated in a single sequential scan of the WARC file.
+     * @param warcId The id of the WARC file.
+     * @param records The Cumulus records with their resource in the WARC file.
+     * @param report The report for workflow.
+     */
+    protected void validateWarcFile(String warcId, List<CumulusRecord> records, WorkflowReport report) {
+        Map<String, CumulusRecord> pendingRecords = new LinkedHashMap<String, CumulusRecord>();
+        Map<CumulusRecord, Exception> validatedRecords = new HashMap<CumulusRecord, Exception>();
+        List<CumulusRecord> duplicateRecords = new ArrayList<CumulusRecord>();
+        String warcChecksum;
+        try {
+            String collectionId = records.get(0).getFieldValue(Constants.FieldNames.COLLECTION_ID);
+            for(CumulusRecord record : records) {
+                if(pendingRecords.containsKey(record.getUUID())) {
+                    duplicateRecords.add(record);
+                } else {
+                    pendingRecords.put(record.getUUID(), record);
+                }
+            }
+            File f = archive.getFile(warcId, collectionId);
+            warcChecksum = validateWarcRecords(f, pendingRecords, validatedRecords);
+        } catch (Exception e) {
+            log.warn("Error when trying to validate the WARC file '" + warcId + "'", e);
+            for(CumulusRecord record : records) {
+                String errMsg = "Error when trying to validate record '" + record + "'";
+                setInvalid(record, errMsg + " : " + e.getMessage(), report);
+            }
+            return;
+        }
+        
+        for(CumulusRecord record : pendingRecords.values()) {
+            reportRecord(record, warcChecksum, false, null, report);
+        }
+        for(Map.Entry<CumulusRecord, Exception> validated : validatedRecords.entrySet()) {
+            reportRecord(validated.getKey(), warcChecksum, true, validated.getValue(), report);
+        }
+        for(CumulusRecord record : duplicateRecords) {
+            validateRecord(record, report);
+        }
+    }
+    
+    /**
+     * Validates the WARC records of the pending Cumulus records in a single sequential scan of the WARC file,
+     * and calculates the checksum of the whole WARC file at the same time.
+     * The Cumulus records are moved from the pending records to the validated records, along with the failure
+     * of their validation, or null if their WARC record is valid.
+     * The scan stops, when all the pending records have been validated, though the rest of the WARC file is still
+     * read for the checksum.
+     * @param warcFile The WARC file.
+     * @param pendingRecords The Cumulus records, which have not been found in the WARC file, mapped by their UUID.
+     * @param validatedRecords The Cumulus records, which have been validated, mapped to their validation failure.
+     * @return The MD5 checksum of the WARC file.
+     * @throws IOException If it fails to read the WARC file.
+     */
+    protected String validateWarcRecords(File warcFile, Map<String, CumulusRecord> pendingRecords,
+            Map<CumulusRecord, Exception> validatedRecords) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(ChecksumUtils.MD5_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Cannot calculate the checksum of the WARC file.", e);
+        }
+        try (DigestInputStream in = new SkipDigestInputStream(new FileInputStream(warcFile), md);
+                WarcReader reader = WarcReaderFactory.getReader(in)) {
+            WarcRecord warcRecord;
+            while(!pendingRecords.isEmpty() && (warcRecord = reader.getNextRecord()) != null) {
+                String uuid = getPendingUUID(warcRecord, pendingRecords);
+                if(uuid == null) {
+                    continue;
+                }
+                CumulusRecord record = pendingRecords.remove(uuid);
+                try {
+                    validateSize(warcRecord, record);
+                    validateRecordChecksum(warcRecord, record);
+                    validatedRecords.put(record, null);
+                } catch (Exception e) {
+                    validatedRecords.put(record, e);
+                }
+            }
+            
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while(in.read(buffer) != -1) {
+                continue;
+            }
+        }
+        return ChecksumUtils.createWarcDigest(ChecksumUtils.MD5_ALGORITHM, md.digest()).digestString;
+    }
+    
+    /**
+     * Digest input stream, which also digests the skipped bytes.
+     * The WARC reader skips the payloads, which are not read, but the whole WARC file must be digested.
+     */
+    protected static class SkipDigestInputStream extends DigestInputStream {
+        /**
+         * Constructor.
+         * @param in The input stream to digest.
+         * @param digest The message digest.
+         */
+        public SkipDigestInputStream(InputStream in, MessageDigest digest) {
+            super(in, digest);
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            long skipped = 0L;
+            while(skipped < n) {
+                int bytesRead = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if(bytesRead == -1) {
+                    break;
+                }
+                skipped += bytesRead;
+            }
+            return skipped;
+        }
+    }
+    
+    /**
+     * Finds the UUID of the pending Cumulus record, which the WARC record belongs to.
+     * @param warcRecord The WARC record.
+     * @param pendingRecords The pending Cumulus records, mapped by their UUID.
+     * @return The UUID of the pending Cumulus record, or null if the WARC record does not belong to any of them.
+     */
+    protected String getPendingUUID(WarcRecord warcRecord, Map<String, CumulusRecord> pendingRecords) {
+        String recordId = warcRecord.header.warcRecordIdStr;
+        if(recordId == null) {
+            return null;
+        }
+        if(recordId.startsWith("<") && recordId.endsWith(">")) {
+            recordId = recordId.substring(1, recordId.length() - 1);
+        }
+        if(recordId.startsWith(UUID_RECORD_ID_PREFIX)) {
+            String uuid = recordId.substring(UUID_RECORD_ID_PREFIX.length());
+            return pendingRecords.containsKey(uuid) ? uuid : null;
+        }
+        for(String uuid : pendingRecords.keySet()) {
+            if(recordId.contains(uuid)) {
+                return uuid;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Reports the result of the validation of a Cumulus record in a WARC file.
+     * @param record The Cumulus record.
+     * @param warcChecksum The checksum of the WARC file.
+     * @param found Whether the WARC record of the Cumulus record was found in the WARC file.
+     * @param failure The failure of the validation of the WARC record, or null if it was valid.
+     * @param report The report for workflow.
+     */
+    protected void reportRecord(CumulusRecord record, String warcChecksum, boolean found, Exception failure, 
+            WorkflowReport report) {
+        try {
+            validateWarcFileChecksum(record, warcChecksum);
+            if(!found) {
+                throw new IllegalStateException("Could not find the record '" + record.getUUID() 
+                        + "' in the WARC file.");
+            }
+            if(failure != null) {
+                throw failure;
+            }
+            setValid(record, report);
+        } catch (IllegalStateException e) {
+            String errMsg = "The record '" + record + "' is invalid: " + e.getMessage();
+            log.info(errMsg, e);
+            setInvalid(record, errMsg, report);
+        } catch (Exception e) {
+            String errMsg = "Error when trying to validate record '" + record + "'";
+            log.warn(errMsg, e);
+            setInvalid(record, errMsg + " : " + e.getMessage(), report);
+        }
+    }
+    
     @Override
     protected void validateRecord(CumulusRecord record, WorkflowReport report) {
         try {
@@ -62,7 +282,8 @@ public class FullValidationStep extends ValidationStep {
             File f = archive.getFile(warcId, collectionId);
             validateWarcFileChecksum(record, f);
             
-            try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(f))) {
+            WarcRecordIndex index = WarcRecordIndex.getIndex(conf.getBitmagConf().getIndexDir(), warcId);
+            try (WarcReader reader = WarcUtils.getReader(f, index, uuid)) {
                 WarcRecord warcRecord = getWarcRecord(reader, uuid);
 
                 validateSize(warcRecord, record);
@@ -103,7 +324,15 @@ public class FullValidationStep extends ValidationStep {
      */
     protected void validateWarcFileChecksum(CumulusRecord cumulusRecord, File warcFile) {
         WarcDigest digest = ChecksumUtils.calculateChecksum(warcFile, ChecksumUtils.MD5_ALGORITHM);
-        String warcChecksum = digest.digestString;
+        validateWarcFileChecksum(cumulusRecord, digest.digestString);
+    }
+    
+    /**
+     * Validate the checksum of the WARC file against the checksum in the Cumulus record.
+     * @param cumulusRecord The Cumulus record with the expected checksum for the WARC file.
+     * @param warcChecksum The calculated checksum of the WARC file.
+     */
+    protected void validateWarcFileChecksum(CumulusRecord cumulusRecord, String warcChecksum) {
         String cumulusWarcChecksum = cumulusRecord.getFieldValue(Constants.FieldNames.ARCHIVE_MD5);
         if(!warcChecksum.equals(cumulusWarcChecksum)) {
             throw new IllegalStateException("The WARC file checksum for the Cumulus record '" + cumulusRecord 
@@ -128,22 +357,14 @@ public class FullValidationStep extends ValidationStep {
     
     /**
      * Validates the checksum for the WARC record.
+     * The payload is digested while it is streamed from the WARC file, without any intermediate file.
      * @param warcRecord The WARC record to have its checksum calculated.
      * @param cumulusRecord The Cumulus record.
      * @throws IOException If an issue occurs when calculating the checksum of the WARC record.
      */
     protected void validateRecordChecksum(WarcRecord warcRecord, CumulusRecord cumulusRecord) throws IOException {
-        File tmpFile = new File(conf.getBitmagConf().getTempDir(), cumulusRecord.getUUID());
-        
-        WarcDigest digest;
-        try (OutputStream os = new FileOutputStream(tmpFile)) {
-            StreamUtils.copyInputStreamToOutputStream(warcRecord.getPayloadContent(), os);
-            os.flush();
-            os.close();
-            digest = ChecksumUtils.calculateChecksum(tmpFile, ChecksumUtils.MD5_ALGORITHM);
-        } finally {
-            FileUtils.deleteFile(tmpFile);
-        }
+        WarcDigest digest = ChecksumUtils.calculateChecksum(warcRecord.getPayloadContent(), 
+                ChecksumUtils.MD5_ALGORITHM);
         
         String warcRecordChecksum = digest.digestString; //warcRecord.computedPayloadDigest.digestString;
         String cumulusRecordChecksum = cumulusRecord.getFieldValue(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER);
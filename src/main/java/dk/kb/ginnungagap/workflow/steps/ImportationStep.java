@@ -13,6 +13,7 @@ import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.Archive;
+import dk.kb.ginnungagap.archive.WarcRecordIndex;
 import dk.kb.ginnungagap.cumulus.CumulusQueryUtils;
 import dk.kb.ginnungagap.utils.FileUtils;
 import dk.kb.ginnungagap.utils.WarcUtils;
@@ -34,6 +35,8 @@ public class ImportationStep extends WorkflowStep {
     protected final String catalogName;
     /** The retain directory, where existing files will be placed, so they are not overridden.*/
     protected final File retainDir;
+    /** The directory with the indexes of the records in the WARC files. May be null.*/
+    protected final File indexDir;
     
     /**
      * Constructor.
@@ -43,11 +46,26 @@ public class ImportationStep extends WorkflowStep {
      * @param retainDir The directory to place existing files, so they will not be overridden.
      */
     public ImportationStep(CumulusServer server, Archive archive, String catalogName, File retainDir) {
+        this(server, archive, catalogName, retainDir, null);
+    }
+    
+    /**
+     * Constructor.
+     * @param server The Cumulus server.
+     * @param archive The bitrepository archive.
+     * @param catalogName The name of the catalog to validate.
+     * @param retainDir The directory to place existing files, so they will not be overridden.
+     * @param indexDir The directory with the indexes of the records in the WARC files. 
+     * The indexed records are read directly from the archive, without the rest of their WARC file. May be null.
+     */
+    public ImportationStep(CumulusServer server, Archive archive, String catalogName, File retainDir, 
+            File indexDir) {
         super(catalogName);
         this.server = server;
         this.archive = archive;
         this.catalogName = catalogName;
         this.retainDir = retainDir;
+        this.indexDir = indexDir;
     }
     
     @Override
@@ -75,10 +93,10 @@ public class ImportationStep extends WorkflowStep {
             String warcId = record.getFieldValue(Constants.FieldNames.RESOURCE_PACKAGE_ID);
             String collectionId = record.getFieldValue(Constants.FieldNames.COLLECTION_ID);
             String uuid = record.getUUID();
-            File f = archive.getFile(warcId, collectionId);
             
             File file = new File(retainDir, uuid);
-            WarcUtils.extractRecord(f, uuid, file);
+            WarcRecordIndex index = WarcRecordIndex.getIndex(indexDir, warcId);
+            WarcUtils.extractRecord(archive, warcId, collectionId, index, uuid, file);
             importFile(record, file);
             
             setValid(record, report);
@@ -0,0 +1,158 @@
+package dk.kb.ginnungagap.workflow.steps;
+
+import java.io.File;
+
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.ginnungagap.utils.FileDigests;
+import dk.kb.ginnungagap.utils.MetadataBuffer;
+
+/**
+ * Container for a Cumulus record, which has been prepared for preservation.
+ * It contains the transformed and validated metadata files, which are ready to be packaged,
+ * or the failure which occurred during the preparation.
+ *
+ * The representation files are only present for master assets.
+ * When the metadata is buffered, then the metadata is kept in the metadata buffers instead of the files.
+ */
+public class PreparedRecord {
+    /** The Cumulus record.*/
+    protected final CumulusRecord record;
+    /** The file with the transformed METS metadata for the record.*/
+    protected File metadataFile;
+    /** The file with the transformed intellectual entity metadata for the record.*/
+    protected File intellectualEntityFile;
+    /** The file with the transformed representation metadata. Null if the record is not a master asset.*/
+    protected File representationFile;
+    /** The file with the transformed representation intellectual entity. Null if not a master asset.*/
+    protected File representationIntellectualEntityFile;
+    /** The buffer with the transformed METS metadata for the record. Null if the metadata is not buffered.*/
+    protected MetadataBuffer metadataBuffer;
+    /** The buffer with the transformed intellectual entity metadata. Null if the metadata is not buffered.*/
+    protected MetadataBuffer intellectualEntityBuffer;
+    /** The buffer with the transformed representation metadata. Null if not buffered or not a master asset.*/
+    protected MetadataBuffer representationBuffer;
+    /** The buffer with the transformed representation intellectual entity. Null if not buffered or not a master 
+     * asset.*/
+    protected MetadataBuffer representationIntellectualEntityBuffer;
+    /** The digests of the asset file for the packaging. Null if they were not calculated during the preparation.*/
+    protected FileDigests fileDigests;
+    /** The failure which occurred during the preparation of the record. Null if no failure occurred.*/
+    protected Exception failure;
+
+    /**
+     * Constructor.
+     * @param record The Cumulus record to prepare for preservation.
+     */
+    public PreparedRecord(CumulusRecord record) {
+        this.record = record;
+    }
+
+    /** @return The Cumulus record.*/
+    public CumulusRecord getRecord() {
+        return record;
+    }
+
+    /** @return The file with the transformed METS metadata for the record.*/
+    public File getMetadataFile() {
+        return metadataFile;
+    }
+
+    /** @param metadataFile The file with the transformed METS metadata for the record.*/
+    public void setMetadataFile(File metadataFile) {
+        this.metadataFile = metadataFile;
+    }
+
+    /** @return The file with the transformed intellectual entity metadata for the record.*/
+    public File getIntellectualEntityFile() {
+        return intellectualEntityFile;
+    }
+
+    /** @param intellectualEntityFile The file with the transformed intellectual entity metadata for the record.*/
+    public void setIntellectualEntityFile(File intellectualEntityFile) {
+        this.intellectualEntityFile = intellectualEntityFile;
+    }
+
+    /** @return The file with the transformed representation metadata. Null if the record is not a master asset.*/
+    public File getRepresentationFile() {
+        return representationFile;
+    }
+
+    /** @param representationFile The file with the transformed representation metadata.*/
+    public void setRepresentationFile(File representationFile) {
+        this.representationFile = representationFile;
+    }
+
+    /** @return The file with the transformed representation intellectual entity. Null if not a master asset.*/
+    public File getRepresentationIntellectualEntityFile() {
+        return representationIntellectualEntityFile;
+    }
+
+    /** @param representationIntellectualEntityFile The file with the transformed representation intellectual
+     * entity.*/
+    public void setRepresentationIntellectualEntityFile(File representationIntellectualEntityFile) {
+        this.representationIntellectualEntityFile = representationIntellectualEntityFile;
+    }
+
+    /** @return The buffer with the transformed METS metadata for the record. Null if not buffered.*/
+    public MetadataBuffer getMetadataBuffer() {
+        return metadataBuffer;
+    }
+
+    /** @param metadataBuffer The buffer with the transformed METS metadata for the record.*/
+    public void setMetadataBuffer(MetadataBuffer metadataBuffer) {
+        this.metadataBuffer = metadataBuffer;
+    }
+
+    /** @return The buffer with the transformed intellectual entity metadata. Null if not buffered.*/
+    public MetadataBuffer getIntellectualEntityBuffer() {
+        return intellectualEntityBuffer;
+    }
+
+    /** @param intellectualEntityBuffer The buffer with the transformed intellectual entity metadata.*/
+    public void setIntellectualEntityBuffer(MetadataBuffer intellectualEntityBuffer) {
+        this.intellectualEntityBuffer = intellectualEntityBuffer;
+    }
+
+    /** @return The buffer with the transformed representation metadata. Null if not buffered or not a master 
+     * asset.*/
+    public MetadataBuffer getRepresentationBuffer() {
+        return representationBuffer;
+    }
+
+    /** @param representationBuffer The buffer with the transformed representation metadata.*/
+    public void setRepresentationBuffer(MetadataBuffer representationBuffer) {
+        this.representationBuffer = representationBuffer;
+    }
+
+    /** @return The buffer with the transformed representation intellectual entity. Null if not buffered or not 
+     * a master asset.*/
+    public MetadataBuffer getRepresentationIntellectualEntityBuffer() {
+        return representationIntellectualEntityBuffer;
+    }
+
+    /** @param representationIntellectualEntityBuffer The buffer with the transformed representation intellectual
+     * entity.*/
+    public void setRepresentationIntellectualEntityBuffer(MetadataBuffer representationIntellectualEntityBuffer) {
+        this.representationIntellectualEntityBuffer = representationIntellectualEntityBuffer;
+    }
+
+    /** @return The digests of the asset file. Null if they were not calculated during the preparation.*/
+    public FileDigests getFileDigests() {
+        return fileDigests;
+    }
+
+    /** @param fileDigests The digests of the asset file for the packaging.*/
+    public void setFileDigests(FileDigests fileDigests) {
+        this.fileDigests = fileDigests;
+    }
+
+    /** @return The failure which occurred during the preparation of the record. Null if no failure occurred.*/
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /** @param failure The failure which occurred during the preparation of the record.*/
+    public void setFailure(Exception failure) {
+        this.failure = failure;
+    }
+}
@@ -5,17 +5,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.ginnungagap.archive.BitmagPreserver;
+import dk.kb.ginnungagap.archive.CumulusWriteBack;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
 
 /**
  * The step for finalizing the preservation workflow.
- * Uploads all the WARC files, which has been created during the other steps of the preservation workflow. 
+ * Uploads all the WARC files, which has been created during the other steps of the preservation workflow,
+ * and waits until all the WARC files, which are uploaded in the background, have been uploaded, and until the
+ * results have been written back to Cumulus.
+ * The result of the step contains the number of records written back to Cumulus since the previous run of
+ * the step, and the number of records which could not be written back.
  */
 public class PreservationFinalizationStep extends WorkflowStep {
     /** The logger.*/
     private static final Logger log = LoggerFactory.getLogger(PreservationFinalizationStep.class);
     /** The Bitmag preservation component.*/
     protected final BitmagPreserver preserver;
+    /** The number of records written back to Cumulus, when this step was last run.*/
+    protected long previousUpdatedRecords = 0L;
+    /** The number of records, which could not be written back to Cumulus, when this step was last run.*/
+    protected long previousFailedRecords = 0L;
     
     /**
      * Constructor.
@@ -35,11 +44,49 @@ public class PreservationFinalizationStep extends WorkflowStep {
     public void performStep(WorkflowReport report) throws Exception {
         try {
             preserver.uploadAll();
-            setResultOfRun("Uploaded all WARC files");
+            preserver.waitForUploads();
+            setWriteBackProgress();
+            preserver.waitForWriteBacks();
+            setResultOfRun("Uploaded all WARC files" + getWriteBackResult());
         } catch (Throwable e) {
             report.addWorkflowFailure(e.getMessage());
             log.error("Failed to update the packaged files.", e);
             throw new IllegalStateException("Failed to finalize the preservation.", e);
         }
     }
+    
+    /**
+     * Sets the progress of the write-back to Cumulus as the current result of the step.
+     */
+    protected void setWriteBackProgress() {
+        CumulusWriteBack writeBack = preserver.getWriteBack();
+        if(writeBack != null) {
+            setResultOfRun("Running! Writing back to Cumulus: " + (writeBack.getUpdatedRecords() 
+                    + writeBack.getFailedRecords()) + " of " + writeBack.getSubmittedRecords() 
+                    + " records written back, with " + writeBack.getFailedRecords() + " failures.");
+        }
+    }
+    
+    /**
+     * Retrieves the result of the write-back to Cumulus since the previous run of this step.
+     * @return The result of the write-back, or the empty string if nothing has been written back.
+     */
+    protected String getWriteBackResult() {
+        CumulusWriteBack writeBack = preserver.getWriteBack();
+        if(writeBack == null) {
+            return "";
+        }
+        long updated = writeBack.getUpdatedRecords() - previousUpdatedRecords;
+        long failed = writeBack.getFailedRecords() - previousFailedRecords;
+        previousUpdatedRecords += updated;
+        previousFailedRecords += failed;
+        if(updated == 0L && failed == 0L) {
+            return "";
+        }
+        String res = ", and wrote back the results of " + updated + " records to Cumulus";
+        if(failed > 0L) {
+            res += ", with " + failed + " failures";
+        }
+        return res;
+    }
 }
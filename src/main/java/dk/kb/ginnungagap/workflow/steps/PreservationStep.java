@@ -6,8 +6,19 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import dk.kb.metadata.utils.GuidExtractionUtils;
@@ -15,20 +26,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.cumulus.Constants;
-import dk.kb.cumulus.CumulusQuery;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.BitmagPreserver;
 import dk.kb.ginnungagap.config.TransformationConfiguration;
+import dk.kb.ginnungagap.config.WorkflowConfiguration;
+import dk.kb.ginnungagap.cumulus.CachedCumulusRecord;
 import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
 import dk.kb.ginnungagap.cumulus.CumulusQueryUtils;
+import dk.kb.ginnungagap.cumulus.QueryWatermark;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
 import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
 import dk.kb.ginnungagap.transformation.MetadataTransformer;
+import dk.kb.ginnungagap.utils.MetadataBuffer;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
 
 /**
  * The preservation step.
+ * 
+ * If the metadata buffer size is set in the transformation configuration, then the raw and the transformed 
+ * metadata are kept in reusable memory buffers, and packaged directly from the buffers, instead of being written 
+ * to and read from files in the metadata temp dir. Only metadata larger than the buffer size is spooled to disk.
+ * 
+ * The field values of each record are cached during the preservation of the record, thus each field is only
+ * read once through the Cumulus SDK, however many times it is used. The field writes of the record are 
+ * buffered, and flushed to Cumulus together when the record has been packaged or has failed.
  */
 public class PreservationStep extends WorkflowStep {
     /** The logger.*/
@@ -36,6 +59,8 @@ public class PreservationStep extends WorkflowStep {
 
     /** The suffix of the raw-files.*/
     protected static final String RAW_FILE_SUFFIX = "_raw.xml";
+    /** The number of records per preservation thread, which may be prepared ahead of the packaging.*/
+    protected static final int PENDING_RECORDS_PER_THREAD = 2;
     
     /** Transformation configuration for the metadata.*/
     protected final TransformationConfiguration conf;
@@ -47,9 +72,26 @@ public class PreservationStep extends WorkflowStep {
     protected final BitmagPreserver preserver;
     /** The name of the catalog to preserve.*/
     protected final String catalogName;
+    /** The number of threads for preparing the records for preservation.*/
+    protected final int numberOfThreads;
+    /** The algorithm for the packaging digest of the asset files, which is calculated during the preparation. 
+     * If null, then the asset files are digested when they are packaged.*/
+    protected final String packagingAlgorithm;
+    /** The watermark for the query of the step. Only full queries are used by default.*/
+    protected QueryWatermark watermark = new QueryWatermark(null, 0L);
+    /** The number of field reads of the preserved records, which were delegated to the Cumulus SDK.*/
+    protected long fieldSdkReads = 0L;
+    /** The number of field reads of the preserved records, which were served by the field cache of the record.*/
+    protected long fieldCachedReads = 0L;
+    /** The number of field writes of the preserved records, which were delegated to the Cumulus SDK.*/
+    protected long fieldSdkWrites = 0L;
+    /** The number of field writes of the preserved records, which were coalesced with a later write.*/
+    protected long fieldCoalescedWrites = 0L;
+    /** The metadata buffers, which are not currently in use, and can be reused for other metadata.*/
+    protected final Queue<MetadataBuffer> metadataBuffers = new ConcurrentLinkedQueue<MetadataBuffer>();
 
     /**
-     * Constructor.
+     * Constructor for sequential preservation of the records.
      * @param transConf The configuration for the transformation
      * @param server The Cumulus server where the Cumulus records are extracted.
      * @param transformationHandler The metadata transformer handler.
@@ -58,12 +100,49 @@ public class PreservationStep extends WorkflowStep {
      */
     public PreservationStep(TransformationConfiguration transConf, CumulusServer server,
             MetadataTransformationHandler transformationHandler, BitmagPreserver preserver, String catalogName) {
+        this(transConf, server, transformationHandler, preserver, catalogName, 
+                WorkflowConfiguration.DEFAULT_PRESERVATION_THREADS);
+    }
+
+    /**
+     * Constructor.
+     * @param transConf The configuration for the transformation
+     * @param server The Cumulus server where the Cumulus records are extracted.
+     * @param transformationHandler The metadata transformer handler.
+     * @param preserver the bitrepository preserver, for packaging and preserving the records.
+     * @param catalogName The name of the catalog for this step.
+     * @param numberOfThreads The number of threads for preparing the records for preservation.
+     */
+    public PreservationStep(TransformationConfiguration transConf, CumulusServer server,
+            MetadataTransformationHandler transformationHandler, BitmagPreserver preserver, String catalogName, 
+            int numberOfThreads) {
+        this(transConf, server, transformationHandler, preserver, catalogName, numberOfThreads, null);
+    }
+
+    /**
+     * Constructor.
+     * @param transConf The configuration for the transformation
+     * @param server The Cumulus server where the Cumulus records are extracted.
+     * @param transformationHandler The metadata transformer handler.
+     * @param preserver the bitrepository preserver, for packaging and preserving the records.
+     * @param catalogName The name of the catalog for this step.
+     * @param numberOfThreads The number of threads for preparing the records for preservation.
+     * @param packagingAlgorithm The algorithm for the packaging digest of the asset files. When given, the asset
+     * file is only read once during the preparation, for both its MD5 checksum and its packaging digest, 
+     * and once more when it is packaged. May be null.
+     */
+    public PreservationStep(TransformationConfiguration transConf, CumulusServer server,
+            MetadataTransformationHandler transformationHandler, BitmagPreserver preserver, String catalogName, 
+            int numberOfThreads, String packagingAlgorithm) {
         super(catalogName);
+        ArgumentCheck.checkPositiveInt(numberOfThreads, "int numberOfThreads");
         this.conf = transConf;
         this.server = server;
         this.transformationHandler = transformationHandler;
         this.preserver = preserver;
         this.catalogName = catalogName;
+        this.numberOfThreads = numberOfThreads;
+        this.packagingAlgorithm = packagingAlgorithm;
     }
 
     @Override
@@ -71,16 +150,35 @@ public class PreservationStep extends WorkflowStep {
         return "Preservation Step for catalog '" + catalogName + "'";
     }
 
+    /**
+     * Sets the watermark, so the query only finds the records modified since the last successful run.
+     * @param watermark The watermark for the query of the step.
+     */
+    public void setWatermark(QueryWatermark watermark) {
+        ArgumentCheck.checkNotNull(watermark, "QueryWatermark watermark");
+        this.watermark = watermark;
+    }
+    
+    /** @return The watermark for the query of the step.*/
+    public QueryWatermark getWatermark() {
+        return watermark;
+    }
+
     @Override
     protected void performStep(WorkflowReport report) throws Exception {
-        CumulusQuery query = CumulusQueryUtils.getPreservationAllQuery(catalogName);
-        CumulusRecordCollection items = server.getItems(catalogName, query);
+        preserver.recoverWarcFiles();
+        CumulusRecordCollection items = watermark.findItems(server, catalogName, 
+                modifiedSince -> CumulusQueryUtils.getPreservationAllQuery(catalogName, modifiedSince));
         log.info("Catalog '" + catalogName + "' had " + items.getCount() + " records to be preserved.");
         preserveRecordItems(items, catalogName, report);
+        watermark.commit();
     }
 
     /**
      * Preserves all the record items of the given collection. 
+     * The records are prepared (checksum, transformation and validation of the metadata) by the pool of 
+     * preservation threads, whereas the packaging is performed by the current thread in the same order 
+     * as the records are delivered by the collection.
      * @param items The collection of record items to preserve.
      * @param report The report for workflow.
      */
@@ -93,24 +191,53 @@ public class PreservationStep extends WorkflowStep {
         int i = 0;
         int failures = 0;
         String failure = "";
-        for(CumulusRecord record : items) {
-            try {
-                setResultOfRun("Running! Preservation of #" + i + ", " + record.getUUID());
-                log.debug("Initiating preservation on record '" + record.getUUID() + "'");
-                sendRecordToPreservation(record);
-                report.addSuccessRecord(CumulusPreservationUtils.getRecordName(record), catalogName);
-            } catch (Exception e) {
-                report.addFailedRecord(CumulusPreservationUtils.getRecordName(record), e.getMessage(), catalogName);
-                log.error("Runtime exception caught while trying to handle Cumulus record '"
-                        + record.getUUID() + "'. Something must be seriously wrong with that item!!!\n"
-                        + "Trying to handle next item.", e);
-                failures++;
-                if(failure.isEmpty()) {
-                    failure = e.getMessage();
+        long sdkReadsBefore = getFieldSdkReads();
+        long cachedReadsBefore = getFieldCachedReads();
+        long sdkWritesBefore = getFieldSdkWrites();
+        long coalescedWritesBefore = getFieldCoalescedWrites();
+        ExecutorService executor = null;
+        int maxPendingRecords = 1;
+        if(numberOfThreads > 1) {
+            executor = Executors.newFixedThreadPool(numberOfThreads);
+            maxPendingRecords = numberOfThreads * PENDING_RECORDS_PER_THREAD;
+        }
+        Deque<Future<PreparedRecord>> pendingRecords = new ArrayDeque<Future<PreparedRecord>>();
+        try {
+            Iterator<CumulusRecord> iterator = items.iterator();
+            while(iterator.hasNext() || !pendingRecords.isEmpty()) {
+                while(iterator.hasNext() && pendingRecords.size() < maxPendingRecords) {
+                    pendingRecords.add(startPreparation(CachedCumulusRecord.wrap(iterator.next()), executor));
+                }
+                PreparedRecord prepared = getPreparedRecord(pendingRecords.peek());
+                pendingRecords.poll();
+                CumulusRecord record = prepared.getRecord();
+                try {
+                    setResultOfRun("Running! Preservation of #" + i + ", " + record.getUUID());
+                    log.debug("Initiating preservation on record '" + record.getUUID() + "'");
+                    sendPreparedRecordToPreservation(prepared);
+                    report.addSuccessRecord(CumulusPreservationUtils.getRecordName(record), catalogName);
+                } catch (Exception e) {
+                    report.addFailedRecord(CumulusPreservationUtils.getRecordName(record), e.getMessage(), 
+                            catalogName);
+                    log.error("Runtime exception caught while trying to handle Cumulus record '"
+                            + record.getUUID() + "'. Something must be seriously wrong with that item!!!\n"
+                            + "Trying to handle next item.", e);
+                    failures++;
+                    if(failure.isEmpty()) {
+                        failure = e.getMessage();
+                    }
                 }
+                registerFieldCache(record);
+                i++;
             }
-            i++;
+        } finally {
+            releasePendingRecords(pendingRecords, executor);
         }
+        log.info("Preserved " + i + " records from catalog '" + catalogName + "', with " 
+                + (getFieldCachedReads() - cachedReadsBefore) + " field reads served by the field cache and " 
+                + (getFieldSdkReads() - sdkReadsBefore) + " field reads through the Cumulus SDK, and with " 
+                + (getFieldSdkWrites() - sdkWritesBefore) + " field writes through the Cumulus SDK and " 
+                + (getFieldCoalescedWrites() - coalescedWritesBefore) + " coalesced field writes.");
         String results = "Preservation of " + i + " records";
         if(failures > 0) {
             results += ", with " + failures + " failures.";
@@ -118,39 +245,399 @@ public class PreservationStep extends WorkflowStep {
         }
         setResultOfRun(results);
     }
+    
+    /**
+     * Registers the field reads of a record, which has been handled, in the field cache statistics of the step.
+     * @param record The Cumulus record, which has been handled.
+     */
+    protected synchronized void registerFieldCache(CumulusRecord record) {
+        if(record instanceof CachedCumulusRecord) {
+            CachedCumulusRecord cachedRecord = (CachedCumulusRecord) record;
+            fieldSdkReads += cachedRecord.getSdkReads();
+            fieldCachedReads += cachedRecord.getCachedReads();
+            fieldSdkWrites += cachedRecord.getSdkWrites();
+            fieldCoalescedWrites += cachedRecord.getCoalescedWrites();
+        }
+    }
+    
+    /** @return The number of field reads of the preserved records, which were delegated to the Cumulus SDK.*/
+    public synchronized long getFieldSdkReads() {
+        return fieldSdkReads;
+    }
+    
+    /** @return The number of field reads of the preserved records, which were served by the field cache, thus 
+     * the number of avoided calls to the Cumulus SDK.*/
+    public synchronized long getFieldCachedReads() {
+        return fieldCachedReads;
+    }
+    
+    /** @return The number of field writes of the preserved records, which were delegated to the Cumulus SDK.*/
+    public synchronized long getFieldSdkWrites() {
+        return fieldSdkWrites;
+    }
+    
+    /** @return The number of field writes of the preserved records, which were coalesced with a later write of
+     * the same field, thus the number of avoided calls to the Cumulus SDK.*/
+    public synchronized long getFieldCoalescedWrites() {
+        return fieldCoalescedWrites;
+    }
+    
+    /**
+     * Starts the preparation of a record for preservation.
+     * If no executor is given, then the record is prepared by the current thread before returning.
+     * @param record The Cumulus record to prepare.
+     * @param executor The executor for the preparation. May be null.
+     * @return The future for the prepared record.
+     */
+    protected Future<PreparedRecord> startPreparation(CumulusRecord record, ExecutorService executor) {
+        Callable<PreparedRecord> preparation = () -> prepareRecordForPreservation(record);
+        if(executor != null) {
+            return executor.submit(preparation);
+        }
+        FutureTask<PreparedRecord> task = new FutureTask<PreparedRecord>(preparation);
+        task.run();
+        return task;
+    }
+    
+    /**
+     * Shuts down the executor, and releases the metadata buffers of the records, whose preparation has been 
+     * started but which will not be sent to preservation, e.g. when the preservation is aborted by a failure.
+     * The preparations, which have not yet been started, are cancelled, whereas the preparations being run are 
+     * interrupted and awaited, so their metadata buffers can be released.
+     * @param pendingRecords The futures for the pending prepared records. Will be emptied.
+     * @param executor The executor for the preparations. May be null.
+     */
+    protected void releasePendingRecords(Deque<Future<PreparedRecord>> pendingRecords, ExecutorService executor) {
+        if(executor != null) {
+            for(Runnable notStarted : executor.shutdownNow()) {
+                if(notStarted instanceof Future) {
+                    ((Future<?>) notStarted).cancel(false);
+                }
+            }
+        }
+        boolean interrupted = Thread.interrupted();
+        try {
+            for(Future<PreparedRecord> future : pendingRecords) {
+                if(future.isCancelled()) {
+                    continue;
+                }
+                try {
+                    releaseMetadataBuffers(future.get());
+                } catch (ExecutionException e) {
+                    log.debug("The preparation of a pending record failed, thus no metadata buffers to release.", 
+                            e.getCause());
+                } catch (InterruptedException e) {
+                    log.warn("Interrupted while releasing the metadata buffers of the pending records.", e);
+                    interrupted = true;
+                    break;
+                }
+            }
+            pendingRecords.clear();
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Waits for the preparation of a record to finish.
+     * @param future The future for the prepared record.
+     * @return The prepared record.
+     */
+    protected PreparedRecord getPreparedRecord(Future<PreparedRecord> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the preparation of a record.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unexpected failure while preparing a record.", e.getCause());
+        }
+    }
 
     /**
      * Preserves the record, and if it is a master-asset, then the representation is also preserved.
      * @param record The given Cumulus record to preserve.
      */
     protected void sendRecordToPreservation(CumulusRecord record) throws Exception {
+        sendPreparedRecordToPreservation(prepareRecordForPreservation(record));
+    }
+    
+    /**
+     * Prepares the record for preservation, by initialising the preservation fields, validating the required 
+     * fields, and transforming and validating the metadata.
+     * If it is a master asset, then the representation metadata is also transformed and validated.
+     * 
+     * This does not package anything, and it may therefore be performed concurrently for different records.
+     * Any failure is kept in the prepared record, and will first be handled when the prepared record is
+     * sent to preservation.
+     * @param record The given Cumulus record to prepare.
+     * @return The prepared record.
+     */
+    protected PreparedRecord prepareRecordForPreservation(CumulusRecord record) {
+        PreparedRecord prepared = new PreparedRecord(record);
         try {
             log.trace("Sending record: {} to preservation", record.getFieldValue(Constants.FieldNames.RECORD_NAME));
-            CumulusPreservationUtils.initialiseRecordForPreservation(record);
+            if(packagingAlgorithm != null) {
+                prepared.setFileDigests(CumulusPreservationUtils.initialiseRecordForPreservation(record, 
+                        packagingAlgorithm));
+            } else {
+                CumulusPreservationUtils.initialiseRecordForPreservation(record);
+            }
 
             record.validateFieldsExists(conf.getRequiredFields().getWritableFields());
             record.validateFieldsHasValue(conf.getRequiredFields().getBaseFields());
             
-            preserveFile(record);
-            preserveMetadata(record);
-            preserveIntellectuelEntity(record);
+            if(isMetadataBuffered()) {
+                prepareBufferedMetadata(record, prepared);
+            } else {
+                prepareMetadataFiles(record, prepared);
+            }
+        } catch (Exception e) {
+            prepared.setFailure(e);
+        }
+        return prepared;
+    }
+    
+    /**
+     * Transforms and validates the metadata of the record into files in the metadata temp dir.
+     * @param record The Cumulus record.
+     * @param prepared The prepared record, where the metadata files are set.
+     * @throws Exception If it fails to transform or validate the metadata.
+     */
+    protected void prepareMetadataFiles(CumulusRecord record, PreparedRecord prepared) throws Exception {
+        prepared.setMetadataFile(transformAndValidateMetadata(record));
+        prepared.setIntellectualEntityFile(transformIntellectuelEntity(record));
 
-            if(record.isMasterAsset()) {
-                log.trace("Record {} is Master asset. Initialize Representation", record.getFieldValue(Constants.FieldNames.RECORD_NAME));
-                CumulusPreservationUtils.initializeRecordRepresentaitonForPreservation(record);
+        if(record.isMasterAsset()) {
+            log.trace("Record {} is Master asset. Initialize Representation", 
+                    record.getFieldValue(Constants.FieldNames.RECORD_NAME));
+            CumulusPreservationUtils.initializeRecordRepresentaitonForPreservation(record);
 
-                transformAndPreserveRepresentation(record);
-                preserveRepresentationIntellectuelEntity(record);
+            prepared.setRepresentationFile(transformAndValidateRepresentation(record));
+            prepared.setRepresentationIntellectualEntityFile(transformRepresentationIntellectuelEntity(record));
+        }
+    }
+    
+    /**
+     * Transforms and validates the metadata of the record into metadata buffers.
+     * @param record The Cumulus record.
+     * @param prepared The prepared record, where the metadata buffers are set.
+     * @throws Exception If it fails to transform or validate the metadata.
+     */
+    protected void prepareBufferedMetadata(CumulusRecord record, PreparedRecord prepared) throws Exception {
+        String metadataUUID = CumulusPreservationUtils.getMetadataUUID(record);
+        prepared.setMetadataBuffer(obtainMetadataBuffer(metadataUUID));
+        MetadataBuffer rawMetadata = obtainMetadataBuffer(metadataUUID + RAW_FILE_SUFFIX);
+        try {
+            record.writeFieldMetadata(rawMetadata);
+            setMetadataStandardsForRecord(record, transformAndValidate(rawMetadata, prepared.getMetadataBuffer(), 
+                    MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS));
+        } finally {
+            releaseMetadataBuffer(rawMetadata);
+        }
+        
+        String ieUUID = GuidExtractionUtils.extractGuid(record.getFieldValue(
+                Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY));
+        prepared.setIntellectualEntityBuffer(transformAndValidateBufferedIntellectualEntity(ieUUID, metadataUUID, 
+                record.getUUID()));
+
+        if(record.isMasterAsset()) {
+            log.trace("Record {} is Master asset. Initialize Representation", 
+                    record.getFieldValue(Constants.FieldNames.RECORD_NAME));
+            CumulusPreservationUtils.initializeRecordRepresentaitonForPreservation(record);
+
+            String representationMetadataGuid = record.getFieldValue(
+                    Constants.FieldNames.REPRESENTATION_METADATA_GUID);
+            MetadataBuffer rawRepresentation = obtainMetadataBuffer(representationMetadataGuid + RAW_FILE_SUFFIX);
+            try {
+                record.writeFieldMetadata(rawRepresentation);
+                prepared.setRepresentationBuffer(transformAndValidate(rawRepresentation, 
+                        representationMetadataGuid, 
+                        MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_REPRESENTATION));
+            } finally {
+                releaseMetadataBuffer(rawRepresentation);
+            }
+            
+            String representationIeUUID = record.getFieldValue(
+                    Constants.FieldNames.REPRESENTATION_INTELLECTUAL_ENTITY_UUID);
+            prepared.setRepresentationIntellectualEntityBuffer(transformAndValidateBufferedIntellectualEntity(
+                    representationIeUUID, representationMetadataGuid, null));
+        }
+    }
+    
+    /**
+     * Transforms and validates the intellectual entity into a metadata buffer.
+     * @param ieUUID The UUID for the intellectual entity.
+     * @param metadataUUID The UUID for the metadata object.
+     * @param fileUUID The UUID for the file. This may be null.
+     * @return The buffer with the transformed intellectual entity metadata.
+     * @throws IOException If it fails to read the buffered metadata.
+     */
+    protected MetadataBuffer transformAndValidateBufferedIntellectualEntity(String ieUUID, String metadataUUID, 
+            String fileUUID) throws IOException {
+        MetadataBuffer rawMetadata = obtainMetadataBuffer(ieUUID + RAW_FILE_SUFFIX);
+        try {
+            CumulusPreservationUtils.writeIEraw(ieUUID, metadataUUID, fileUUID, rawMetadata);
+            return transformAndValidate(rawMetadata, ieUUID, 
+                    MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY);
+        } finally {
+            releaseMetadataBuffer(rawMetadata);
+        }
+    }
+    
+    /**
+     * Transforms and validates buffered raw metadata into a new metadata buffer.
+     * @param rawMetadata The buffer with the raw metadata.
+     * @param metadataUUID The UUID of the transformed metadata.
+     * @param transformationScript The name of the transformation script.
+     * @return The buffer with the transformed metadata.
+     * @throws IOException If it fails to read the buffered metadata.
+     */
+    protected MetadataBuffer transformAndValidate(MetadataBuffer rawMetadata, String metadataUUID, 
+            String transformationScript) throws IOException {
+        MetadataBuffer res = obtainMetadataBuffer(metadataUUID);
+        try {
+            transformAndValidate(rawMetadata, res, transformationScript);
+            return res;
+        } catch (IOException | RuntimeException e) {
+            releaseMetadataBuffer(res);
+            throw e;
+        }
+    }
+    
+    /**
+     * Transforms buffered raw metadata into the given metadata buffer, while validating it and extracting its
+     * metadata standards.
+     * @param rawMetadata The buffer with the raw metadata.
+     * @param metadata The buffer for the transformed metadata.
+     * @param transformationScript The name of the transformation script.
+     * @return The metadata standards of the transformed metadata.
+     * @throws IOException If it fails to read or write the buffered metadata.
+     */
+    protected Collection<String> transformAndValidate(MetadataBuffer rawMetadata, MetadataBuffer metadata, 
+            String transformationScript) throws IOException {
+        rawMetadata.close();
+        MetadataTransformer transformer = transformationHandler.getTransformer(transformationScript);
+        Collection<String> metadataStandards;
+        try (InputStream in = rawMetadata.getInputStream()) {
+            metadataStandards = transformationHandler.transformAndValidate(transformer, in, metadata);
+        }
+        metadata.close();
+        return metadataStandards;
+    }
+    
+    /** @return Whether the metadata is kept in metadata buffers instead of files.*/
+    protected boolean isMetadataBuffered() {
+        return conf.getMetadataBufferSize() > 0;
+    }
+    
+    /**
+     * Retrieves a metadata buffer, either a released buffer or a new buffer.
+     * @param metadataId The id of the metadata for the buffer.
+     * @return The metadata buffer.
+     */
+    protected MetadataBuffer obtainMetadataBuffer(String metadataId) {
+        MetadataBuffer res = metadataBuffers.poll();
+        if(res == null) {
+            res = new MetadataBuffer(conf.getMetadataTempDir(), conf.getMetadataBufferSize());
+        }
+        res.reset(metadataId);
+        return res;
+    }
+    
+    /**
+     * Releases a metadata buffer, so it can be reused for other metadata.
+     * @param buffer The metadata buffer. May be null.
+     */
+    protected void releaseMetadataBuffer(MetadataBuffer buffer) {
+        if(buffer != null) {
+            buffer.reset(null);
+            metadataBuffers.offer(buffer);
+        }
+    }
+    
+    /**
+     * Releases all the metadata buffers of a prepared record.
+     * @param prepared The prepared record.
+     */
+    protected void releaseMetadataBuffers(PreparedRecord prepared) {
+        releaseMetadataBuffer(prepared.getMetadataBuffer());
+        releaseMetadataBuffer(prepared.getIntellectualEntityBuffer());
+        releaseMetadataBuffer(prepared.getRepresentationBuffer());
+        releaseMetadataBuffer(prepared.getRepresentationIntellectualEntityBuffer());
+        prepared.setMetadataBuffer(null);
+        prepared.setIntellectualEntityBuffer(null);
+        prepared.setRepresentationBuffer(null);
+        prepared.setRepresentationIntellectualEntityBuffer(null);
+    }
+    
+    /**
+     * Packages the files of the prepared record, thus preserving the record.
+     * If the preparation of the record failed, or the packaging fails, then the record is marked as failed.
+     * 
+     * Nothing is packaged for a record, whose preparation failed, thus no content is written for a record with
+     * invalid metadata. The packaging itself is performed as a transaction, which is rolled back if any part 
+     * of the packaging fails, thus the WARC file does not keep the content of a record, whose metadata could not 
+     * be packaged.
+     * @param prepared The prepared record.
+     */
+    protected void sendPreparedRecordToPreservation(PreparedRecord prepared) throws Exception {
+        CumulusRecord record = prepared.getRecord();
+        try {
+            if(prepared.getFailure() != null) {
+                throw prepared.getFailure();
             }
+            preserver.packRecordAsTransaction(record, () -> packPreparedRecord(prepared));
             preserver.checkConditions();
+            CachedCumulusRecord.flushWrites(record);
         } catch (Exception e) {
             log.warn("Preserving the record '" + record + "' failed.", e);
             CumulusPreservationUtils.setPreservationFailed(record, "Failed to preserve record '" 
                     + record.getUUID() + ": \n" + e.getMessage());
+            CachedCumulusRecord.flushWrites(record);
             throw e;
+        } finally {
+            releaseMetadataBuffers(prepared);
         }
     }
     
+    /**
+     * Packages the content file and the metadata of the prepared record.
+     * @param prepared The prepared record.
+     * @throws IOException If it fails to package the content file.
+     */
+    protected void packPreparedRecord(PreparedRecord prepared) throws IOException {
+        CumulusRecord record = prepared.getRecord();
+        preservePreparedFile(prepared);
+        if(prepared.getMetadataBuffer() != null) {
+            packBufferedMetadata(prepared);
+        } else {
+            preserver.packRecordMetadata(record, prepared.getMetadataFile());
+            packMetadataFile(record, prepared.getIntellectualEntityFile());
+
+            if(prepared.getRepresentationFile() != null) {
+                packMetadataFile(record, prepared.getRepresentationFile());
+                packMetadataFile(record, prepared.getRepresentationIntellectualEntityFile());
+            }
+        }
+    }
+    
+    /**
+     * Packages the buffered metadata of the prepared record.
+     * @param prepared The prepared record with the metadata buffers.
+     */
+    protected void packBufferedMetadata(PreparedRecord prepared) {
+        CumulusRecord record = prepared.getRecord();
+        preserver.packRecordMetadata(record, prepared.getMetadataBuffer());
+        packMetadataBuffer(record, prepared.getIntellectualEntityBuffer());
+        
+        if(prepared.getRepresentationBuffer() != null) {
+            packMetadataBuffer(record, prepared.getRepresentationBuffer());
+            packMetadataBuffer(record, prepared.getRepresentationIntellectualEntityBuffer());
+        }
+    }
 
     /**
      * Preserves the content-file of a given record.
@@ -160,38 +647,65 @@ public class PreservationStep extends WorkflowStep {
     protected void preserveFile(CumulusRecord record) throws IOException {
         preserver.packRecordResource(record);
     }
-
+    
     /**
-     * Preserves the metadata of a Cumulus record.
-     * Transformes the metadata
+     * Preserves the content-file of a prepared record.
+     * If the digests of the file were calculated during the preparation, then they are used for the packaging, 
+     * otherwise the file is preserved as any other record.
+     * @param prepared The prepared record with the file to preserve.
+     * @throws IOException If it fails to package the file.
+     */
+    protected void preservePreparedFile(PreparedRecord prepared) throws IOException {
+        if(prepared.getFileDigests() == null) {
+            preserveFile(prepared.getRecord());
+        } else {
+            preserver.packRecordResource(prepared.getRecord(), prepared.getFileDigests());
+        }
+    }
+    
+    /**
+     * Packages a transformed metadata file, which is not the metadata of the record itself
+     * (e.g. the intellectual entity or the representation), in the collection of the Cumulus record.
      * @param record The Cumulus record.
-     * @throws IOException If it fails to read or write metadata.
+     * @param metadataFile The file with the transformed metadata.
      */
-    protected void preserveMetadata(CumulusRecord record) throws Exception {
-        File metadataFile = transformAndValidateMetadata(record);
-
-        setMetadataStandardsForRecord(record, metadataFile);
-        preserver.packRecordMetadata(record, metadataFile);
+    protected void packMetadataFile(CumulusRecord record, File metadataFile) {
+        preserver.packRepresentationMetadata(metadataFile, record.getFieldValue(Constants.FieldNames.COLLECTION_ID), 
+                UUID.randomUUID().toString());
+    }
+    
+    /**
+     * Packages a buffered transformed metadata, which is not the metadata of the record itself
+     * (e.g. the intellectual entity or the representation), in the collection of the Cumulus record.
+     * @param record The Cumulus record.
+     * @param metadata The buffer with the transformed metadata.
+     */
+    protected void packMetadataBuffer(CumulusRecord record, MetadataBuffer metadata) {
+        preserver.packRepresentationMetadata(metadata, record.getFieldValue(Constants.FieldNames.COLLECTION_ID), 
+                UUID.randomUUID().toString());
     }
     
     /**
-     * Preserve the intellectual entity for the Cumulus record.
-     * @param record The record to have its intellectual entity preserved.
+     * Transforms and validates the intellectual entity for the Cumulus record.
+     * @param record The record to have its intellectual entity transformed.
+     * @return The file with the transformed intellectual entity metadata.
+     * @throws IOException If it fails to write the metadata file.
      */
-    protected void preserveIntellectuelEntity(CumulusRecord record) throws IOException {
+    protected File transformIntellectuelEntity(CumulusRecord record) throws IOException {
         String ieUUID = GuidExtractionUtils.extractGuid(record.getFieldValue(
                 Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY));
         String metadataUUID = CumulusPreservationUtils.getMetadataUUID(record);
         String fileUUID = record.getUUID();
-        transformAndPreserveIntellectualEntity(ieUUID, metadataUUID, fileUUID, record);
+        return transformAndValidateIntellectualEntity(ieUUID, metadataUUID, fileUUID);
     }
 
     /**
-     * Preserve the representation part of a master asset as its own METS.
+     * Transforms and validates the representation part of a master asset as its own METS.
      * @param record The Cumulus record.
-     * @throws Exception If an issue occurs when writing or preserving the Master asset metadata,
+     * @return The file with the transformed representation metadata.
+     * @throws Exception If an issue occurs when writing or validating the Master asset metadata,
      */
-    protected void transformAndPreserveRepresentation(CumulusRecord record) throws Exception {
+    protected File transformAndValidateRepresentation(CumulusRecord record) throws Exception {
         String representationMetadataGuid = record.getFieldValue(
                 Constants.FieldNames.REPRESENTATION_METADATA_GUID);
         File metadataFile = new File(conf.getMetadataTempDir(), representationMetadataGuid);
@@ -204,27 +718,22 @@ public class PreservationStep extends WorkflowStep {
                 record.writeFieldMetadata(metadataOutputStream);
             }
             try (InputStream cumulusIn = new FileInputStream(cumulusMetadataFile)) {
-                transformer.transformXmlMetadata(cumulusIn, os);
+                transformationHandler.transformAndValidate(transformer, cumulusIn, os);
             }
-            os.flush();
         }
-
-        try (InputStream is = new FileInputStream(metadataFile)) {
-            transformationHandler.validate(is);
-        }
-        preserver.packRepresentationMetadata(metadataFile, record.getFieldValue(Constants.FieldNames.COLLECTION_ID),
-                UUID.randomUUID().toString());
+        return metadataFile;
     }
 
     /**
-     * Preserve the intellectual entity for the Cumulus record.
-     * @param record The record to have its intellectual entity preserved.
+     * Transforms and validates the intellectual entity for the representation of the Cumulus record.
+     * @param record The record to have its representation intellectual entity transformed.
+     * @return The file with the transformed intellectual entity metadata.
      * @throws IOException If it fails to write the metadata file.
      */
-    protected void preserveRepresentationIntellectuelEntity(CumulusRecord record) throws IOException {
+    protected File transformRepresentationIntellectuelEntity(CumulusRecord record) throws IOException {
         String ieUUID = record.getFieldValue(Constants.FieldNames.REPRESENTATION_INTELLECTUAL_ENTITY_UUID);
         String metadataUUID = record.getFieldValue(Constants.FieldNames.REPRESENTATION_METADATA_GUID);
-        transformAndPreserveIntellectualEntity(ieUUID, metadataUUID, null, record);
+        return transformAndValidateIntellectualEntity(ieUUID, metadataUUID, null);
     }
 
     /**
@@ -232,10 +741,25 @@ public class PreservationStep extends WorkflowStep {
      * @param ieUUID The UUID for the intellectual entity.
      * @param metadataUUID The UUID for the metadata object.
      * @param fileUUID The UUID for the file. This may be null.
+     * @param record The Cumulus record, whose collection the intellectual entity is preserved in.
      * @throws IOException If it fails to write the metadata file.
      */
     protected void transformAndPreserveIntellectualEntity(String ieUUID, String metadataUUID, String fileUUID, 
             CumulusRecord record) throws IOException {
+        File metadataFile = transformAndValidateIntellectualEntity(ieUUID, metadataUUID, fileUUID);
+        packMetadataFile(record, metadataFile);
+    }
+    
+    /**
+     * Transforms and validates the intellectual entity.
+     * @param ieUUID The UUID for the intellectual entity.
+     * @param metadataUUID The UUID for the metadata object.
+     * @param fileUUID The UUID for the file. This may be null.
+     * @return The file with the transformed intellectual entity metadata.
+     * @throws IOException If it fails to write the metadata file.
+     */
+    protected File transformAndValidateIntellectualEntity(String ieUUID, String metadataUUID, String fileUUID) 
+            throws IOException {
         File ieRawFile = new File(conf.getMetadataTempDir(), ieUUID + RAW_FILE_SUFFIX);
         CumulusPreservationUtils.createIErawFile(ieUUID, metadataUUID, fileUUID, ieRawFile);
         File metadataFile = new File(conf.getMetadataTempDir(), ieUUID);
@@ -243,19 +767,14 @@ public class PreservationStep extends WorkflowStep {
                 InputStream in = new FileInputStream(ieRawFile)) {
             MetadataTransformer transformer = transformationHandler.getTransformer(
                     MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY);
-            transformer.transformXmlMetadata(in, os);
-            os.flush();
-        }
-
-        try (InputStream is = new FileInputStream(metadataFile)) {
-            transformationHandler.validate(is);
+            transformationHandler.transformAndValidate(transformer, in, os);
         }
-        preserver.packRepresentationMetadata(metadataFile, record.getFieldValue(Constants.FieldNames.COLLECTION_ID), 
-                UUID.randomUUID().toString());
+        return metadataFile;
     }
     
     /**
-     * Transforms and validates the metadata from the Cumulus record.
+     * Transforms and validates the metadata from the Cumulus record, 
+     * and sets the metadata standards of the transformed metadata in the record.
      * 
      * @param record The record with the metadata to transform and validate.
      * @return The file containing the transformed metadata.
@@ -272,13 +791,9 @@ public class PreservationStep extends WorkflowStep {
                 record.writeFieldMetadata(cumulusOut);
             }
             try (InputStream cumulusIn = new FileInputStream(cumulusMetadataFile)) {
-                transformer.transformXmlMetadata(cumulusIn, os);
+                setMetadataStandardsForRecord(record, 
+                        transformationHandler.transformAndValidate(transformer, cumulusIn, os));
             }
-            os.flush();
-        }
-
-        try (InputStream is = new FileInputStream(metadataFile)) {
-            transformationHandler.validate(is);
         }
 
         return metadataFile;
@@ -293,13 +808,31 @@ public class PreservationStep extends WorkflowStep {
      */
     protected void setMetadataStandardsForRecord(CumulusRecord record, File metadataFile) throws IOException {
         try (InputStream is = new FileInputStream(metadataFile)){
-            Collection<String> namespaces = transformationHandler.getMetadataStandards(is);
-            StringBuilder value = new StringBuilder();
-            for(String s : namespaces) {
-                value.append(s);
-                value.append("\n");
-            }
-            record.setStringValueInField(Constants.FieldNames.BEVARINGS_METADATA, value.toString());
+            setMetadataStandardsForRecord(record, is);
+        }
+    }
+    
+    /**
+     * Finds the metadata standards used in the metadata, and set it as the value for the corresponding field 
+     * in the cumulus record.
+     * @param record The cumulus record where the metadata standards are written to.
+     * @param metadata The stream with the metadata.
+     */
+    protected void setMetadataStandardsForRecord(CumulusRecord record, InputStream metadata) {
+        setMetadataStandardsForRecord(record, transformationHandler.getMetadataStandards(metadata));
+    }
+    
+    /**
+     * Sets the metadata standards as the value for the corresponding field in the cumulus record.
+     * @param record The cumulus record where the metadata standards are written to.
+     * @param namespaces The metadata standards, e.g. the schema locations of the metadata.
+     */
+    protected void setMetadataStandardsForRecord(CumulusRecord record, Collection<String> namespaces) {
+        StringBuilder value = new StringBuilder();
+        for(String s : namespaces) {
+            value.append(s);
+            value.append("\n");
         }
+        record.setStringValueInField(Constants.FieldNames.BEVARINGS_METADATA, value.toString());
     }
 }
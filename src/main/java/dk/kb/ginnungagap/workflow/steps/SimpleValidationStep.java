@@ -1,5 +1,9 @@
 package dk.kb.ginnungagap.workflow.steps;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,12 +16,19 @@ import dk.kb.metadata.utils.CalendarUtils;
 
 /**
  * Workflow step for simple validation of a specific Cumulus catalog.
+ * 
+ * When the step is performed, then the checksums of all the files in a collection are retrieved from the archive
+ * at once, the first time a record from the collection is validated, and the records are validated against them.
+ * Only the files, which are not part of these checksums, have their checksum retrieved individually.
  */
 public class SimpleValidationStep extends ValidationStep {
     /** The logger.*/
     private static final Logger log = LoggerFactory.getLogger(SimpleValidationStep.class);
     /** The Bitrepository client.*/
     protected final Archive archive;
+    /** The checksums of the files in the collections, mapped by the collection id. 
+     * Only used while the step is performed, otherwise null.*/
+    protected Map<String, Map<String, String>> collectionChecksums;
 
     /**
      * Constructor.
@@ -35,12 +46,22 @@ public class SimpleValidationStep extends ValidationStep {
         return "Simple Validation Step for '" + catalogName + "'";
     }
 
+    @Override
+    public void performStep(WorkflowReport report) throws Exception {
+        collectionChecksums = new HashMap<String, Map<String, String>>();
+        try {
+            super.performStep(report);
+        } finally {
+            collectionChecksums = null;
+        }
+    }
+    
     @Override
     protected void validateRecord(CumulusRecord record, WorkflowReport report) {
         try {
             String warcId = record.getFieldValue(Constants.FieldNames.RESOURCE_PACKAGE_ID);
             String collectionId = record.getFieldValue(Constants.FieldNames.COLLECTION_ID);
-            String checksumResult = archive.getChecksum(warcId, collectionId);
+            String checksumResult = getChecksum(warcId, collectionId);
             String warcChecksum = record.getFieldValue(Constants.FieldNames.ARCHIVE_MD5);
             
             if(checksumResult.equalsIgnoreCase(warcChecksum)) {
@@ -60,4 +81,46 @@ public class SimpleValidationStep extends ValidationStep {
             setInvalid(record, errMsg + " : " + e.getMessage(), report);
         }
     }
+    
+    /**
+     * Retrieves the checksum of a WARC file from the archive.
+     * While the step is performed, the checksum is found among the checksums of the whole collection, 
+     * and it is only retrieved individually, if the WARC file is not among them.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection with the WARC file.
+     * @return The checksum of the WARC file.
+     */
+    protected String getChecksum(String warcId, String collectionId) {
+        if(collectionChecksums != null) {
+            String checksum = getCollectionChecksums(collectionId).get(warcId);
+            if(checksum != null) {
+                return checksum;
+            }
+        }
+        return archive.getChecksum(warcId, collectionId);
+    }
+    
+    /**
+     * Retrieves the checksums of all the files in the collection. 
+     * They are only retrieved from the archive the first time, and if it fails, then no checksums are given
+     * for the collection, and the checksums of the files will be retrieved individually.
+     * @param collectionId The id of the collection.
+     * @return The checksums of the files in the collection, mapped by the ids of the files.
+     */
+    protected Map<String, String> getCollectionChecksums(String collectionId) {
+        Map<String, String> res = collectionChecksums.get(collectionId);
+        if(res == null) {
+            try {
+                res = archive.getChecksums(collectionId);
+                log.info("Retrieved the checksums of " + res.size() + " files in the collection '" 
+                        + collectionId + "'.");
+            } catch (RuntimeException e) {
+                log.warn("Could not retrieve the checksums of the collection '" + collectionId + "'. "
+                        + "Retrieving the checksums of the files individually.", e);
+                res = Collections.emptyMap();
+            }
+            collectionChecksums.put(collectionId, res);
+        }
+        return res;
+    }
 }
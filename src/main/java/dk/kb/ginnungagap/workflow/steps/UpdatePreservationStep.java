@@ -1,12 +1,12 @@
 package dk.kb.ginnungagap.workflow.steps;
 
+import dk.kb.ginnungagap.cumulus.CachedCumulusRecord;
 import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.cumulus.Constants;
-import dk.kb.cumulus.CumulusQuery;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
@@ -60,11 +60,13 @@ public class UpdatePreservationStep extends PreservationStep {
 
     @Override
     public void performStep(WorkflowReport report) throws Exception {
-        CumulusQuery query = CumulusQueryUtils.getPreservationUpdateQuery(catalogName);
-        CumulusRecordCollection items = server.getItems(catalogName, query);
+        preserver.recoverWarcFiles();
+        CumulusRecordCollection items = watermark.findItems(server, catalogName, 
+                modifiedSince -> CumulusQueryUtils.getPreservationUpdateQuery(catalogName, modifiedSince));
         log.info("Catalog '" + catalogName + "' had " + items.getCount() + " records for preservation update.");
         preserveRecordItems(items, catalogName, report);
         setResultOfRun("Updated preservation for " + items.getCount() + " records.");
+        watermark.commit();
     }
     
     /**
@@ -80,12 +82,14 @@ public class UpdatePreservationStep extends PreservationStep {
             log.debug("No items for preservation update from catalog: " + catalogName);
             return;
         }
-        for(CumulusRecord record : items) {
+        for(CumulusRecord item : items) {
+            CumulusRecord record = CachedCumulusRecord.wrap(item);
             try {
                 log.debug("Initiating preservation update on record '" + record.getUUID() + "'");
                 String oldMetadataReference = getOldMetadataReference(record);
                 sendRecordToPreservation(record);
                 saveUpdateMetadataHistoryReference(record, oldMetadataReference);
+                CachedCumulusRecord.flushWrites(record);
                 report.addSuccessRecord(CumulusPreservationUtils.getRecordName(record), catalogName);
             } catch (Exception e) {
                 report.addFailedRecord(CumulusPreservationUtils.getRecordName(record), e.getMessage(), catalogName);
@@ -93,6 +97,7 @@ public class UpdatePreservationStep extends PreservationStep {
                         + record.getUUID() + "'. Something must be seriously wrong with that item!!!\n"
                         + "Trying to handle next item.", e);
             }
+            registerFieldCache(record);
         }
     }
     
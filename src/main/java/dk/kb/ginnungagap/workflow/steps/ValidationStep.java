@@ -1,12 +1,13 @@
 package dk.kb.ginnungagap.workflow.steps;
 
 import dk.kb.cumulus.Constants;
-import dk.kb.cumulus.CumulusQuery;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.cumulus.CumulusPreservationUtils;
 import dk.kb.ginnungagap.cumulus.CumulusQueryUtils;
+import dk.kb.ginnungagap.cumulus.QueryWatermark;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
 import dk.kb.metadata.utils.CalendarUtils;
@@ -21,6 +22,8 @@ public abstract class ValidationStep extends WorkflowStep {
     protected final String catalogName;
     /** The value for the validation field to have valued.*/
     protected final String validationFieldValue;
+    /** The watermark for the query of the step. Only full queries are used by default.*/
+    protected QueryWatermark watermark = new QueryWatermark(null, 0L);
     
     /**
      * Constructor.
@@ -35,15 +38,37 @@ public abstract class ValidationStep extends WorkflowStep {
         this.validationFieldValue = validationFieldValue;
     }
     
+    /**
+     * Sets the watermark, so the query only finds the records modified since the last successful run.
+     * @param watermark The watermark for the query of the step.
+     */
+    public void setWatermark(QueryWatermark watermark) {
+        ArgumentCheck.checkNotNull(watermark, "QueryWatermark watermark");
+        this.watermark = watermark;
+    }
+    
+    /** @return The watermark for the query of the step.*/
+    public QueryWatermark getWatermark() {
+        return watermark;
+    }
+    
     @Override
     public void performStep(WorkflowReport report) throws Exception {
-        CumulusQuery query = CumulusQueryUtils.getQueryForPreservationValidation(catalogName, validationFieldValue);
-        
-        CumulusRecordCollection items = server.getItems(catalogName, query);
+        CumulusRecordCollection items = findItems();
         for(CumulusRecord record : items) {
             validateRecord(record, report);
         }
         setResultOfRun("Validated " + items.getCount() + " records.");
+        watermark.commit();
+    }
+    
+    /**
+     * Finds the records, which requires the validation of this step.
+     * @return The records to validate.
+     */
+    protected CumulusRecordCollection findItems() {
+        return watermark.findItems(server, catalogName, modifiedSince -> 
+                CumulusQueryUtils.getQueryForPreservationValidation(catalogName, validationFieldValue, modifiedSince));
     }
 
     /**
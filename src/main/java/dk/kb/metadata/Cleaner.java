@@ -12,6 +12,7 @@ public class Cleaner {
 
     /**
      * Cleans all variables used for the java helper methods for the metadata transformation.
+     * Only the variables of the transformation context of the current thread are cleaned.
      */
     public static void cleanStuff() {
         ExceptionUtils.clean();
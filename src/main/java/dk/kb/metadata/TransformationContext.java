@@ -0,0 +1,84 @@
+package dk.kb.metadata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of a single metadata transformation, used by the java helper methods called from the XSLT scripts
+ * (e.g. the file ids, the MD ids and the event identifiers).
+ *
+ * A context is bound to the thread performing the transformation, from it is opened until it is closed,
+ * thus different transformations can be performed concurrently by different threads without sharing state.
+ * The helper methods must only be called within an opened context, thus the caller must open the context
+ * before the transformation and close it afterwards.
+ */
+public final class TransformationContext {
+    /** The context bound to the current thread.*/
+    private static final ThreadLocal<TransformationContext> CURRENT = new ThreadLocal<TransformationContext>();
+
+    /** Maps between a GUID and the respective file id. */
+    private final Map<String, String> fileIds = new HashMap<String, String>();
+    /** Container for the ids for the MD objects for different documents with different ids.*/
+    private final Map<String, List<String>> mdIds = new HashMap<String, List<String>>();
+    /** The mapping between the different file ids and their event identifiers.*/
+    private final Map<String, String> eventIdentifiers = new HashMap<String, String>();
+    /** The list of exceptions.*/
+    private final List<RuntimeException> exceptions = new ArrayList<RuntimeException>();
+
+    /** Constructor. Use the static methods for retrieving the context.*/
+    private TransformationContext() {}
+
+    /**
+     * Opens a new context for a transformation, and binds it to the current thread.
+     * Any context already bound to the thread is replaced.
+     * @return The new context.
+     */
+    public static TransformationContext open() {
+        TransformationContext context = new TransformationContext();
+        CURRENT.set(context);
+        return context;
+    }
+
+    /**
+     * Closes the context bound to the current thread.
+     * Should be called when the transformation has finished.
+     */
+    public static void close() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Retrieves the context bound to the current thread.
+     * @return The context bound to the current thread.
+     * @throws IllegalStateException If no context has been opened for the current thread.
+     */
+    public static TransformationContext getCurrent() {
+        TransformationContext context = CURRENT.get();
+        if(context == null) {
+            throw new IllegalStateException("No transformation context has been opened for the current thread.");
+        }
+        return context;
+    }
+
+    /** @return The mapping between GUIDs and file ids for the transformation.*/
+    public Map<String, String> getFileIds() {
+        return fileIds;
+    }
+
+    /** @return The ids of the MD objects for the transformation, mapped by their type.*/
+    public Map<String, List<String>> getMdIds() {
+        return mdIds;
+    }
+
+    /** @return The mapping between the file ids and their event identifiers for the transformation.*/
+    public Map<String, String> getEventIdentifiers() {
+        return eventIdentifiers;
+    }
+
+    /** @return The list of exceptions caught during the transformation.*/
+    public List<RuntimeException> getExceptions() {
+        return exceptions;
+    }
+}
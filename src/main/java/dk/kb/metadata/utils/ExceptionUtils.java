@@ -4,22 +4,22 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import dk.kb.metadata.TransformationContext;
+
 /**
  * Utility class for exceptions.
+ * The exceptions are kept in the transformation context of the current thread.
  */
 public class ExceptionUtils {
     
     /** Constructor.*/
     protected ExceptionUtils() {}
 
-    /** The list of exceptions.*/
-    private static List<RuntimeException> exceptions = new ArrayList<RuntimeException>();
-
     /**
      * Cleans the list of exceptions.
      */
     public static void clean() {
-        exceptions.clear();
+        TransformationContext.getCurrent().getExceptions().clear();
     }
 
     /**
@@ -27,7 +27,7 @@ public class ExceptionUtils {
      * @param e The exception to add.
      */
     public static void insertException(RuntimeException e) {
-        exceptions.add(e);
+        TransformationContext.getCurrent().getExceptions().add(e);
     }
 
     /**
@@ -35,7 +35,7 @@ public class ExceptionUtils {
      * @return Whether any exceptions has been thrown.
      */
     public static boolean hasFailure() {
-        return !exceptions.isEmpty();
+        return !TransformationContext.getCurrent().getExceptions().isEmpty();
     }
 
     /**
@@ -44,6 +44,7 @@ public class ExceptionUtils {
      * @return The caught exception(s). Or null if no exceptions have been caught.
      */
     public static Exception retrieveFailure() {
+        List<RuntimeException> exceptions = TransformationContext.getCurrent().getExceptions();
         if(exceptions.size() < 1) {
             return null;
         }
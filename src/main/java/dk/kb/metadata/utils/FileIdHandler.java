@@ -1,43 +1,43 @@
 package dk.kb.metadata.utils;
 
-import java.util.HashMap;
 import java.util.Map;
 
+import dk.kb.metadata.TransformationContext;
+
 /**
  * Keeps track of the file ids for the respective GUIDs.
+ * The file ids are kept in the transformation context of the current thread.
  */
 public final class FileIdHandler {
     /** Constructor for this Utility class.*/
     protected FileIdHandler() {}
 
-    /** Maps between a GUID and the respective file id. */
-    private static final Map<String, String> FILE_IDS = new HashMap<String, String>();
-
     /**
      * Returns the file id for the respective GUID. If no file id exists for such GUID, then it is created.
      * @param guid The GUID of the file.
      * @return The file id corresponding to the GUID.
      */
     public static String getFileID(String guid) {
-        String fileId = FILE_IDS.get(guid);
+        Map<String, String> fileIds = getMap();
+        String fileId = fileIds.get(guid);
         if (fileId == null) {
-            fileId = "fileId" + (FILE_IDS.size() + 1);
-            FILE_IDS.put(guid, fileId);
+            fileId = "fileId" + (fileIds.size() + 1);
+            fileIds.put(guid, fileId);
         }
-        return FILE_IDS.get(guid);
+        return fileId;
     }
 
     /**
      * @return The map of file-ids.
      */
     public static Map<String, String> getMap() {
-        return FILE_IDS;
+        return TransformationContext.getCurrent().getFileIds();
     }
     
     /**
      * Cleanup data after use (should be called after each transformation).
      */
     public static void clean() {
-        FILE_IDS.clear();
+        getMap().clear();
     }
 }
@@ -3,20 +3,19 @@
  */
 package dk.kb.metadata.utils;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
+import dk.kb.metadata.TransformationContext;
+
 /**
  * The manager for the identifiers.
+ * The identifiers are kept in the transformation context of the current thread.
  */
 public final class IdentifierManager {
     /** Constructor for this utility class.*/
     protected IdentifierManager() {}
 
-    /** The mapping between the different file ids and their event identifiers.*/
-    private static Map<String, String> eventIdentifierMap = new HashMap<String, String>();
-
     /**
      * Retrieves the event identifier for the given fileId.
      * If no event identifier exists for the given fileId, then a new random UUID is created for it.
@@ -24,6 +23,7 @@ public final class IdentifierManager {
      * @return The event identifier corresponding to the fileId.
      */
     public static String getEventIdentifier(String fileId) {
+        Map<String, String> eventIdentifierMap = TransformationContext.getCurrent().getEventIdentifiers();
         String uuid = eventIdentifierMap.get(fileId);
         if(uuid == null) {
             uuid = UUID.randomUUID().toString();
@@ -36,6 +36,6 @@ public final class IdentifierManager {
      * Cleanup data after use (should be called after each transformation).
      */
     public static void clean() {
-        eventIdentifierMap.clear();
+        TransformationContext.getCurrent().getEventIdentifiers().clear();
     }
 }
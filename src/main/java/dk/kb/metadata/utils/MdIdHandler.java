@@ -1,21 +1,20 @@
 package dk.kb.metadata.utils;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 
+import dk.kb.metadata.TransformationContext;
+
 /**
  * Manages the different MD objects in the METS, both the DMD and AMD wrappers for encapsulating 
  * the other metadata formats.
+ * The MD ids are kept in the transformation context of the current thread.
  */
 public final class MdIdHandler {
     /** Constructor for this utility class.*/
     protected MdIdHandler() {}
 
-    /** Container for the ids for the MD objects for different documents with different ids.*/
-    private static Map<String, List<String>> mdIds = new HashMap<String, List<String>>();
-
     /** 
      * Creates the id for a new MD object of a specific metadata document.
      * 
@@ -23,6 +22,7 @@ public final class MdIdHandler {
      * @return The id for a new MD object.
      */
     public static String createNewMdId(String type) {
+        Map<String, List<String>> mdIds = TransformationContext.getCurrent().getMdIds();
         List<String> idList;
         if(mdIds.containsKey(type)) {
             idList = mdIds.get(type);
@@ -45,6 +45,7 @@ public final class MdIdHandler {
      * or an empty list if none is found.
      */
     public static List<String> getMdIDs(String type) {
+        Map<String, List<String>> mdIds = TransformationContext.getCurrent().getMdIds();
         if(mdIds.containsKey(type)) {
             return mdIds.get(type);
         }
@@ -77,6 +78,6 @@ public final class MdIdHandler {
      * Cleanup data after use (should be called after each transformation).
      */
     public static void clean() {
-        mdIds.clear();
+        TransformationContext.getCurrent().getMdIds().clear();
     }
 }
@@ -28,6 +28,7 @@
     <p><b>Description:</b> ${workflow.getDescription()}</p>
     <p><b>Current state:</b> ${workflow.getState()}</p>
     <p><b>Next run:</b> ${workflow.getNextRunDate()}</p>
+    <p><b>WARC files waiting for upload:</b> ${preserver.getUploadQueueDepth()} (pending uploads in total: ${preserver.getNumberOfPendingUploads()})</p>
 
     <table class="table table-striped">
         <thead>
@@ -28,6 +28,9 @@
     <p><b>Description:</b> ${workflow.getDescription()}</p>
     <p><b>Current state:</b> ${workflow.getState()}</p>
     <p><b>Next run:</b> ${workflow.getNextRunDate()}</p>
+    <c:if test="${cache != null}">
+        <p><b>Cached WARC files:</b> ${cache.getNumberOfFiles()} (${cache.getSize()} of ${cache.getMaxSize()} bytes) - hits: ${cache.getHits()}, misses: ${cache.getMisses()}, evictions: ${cache.getEvictions()}</p>
+    </c:if>
 
     <table class="table table-striped">
         <thead>
@@ -0,0 +1,336 @@
+package dk.kb.ginnungagap.archive;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bitrepository.common.utils.FileUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+
+public class ArchiveCacheTest extends ExtendedTestCase {
+
+    File testFile = new File("src/test/resources/test-resource.txt");
+    String testFileChecksum = "37e9a7db97d6050911038d72b0f0585c";
+    String collectionId = "collection-" + UUID.randomUUID().toString();
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testCacheHit() {
+        addDescription("Test that a retrieved file is delivered from the cache the next time.");
+        Archive archive = createArchive();
+        String warcId = UUID.randomUUID().toString();
+        when(archive.getChecksum(eq(warcId), eq(collectionId))).thenReturn(testFileChecksum);
+        ArchiveCache cache = new ArchiveCache(archive, createCacheDir(), 10 * testFile.length());
+
+        addStep("Retrieve the file", "Retrieved from the archive, verified and placed in the cache");
+        File f = cache.getFile(warcId, collectionId);
+        Assert.assertTrue(f.isFile());
+        Assert.assertEquals(f.getParentFile().getParentFile().getAbsoluteFile(), cache.cacheDir.getAbsoluteFile());
+        Assert.assertEquals(f.length(), testFile.length());
+        Assert.assertEquals(cache.getMisses(), 1L);
+        Assert.assertEquals(cache.getHits(), 0L);
+        Assert.assertEquals(cache.getNumberOfFiles(), 1);
+        Assert.assertEquals(cache.getSize(), testFile.length());
+
+        addStep("Retrieve the file again", "Delivered from the cache");
+        Assert.assertEquals(cache.getFile(warcId, collectionId), f);
+        Assert.assertEquals(cache.getMisses(), 1L);
+        Assert.assertEquals(cache.getHits(), 1L);
+
+        verify(archive).getFile(eq(warcId), eq(collectionId));
+        verify(archive).getChecksum(eq(warcId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+    }
+
+    @Test
+    public void testChecksumMismatch() {
+        addDescription("Test that a retrieved file with the wrong checksum is not placed in the cache.");
+        Archive archive = createArchive();
+        String warcId = UUID.randomUUID().toString();
+        when(archive.getChecksum(eq(warcId), eq(collectionId))).thenReturn(UUID.randomUUID().toString());
+        ArchiveCache cache = new ArchiveCache(archive, createCacheDir(), 10 * testFile.length());
+
+        for(int i = 1; i <= 2; i++) {
+            addStep("Retrieve the file", "Fails and the file is removed, thus it is retrieved again the next time");
+            try {
+                cache.getFile(warcId, collectionId);
+                Assert.fail("Must throw an exception");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            Assert.assertEquals(cache.getNumberOfFiles(), 0);
+            Assert.assertEquals(cache.getSize(), 0L);
+            Assert.assertEquals(new File(cache.cacheDir, collectionId).list().length, 0);
+            verify(archive, times(i)).getFile(eq(warcId), eq(collectionId));
+        }
+        Assert.assertEquals(cache.getMisses(), 2L);
+    }
+
+    @Test
+    public void testEviction() {
+        addDescription("Test that the least recently used files are evicted, when the cache exceeds its size.");
+        Archive archive = createArchive();
+        when(archive.getChecksum(anyString(), eq(collectionId))).thenReturn(testFileChecksum);
+        ArchiveCache cache = new ArchiveCache(archive, createCacheDir(), 2 * testFile.length());
+        String warcId1 = UUID.randomUUID().toString();
+        String warcId2 = UUID.randomUUID().toString();
+        String warcId3 = UUID.randomUUID().toString();
+
+        addStep("Retrieve two files, and use the first file again", "Both files are in the cache");
+        File f1 = cache.getFile(warcId1, collectionId);
+        File f2 = cache.getFile(warcId2, collectionId);
+        cache.getFile(warcId1, collectionId);
+        Assert.assertEquals(cache.getNumberOfFiles(), 2);
+        Assert.assertEquals(cache.getEvictions(), 0L);
+
+        addStep("Retrieve a third file", "The least recently used file is evicted");
+        File f3 = cache.getFile(warcId3, collectionId);
+        Assert.assertEquals(cache.getNumberOfFiles(), 2);
+        Assert.assertEquals(cache.getEvictions(), 1L);
+        Assert.assertEquals(cache.getSize(), 2 * testFile.length());
+        Assert.assertTrue(f1.isFile());
+        Assert.assertFalse(f2.exists());
+        Assert.assertTrue(f3.isFile());
+
+        addStep("Retrieve the evicted file", "Retrieved from the archive again");
+        cache.getFile(warcId2, collectionId);
+        verify(archive, times(2)).getFile(eq(warcId2), eq(collectionId));
+        Assert.assertEquals(cache.getEvictions(), 2L);
+        Assert.assertEquals(cache.getHits(), 1L);
+        Assert.assertEquals(cache.getMisses(), 4L);
+    }
+
+    @Test
+    public void testFileLargerThanTheCache() {
+        addDescription("Test that a file larger than the cache is still delivered.");
+        Archive archive = createArchive();
+        when(archive.getChecksum(anyString(), eq(collectionId))).thenReturn(testFileChecksum);
+        ArchiveCache cache = new ArchiveCache(archive, createCacheDir(), 1L);
+
+        File f = cache.getFile(UUID.randomUUID().toString(), collectionId);
+        Assert.assertTrue(f.isFile());
+        Assert.assertEquals(cache.getNumberOfFiles(), 1);
+        Assert.assertEquals(cache.getEvictions(), 0L);
+    }
+
+    @Test
+    public void testConcurrentRequestsForTheSameFile() throws Exception {
+        addDescription("Test that concurrent requests for the same file wait for a single retrieval.");
+        int numberOfRequests = 4;
+        String warcId = UUID.randomUUID().toString();
+        CountDownLatch release = new CountDownLatch(1);
+        Archive archive = mock(Archive.class);
+        when(archive.getFile(eq(warcId), eq(collectionId))).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return TestFileUtils.copyFileToTemp(testFile);
+            }
+        });
+        when(archive.getChecksum(eq(warcId), eq(collectionId))).thenReturn(testFileChecksum);
+        ArchiveCache cache = new ArchiveCache(archive, createCacheDir(), 10 * testFile.length());
+
+        addStep("Request the file from several threads", "All but one wait for the retrieval");
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfRequests);
+        try {
+            List<Future<File>> results = new ArrayList<Future<File>>();
+            for(int i = 0; i < numberOfRequests; i++) {
+                results.add(executor.submit(() -> cache.getFile(warcId, collectionId)));
+            }
+            long timeout = System.currentTimeMillis() + 10000L;
+            while(cache.getHits() + cache.getMisses() < numberOfRequests && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(cache.getMisses(), 1L);
+            Assert.assertEquals(cache.getHits(), (long) numberOfRequests - 1);
+
+            addStep("Finish the retrieval", "All the requests get the same file");
+            release.countDown();
+            File f = results.get(0).get(10, TimeUnit.SECONDS);
+            for(Future<File> result : results) {
+                Assert.assertEquals(result.get(10, TimeUnit.SECONDS), f);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(archive).getFile(eq(warcId), eq(collectionId));
+        verify(archive).getChecksum(eq(warcId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+    }
+
+    @Test
+    public void testLoadingCachedFiles() throws IOException {
+        addDescription("Test that the files already in the cache directory are used, "
+                + "and that incomplete files are removed.");
+        Archive archive = createArchive();
+        File cacheDir = createCacheDir();
+        File collectionDir = FileUtils.retrieveSubDirectory(cacheDir, collectionId);
+        String warcId = UUID.randomUUID().toString();
+        FileUtils.copyFile(testFile, new File(collectionDir, warcId));
+        File tmpFile = new File(collectionDir, UUID.randomUUID().toString() + ArchiveCache.TEMPORARY_FILE_SUFFIX);
+        FileUtils.copyFile(testFile, tmpFile);
+
+        ArchiveCache cache = new ArchiveCache(archive, cacheDir, 10 * testFile.length());
+        Assert.assertEquals(cache.getNumberOfFiles(), 1);
+        Assert.assertEquals(cache.getSize(), testFile.length());
+        Assert.assertFalse(tmpFile.exists());
+
+        Assert.assertEquals(cache.getFile(warcId, collectionId), new File(collectionDir, warcId));
+        Assert.assertEquals(cache.getHits(), 1L);
+        verifyNoMoreInteractions(archive);
+    }
+
+    @Test
+    public void testOpenRange() throws IOException {
+        addDescription("Test that the ranges are read from the cached file.");
+        Archive archive = createArchive();
+        String warcId = UUID.randomUUID().toString();
+        when(archive.getChecksum(eq(warcId), eq(collectionId))).thenReturn(testFileChecksum);
+        ArchiveCache cache = new ArchiveCache(archive, createCacheDir(), 10 * testFile.length());
+
+        for(long offset = 0; offset < 3; offset++) {
+            try (InputStream in = cache.openRange(warcId, collectionId, offset, 1L)) {
+                Assert.assertEquals(in.read(), Files.readAllBytes(testFile.toPath())[(int) offset]);
+                Assert.assertEquals(in.read(), -1);
+            }
+        }
+        Assert.assertEquals(cache.getMisses(), 1L);
+        Assert.assertEquals(cache.getHits(), 2L);
+        verify(archive).getFile(eq(warcId), eq(collectionId));
+        verify(archive).getChecksum(eq(warcId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+    }
+
+    @Test
+    public void testOpenRangeOfEvictedFile() throws IOException {
+        addDescription("Test that a file, which is evicted by another request between its retrieval and the "
+                + "opening of the range, is retrieved again, and that an opened range can be read after its file "
+                + "has been evicted.");
+        Archive archive = createArchive();
+        String warcId = UUID.randomUUID().toString();
+        String otherWarcId = UUID.randomUUID().toString();
+        when(archive.getChecksum(anyString(), eq(collectionId))).thenReturn(testFileChecksum);
+        final AtomicInteger evictionsToCause = new AtomicInteger(1);
+        ArchiveCache cache = new ArchiveCache(archive, createCacheDir(), testFile.length()) {
+            @Override
+            public File getFile(String id, String collection) {
+                File res = super.getFile(id, collection);
+                if(id.equals(warcId) && evictionsToCause.getAndDecrement() > 0) {
+                    super.getFile(otherWarcId, collection);
+                }
+                return res;
+            }
+        };
+
+        addStep("Open a range, when the file is evicted after its retrieval", "The file is retrieved again");
+        try (InputStream in = cache.openRange(warcId, collectionId, 0L, 1L)) {
+            Assert.assertEquals(cache.getEvictions(), 2L);
+            verify(archive, times(2)).getFile(eq(warcId), eq(collectionId));
+
+            addStep("Evict the file of the opened range", "The range can still be read");
+            cache.getFile(otherWarcId, collectionId);
+            Assert.assertEquals(cache.getEvictions(), 3L);
+            Assert.assertEquals(in.read(), Files.readAllBytes(testFile.toPath())[0]);
+            Assert.assertEquals(in.read(), -1);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testOpenRangeOfFileAlwaysEvicted() throws IOException {
+        addDescription("Test that opening a range fails, when its file is evicted at every attempt.");
+        Archive archive = createArchive();
+        String warcId = UUID.randomUUID().toString();
+        String otherWarcId = UUID.randomUUID().toString();
+        when(archive.getChecksum(anyString(), eq(collectionId))).thenReturn(testFileChecksum);
+        ArchiveCache cache = new ArchiveCache(archive, createCacheDir(), testFile.length()) {
+            @Override
+            public File getFile(String id, String collection) {
+                File res = super.getFile(id, collection);
+                if(id.equals(warcId)) {
+                    super.getFile(otherWarcId, collection);
+                }
+                return res;
+            }
+        };
+
+        try {
+            cache.openRange(warcId, collectionId, 0L, 1L);
+        } finally {
+            verify(archive, times(ArchiveCache.MAX_OPEN_RANGE_ATTEMPTS)).getFile(eq(warcId), eq(collectionId));
+        }
+    }
+
+    @Test
+    public void testDelegation() {
+        addDescription("Test that the other methods are delegated to the archive.");
+        Archive archive = mock(Archive.class);
+        ArchiveCache cache = new ArchiveCache(archive, createCacheDir(), 1L);
+        File file = new File(UUID.randomUUID().toString());
+
+        cache.uploadFile(file, collectionId);
+        cache.getChecksums(collectionId);
+        cache.close();
+
+        verify(archive).uploadFile(eq(file), eq(collectionId));
+        verify(archive).getChecksums(eq(collectionId));
+        verify(archive).close();
+        verifyNoMoreInteractions(archive);
+    }
+
+    /**
+     * @return A mock archive, which delivers a new copy of the test file, whenever a file is retrieved.
+     */
+    protected Archive createArchive() {
+        Archive archive = mock(Archive.class);
+        when(archive.getFile(anyString(), anyString())).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws Throwable {
+                return TestFileUtils.copyFileToTemp(testFile);
+            }
+        });
+        return archive;
+    }
+
+    /**
+     * @return A new cache directory.
+     */
+    protected File createCacheDir() {
+        return new File(TestFileUtils.getTempDir(), "cache-" + UUID.randomUUID().toString());
+    }
+}
@@ -1,6 +1,7 @@
 package dk.kb.ginnungagap.archive;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.UUID;
 
 import org.jaccept.structure.ExtendedTestCase;
@@ -86,6 +87,38 @@ public class ArchiveWrapperTest extends ExtendedTestCase {
         Mockito.verifyNoMoreInteractions(archive);
     }
 
+    @Test
+    public void testOpenRange() throws IOException {
+        addDescription("Test the openRange method.");
+        Archive archive = Mockito.mock(Archive.class);
+        String fileId = UUID.randomUUID().toString();
+        String collectionId = UUID.randomUUID().toString();
+
+        ArchiveWrapper wrapper = new ArchiveWrapper();
+        wrapper.archive = archive;
+
+        wrapper.openRange(fileId, collectionId, 123L, 456L);
+
+        Mockito.verify(archive).openRange(Mockito.eq(fileId), Mockito.eq(collectionId), Mockito.eq(123L), 
+                Mockito.eq(456L));
+        Mockito.verifyNoMoreInteractions(archive);
+    }
+
+    @Test
+    public void testGetChecksums() {
+        addDescription("Test the getChecksums method.");
+        Archive archive = Mockito.mock(Archive.class);
+        String collectionId = UUID.randomUUID().toString();
+
+        ArchiveWrapper wrapper = new ArchiveWrapper();
+        wrapper.archive = archive;
+
+        wrapper.getChecksums(collectionId);
+
+        Mockito.verify(archive).getChecksums(Mockito.eq(collectionId));
+        Mockito.verifyNoMoreInteractions(archive);
+    }
+
     @Test
     public void testClose() {
         addDescription("Test the close method.");
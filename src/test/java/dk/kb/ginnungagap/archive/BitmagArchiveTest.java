@@ -0,0 +1,135 @@
+package dk.kb.ginnungagap.archive;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bitrepository.access.getchecksums.conversation.ChecksumsCompletePillarEvent;
+import org.bitrepository.bitrepositoryelements.ChecksumDataForChecksumSpecTYPE;
+import org.bitrepository.bitrepositoryelements.ChecksumSpecTYPE;
+import org.bitrepository.bitrepositoryelements.ChecksumType;
+import org.bitrepository.bitrepositoryelements.ResultingChecksums;
+import org.bitrepository.common.utils.Base16Utils;
+import org.bitrepository.common.utils.CalendarUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import dk.kb.yggdrasil.bitmag.Bitrepository;
+
+public class BitmagArchiveTest extends ExtendedTestCase {
+
+    String collectionId = "collection-" + UUID.randomUUID().toString();
+    String pillar1 = "pillar-1";
+    String pillar2 = "pillar-2";
+    String file1 = "file-1";
+    String file2 = "file-2";
+    String file3 = "file-3";
+    String checksum1 = "37e9a7db97d6050911038d72b0f0585c";
+    String checksum2 = "d41d8cd98f00b204e9800998ecf8427e";
+    String checksum3 = "0123456789abcdef0123456789abcdef";
+
+    @Test
+    public void testGetChecksums() {
+        addDescription("Test that the checksums of all the files in the collection are retrieved at once.");
+        BitmagArchive archive = createArchive();
+        Map<String, ChecksumsCompletePillarEvent> events = new HashMap<String, ChecksumsCompletePillarEvent>();
+        events.put(pillar1, makeEvent(pillar1, false, file1, checksum1, file2, checksum2));
+        events.put(pillar2, makeEvent(pillar2, false, file1, checksum1, file2, checksum2));
+        when(archive.bitrepository.getChecksums(anyString(), anyString())).thenReturn(events);
+
+        addStep("Retrieve the checksums of the collection",
+                "Requests all the file ids and delivers the checksums of all the files");
+        Map<String, String> checksums = archive.getChecksums(collectionId);
+        Assert.assertEquals(checksums.size(), 2);
+        Assert.assertEquals(checksums.get(file1), checksum1);
+        Assert.assertEquals(checksums.get(file2), checksum2);
+
+        verify(archive.bitrepository).getChecksums((String) isNull(), eq(collectionId));
+        verifyNoMoreInteractions(archive.bitrepository);
+    }
+
+    @Test
+    public void testGetChecksumsDisagreement() {
+        addDescription("Test that files which the pillars do not agree upon are left out.");
+        BitmagArchive archive = createArchive();
+        Map<String, ChecksumsCompletePillarEvent> events = new HashMap<String, ChecksumsCompletePillarEvent>();
+        events.put(pillar1, makeEvent(pillar1, false, file1, checksum1, file2, checksum2));
+        events.put(pillar2, makeEvent(pillar2, false, file1, checksum1, file2, checksum3));
+        when(archive.bitrepository.getChecksums(anyString(), anyString())).thenReturn(events);
+
+        addStep("Retrieve the checksums of the collection", "Only the agreed checksum is delivered");
+        Map<String, String> checksums = archive.getChecksums(collectionId);
+        Assert.assertEquals(checksums.size(), 1);
+        Assert.assertEquals(checksums.get(file1), checksum1);
+        Assert.assertFalse(checksums.containsKey(file2));
+    }
+
+    @Test
+    public void testGetChecksumsPartialResult() {
+        addDescription("Test that only the files delivered by all the pillars are given, when a pillar only "
+                + "delivers a partial result.");
+        BitmagArchive archive = createArchive();
+        Map<String, ChecksumsCompletePillarEvent> events = new HashMap<String, ChecksumsCompletePillarEvent>();
+        events.put(pillar1, makeEvent(pillar1, false, file1, checksum1, file2, checksum2, file3, checksum3));
+        events.put(pillar2, makeEvent(pillar2, true, file1, checksum1, file2, checksum2));
+        when(archive.bitrepository.getChecksums(anyString(), anyString())).thenReturn(events);
+
+        addStep("Retrieve the checksums of the collection",
+                "The file missing from the partial result is left out");
+        Map<String, String> checksums = archive.getChecksums(collectionId);
+        Assert.assertEquals(checksums.size(), 2);
+        Assert.assertEquals(checksums.get(file1), checksum1);
+        Assert.assertEquals(checksums.get(file2), checksum2);
+        Assert.assertFalse(checksums.containsKey(file3));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testGetChecksumsNoResults() {
+        addDescription("Test that it fails, when no pillars deliver any results.");
+        BitmagArchive archive = createArchive();
+        when(archive.bitrepository.getChecksums(anyString(), anyString())).thenReturn(
+                new HashMap<String, ChecksumsCompletePillarEvent>());
+
+        archive.getChecksums(collectionId);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testGetChecksumsNullResults() {
+        addDescription("Test that it fails, when the bitrepository does not deliver a result.");
+        BitmagArchive archive = createArchive();
+        when(archive.bitrepository.getChecksums(anyString(), anyString())).thenReturn(null);
+
+        archive.getChecksums(collectionId);
+    }
+
+    protected BitmagArchive createArchive() {
+        BitmagArchive archive = mock(BitmagArchive.class);
+        archive.bitrepository = mock(Bitrepository.class);
+        when(archive.getChecksums(anyString())).thenCallRealMethod();
+        return archive;
+    }
+
+    protected ChecksumsCompletePillarEvent makeEvent(String pillarId, boolean partial, String ... fileIdsAndChecksums) {
+        ChecksumSpecTYPE checksumSpec = new ChecksumSpecTYPE();
+        checksumSpec.setChecksumType(ChecksumType.MD5);
+
+        ResultingChecksums result = new ResultingChecksums();
+        for(int i = 0; i < fileIdsAndChecksums.length; i += 2) {
+            ChecksumDataForChecksumSpecTYPE resultContent = new ChecksumDataForChecksumSpecTYPE();
+            resultContent.setFileID(fileIdsAndChecksums[i]);
+            resultContent.setCalculationTimestamp(CalendarUtils.getNow());
+            resultContent.setChecksumValue(Base16Utils.encodeBase16(fileIdsAndChecksums[i+1]));
+            result.getChecksumDataItems().add(resultContent);
+        }
+        return new ChecksumsCompletePillarEvent(pillarId, collectionId, result, checksumSpec, partial);
+    }
+}
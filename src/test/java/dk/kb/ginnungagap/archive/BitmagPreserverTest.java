@@ -1,15 +1,25 @@
 package dk.kb.ginnungagap.archive;
 
 import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusQuery;
 import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusRecordCollection;
+import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.MailDispatcher;
+import dk.kb.ginnungagap.config.BitmagConfiguration;
 import dk.kb.ginnungagap.config.TestBitmagConfiguration;
 import dk.kb.ginnungagap.config.TestConfiguration;
+import dk.kb.ginnungagap.cumulus.CumulusWrapper;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.FileDigests;
+import dk.kb.ginnungagap.utils.MetadataBuffer;
 import org.bitrepository.common.utils.FileUtils;
 import org.jaccept.structure.ExtendedTestCase;
 import org.jwat.common.Uri;
 import org.jwat.warc.WarcDigest;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -17,12 +27,24 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNotNull;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -128,6 +150,61 @@ public class BitmagPreserverTest extends ExtendedTestCase {
         verifyNoMoreInteractions(record);
     }
     
+    @Test
+    public void testPackRecordResourceWithDigests() {
+        addDescription("Test packing a Cumulus record resource with the digests of the file");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+
+        WarcPacker wp = mock(WarcPacker.class);
+        preserver.warcPackerForCollection.put(collectionId, wp);
+        
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        FileDigests digests = FileDigests.calculate(resourceFile, ChecksumUtils.MD5_ALGORITHM);
+
+        preserver.packRecordResource(record, digests);
+        
+        verifyZeroInteractions(archive);
+        
+        verify(wp).packRecordAssetFile(eq(record), eq(digests));
+        verify(wp).addRecordToPackagedList(eq(record));
+        verifyNoMoreInteractions(wp);
+        
+        verify(record).getFieldValue(eq(Constants.FieldNames.COLLECTION_ID));
+        verifyNoMoreInteractions(record);
+    }
+    
+    @Test
+    public void testPackBufferedMetadata() {
+        addDescription("Test packing buffered metadata for a Cumulus record and its representation");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+
+        WarcPacker wp = mock(WarcPacker.class);
+        preserver.warcPackerForCollection.put(collectionId, wp);
+        
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(record.getFieldValue(eq(Constants.FieldNames.GUID))).thenReturn(UUID.randomUUID().toString());
+        MetadataBuffer metadata = new MetadataBuffer(TestFileUtils.getTempDir(), 1024);
+        metadata.reset(UUID.randomUUID().toString());
+
+        preserver.packRecordMetadata(record, metadata);
+        preserver.packRepresentationMetadata(metadata, collectionId, null);
+        
+        verifyZeroInteractions(archive);
+        
+        verify(wp).packMetadata(eq(metadata), (Uri) isNotNull(), eq(metadata.getId()));
+        verify(wp).addRecordToMetadataPackagedList(eq(record));
+        verify(wp).packMetadata(eq(metadata), (Uri) isNull(), eq(metadata.getId()));
+        verifyNoMoreInteractions(wp);
+    }
+    
     @Test
     public void testPackRecordMetadataSuccess() {
         addDescription("Test packing a Cumulus record metadata");
@@ -247,9 +324,10 @@ public class BitmagPreserverTest extends ExtendedTestCase {
         verifyNoMoreInteractions(archive);
         
         verify(wp).getSize();
-        verify(wp, times(3)).getWarcFile();
+        verify(wp, times(2)).getWarcFile();
+        verify(wp).getWarcFileChecksum();
         verify(wp).close();
-        verify(wp).reportSucces(any(WarcDigest.class));
+        verify(wp).reportSucces(any(WarcDigest.class), any(CumulusWriteBack.class));
         verify(wp).hasContent();
         verifyNoMoreInteractions(wp);
     }
@@ -274,9 +352,10 @@ public class BitmagPreserverTest extends ExtendedTestCase {
         verify(archive).uploadFile(any(File.class), anyString());
         verifyNoMoreInteractions(archive);
         
-        verify(wp, times(3)).getWarcFile();
+        verify(wp, times(2)).getWarcFile();
+        verify(wp).getWarcFileChecksum();
         verify(wp).close();
-        verify(wp).reportFailure(anyString());
+        verify(wp).reportFailure(anyString(), any(CumulusWriteBack.class));
         verify(wp).hasContent();
         verifyNoMoreInteractions(wp);
     }
@@ -307,4 +386,345 @@ public class BitmagPreserverTest extends ExtendedTestCase {
         verify(wp).hasContent();
         verifyNoMoreInteractions(wp);
     }
+    
+    @Test
+    public void testPackagingWhileUploading() throws Exception {
+        addDescription("Test that the packaging continues for all collections, including the one being uploaded, "
+                + "while a warc file is being uploaded.");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        String otherCollectionId = "Other-collection-id";
+
+        WarcPacker wp = mock(WarcPacker.class);
+        preserver.warcPackerForCollection.put(collectionId, wp);
+        when(wp.getSize()).thenReturn(Long.MAX_VALUE);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.hasContent()).thenReturn(true);
+        
+        final CountDownLatch uploadStarted = new CountDownLatch(1);
+        final CountDownLatch uploadReleased = new CountDownLatch(1);
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                uploadStarted.countDown();
+                assertTrue(uploadReleased.await(1, TimeUnit.MINUTES));
+                return true;
+            }
+        }).when(archive).uploadFile(any(File.class), anyString());
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            addStep("Start uploading the full warc file", "The warc packer is replaced");
+            Future<?> upload = executor.submit(() -> preserver.checkConditions());
+            assertTrue(uploadStarted.await(1, TimeUnit.MINUTES));
+            Assert.assertFalse(preserver.warcPackerForCollection.containsValue(wp));
+            
+            addStep("Package metadata in both collections during the upload", "Packaged in new warc packers");
+            preserver.packRepresentationMetadata(metadataFile, collectionId, UUID.randomUUID().toString());
+            preserver.packRepresentationMetadata(metadataFile, otherCollectionId, UUID.randomUUID().toString());
+            WarcPacker newPacker = preserver.warcPackerForCollection.get(collectionId);
+            Assert.assertNotNull(newPacker);
+            Assert.assertNotSame(newPacker, wp);
+            assertTrue(newPacker.hasContent());
+            assertTrue(preserver.warcPackerForCollection.get(otherCollectionId).hasContent());
+            Assert.assertFalse(upload.isDone());
+            
+            addStep("Finish the upload", "Only the old warc packer is reported");
+            uploadReleased.countDown();
+            upload.get(1, TimeUnit.MINUTES);
+            verify(wp).close();
+            verify(wp).reportSucces(any(WarcDigest.class), any(CumulusWriteBack.class));
+            Assert.assertSame(preserver.warcPackerForCollection.get(collectionId), newPacker);
+        } finally {
+            uploadReleased.countDown();
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testBackgroundUpload() throws Exception {
+        addDescription("Test that the full warc files are uploaded in the background through a bounded queue, "
+                + "and that the records are reported when the uploads finish.");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        conf.setBitmagConfiguration(new BitmagConfiguration(TestFileUtils.getTempDir(), null, 1, 1000000, 
+                TestFileUtils.getTempDir(), "SHA-1", 1, 1));
+
+        WarcPacker[] packers = new WarcPacker[3];
+        for(int i = 0; i < packers.length; i++) {
+            packers[i] = mock(WarcPacker.class);
+            when(packers[i].getSize()).thenReturn(Long.MAX_VALUE);
+            when(packers[i].getWarcFile()).thenReturn(warcFile);
+            when(packers[i].hasContent()).thenReturn(true);
+            preserver.warcPackerForCollection.put(collectionId + i, packers[i]);
+        }
+        
+        final CountDownLatch uploadStarted = new CountDownLatch(1);
+        final CountDownLatch uploadReleased = new CountDownLatch(1);
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                uploadStarted.countDown();
+                assertTrue(uploadReleased.await(1, TimeUnit.MINUTES));
+                return true;
+            }
+        }).when(archive).uploadFile(any(File.class), anyString());
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            addStep("Check the conditions with three full warc files", 
+                    "One is uploaded, one is queued, and the third waits for room in the queue");
+            Future<?> check = executor.submit(() -> preserver.checkConditions());
+            assertTrue(uploadStarted.await(1, TimeUnit.MINUTES));
+            while(preserver.getNumberOfPendingUploads() < 3) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(preserver.getUploadQueueDepth(), 1);
+            Assert.assertFalse(check.isDone());
+            
+            addStep("Finish the uploads", "All the warc files are uploaded and reported");
+            uploadReleased.countDown();
+            check.get(1, TimeUnit.MINUTES);
+            preserver.waitForUploads();
+            Assert.assertEquals(preserver.getNumberOfPendingUploads(), 0);
+            Assert.assertEquals(preserver.getUploadQueueDepth(), 0);
+            verify(archive, times(3)).uploadFile(eq(warcFile), anyString());
+            for(WarcPacker wp : packers) {
+                verify(wp).close();
+                verify(wp).reportSucces(any(WarcDigest.class), any(CumulusWriteBack.class));
+            }
+        } finally {
+            uploadReleased.countDown();
+            executor.shutdownNow();
+            preserver.shutDown();
+        }
+    }
+    
+    @Test
+    public void testBackgroundUploadFailure() throws Exception {
+        addDescription("Test that the records are reported as failed, when a background upload fails.");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        conf.setBitmagConfiguration(new BitmagConfiguration(TestFileUtils.getTempDir(), null, 1, 1000000, 
+                TestFileUtils.getTempDir(), "SHA-1", 1, 1));
+
+        WarcPacker wp = mock(WarcPacker.class);
+        preserver.warcPackerForCollection.put(collectionId, wp);
+        when(wp.getWarcFile()).thenReturn(warcFile);
+        when(wp.hasContent()).thenReturn(true);
+        doThrow(new IllegalStateException("Upload failure")).when(archive).uploadFile(any(File.class), anyString());
+        
+        try {
+            preserver.uploadAll();
+            preserver.waitForUploads();
+            
+            Assert.assertEquals(preserver.getNumberOfPendingUploads(), 0);
+            verify(wp).close();
+            verify(wp).reportFailure(anyString(), any(CumulusWriteBack.class));
+            Assert.assertTrue(preserver.warcPackerForCollection.isEmpty());
+        } finally {
+            preserver.shutDown();
+        }
+    }
+    
+    @Test
+    public void testPackRecordAsTransaction() throws Exception {
+        addDescription("Test packaging a record as a transaction, which succeeds");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        
+        preserver.packRecordAsTransaction(record, () -> preserver.packRepresentationMetadata(metadataFile, 
+                collectionId, UUID.randomUUID().toString()));
+        
+        WarcPacker wp = preserver.warcPackerForCollection.get(collectionId);
+        Assert.assertNotNull(wp);
+        Assert.assertFalse(wp.isClosed());
+        assertTrue(wp.hasContent());
+        verifyZeroInteractions(archive);
+    }
+    
+    @Test
+    public void testPackRecordAsTransactionFailure() throws Exception {
+        addDescription("Test that a record, whose packaging fails after writing to the WARC file, is rolled back, "
+                + "and that the WARC file is uploaded without the data of the record");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        
+        final List<Long> uploadedSizes = new ArrayList<Long>();
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                uploadedSizes.add(((File) invocation.getArguments()[0]).length());
+                return true;
+            }
+        }).when(archive).uploadFile(any(File.class), anyString());
+        
+        addStep("Package metadata, which is not part of the record", "Packaged in the WARC file");
+        preserver.packRepresentationMetadata(metadataFile, collectionId, UUID.randomUUID().toString());
+        WarcPacker wp = preserver.warcPackerForCollection.get(collectionId);
+        long sizeBeforeRecord = wp.getSize();
+        
+        addStep("Package the record as a transaction, which fails after writing metadata", 
+                "The failure is thrown, and the WARC file is truncated, closed and uploaded");
+        IllegalStateException failure = new IllegalStateException("THIS MUST FAIL");
+        try {
+            preserver.packRecordAsTransaction(record, () -> {
+                preserver.packRepresentationMetadata(metadataFile, collectionId, UUID.randomUUID().toString());
+                throw failure;
+            });
+            Assert.fail("The failure must be thrown");
+        } catch (IllegalStateException e) {
+            Assert.assertSame(e, failure);
+        }
+        
+        assertTrue(wp.isClosed());
+        Assert.assertFalse(preserver.warcPackerForCollection.containsValue(wp));
+        verify(archive).uploadFile(eq(wp.getWarcFile()), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+        Assert.assertEquals(uploadedSizes.size(), 1);
+        Assert.assertEquals(uploadedSizes.get(0).longValue(), sizeBeforeRecord);
+        Assert.assertEquals(wp.getWarcFileChecksum().digestString, 
+                ChecksumUtils.calculateChecksum(wp.getWarcFile(), ChecksumUtils.MD5_ALGORITHM).digestString);
+    }
+    
+    @Test
+    public void testPackRecordAsTransactionFailureBeforeWriting() throws Exception {
+        addDescription("Test that the Warc packer is kept, when the packaging of a record fails before anything "
+                + "has been written to the WARC file");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        WarcPacker wp = preserver.getWarcPacker(collectionId);
+        
+        try {
+            preserver.packRecordAsTransaction(record, () -> {
+                throw new IOException("THIS MUST FAIL");
+            });
+            Assert.fail("The failure must be thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        
+        Assert.assertFalse(wp.isClosed());
+        Assert.assertSame(preserver.warcPackerForCollection.get(collectionId), wp);
+        verifyZeroInteractions(archive);
+    }
+    
+    @Test
+    public void testRecoverWarcFiles() throws Exception {
+        addDescription("Test that the WARC files left with journals in the temporary directory are recovered and "
+                + "uploaded to their collections, before the first preservation run, and only then");
+        File dir = new File(TestFileUtils.getTempDir(), "recover-" + UUID.randomUUID().toString());
+        assertTrue(dir.mkdirs());
+        conf.setBitmagConfiguration(new BitmagConfiguration(dir, null, 1, 1000000, dir, "SHA-1"));
+        conf.getBitmagConf().setJournalSyncRecords(1);
+        
+        addStep("Package and commit metadata in a WARC packer, which is never uploaded", 
+                "The packaging is journaled and synced");
+        WarcPacker leftPacker = new WarcPacker(conf.getBitmagConf(), null, collectionId);
+        WarcPacker.Savepoint savepoint = leftPacker.createSavepoint();
+        leftPacker.packMetadata(metadataFile, null, UUID.randomUUID().toString());
+        leftPacker.commit(savepoint);
+        long leftSize = leftPacker.getSize();
+        WarcPacker emptyPacker = new WarcPacker(conf.getBitmagConf(), null, collectionId);
+        Assert.assertEquals(WarcPackingJournal.findJournals(dir).size(), 2);
+        
+        addStep("Recover with a new preserver", "The WARC file with content is uploaded, the empty WARC file is "
+                + "deleted, and the journals are deleted");
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        when(archive.uploadFile(any(File.class), anyString())).thenReturn(true);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        preserver.recoverWarcFiles();
+        
+        verify(archive).uploadFile(eq(leftPacker.getWarcFile()), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+        Assert.assertEquals(leftPacker.getWarcFile().length(), leftSize);
+        Assert.assertFalse(emptyPacker.getWarcFile().exists());
+        Assert.assertTrue(WarcPackingJournal.findJournals(dir).isEmpty());
+        Assert.assertTrue(preserver.warcPackerForCollection.isEmpty());
+        
+        addStep("Journal another WARC packer, and recover again", "Nothing is recovered the second time");
+        WarcPacker laterPacker = new WarcPacker(conf.getBitmagConf(), null, collectionId);
+        laterPacker.packMetadata(metadataFile, null, UUID.randomUUID().toString());
+        preserver.recoverWarcFiles();
+        
+        verifyNoMoreInteractions(archive);
+        Assert.assertEquals(WarcPackingJournal.findJournals(dir).size(), 1);
+    }
+    
+    @Test
+    public void testRecoverUploadedWarcFile() throws Exception {
+        addDescription("Test that a WARC file, which was uploaded before its records were written back, is not "
+                + "uploaded again, when it is recovered");
+        File dir = new File(TestFileUtils.getTempDir(), "recover-" + UUID.randomUUID().toString());
+        assertTrue(dir.mkdirs());
+        conf.setBitmagConfiguration(new BitmagConfiguration(dir, null, 1, 1000000, dir, "SHA-1"));
+        String catalogName = "test-catalog";
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        when(record.getUUID()).thenReturn(UUID.randomUUID().toString());
+        WarcPacker uploadedPacker = new WarcPacker(conf.getBitmagConf(), null, collectionId);
+        uploadedPacker.packMetadata(metadataFile, null, UUID.randomUUID().toString());
+        uploadedPacker.addRecordToMetadataPackagedList(record);
+        uploadedPacker.close();
+        assertTrue(uploadedPacker.getWarcFile().delete());
+        uploadedPacker.reportSucces(uploadedPacker.getWarcFileChecksum(), new WarcPackerTest.UnfinishedWriteBack());
+        Assert.assertEquals(WarcPackingJournal.findJournals(dir).size(), 1);
+        
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        when(items.iterator()).thenReturn(Arrays.asList(record).iterator());
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+        CumulusWrapper cumulusWrapper = mock(CumulusWrapper.class);
+        when(cumulusWrapper.getServer()).thenReturn(server);
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        preserver.cumulusWrapper = cumulusWrapper;
+        preserver.recoverWarcFiles();
+        
+        verifyZeroInteractions(archive);
+        verify(record).setStringValueInField(eq(Constants.FieldNames.METADATA_PACKAGE_ID), 
+                eq(uploadedPacker.getWarcFile().getName()));
+        Assert.assertTrue(WarcPackingJournal.findJournals(dir).isEmpty());
+    }
+    
+    @Test
+    public void testRecoverWarcFilesFailure() throws Exception {
+        addDescription("Test that a WARC file, which cannot be recovered, is left with its journal");
+        File dir = new File(TestFileUtils.getTempDir(), "recover-" + UUID.randomUUID().toString());
+        assertTrue(dir.mkdirs());
+        conf.setBitmagConfiguration(new BitmagConfiguration(dir, null, 1, 1000000, dir, "SHA-1"));
+        WarcPackingJournal journal = WarcPackingJournal.createJournal(dir, UUID.randomUUID().toString(), 
+                collectionId);
+        
+        ArchiveWrapper archive = mock(ArchiveWrapper.class);
+        BitmagPreserver preserver = new BitmagPreserver();
+        preserver.archive = archive;
+        preserver.conf = conf;
+        preserver.recoverWarcFiles();
+        
+        verifyZeroInteractions(archive);
+        assertTrue(journal.getJournalFile().isFile());
+    }
 }
@@ -0,0 +1,229 @@
+package dk.kb.ginnungagap.archive;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.ginnungagap.cumulus.CachedCumulusRecord;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+public class CumulusWriteBackTest extends ExtendedTestCase {
+
+    @Test
+    public void testWriteBackWithoutThreads() throws Exception {
+        addDescription("Test that the records are written back by the current thread, when there are no threads.");
+        CumulusWriteBack writeBack = new CumulusWriteBack(0, 2, 0);
+        List<CumulusRecord> records = createRecords(5);
+        Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+
+        writeBack.writeBack("test", records, r -> {
+            threads.add(Thread.currentThread().getName());
+            r.setStringValueInField(Constants.FieldNames.QA_ERROR, "");
+        });
+
+        Assert.assertEquals(writeBack.getNumberOfPendingBatches(), 0);
+        Assert.assertEquals(threads, Collections.singleton(Thread.currentThread().getName()));
+        Assert.assertEquals(writeBack.getSubmittedRecords(), 5L);
+        Assert.assertEquals(writeBack.getUpdatedRecords(), 5L);
+        Assert.assertEquals(writeBack.getFailedRecords(), 0L);
+        for(CumulusRecord record : records) {
+            verify(record).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq(""));
+            verifyNoMoreInteractions(record);
+        }
+    }
+
+    @Test
+    public void testWriteBackInParallelBatches() throws Exception {
+        addDescription("Test that the batches are written back concurrently by the write-back threads.");
+        CumulusWriteBack writeBack = new CumulusWriteBack(3, 2, 0);
+        List<CumulusRecord> records = createRecords(6);
+        CountDownLatch allBatchesStarted = new CountDownLatch(3);
+        AtomicInteger maxConcurrentBatches = new AtomicInteger(0);
+        AtomicInteger concurrentBatches = new AtomicInteger(0);
+        try {
+            addStep("Write back 6 records in batches of 2, where every batch waits for the others to start",
+                    "The three batches are written back at the same time, by other threads");
+            writeBack.writeBack("test", records, r -> {
+                if(records.indexOf(r) % 2 == 0) {
+                    maxConcurrentBatches.accumulateAndGet(concurrentBatches.incrementAndGet(), Math::max);
+                    allBatchesStarted.countDown();
+                    try {
+                        allBatchesStarted.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                } else {
+                    concurrentBatches.decrementAndGet();
+                }
+            });
+            writeBack.waitForWriteBacks();
+
+            Assert.assertEquals(allBatchesStarted.getCount(), 0L);
+            Assert.assertEquals(maxConcurrentBatches.get(), 3);
+            Assert.assertEquals(writeBack.getUpdatedRecords(), 6L);
+            Assert.assertEquals(writeBack.getNumberOfPendingBatches(), 0);
+        } finally {
+            writeBack.shutDown();
+        }
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        addDescription("Test that a failed update is retried, and that a record is failed, when out of retries.");
+        CumulusWriteBack writeBack = new CumulusWriteBack(0, 10, 2);
+        writeBack.setRetryDelay(0L);
+        CumulusRecord record1 = mock(CumulusRecord.class);
+        CumulusRecord record2 = mock(CumulusRecord.class);
+        CumulusRecord record3 = mock(CumulusRecord.class);
+        doThrow(new IllegalStateException("THIS MUST FAIL")).doNothing().when(record1)
+                .setStringValueInField(anyString(), anyString());
+        doThrow(new IllegalStateException("THIS MUST FAIL")).when(record2)
+                .setStringValueInField(anyString(), anyString());
+        List<CumulusRecord> records = new ArrayList<CumulusRecord>();
+        records.add(record1);
+        records.add(record2);
+        records.add(record3);
+
+        writeBack.writeBack("test", records, r -> r.setStringValueInField(Constants.FieldNames.QA_ERROR, ""));
+
+        verify(record1, times(2)).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq(""));
+        verify(record2, times(3)).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq(""));
+        verify(record3).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq(""));
+        Assert.assertEquals(writeBack.getUpdatedRecords(), 2L);
+        Assert.assertEquals(writeBack.getFailedRecords(), 1L);
+        Assert.assertEquals(writeBack.getRetriedUpdates(), 3L);
+        Assert.assertEquals(writeBack.getNumberOfPendingBatches(), 0);
+    }
+
+    @Test
+    public void testResolveRecords() throws Exception {
+        addDescription("Test that the records of the items are resolved as part of the update, and that a failure "
+                + "to resolve a record is retried like a failed update.");
+        CumulusWriteBack writeBack = new CumulusWriteBack(0, 10, 1);
+        writeBack.setRetryDelay(0L);
+        CumulusRecord record = mock(CumulusRecord.class);
+        List<String> items = new ArrayList<String>();
+        items.add("found");
+        items.add("missing");
+
+        writeBack.writeBack("test", items, item -> {
+            if(item.equals("missing")) {
+                throw new IllegalStateException("THIS MUST FAIL");
+            }
+            return record;
+        }, r -> r.setStringValueInField(Constants.FieldNames.QA_ERROR, ""));
+
+        verify(record).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq(""));
+        verifyNoMoreInteractions(record);
+        Assert.assertEquals(writeBack.getSubmittedRecords(), 2L);
+        Assert.assertEquals(writeBack.getUpdatedRecords(), 1L);
+        Assert.assertEquals(writeBack.getFailedRecords(), 1L);
+        Assert.assertEquals(writeBack.getRetriedUpdates(), 1L);
+    }
+
+    @Test
+    public void testFlushCachedRecords() throws Exception {
+        addDescription("Test that the field writes of a cached record are flushed as part of the update.");
+        CumulusWriteBack writeBack = new CumulusWriteBack(0, 10, 0);
+        CumulusRecord record = mock(CumulusRecord.class);
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+        List<CumulusRecord> records = new ArrayList<CumulusRecord>();
+        records.add(cachedRecord);
+
+        writeBack.writeBack("test", records, r -> r.setStringValueInField(Constants.FieldNames.QA_ERROR, ""));
+
+        Assert.assertEquals(cachedRecord.getPendingWrites(), 0);
+        verify(record).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq(""));
+        verifyNoMoreInteractions(record);
+    }
+
+    @Test
+    public void testNoRecords() throws Exception {
+        addDescription("Test that nothing is submitted, when there are no records.");
+        CumulusWriteBack writeBack = new CumulusWriteBack(1, 10, 0);
+        try {
+            writeBack.writeBack("test", new ArrayList<CumulusRecord>(), r -> Assert.fail("No records"));
+            writeBack.waitForWriteBacks();
+            Assert.assertEquals(writeBack.getSubmittedRecords(), 0L);
+        } finally {
+            writeBack.shutDown();
+        }
+    }
+
+    @Test
+    public void testGroup() throws Exception {
+        addDescription("Test that the action of a group is run, when all the batches of the group have been "
+                + "written back.");
+        CumulusWriteBack writeBack = new CumulusWriteBack(2, 2, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger actions = new AtomicInteger(0);
+        try {
+            addStep("Submit two write-backs in a group, where the batches wait", "The action is not run");
+            CumulusWriteBack.Group group = new CumulusWriteBack.Group(() -> actions.incrementAndGet());
+            Consumer<CumulusRecord> update = r -> {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            };
+            writeBack.writeBack("test", createRecords(3), r -> r, update, group);
+            writeBack.writeBack("test", createRecords(1), r -> r, update, group);
+            group.allSubmitted();
+            Assert.assertEquals(actions.get(), 0);
+            Assert.assertFalse(group.isWrittenBack());
+
+            addStep("Let the batches finish", "The action has been run once, before the write-backs have finished");
+            release.countDown();
+            writeBack.waitForWriteBacks();
+            Assert.assertEquals(actions.get(), 1);
+            Assert.assertTrue(group.isWrittenBack());
+        } finally {
+            writeBack.shutDown();
+        }
+    }
+
+    @Test
+    public void testGroupWithoutRecords() throws Exception {
+        addDescription("Test that the action of a group without records is run, when the submission ends.");
+        CumulusWriteBack writeBack = new CumulusWriteBack(0, 2, 0);
+        AtomicInteger actions = new AtomicInteger(0);
+        CumulusWriteBack.Group group = new CumulusWriteBack.Group(() -> actions.incrementAndGet());
+        writeBack.writeBack("test", new ArrayList<CumulusRecord>(), r -> r, r -> Assert.fail("No records"), group);
+        Assert.assertEquals(actions.get(), 0);
+        group.allSubmitted();
+        Assert.assertEquals(actions.get(), 1);
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testInvalidBatchSize() {
+        addDescription("Test that the batch size must be positive.");
+        new CumulusWriteBack(1, 0, 0);
+    }
+
+    /**
+     * @param count The number of records.
+     * @return The list of mocked records.
+     */
+    protected List<CumulusRecord> createRecords(int count) {
+        List<CumulusRecord> records = new ArrayList<CumulusRecord>();
+        for(int i = 0; i < count; i++) {
+            records.add(mock(CumulusRecord.class));
+        }
+        return records;
+    }
+}
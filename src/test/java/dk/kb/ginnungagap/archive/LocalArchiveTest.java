@@ -2,6 +2,10 @@ package dk.kb.ginnungagap.archive;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.UUID;
 
 import org.bitrepository.common.utils.FileUtils;
@@ -74,4 +78,46 @@ public class LocalArchiveTest extends ExtendedTestCase {
         String checksum = archive.getChecksum(id, collectionId);
         Assert.assertEquals(checksum, expectedChecksum);
     }
+    
+    @Test
+    public void testGetChecksums() throws Exception {
+        addDescription("Test retrieving the checksums of all the files in a collection.");
+        File archiveBaseDir = FileUtils.retrieveSubDirectory(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        File collectionDir = FileUtils.retrieveSubDirectory(archiveBaseDir, collectionId);
+        Archive archive = new LocalArchive(archiveBaseDir);
+        
+        String id1 = UUID.randomUUID().toString();
+        String id2 = UUID.randomUUID().toString();
+        String expectedChecksum = "37e9a7db97d6050911038d72b0f0585c";
+        
+        File src = new File("src/test/resources/test-resource.txt");
+        FileUtils.copyFile(src, new File(collectionDir, id1));
+        FileUtils.copyFile(src, new File(collectionDir, id2));
+        FileUtils.retrieveSubDirectory(collectionDir, UUID.randomUUID().toString());
+        
+        Map<String, String> checksums = archive.getChecksums(collectionId);
+        Assert.assertEquals(checksums.size(), 2);
+        Assert.assertEquals(checksums.get(id1), expectedChecksum);
+        Assert.assertEquals(checksums.get(id2), expectedChecksum);
+    }
+    
+    @Test
+    public void testOpenRange() throws Exception {
+        addDescription("Test reading a range of a file in the archive.");
+        File archiveBaseDir = FileUtils.retrieveSubDirectory(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        File collectionDir = FileUtils.retrieveSubDirectory(archiveBaseDir, collectionId);
+        Archive archive = new LocalArchive(archiveBaseDir);
+        
+        String id = UUID.randomUUID().toString();
+        File src = new File("src/test/resources/test-resource.txt");
+        FileUtils.copyFile(src, new File(collectionDir, id));
+        byte[] expected = Files.readAllBytes(src.toPath());
+        
+        try (InputStream in = archive.openRange(id, collectionId, 2L, 5L)) {
+            byte[] range = new byte[10];
+            Assert.assertEquals(in.read(range), 5);
+            Assert.assertEquals(Arrays.copyOf(range, 5), Arrays.copyOfRange(expected, 2, 7));
+            Assert.assertEquals(in.read(), -1);
+        }
+    }
 }
@@ -0,0 +1,199 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.common.ContentType;
+import org.jwat.common.HeaderLine;
+import org.jwat.common.Uri;
+import org.jwat.warc.WarcConstants;
+import org.jwat.warc.WarcDigest;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.yggdrasil.warc.WarcWriterWrapper;
+
+public class WarcFileWriterTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() throws IOException {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testWriteRecords() throws Exception {
+        addDescription("Test that the records are written to the WARC file, while the WARC file is digested");
+        MessageDigest digest = MessageDigest.getInstance(ChecksumUtils.MD5_ALGORITHM);
+        String warcFileId = UUID.randomUUID().toString();
+        String resourceUuid = UUID.randomUUID().toString();
+        String metadataUuid = UUID.randomUUID().toString();
+        byte[] payload = "The payload of the records".getBytes(StandardCharsets.UTF_8);
+        ContentType contentType = ContentType.parseContentType("text/plain");
+
+        addStep("Write a warc-info, a resource and a metadata record", "The size grows with each record");
+        WarcFileWriter writer = WarcFileWriter.createWriter(TestFileUtils.getTempDir(), warcFileId, digest);
+        Assert.assertEquals(writer.getWarcFileId(), warcFileId);
+        Assert.assertEquals(writer.getWarcFileSize(), 0L);
+        Uri warcinfoId = writer.writeWarcinfoRecord(payload, null);
+        long warcinfoSize = writer.getWarcFileSize();
+        Assert.assertTrue(warcinfoSize > payload.length);
+        Uri resourceId = writer.writeResourceRecord(new ByteArrayInputStream(payload), payload.length, contentType,
+                ChecksumUtils.calculateChecksum(new ByteArrayInputStream(payload), ChecksumUtils.MD5_ALGORITHM),
+                resourceUuid);
+        Assert.assertTrue(writer.getWarcFileSize() > warcinfoSize + payload.length);
+        writer.sync();
+        writer.writeMetadataRecord(new ByteArrayInputStream(payload), payload.length, contentType, resourceId, null,
+                metadataUuid, resourceUuid);
+        writer.close();
+
+        addStep("Compare the running digest with the checksum of the WARC file", "Identical");
+        File warcFile = writer.getWarcFile();
+        Assert.assertEquals(ChecksumUtils.createWarcDigest(ChecksumUtils.MD5_ALGORITHM, digest.digest()).digestString,
+                ChecksumUtils.calculateChecksum(warcFile, ChecksumUtils.MD5_ALGORITHM).digestString);
+
+        addStep("Read the WARC file", "The records have the given ids and references");
+        try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(warcFile))) {
+            WarcRecord record = reader.getNextRecord();
+            Assert.assertEquals(record.header.warcTypeStr, WarcConstants.RT_WARCINFO);
+            Assert.assertEquals(record.header.warcFilename, warcFileId);
+            record = reader.getNextRecord();
+            Assert.assertEquals(record.header.warcTypeStr, WarcConstants.RT_RESOURCE);
+            Assert.assertTrue(record.header.warcRecordIdStr.contains(resourceUuid));
+            Assert.assertTrue(record.header.warcWarcinfoIdStr.contains(warcinfoId.toString()));
+            record = reader.getNextRecord();
+            Assert.assertEquals(record.header.warcTypeStr, WarcConstants.RT_METADATA);
+            Assert.assertTrue(record.header.warcRecordIdStr.contains(metadataUuid));
+            Assert.assertTrue(record.header.warcRefersToStr.contains(resourceUuid));
+            Assert.assertNull(reader.getNextRecord());
+        }
+    }
+
+    @Test
+    public void testSameHeadersAsYggdrasil() throws Exception {
+        addDescription("Test that the records have the same headers, as when they are written by the WARC writer "
+                + "wrapper of Yggdrasil, thus the archived WARC format does not change");
+        String warcFileId = UUID.randomUUID().toString();
+        File yggdrasilDir = new File(TestFileUtils.getTempDir(), "yggdrasil-" + UUID.randomUUID().toString());
+        File writerDir = new File(TestFileUtils.getTempDir(), "writer-" + UUID.randomUUID().toString());
+        Assert.assertTrue(yggdrasilDir.mkdirs());
+        Assert.assertTrue(writerDir.mkdirs());
+        byte[] payload = "The payload of the records".getBytes(StandardCharsets.UTF_8);
+        WarcDigest blockDigest = ChecksumUtils.calculateChecksum(new ByteArrayInputStream(payload), 
+                ChecksumUtils.MD5_ALGORITHM);
+        ContentType resourceType = ContentType.parseContentType("application/octetstream");
+        ContentType metadataType = ContentType.parseContentType(WarcPacker.METADATA_CONTENT_TYPE);
+        String resourceUuid = UUID.randomUUID().toString();
+        String metadataRecordId = UUID.randomUUID().toString();
+        String metadataUuid = UUID.randomUUID().toString();
+        String representationRecordId = UUID.randomUUID().toString();
+        String representationUuid = UUID.randomUUID().toString();
+
+        addStep("Write the same warc-info, resource and metadata records with both writers", 
+                "Two WARC files with the same id");
+        WarcWriterWrapper yggdrasilWriter = WarcWriterWrapper.getWriter(yggdrasilDir, warcFileId);
+        yggdrasilWriter.writeWarcinfoRecord(payload, blockDigest);
+        Uri yggdrasilResourceId = yggdrasilWriter.writeResourceRecord(new ByteArrayInputStream(payload), 
+                payload.length, resourceType, blockDigest, resourceUuid);
+        yggdrasilWriter.writeMetadataRecord(new ByteArrayInputStream(payload), payload.length, metadataType, 
+                yggdrasilResourceId, blockDigest, metadataRecordId, metadataUuid);
+        yggdrasilWriter.writeMetadataRecord(new ByteArrayInputStream(payload), payload.length, metadataType, 
+                null, blockDigest, representationRecordId, representationUuid);
+        yggdrasilWriter.close();
+
+        WarcFileWriter writer = WarcFileWriter.createWriter(writerDir, warcFileId, 
+                MessageDigest.getInstance(ChecksumUtils.MD5_ALGORITHM));
+        writer.writeWarcinfoRecord(payload, blockDigest);
+        Uri resourceId = writer.writeResourceRecord(new ByteArrayInputStream(payload), payload.length, 
+                resourceType, blockDigest, resourceUuid);
+        writer.writeMetadataRecord(new ByteArrayInputStream(payload), payload.length, metadataType, resourceId, 
+                blockDigest, metadataRecordId, metadataUuid);
+        writer.writeMetadataRecord(new ByteArrayInputStream(payload), payload.length, metadataType, null, 
+                blockDigest, representationRecordId, representationUuid);
+        writer.close();
+
+        addStep("Compare the headers of the WARC files record by record", 
+                "The same headers with the same values, except for the dates and the random warc-info ids");
+        List<WarcRecord> yggdrasilRecords = readRecords(new File(yggdrasilDir, warcFileId));
+        List<WarcRecord> records = readRecords(writer.getWarcFile());
+        Assert.assertEquals(records.size(), 4);
+        Assert.assertEquals(records.size(), yggdrasilRecords.size());
+        String yggdrasilWarcinfoId = yggdrasilRecords.get(0).header.warcRecordIdStr;
+        String warcinfoId = records.get(0).header.warcRecordIdStr;
+        for(int i = 0; i < records.size(); i++) {
+            WarcRecord yggdrasilRecord = yggdrasilRecords.get(i);
+            WarcRecord record = records.get(i);
+            Assert.assertEquals(getHeaderNames(record), getHeaderNames(yggdrasilRecord), 
+                    "Headers of record " + i);
+            for(HeaderLine line : yggdrasilRecord.header.getHeaderList()) {
+                String value = record.header.getHeader(line.name).value;
+                if(line.name.equalsIgnoreCase(WarcConstants.FN_WARC_DATE)) {
+                    Assert.assertNotNull(value);
+                } else if(line.name.equalsIgnoreCase(WarcConstants.FN_WARC_WARCINFO_ID)) {
+                    Assert.assertEquals(line.value, yggdrasilWarcinfoId);
+                    Assert.assertEquals(value, warcinfoId);
+                } else if(i == 0 && line.name.equalsIgnoreCase(WarcConstants.FN_WARC_RECORD_ID)) {
+                    Assert.assertNotNull(value);
+                } else {
+                    Assert.assertEquals(value, line.value, "Header '" + line.name + "' of record " + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param warcFile The WARC file.
+     * @return The records of the WARC file, with their headers.
+     */
+    protected List<WarcRecord> readRecords(File warcFile) throws IOException {
+        List<WarcRecord> res = new ArrayList<WarcRecord>();
+        try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(warcFile))) {
+            WarcRecord record;
+            while((record = reader.getNextRecord()) != null) {
+                res.add(record);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @param record The WARC record.
+     * @return The sorted names of the headers of the record.
+     */
+    protected List<String> getHeaderNames(WarcRecord record) {
+        List<String> res = new ArrayList<String>();
+        for(HeaderLine line : record.header.getHeaderList()) {
+            res.add(line.name);
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testCreateWriterForExistingFile() throws Exception {
+        addDescription("Test that the writer cannot overwrite an existing WARC file");
+        File warcFile = TestFileUtils.createFileWithContent("existing WARC file");
+        WarcFileWriter.createWriter(warcFile.getParentFile(), warcFile.getName(),
+                MessageDigest.getInstance(ChecksumUtils.MD5_ALGORITHM));
+    }
+}
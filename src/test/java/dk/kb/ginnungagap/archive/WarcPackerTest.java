@@ -4,36 +4,65 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertTrue;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.apache.commons.io.FileUtils;
 import org.jaccept.structure.ExtendedTestCase;
 import org.jwat.common.ContentType;
 import org.jwat.common.Uri;
 import org.jwat.warc.WarcDigest;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusQuery;
 import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusRecordCollection;
+import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.config.BitmagConfiguration;
+import dk.kb.ginnungagap.cumulus.CachedCumulusRecord;
+import dk.kb.ginnungagap.cumulus.CumulusRecordHandle;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.testutils.BenchmarkUtils;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.FileDigests;
+import dk.kb.ginnungagap.utils.MetadataBuffer;
+import dk.kb.ginnungagap.utils.WarcUtils;
 import dk.kb.yggdrasil.warc.Digest;
 
 public class WarcPackerTest extends ExtendedTestCase {
 
+    /** The system property for the number of records in the benchmark.*/
+    static final String BENCHMARK_RECORDS_PROPERTY = "ginnungagap.benchmark.records";
+    /** The default number of records in the benchmark.*/
+    static final int DEFAULT_BENCHMARK_RECORDS = 50000;
+    /** The size of the state of each record in the Cumulus SDK in the benchmark.*/
+    static final int BENCHMARK_RECORD_SIZE = 1024;
+    
     File testFile;
     BitmagConfiguration conf;
+    String collectionId = "test-collection-id";
     
     @BeforeClass
     public void setup() throws IOException {
@@ -65,6 +94,94 @@ public class WarcPackerTest extends ExtendedTestCase {
         assertTrue(wp.getSize() > 2 * testFile.length()); 
     }
     
+    @Test
+    public void testPackagingBufferedMetadata() throws Exception {
+        addDescription("Test packaging metadata directly from a metadata buffer");
+        
+        WarcPacker wp = new WarcPacker(conf);
+        long origSize = wp.getSize();
+        MetadataBuffer metadata = new MetadataBuffer(TestFileUtils.getTempDir(), 1024);
+        metadata.reset(UUID.randomUUID().toString());
+        FileUtils.copyFile(testFile, metadata);
+        metadata.close();
+        
+        wp.packMetadata(metadata, new Uri("urn:uuid:" + UUID.randomUUID().toString()), metadata.getId());
+        
+        assertTrue(wp.hasContent());
+        assertTrue(wp.getSize() > origSize + testFile.length());
+    }
+    
+    @Test
+    public void testRecordIndex() throws Exception {
+        addDescription("Test that the offset of each record is indexed, while the records are written");
+        
+        WarcPacker wp = new WarcPacker(conf);
+        Digest digestor = new Digest(conf.getAlgorithm());
+        WarcDigest wd = digestor.getDigestOfFile(testFile);
+        String resourceId = UUID.randomUUID().toString();
+        String metadataId = UUID.randomUUID().toString();
+        MetadataBuffer metadata = new MetadataBuffer(TestFileUtils.getTempDir(), 1024);
+        metadata.reset(UUID.randomUUID().toString());
+        FileUtils.copyFile(testFile, metadata);
+        metadata.close();
+        
+        wp.packResource(testFile, wd, ContentType.parseContentType("application/octetstream"), resourceId);
+        wp.packMetadata(testFile, new Uri("urn:uuid:" + resourceId), metadataId);
+        wp.packMetadata(metadata, new Uri("urn:uuid:" + resourceId), metadata.getId());
+        wp.close();
+        
+        addStep("Load the index of the WARC file from the index directory", "It contains the three records");
+        WarcRecordIndex index = WarcRecordIndex.getIndex(conf.getIndexDir(), wp.getWarcFile().getName());
+        Assert.assertNotNull(index);
+        Assert.assertEquals(index.size(), 3);
+        
+        addStep("Read each record from its offset", "The first record read is the indexed record");
+        long end = 0L;
+        for(String id : new String[]{resourceId, metadataId, metadata.getId()}) {
+            WarcRecordIndex.Entry entry = index.getEntry(id);
+            Assert.assertTrue(entry.getOffset() >= end);
+            end = entry.getOffset() + entry.getLength();
+            try (WarcReader reader = WarcUtils.getReader(wp.getWarcFile(), index, id)) {
+                WarcRecord record = reader.getNextRecord();
+                Assert.assertTrue(record.header.warcRecordIdStr.contains(id));
+                Assert.assertEquals(record.header.warcTypeStr, entry.getType());
+                Assert.assertEquals(record.header.contentLength.longValue(), testFile.length());
+                Assert.assertEquals(entry.getDigest(), wd.toStringFull());
+            }
+        }
+        Assert.assertEquals(end, wp.getWarcFile().length());
+    }
+    
+    @Test
+    public void testWarcFileChecksum() throws Exception {
+        addDescription("Test that the checksum calculated while writing is identical to the checksum of the whole file");
+        
+        WarcPacker wp = new WarcPacker(conf);
+        Digest digestor = new Digest(conf.getAlgorithm());
+        WarcDigest wd = digestor.getDigestOfFile(testFile);
+        for(int i = 0; i < 10; i++) {
+            wp.packResource(testFile, wd, ContentType.parseContentType("application/octetstream"), UUID.randomUUID().toString());
+            wp.packMetadata(testFile, new Uri("urn:uuid:" + UUID.randomUUID().toString()), UUID.randomUUID().toString());
+        }
+        wp.close();
+        
+        WarcDigest expected = ChecksumUtils.calculateChecksum(wp.getWarcFile(), ChecksumUtils.MD5_ALGORITHM);
+        Assert.assertEquals(wp.getWarcFileChecksum().digestString, expected.digestString);
+        Assert.assertEquals(wp.getWarcFileChecksum().algorithm, expected.algorithm);
+        
+        addStep("Close the WARC packer again", "Same checksum");
+        wp.close();
+        Assert.assertEquals(wp.getWarcFileChecksum().digestString, expected.digestString);
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testWarcFileChecksumBeforeClose() throws Exception {
+        addDescription("Test that the checksum of the WARC file is not available before the packer is closed");
+        
+        WarcPacker wp = new WarcPacker(conf);
+        wp.getWarcFileChecksum();
+    }
+    
     @Test(expectedExceptions = IllegalStateException.class)
     public void testFailedInstantiationDueToNoWriteAccess() throws Exception {
         addDescription("Test failure to instantiate the warc packer, due to missing write access to the folder.");
@@ -117,6 +234,318 @@ public class WarcPackerTest extends ExtendedTestCase {
         Assert.assertTrue(wp.getWarcFile().length() > origSize + testFile.length());
     }
     
+    @Test
+    public void testPackRecordAssetFileWithDigests() {
+        addDescription("Test the packRecordAssetFile method with the digests of the file");
+        WarcPacker wp = new WarcPacker(conf);
+        
+        long origSize = wp.getWarcFile().length();
+        
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getUUID()).thenReturn(UUID.randomUUID().toString());
+        
+        wp.packRecordAssetFile(record, FileDigests.calculate(testFile, ChecksumUtils.MD5_ALGORITHM, conf.getAlgorithm()));
+        
+        Assert.assertTrue(wp.getWarcFile().length() > origSize + testFile.length());
+    }
+    
+    @Test
+    public void testPackRecordAssetFileWithoutBlockDigest() {
+        addDescription("Test the packRecordAssetFile method, when the digests does not contain the block digest");
+        WarcPacker wp = new WarcPacker(conf);
+        
+        long origSize = wp.getWarcFile().length();
+        
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getUUID()).thenReturn(UUID.randomUUID().toString());
+        
+        wp.packRecordAssetFile(record, FileDigests.calculate(testFile, ChecksumUtils.MD5_ALGORITHM));
+        
+        Assert.assertTrue(wp.getWarcFile().length() > origSize + testFile.length());
+    }
+    
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testFailureToWriteResourceWithWrongDigest() throws Exception {
+        addDescription("Test failure to write a resource, when its content does not match the block digest");
+        
+        WarcPacker wp = new WarcPacker(conf);
+        WarcDigest wd = ChecksumUtils.createWarcDigest(conf.getAlgorithm(), new byte[20]);
+        wp.packResource(testFile, wd, ContentType.parseContentType("application/octetstream"), UUID.randomUUID().toString());
+    }
+    
+    @Test
+    public void testRollback() throws Exception {
+        addDescription("Test that a rollback truncates the WARC file back to the savepoint, and reverts the running "
+                + "checksum, the index and the packaged records");
+        BitmagConfiguration indexConf = new BitmagConfiguration(TestFileUtils.getTempDir(), null, 1, 10000000, 
+                TestFileUtils.getTempDir(), "SHA-1");
+        indexConf.setIndexDir(new File(TestFileUtils.getTempDir(), "rollback-index"));
+        WarcPacker wp = new WarcPacker(indexConf);
+        WarcDigest wd = new Digest(conf.getAlgorithm()).getDigestOfFile(testFile);
+        ContentType contentType = ContentType.parseContentType("application/octetstream");
+        String committedId = UUID.randomUUID().toString();
+        String failedId = UUID.randomUUID().toString();
+        CumulusRecord committedRecord = mock(CumulusRecord.class);
+        CumulusRecord failedRecord = mock(CumulusRecord.class);
+        
+        addStep("Package a record, and create a savepoint", "The savepoint is at the end of the WARC file");
+        wp.packResource(testFile, wd, contentType, committedId);
+        wp.addRecordToPackagedList(committedRecord);
+        WarcPacker.Savepoint savepoint = wp.createSavepoint();
+        Assert.assertEquals(savepoint.getOffset(), wp.getSize());
+        
+        addStep("Package another record, and roll back to the savepoint", 
+                "Only the first record remains, and the WARC packer is closed");
+        wp.packResource(testFile, wd, contentType, failedId);
+        wp.addRecordToPackagedList(failedRecord);
+        wp.addRecordToMetadataPackagedList(failedRecord);
+        Assert.assertTrue(wp.getSize() > savepoint.getOffset());
+        wp.rollback(savepoint);
+        Assert.assertTrue(wp.isClosed());
+        Assert.assertTrue(wp.hasContent());
+        Assert.assertEquals(wp.getWarcFile().length(), savepoint.getOffset());
+        Assert.assertEquals(wp.getPackagedCompleteRecords().size(), 1);
+        Assert.assertTrue(wp.packagedCompleteRecords.contains(new CumulusRecordHandle(null, null, committedRecord)));
+        Assert.assertTrue(wp.getPackagedMetadataRecords().isEmpty());
+        Assert.assertEquals(wp.getRecordIndex().size(), 1);
+        Assert.assertNull(wp.getRecordIndex().getEntry(failedId));
+        WarcRecordIndex index = WarcRecordIndex.getIndex(indexConf.getIndexDir(), wp.getWarcFile().getName());
+        Assert.assertEquals(index.size(), 1);
+        Assert.assertNotNull(index.getEntry(committedId));
+        
+        addStep("Close the WARC packer", "The checksum is the checksum of the truncated WARC file");
+        wp.close();
+        Assert.assertEquals(wp.getWarcFileChecksum().digestString, 
+                ChecksumUtils.calculateChecksum(wp.getWarcFile(), ChecksumUtils.MD5_ALGORITHM).digestString);
+        int records = 0;
+        try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(wp.getWarcFile()))) {
+            WarcRecord record;
+            while((record = reader.getNextRecord()) != null) {
+                Assert.assertFalse(record.header.warcRecordIdStr.contains(failedId));
+                records++;
+            }
+        }
+        Assert.assertEquals(records, 2);
+    }
+    
+    @Test
+    public void testRollbackWithoutContent() throws Exception {
+        addDescription("Test that a rollback, when nothing has been written since the savepoint, keeps the WARC "
+                + "packer open");
+        WarcPacker wp = new WarcPacker(conf);
+        CumulusRecord record = mock(CumulusRecord.class);
+        
+        WarcPacker.Savepoint savepoint = wp.createSavepoint();
+        wp.addRecordToMetadataPackagedList(record);
+        wp.rollback(savepoint);
+        
+        Assert.assertFalse(wp.isClosed());
+        Assert.assertFalse(wp.hasContent());
+        Assert.assertEquals(wp.getSize(), savepoint.getOffset());
+        Assert.assertTrue(wp.getPackagedMetadataRecords().isEmpty());
+        
+        wp.packMetadata(testFile, null, UUID.randomUUID().toString());
+        Assert.assertTrue(wp.hasContent());
+        wp.close();
+    }
+    
+    @Test
+    public void testRollbackChangedFile() throws Exception {
+        addDescription("Test rolling back a record, whose file was changed while it was packaged");
+        WarcPacker wp = new WarcPacker(conf);
+        WarcPacker.Savepoint savepoint = wp.createSavepoint();
+        WarcDigest wrongDigest = ChecksumUtils.createWarcDigest(conf.getAlgorithm(), new byte[20]);
+        
+        addStep("Package a file with the wrong digest", "Fails after the file has been written");
+        try {
+            wp.packResource(testFile, wrongDigest, ContentType.parseContentType("application/octetstream"), 
+                    UUID.randomUUID().toString());
+            Assert.fail("The packaging must fail");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(wp.getSize() > savepoint.getOffset() + testFile.length());
+        }
+        
+        addStep("Roll back", "The file is removed from the WARC file, which has no content");
+        wp.rollback(savepoint);
+        Assert.assertFalse(wp.hasContent());
+        Assert.assertEquals(wp.getWarcFile().length(), savepoint.getOffset());
+        wp.close();
+        Assert.assertEquals(wp.getWarcFileChecksum().digestString, 
+                ChecksumUtils.calculateChecksum(wp.getWarcFile(), ChecksumUtils.MD5_ALGORITHM).digestString);
+    }
+    
+    @Test
+    public void testRecoverFromJournal() throws Exception {
+        addDescription("Test that a WARC file, whose packaging stopped before it was uploaded, is recovered from "
+                + "its journal up to its last synced commit");
+        File dir = new File(TestFileUtils.getTempDir(), "recover-" + UUID.randomUUID().toString());
+        Assert.assertTrue(dir.mkdirs());
+        BitmagConfiguration journalConf = new BitmagConfiguration(dir, null, 1, 10000000, dir, "SHA-1");
+        journalConf.setJournalSyncRecords(2);
+        journalConf.setJournalSyncInterval(Long.MAX_VALUE);
+        WarcDigest wd = new Digest(conf.getAlgorithm()).getDigestOfFile(testFile);
+        ContentType contentType = ContentType.parseContentType("application/octetstream");
+        String catalogName = "test-catalog";
+        String committedId = UUID.randomUUID().toString();
+        String syncedId = UUID.randomUUID().toString();
+        String unsyncedId = UUID.randomUUID().toString();
+        String unfinishedId = UUID.randomUUID().toString();
+        CumulusRecord committedRecord = mock(CumulusRecord.class);
+        when(committedRecord.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        when(committedRecord.getUUID()).thenReturn(committedId);
+        CumulusRecord syncedRecord = mock(CumulusRecord.class);
+        when(syncedRecord.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        when(syncedRecord.getUUID()).thenReturn(syncedId);
+        CumulusRecord unsyncedRecord = mock(CumulusRecord.class);
+        when(unsyncedRecord.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        when(unsyncedRecord.getUUID()).thenReturn(unsyncedId);
+        CumulusRecord unfinishedRecord = mock(CumulusRecord.class);
+        when(unfinishedRecord.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        when(unfinishedRecord.getUUID()).thenReturn(unfinishedId);
+        
+        addStep("Package and commit two records, which are synced as a group, then package and commit a record, "
+                + "which is not synced, and package another record without committing it", 
+                "The packaging is journaled next to the WARC file");
+        WarcPacker wp = new WarcPacker(journalConf, null, collectionId);
+        Assert.assertEquals(wp.getCollectionId(), collectionId);
+        WarcPacker.Savepoint savepoint = wp.createSavepoint();
+        wp.packResource(testFile, wd, contentType, committedId);
+        wp.addRecordToPackagedList(committedRecord);
+        wp.commit(savepoint);
+        Assert.assertEquals(wp.unsyncedCommits, 1);
+        savepoint = wp.createSavepoint();
+        wp.packResource(testFile, wd, contentType, syncedId);
+        wp.addRecordToPackagedList(syncedRecord);
+        wp.commit(savepoint);
+        Assert.assertEquals(wp.unsyncedCommits, 0);
+        long committedSize = wp.getSize();
+        savepoint = wp.createSavepoint();
+        wp.packResource(testFile, wd, contentType, unsyncedId);
+        wp.addRecordToPackagedList(unsyncedRecord);
+        wp.commit(savepoint);
+        Assert.assertEquals(wp.unsyncedCommits, 1);
+        wp.createSavepoint();
+        wp.packResource(testFile, wd, contentType, unfinishedId);
+        wp.addRecordToPackagedList(unfinishedRecord);
+        Assert.assertTrue(wp.getSize() > committedSize);
+        List<WarcPackingJournal> journals = WarcPackingJournal.findJournals(dir);
+        Assert.assertEquals(journals.size(), 1);
+        Assert.assertEquals(journals.get(0).getWarcFileId(), wp.getWarcFile().getName());
+        
+        addStep("Recover the WARC file from the journal", 
+                "The WARC file, its index and its journal are truncated to the synced records, and the WARC packer "
+                + "is closed");
+        long journalSize = journals.get(0).getJournalFile().length();
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        when(items.iterator()).thenReturn(Arrays.asList(committedRecord, syncedRecord).iterator());
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+        WarcPacker recovered = WarcPacker.recover(journalConf, server, journals.get(0));
+        Assert.assertTrue(recovered.isClosed());
+        Assert.assertTrue(recovered.hasContent());
+        Assert.assertEquals(recovered.getCollectionId(), collectionId);
+        Assert.assertEquals(recovered.getWarcFile(), wp.getWarcFile());
+        Assert.assertEquals(recovered.getWarcFile().length(), committedSize);
+        Assert.assertEquals(recovered.getPackagedCompleteRecords().size(), 2);
+        Assert.assertTrue(recovered.getPackagedCompleteRecords().contains(
+                CumulusRecordHandle.forIdentifier(catalogName, committedId)));
+        Assert.assertTrue(recovered.getPackagedCompleteRecords().contains(
+                CumulusRecordHandle.forIdentifier(catalogName, syncedId)));
+        Assert.assertTrue(recovered.getPackagedMetadataRecords().isEmpty());
+        Assert.assertNotNull(recovered.getRecordIndex().getEntry(committedId));
+        Assert.assertNotNull(recovered.getRecordIndex().getEntry(syncedId));
+        Assert.assertNull(recovered.getRecordIndex().getEntry(unsyncedId));
+        Assert.assertNull(recovered.getRecordIndex().getEntry(unfinishedId));
+        Assert.assertTrue(journals.get(0).getJournalFile().length() < journalSize);
+        
+        addStep("Close the recovered WARC packer and report the success", 
+                "The checksum is the checksum of the WARC file, the records are found on the Cumulus server with "
+                + "one query, and the journal is deleted");
+        recovered.close();
+        Assert.assertEquals(recovered.getWarcFileChecksum().digestString, 
+                ChecksumUtils.calculateChecksum(recovered.getWarcFile(), ChecksumUtils.MD5_ALGORITHM).digestString);
+        recovered.reportSucces(recovered.getWarcFileChecksum());
+        verify(server).getItems(eq(catalogName), any(CumulusQuery.class));
+        verifyNoMoreInteractions(server);
+        verify(committedRecord).setStringValueInField(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID), 
+                eq(recovered.getWarcFile().getName()));
+        verify(syncedRecord).setStringValueInField(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID), 
+                eq(recovered.getWarcFile().getName()));
+        verify(unsyncedRecord, never()).setStringValueInField(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID), 
+                anyString());
+        Assert.assertTrue(WarcPackingJournal.findJournals(dir).isEmpty());
+    }
+    
+    @Test
+    public void testRecoverUploadedFromJournal() throws Exception {
+        addDescription("Test that the journal is kept until the records of an uploaded WARC file have been written "
+                + "back, and that the recovered WARC file then only has to be reported back");
+        File dir = new File(TestFileUtils.getTempDir(), "recover-" + UUID.randomUUID().toString());
+        Assert.assertTrue(dir.mkdirs());
+        BitmagConfiguration journalConf = new BitmagConfiguration(dir, null, 1, 10000000, dir, "SHA-1");
+        WarcDigest wd = new Digest(conf.getAlgorithm()).getDigestOfFile(testFile);
+        String catalogName = "test-catalog";
+        String recordId = UUID.randomUUID().toString();
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        when(record.getUUID()).thenReturn(recordId);
+        
+        addStep("Package and commit a record, close the WARC packer, and remove the WARC file as the upload does", 
+                "The WARC packer is not uploaded yet");
+        WarcPacker wp = new WarcPacker(journalConf, null, collectionId);
+        WarcPacker.Savepoint savepoint = wp.createSavepoint();
+        wp.packResource(testFile, wd, ContentType.parseContentType("application/octetstream"), recordId);
+        wp.addRecordToPackagedList(record);
+        wp.commit(savepoint);
+        wp.close();
+        WarcDigest checksum = wp.getWarcFileChecksum();
+        Assert.assertFalse(wp.isUploaded());
+        FileUtils.forceDelete(wp.getWarcFile());
+        
+        addStep("Report the success through a write-back, which never writes back the records", 
+                "The upload is journaled, and the journal is kept");
+        wp.reportSucces(checksum, new UnfinishedWriteBack());
+        Assert.assertTrue(wp.isUploaded());
+        List<WarcPackingJournal> journals = WarcPackingJournal.findJournals(dir);
+        Assert.assertEquals(journals.size(), 1);
+        
+        addStep("Recover the WARC file from the journal", 
+                "The recovered WARC packer is uploaded, with the checksum and the records of the journal");
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        when(items.iterator()).thenReturn(Arrays.asList(record).iterator());
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+        WarcPacker recovered = WarcPacker.recover(journalConf, server, journals.get(0));
+        Assert.assertTrue(recovered.isUploaded());
+        Assert.assertTrue(recovered.isClosed());
+        Assert.assertEquals(recovered.getWarcFileChecksum().digestString, checksum.digestString);
+        Assert.assertTrue(recovered.getPackagedCompleteRecords().contains(
+                CumulusRecordHandle.forIdentifier(catalogName, recordId)));
+        
+        addStep("Report the success of the recovered WARC file through the write-back", 
+                "The record is updated, and the journal is deleted, when it has been written back");
+        recovered.reportSucces(recovered.getWarcFileChecksum(), new CumulusWriteBack(0, 10, 0));
+        verify(record).setStringValueInField(eq(Constants.FieldNames.ARCHIVE_MD5), eq(checksum.digestString));
+        Assert.assertTrue(WarcPackingJournal.findJournals(dir).isEmpty());
+    }
+    
+    @Test
+    public void testJournalWithoutContent() throws Exception {
+        addDescription("Test that the journal is deleted, when a WARC file without content is closed, and that no "
+                + "journal is kept for a WARC packer without a collection");
+        WarcPacker wp = new WarcPacker(conf, null, collectionId);
+        File journalFile = WarcPackingJournal.getJournalFile(conf.getTempDir(), wp.getWarcFile().getName());
+        Assert.assertTrue(journalFile.isFile());
+        wp.close();
+        Assert.assertFalse(journalFile.exists());
+        
+        WarcPacker unjournaled = new WarcPacker(conf);
+        Assert.assertNull(unjournaled.getCollectionId());
+        Assert.assertFalse(WarcPackingJournal.getJournalFile(conf.getTempDir(), 
+                unjournaled.getWarcFile().getName()).exists());
+        unjournaled.close();
+    }
+    
     @Test
     public void testReportSucces() throws Exception {
         addDescription("Test the reportSucces method");
@@ -124,7 +553,7 @@ public class WarcPackerTest extends ExtendedTestCase {
         
         CumulusRecord record = mock(CumulusRecord.class);
         WarcDigest digest = new Digest("MD5").getDigestOfBytes("TEST".getBytes());
-        wp.packagedCompleteRecords.add(record);
+        wp.packagedCompleteRecords.add(new CumulusRecordHandle(null, null, record));
         wp.reportSucces(digest);
         
         verify(record).setStringValueInField(eq(Constants.FieldNames.METADATA_PACKAGE_ID), anyString());
@@ -137,6 +566,75 @@ public class WarcPackerTest extends ExtendedTestCase {
         verifyNoMoreInteractions(record);
     }
     
+    @Test
+    public void testReportSuccesFlushesCachedRecord() throws Exception {
+        addDescription("Test that the reportSucces method flushes the field writes of a cached record");
+        WarcPacker wp = new WarcPacker(conf);
+        
+        CumulusRecord record = mock(CumulusRecord.class);
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+        WarcDigest digest = new Digest("MD5").getDigestOfBytes("TEST".getBytes());
+        wp.packagedMetadataRecords.add(new CumulusRecordHandle(null, null, cachedRecord));
+        wp.reportSucces(digest);
+        
+        Assert.assertEquals(cachedRecord.getPendingWrites(), 0);
+        verify(record).setStringValueInField(eq(Constants.FieldNames.METADATA_PACKAGE_ID), anyString());
+        verify(record).setDateValueInField(eq(Constants.FieldNames.BEVARINGS_DATO), any(Date.class));
+        verify(record).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), 
+                eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_COMPLETED));
+        verify(record).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq(""));
+        verifyNoMoreInteractions(record);
+    }
+    
+    @Test
+    public void testReportSuccesWithWriteBack() throws Exception {
+        addDescription("Test the reportSucces method with the write-back to Cumulus");
+        WarcPacker wp = new WarcPacker(conf);
+        CumulusWriteBack writeBack = new CumulusWriteBack(0, 1, 0);
+        
+        CumulusRecord completeRecord = mock(CumulusRecord.class);
+        CumulusRecord metadataRecord = mock(CumulusRecord.class);
+        WarcDigest digest = new Digest("MD5").getDigestOfBytes("TEST".getBytes());
+        wp.packagedCompleteRecords.add(new CumulusRecordHandle(null, null, completeRecord));
+        wp.packagedMetadataRecords.add(new CumulusRecordHandle(null, null, metadataRecord));
+        wp.reportSucces(digest, writeBack);
+        
+        Assert.assertEquals(writeBack.getUpdatedRecords(), 2L);
+        verify(completeRecord).setStringValueInField(eq(Constants.FieldNames.METADATA_PACKAGE_ID), anyString());
+        verify(completeRecord).setStringValueInField(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID), anyString());
+        verify(completeRecord).setStringValueInField(eq(Constants.FieldNames.ARCHIVE_MD5), anyString());
+        verify(completeRecord).setDateValueInField(eq(Constants.FieldNames.BEVARINGS_DATO), any(Date.class));
+        verify(completeRecord).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), 
+                eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_COMPLETED));
+        verify(completeRecord).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq(""));
+        verifyNoMoreInteractions(completeRecord);
+        
+        verify(metadataRecord).setStringValueInField(eq(Constants.FieldNames.METADATA_PACKAGE_ID), anyString());
+        verify(metadataRecord).setDateValueInField(eq(Constants.FieldNames.BEVARINGS_DATO), any(Date.class));
+        verify(metadataRecord).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), 
+                eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_COMPLETED));
+        verify(metadataRecord).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq(""));
+        verifyNoMoreInteractions(metadataRecord);
+    }
+    
+    @Test
+    public void testReportFailureWithWriteBack() throws Exception {
+        addDescription("Test the reportFailure method with the write-back to Cumulus");
+        WarcPacker wp = new WarcPacker(conf);
+        CumulusWriteBack writeBack = new CumulusWriteBack(0, 1, 0);
+        
+        String failureMessage = "THIS MUST FAIL!!!";
+        CumulusRecord record = mock(CumulusRecord.class);
+        wp.packagedCompleteRecords.add(new CumulusRecordHandle(null, null, record));
+        wp.reportFailure(failureMessage, writeBack);
+        
+        Assert.assertEquals(writeBack.getUpdatedRecords(), 1L);
+        verify(record).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), 
+                eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_FAILED));
+        verify(record).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq(failureMessage));
+        verifyNoMoreInteractions(record);
+    }
+    
     @Test
     public void testReportFailure() throws Exception {
         addDescription("Test the reportFailure method");
@@ -144,7 +642,7 @@ public class WarcPackerTest extends ExtendedTestCase {
         
         String failureMessage = "THIS MUST FAIL!!!";
         CumulusRecord record = mock(CumulusRecord.class);
-        wp.packagedCompleteRecords.add(record);
+        wp.packagedCompleteRecords.add(new CumulusRecordHandle(null, null, record));
         wp.reportFailure(failureMessage);
         
         verify(record).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), 
@@ -163,12 +661,159 @@ public class WarcPackerTest extends ExtendedTestCase {
         wp.addRecordToPackagedList(record);
         Assert.assertFalse(wp.packagedCompleteRecords.isEmpty());
         Assert.assertEquals(wp.packagedCompleteRecords.size(), 1);
-        Assert.assertTrue(wp.packagedCompleteRecords.contains(record));
+        Assert.assertTrue(wp.packagedCompleteRecords.contains(new CumulusRecordHandle(null, null, record)));
 
         wp.addRecordToPackagedList(record);
         Assert.assertEquals(wp.packagedCompleteRecords.size(), 1);
     }
     
+    @Test
+    public void testAddRecordsByHandle() throws Exception {
+        addDescription("Test that the records are registered by their catalog and UUID, and that a record which is "
+                + "no longer in use is found again in Cumulus, when it is reported back");
+        CumulusServer server = mock(CumulusServer.class);
+        WarcPacker wp = new WarcPacker(conf, server);
+        String catalogName = "catalog-" + UUID.randomUUID().toString();
+        String uuid = UUID.randomUUID().toString();
+        
+        addStep("Add the same record twice as complete record, and once as metadata record", 
+                "Only registered once as a complete record");
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        when(record.getUUID()).thenReturn(uuid);
+        wp.addRecordToPackagedList(record);
+        wp.addRecordToPackagedList(record);
+        wp.addRecordToMetadataPackagedList(record);
+        Assert.assertEquals(wp.getPackagedCompleteRecords().size(), 1);
+        Assert.assertTrue(wp.getPackagedMetadataRecords().isEmpty());
+        
+        addStep("Add another instance of the same record as a metadata record", "Not registered again");
+        CumulusRecord sameRecord = mock(CumulusRecord.class);
+        when(sameRecord.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        when(sameRecord.getUUID()).thenReturn(uuid);
+        wp.addRecordToMetadataPackagedList(sameRecord);
+        Assert.assertTrue(wp.getPackagedMetadataRecords().isEmpty());
+        
+        addStep("Report the failure, when the record is still in use", "The record itself is reported");
+        wp.reportFailure("THIS MUST FAIL!!!");
+        verify(record).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), 
+                eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_FAILED));
+        verifyZeroInteractions(server);
+        
+        addStep("Report the failure, when the record is no longer in use", 
+                "The record is found in Cumulus together with the other records of the WARC file");
+        CumulusRecord foundRecord = mock(CumulusRecord.class);
+        when(foundRecord.getUUID()).thenReturn(uuid);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        when(items.iterator()).thenReturn(Arrays.asList(foundRecord).iterator());
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+        wp.packagedCompleteRecords.clear();
+        wp.packagedCompleteRecords.add(CumulusRecordHandle.forIdentifier(catalogName, uuid));
+        wp.reportFailure("THIS MUST FAIL!!!");
+        verify(server).getItems(eq(catalogName), any(CumulusQuery.class));
+        verifyNoMoreInteractions(server);
+        verify(foundRecord).getUUID();
+        verify(foundRecord).getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME));
+        verify(foundRecord).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), 
+                eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_FAILED));
+        verify(foundRecord).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq("THIS MUST FAIL!!!"));
+        verifyNoMoreInteractions(foundRecord);
+        
+        addStep("Report the failure, when the records cannot be found together", 
+                "The record is found by itself in Cumulus");
+        CumulusRecord singleRecord = mock(CumulusRecord.class);
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenThrow(
+                new IllegalStateException("THIS MUST FAIL"));
+        when(server.findCumulusRecord(eq(catalogName), eq(uuid))).thenReturn(singleRecord);
+        wp.reportFailure("THIS MUST FAIL!!!");
+        verify(server).findCumulusRecord(eq(catalogName), eq(uuid));
+        verify(singleRecord).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), 
+                eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_FAILED));
+    }
+    
+    @Test
+    public void testPackMetadataRecordsBenchmark() throws Exception {
+        addDescription("Benchmark of packing many metadata-only records into a WARC file, where the packaged "
+                + "records are registered by their handles. The number of records can be set with the "
+                + "system property '" + BENCHMARK_RECORDS_PROPERTY + "'. Only run with the system property '" 
+                + BenchmarkUtils.BENCHMARK_PROPERTY + "=true'.");
+        BenchmarkUtils.skipUnlessBenchmarking();
+        int numberOfRecords = Integer.getInteger(BENCHMARK_RECORDS_PROPERTY, DEFAULT_BENCHMARK_RECORDS);
+        String catalogName = "benchmark-catalog";
+        byte[] content = FileUtils.readFileToByteArray(testFile);
+        MetadataBuffer metadata = new MetadataBuffer(TestFileUtils.getTempDir(), content.length);
+        WarcPacker wp = new WarcPacker(conf);
+        
+        try {
+            addStep("Pack " + numberOfRecords + " metadata-only records", "Every record is packaged");
+            long usedBefore = getUsedHeap();
+            long start = System.nanoTime();
+            for(int i = 0; i < numberOfRecords; i++) {
+                CumulusRecord record = new BenchmarkRecord(catalogName);
+                metadata.reset(record.getUUID());
+                metadata.write(content);
+                metadata.close();
+                wp.packMetadata(metadata, null, metadata.getId());
+                wp.addRecordToMetadataPackagedList(record);
+            }
+            long packMillis = (System.nanoTime() - start) / 1000000L;
+            long retainedHeap = getUsedHeap() - usedBefore;
+            Assert.assertEquals(wp.getPackagedMetadataRecords().size(), numberOfRecords);
+            
+            addStep("Report the time of the packaging, and the heap retained after the records are no longer "
+                    + "in use", numberOfRecords + " records packed in " + packMillis + " ms into a WARC file of " 
+                    + (wp.getSize() / 1024) + " KB, retaining " + (retainedHeap / 1024) + " KB of heap");
+        } finally {
+            wp.close();
+            FileUtils.deleteQuietly(wp.getWarcFile());
+        }
+    }
+    
+    /**
+     * @return The used heap after a garbage collection.
+     */
+    protected long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    /**
+     * Cumulus record for the benchmark, with a payload for the state of the record in the Cumulus SDK.
+     */
+    protected static class BenchmarkRecord extends CumulusRecord {
+        /** The payload for the state of the record in the Cumulus SDK.*/
+        protected final byte[] sdkState = new byte[BENCHMARK_RECORD_SIZE];
+        /** The name of the catalog.*/
+        protected final String catalogName;
+        /** The UUID of the record.*/
+        protected final String uuid = UUID.randomUUID().toString();
+        
+        /**
+         * Constructor.
+         * @param catalogName The name of the catalog.
+         */
+        protected BenchmarkRecord(String catalogName) {
+            super(null, null);
+            this.catalogName = catalogName;
+        }
+        
+        @Override
+        public String getFieldValueOrNull(String fieldName) {
+            if(Constants.FieldNames.CATALOG_NAME.equals(fieldName)) {
+                return catalogName;
+            }
+            return null;
+        }
+        
+        @Override
+        public String getUUID() {
+            return uuid;
+        }
+    }
+    
     @Test
     public void testGetContentType() throws Exception {
         addDescription("Test the getContentType method");
@@ -216,4 +861,22 @@ public class WarcPackerTest extends ExtendedTestCase {
         
         wp.close();
     }
+    
+    /**
+     * Write-back, which never writes back the submitted batches, like when the application stops during the 
+     * write-back.
+     */
+    protected static class UnfinishedWriteBack extends CumulusWriteBack {
+        public UnfinishedWriteBack() {
+            super(0, 1, 0);
+        }
+        
+        @Override
+        protected <T> void submitBatch(String description, List<T> batch, Function<T, CumulusRecord> resolver, 
+                Consumer<CumulusRecord> update, Group group) {
+            if(group != null) {
+                group.addBatch();
+            }
+        }
+    }
 }
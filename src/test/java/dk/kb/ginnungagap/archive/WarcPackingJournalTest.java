@@ -0,0 +1,202 @@
+package dk.kb.ginnungagap.archive;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.warc.WarcConstants;
+import org.jwat.warc.WarcDigest;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.ginnungagap.cumulus.CumulusRecordHandle;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+
+public class WarcPackingJournalTest extends ExtendedTestCase {
+
+    File journalDir;
+    String collectionId = "test-collection-id";
+    String catalogName = "Test catalog with spaces";
+
+    @BeforeClass
+    public void setup() throws IOException {
+        TestFileUtils.setup();
+        journalDir = new File(TestFileUtils.getTempDir(), "journal-" + UUID.randomUUID().toString());
+        FileUtils.forceMkdir(journalDir);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testReplay() {
+        addDescription("Test that replaying the journal gives the packaging, which was committed");
+        String warcId = UUID.randomUUID().toString();
+        CumulusRecordHandle committed = CumulusRecordHandle.forIdentifier(catalogName, UUID.randomUUID().toString());
+        CumulusRecordHandle rolledBack = CumulusRecordHandle.forIdentifier(catalogName,
+                UUID.randomUUID().toString());
+        CumulusRecordHandle unfinished = CumulusRecordHandle.forIdentifier(catalogName,
+                UUID.randomUUID().toString());
+        CumulusRecordHandle metadata = CumulusRecordHandle.forIdentifier(catalogName, UUID.randomUUID().toString());
+
+        addStep("Journal the warc-info and a committed record", "Both are part of the replayed state, once synced");
+        WarcPackingJournal journal = WarcPackingJournal.createJournal(journalDir, warcId, collectionId);
+        Assert.assertEquals(journal.getJournalFile(), WarcPackingJournal.getJournalFile(journalDir, warcId));
+        Assert.assertEquals(journal.getWarcFileId(), warcId);
+        journal.recordWritten("urn:uuid:" + UUID.randomUUID().toString(), 0L, 100L, WarcConstants.RT_WARCINFO);
+        Assert.assertEquals(journal.replay().getCommittedOffset(), 0L);
+        journal.sync(100L);
+        WarcPackingJournal.State state = journal.replay();
+        Assert.assertEquals(state.getCollectionId(), collectionId);
+        Assert.assertEquals(state.getCommittedOffset(), 100L);
+        Assert.assertFalse(state.hasContent());
+
+        journal.begin(100L);
+        journal.recordWritten(committed.getUUID(), 100L, 200L, WarcConstants.RT_RESOURCE);
+        journal.completeRecordPackaged(committed);
+        journal.metadataRecordPackaged(committed);
+        journal.commit(200L);
+
+        addStep("Journal a metadata record outside a transaction", "Part of the replayed state");
+        journal.recordWritten(metadata.getUUID(), 200L, 250L, WarcConstants.RT_METADATA);
+        journal.metadataRecordPackaged(metadata);
+        journal.sync(250L);
+
+        addStep("Journal a record, which is rolled back, and a record, which is not finished",
+                "Neither are part of the replayed state");
+        journal.begin(250L);
+        journal.recordWritten(rolledBack.getUUID(), 250L, 300L, WarcConstants.RT_RESOURCE);
+        journal.completeRecordPackaged(rolledBack);
+        journal.rollback(250L);
+        journal.begin(250L);
+        journal.recordWritten(unfinished.getUUID(), 250L, 400L, WarcConstants.RT_RESOURCE);
+        journal.completeRecordPackaged(unfinished);
+
+        state = journal.replay();
+        Assert.assertEquals(state.getCollectionId(), collectionId);
+        Assert.assertEquals(state.getCommittedOffset(), 250L);
+        Assert.assertTrue(state.hasContent());
+        Assert.assertEquals(state.getCompleteRecords().size(), 1);
+        CumulusRecordHandle replayed = state.getCompleteRecords().iterator().next();
+        Assert.assertEquals(replayed, committed);
+        Assert.assertEquals(replayed.getCatalogName(), catalogName);
+        Assert.assertEquals(state.getMetadataRecords().size(), 1);
+        Assert.assertTrue(state.getMetadataRecords().contains(metadata));
+
+        addStep("Commit the unfinished record without syncing", "Not part of the replayed state");
+        journal.commit(400L);
+        state = journal.replay();
+        Assert.assertEquals(state.getCommittedOffset(), 250L);
+        Assert.assertEquals(state.getCompleteRecords().size(), 1);
+
+        addStep("Truncate the journal to the replayed state, and sync it again", 
+                "The unsynced commit is no longer in the journal");
+        long journalSize = journal.getJournalFile().length();
+        journal.truncate(state);
+        Assert.assertTrue(journal.getJournalFile().length() < journalSize);
+        journal.sync(250L);
+        state = journal.replay();
+        Assert.assertEquals(state.getCommittedOffset(), 250L);
+        Assert.assertEquals(state.getCompleteRecords().size(), 1);
+        Assert.assertFalse(state.getCompleteRecords().contains(unfinished));
+
+        addStep("Delete the journal", "The journal file is removed");
+        journal.delete();
+        Assert.assertFalse(journal.getJournalFile().exists());
+    }
+
+    @Test
+    public void testReplayUploaded() {
+        addDescription("Test that replaying the journal gives the checksum of the WARC file, when it was uploaded");
+        WarcPackingJournal journal = WarcPackingJournal.createJournal(journalDir, UUID.randomUUID().toString(),
+                collectionId);
+        journal.recordWritten(UUID.randomUUID().toString(), 0L, 100L, WarcConstants.RT_WARCINFO);
+        Assert.assertFalse(journal.replay().isUploaded());
+        Assert.assertNull(journal.replay().getUploadedChecksum());
+
+        WarcDigest checksum = ChecksumUtils.createWarcDigest(ChecksumUtils.MD5_ALGORITHM, 
+                new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, (byte) 255});
+        journal.uploaded(checksum);
+        WarcPackingJournal.State state = journal.replay();
+        Assert.assertTrue(state.isUploaded());
+        Assert.assertEquals(state.getUploadedChecksum().algorithm, checksum.algorithm);
+        Assert.assertEquals(state.getUploadedChecksum().digestString, checksum.digestString);
+    }
+
+    @Test
+    public void testReplayIncompleteLastLine() throws IOException {
+        addDescription("Test that the last line is ignored, when it was not completely written");
+        String warcId = UUID.randomUUID().toString();
+        WarcPackingJournal journal = WarcPackingJournal.createJournal(journalDir, warcId, collectionId);
+        journal.recordWritten(UUID.randomUUID().toString(), 0L, 100L, WarcConstants.RT_WARCINFO);
+        journal.sync(100L);
+        FileUtils.writeStringToFile(journal.getJournalFile(), "RECORD 100 2", StandardCharsets.UTF_8, true);
+
+        WarcPackingJournal.State state = journal.replay();
+        Assert.assertEquals(state.getCommittedOffset(), 100L);
+        Assert.assertFalse(state.hasContent());
+    }
+
+    @Test
+    public void testRecordsWithoutIdentifiers() {
+        addDescription("Test that the records, which cannot be found again, are not journaled");
+        WarcPackingJournal journal = WarcPackingJournal.createJournal(journalDir, UUID.randomUUID().toString(),
+                collectionId);
+        journal.completeRecordPackaged(new CumulusRecordHandle(null, null, mock(CumulusRecord.class)));
+
+        Assert.assertTrue(journal.replay().getCompleteRecords().isEmpty());
+    }
+
+    @Test
+    public void testFindJournals() {
+        addDescription("Test finding the journals in a directory");
+        File dir = new File(journalDir, "find-" + UUID.randomUUID().toString());
+        Assert.assertTrue(WarcPackingJournal.findJournals(dir).isEmpty());
+        Assert.assertTrue(dir.mkdirs());
+
+        String warcId = UUID.randomUUID().toString();
+        WarcPackingJournal.createJournal(dir, warcId, collectionId);
+        Assert.assertTrue(new File(dir, UUID.randomUUID().toString()).mkdir());
+
+        List<WarcPackingJournal> journals = WarcPackingJournal.findJournals(dir);
+        Assert.assertEquals(journals.size(), 1);
+        Assert.assertEquals(journals.get(0).getWarcFileId(), warcId);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testReplayInvalidJournal() throws IOException {
+        addDescription("Test that an invalid journal cannot be replayed");
+        WarcPackingJournal journal = WarcPackingJournal.createJournal(journalDir, UUID.randomUUID().toString(),
+                collectionId);
+        FileUtils.writeStringToFile(journal.getJournalFile(), "RECORD 0 not-a-number warcinfo id\nSYNC 0\n",
+                StandardCharsets.UTF_8, true);
+        journal.replay();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testReplayJournalWithoutCollection() throws IOException {
+        addDescription("Test that a journal without a collection cannot be replayed");
+        File journalFile = WarcPackingJournal.getJournalFile(journalDir, UUID.randomUUID().toString());
+        FileUtils.writeStringToFile(journalFile, "RECORD 0 100 warcinfo id\n", StandardCharsets.UTF_8);
+        new WarcPackingJournal(journalFile).replay();
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testCreateJournalWithoutCollection() {
+        addDescription("Test that a journal must have a collection");
+        WarcPackingJournal.createJournal(journalDir, UUID.randomUUID().toString(), null);
+    }
+}
@@ -0,0 +1,135 @@
+package dk.kb.ginnungagap.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.warc.WarcDigest;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+
+public class WarcRecordIndexTest extends ExtendedTestCase {
+
+    File indexDir;
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+        indexDir = new File(TestFileUtils.getTempDir(), "index-" + UUID.randomUUID().toString());
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testAddAndLoadEntries() {
+        addDescription("Test that the entries are written to the index file, and can be loaded again");
+        String warcId = UUID.randomUUID().toString();
+        String resourceId = UUID.randomUUID().toString();
+        String metadataId = UUID.randomUUID().toString();
+        WarcDigest digest = ChecksumUtils.createWarcDigest("SHA-1", new byte[20]);
+
+        addStep("Create the index and add two entries", "The index directory and index file are created");
+        Assert.assertNull(WarcRecordIndex.getIndex(indexDir, warcId));
+        WarcRecordIndex index = WarcRecordIndex.createIndex(indexDir, warcId);
+        index.addEntry(resourceId, 123L, 456L, "resource", digest);
+        index.addEntry(metadataId, 579L, 100L, "metadata", null);
+        Assert.assertTrue(indexDir.isDirectory());
+        Assert.assertEquals(index.getIndexFile(), WarcRecordIndex.getIndexFile(indexDir, warcId));
+        Assert.assertTrue(index.getIndexFile().isFile());
+        Assert.assertEquals(index.size(), 2);
+
+        addStep("Load the index from the index directory", "The same entries");
+        WarcRecordIndex loaded = WarcRecordIndex.getIndex(indexDir, warcId);
+        Assert.assertNotNull(loaded);
+        Assert.assertEquals(loaded.size(), 2);
+        WarcRecordIndex.Entry resource = loaded.getEntry(resourceId);
+        Assert.assertEquals(resource.getRecordId(), resourceId);
+        Assert.assertEquals(resource.getOffset(), 123L);
+        Assert.assertEquals(resource.getLength(), 456L);
+        Assert.assertEquals(resource.getType(), "resource");
+        Assert.assertEquals(resource.getDigest(), digest.toStringFull());
+        WarcRecordIndex.Entry metadata = loaded.getEntry(metadataId);
+        Assert.assertEquals(metadata.getOffset(), 579L);
+        Assert.assertEquals(metadata.getLength(), 100L);
+        Assert.assertEquals(metadata.getType(), "metadata");
+        Assert.assertEquals(metadata.getDigest(), WarcRecordIndex.NO_DIGEST);
+
+        addStep("Delete the index", "The index file is removed");
+        loaded.delete();
+        Assert.assertFalse(index.getIndexFile().exists());
+        Assert.assertNull(WarcRecordIndex.getIndex(indexDir, warcId));
+    }
+
+    @Test
+    public void testGetEntryByPartOfTheId() {
+        addDescription("Test that an entry is found, when its record id contains the requested id");
+        String uuid = UUID.randomUUID().toString();
+        WarcRecordIndex index = WarcRecordIndex.createIndex(indexDir, UUID.randomUUID().toString());
+        index.addEntry("urn:uuid:" + uuid, 0L, 10L, "resource", null);
+
+        Assert.assertEquals(index.getEntry(uuid).getRecordId(), "urn:uuid:" + uuid);
+        Assert.assertNull(index.getEntry(UUID.randomUUID().toString()));
+    }
+
+    @Test
+    public void testTruncate() {
+        addDescription("Test that the entries from the truncated part of the WARC file are removed from the index");
+        String warcId = UUID.randomUUID().toString();
+        String keptId = UUID.randomUUID().toString();
+        String removedId = UUID.randomUUID().toString();
+        WarcRecordIndex index = WarcRecordIndex.createIndex(indexDir, warcId);
+        index.addEntry(keptId, 100L, 50L, "resource", null);
+        index.addEntry(removedId, 150L, 50L, "metadata", null);
+
+        addStep("Truncate the index at the offset of the second entry", "Only the first entry is kept");
+        index.truncate(150L);
+        Assert.assertEquals(index.size(), 1);
+        Assert.assertNotNull(index.getEntry(keptId));
+        Assert.assertNull(index.getEntry(removedId));
+
+        addStep("Load the index from the index directory", "Only the first entry is in the index file");
+        WarcRecordIndex loaded = WarcRecordIndex.getIndex(indexDir, warcId);
+        Assert.assertEquals(loaded.size(), 1);
+        Assert.assertEquals(loaded.getEntry(keptId).getOffset(), 100L);
+        Assert.assertNull(loaded.getEntry(removedId));
+
+        addStep("Add another entry after the truncation", "Appended to the index file");
+        index.addEntry(removedId, 150L, 20L, "metadata", null);
+        Assert.assertEquals(WarcRecordIndex.getIndex(indexDir, warcId).getEntry(removedId).getLength(), 20L);
+    }
+
+    @Test
+    public void testGetIndexWithoutIndexDir() {
+        addDescription("Test that no index is found, when no index directory is given");
+        Assert.assertNull(WarcRecordIndex.getIndex(null, UUID.randomUUID().toString()));
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testAddEntryWithSpaceInId() {
+        addDescription("Test that the record ids cannot contain the field separator");
+        WarcRecordIndex index = WarcRecordIndex.createIndex(indexDir, UUID.randomUUID().toString());
+        index.addEntry("record id", 0L, 10L, "resource", null);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testLoadInvalidIndex() throws IOException {
+        addDescription("Test that an invalid index file cannot be loaded");
+        String warcId = UUID.randomUUID().toString();
+        FileUtils.forceMkdir(indexDir);
+        FileUtils.writeStringToFile(WarcRecordIndex.getIndexFile(indexDir, warcId), "record-id offset length\n",
+                StandardCharsets.UTF_8);
+        WarcRecordIndex.getIndex(indexDir, warcId);
+    }
+}
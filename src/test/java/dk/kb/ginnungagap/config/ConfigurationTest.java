@@ -10,6 +10,7 @@ import java.io.File;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.UUID;
 
 import org.bitrepository.common.utils.FileUtils;
 import org.jaccept.structure.ExtendedTestCase;
@@ -95,6 +96,9 @@ public class ConfigurationTest extends ExtendedTestCase {
         assertNotNull(conf.getBitmagConf().getSettingsDir());
         assertNotNull(conf.getBitmagConf().getTempDir());
         assertNotNull(conf.getBitmagConf().getWarcFileSizeLimit());
+        assertEquals(conf.getBitmagConf().getUploadThreads(), 0);
+        assertEquals(conf.getBitmagConf().getUploadQueueSize(), 1);
+        assertEquals(conf.getBitmagConf().getCacheSize(), 0L);
 
         assertNotNull(conf.getCumulusConf());
         assertNotNull(conf.getCumulusConf().getServerUrl());
@@ -106,6 +110,15 @@ public class ConfigurationTest extends ExtendedTestCase {
 
         assertNotNull(conf.getWorkflowConf());
         assertNotNull(conf.getWorkflowConf().getInterval());
+        assertEquals(conf.getWorkflowConf().getPreservationThreads(), 
+                WorkflowConfiguration.DEFAULT_PRESERVATION_THREADS);
+        assertEquals(conf.getWorkflowConf().getArchiveWorkflows(), 
+                WorkflowConfiguration.DEFAULT_ARCHIVE_WORKFLOWS);
+        assertEquals(conf.getWorkflowConf().getCatalogThreads(), 
+                WorkflowConfiguration.DEFAULT_CATALOG_THREADS);
+        assertNull(conf.getWorkflowConf().getWatermarkDir());
+        assertEquals(conf.getWorkflowConf().getFullSweepInterval(), 
+                WorkflowConfiguration.DEFAULT_FULL_SWEEP_INTERVAL);
         
         assertNotNull(conf.getTransformationConf());
         assertNotNull(conf.getTransformationConf().getXsdDir());
@@ -115,6 +128,8 @@ public class ConfigurationTest extends ExtendedTestCase {
         assertNotNull(conf.getTransformationConf().getRequiredFields().getWritableFields());
         assertNotNull(conf.getTransformationConf().getMetadataTempDir());
         assertTrue(conf.getTransformationConf().getMetadataTempDir().isDirectory());
+        assertFalse(conf.getTransformationConf().isWarmUp());
+        assertEquals(conf.getTransformationConf().getMetadataBufferSize(), 0);
         
         assertNotNull(conf.getLocalConfiguration());
         assertNotNull(conf.getLocalConfiguration().getLocalOutputDir());
@@ -144,10 +159,17 @@ public class ConfigurationTest extends ExtendedTestCase {
 
         assertNotNull(conf.getWorkflowConf());
         assertNotNull(conf.getWorkflowConf().getInterval());
+        assertEquals(conf.getWorkflowConf().getPreservationThreads(), 2);
+        assertEquals(conf.getWorkflowConf().getArchiveWorkflows(), 2);
+        assertEquals(conf.getWorkflowConf().getCatalogThreads(), 2);
+        assertNotNull(conf.getWorkflowConf().getWatermarkDir());
+        assertTrue(conf.getWorkflowConf().getWatermarkDir().isDirectory());
+        assertEquals(conf.getWorkflowConf().getFullSweepInterval(), 3600000L);
         
         assertNotNull(conf.getTransformationConf());
         assertNotNull(conf.getTransformationConf().getXsdDir());
         assertNotNull(conf.getTransformationConf().getXsltDir());
+        assertTrue(conf.getTransformationConf().isWarmUp());
         assertNotNull(conf.getTransformationConf().getRequiredFields());
         assertNotNull(conf.getTransformationConf().getRequiredFields().getBaseFields());
         assertNotNull(conf.getTransformationConf().getRequiredFields().getWritableFields());
@@ -185,6 +207,136 @@ public class ConfigurationTest extends ExtendedTestCase {
         conf.loadBitmagConf(map);
     }
     
+    @Test
+    public void testLoadingTransformationConfigurationWithMetadataBufferSize() throws Exception {
+        addDescription("Test loading the transformation configuration with the metadata buffer size.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = (Map<String, Object>) ((Map<String, Map>) YamlTools.loadYamlSettings(confFileWithoutImport).get(Configuration.CONF_GINNUNGAGAP)).get(Configuration.CONF_TRANSFORMATION);
+        map.put(Configuration.CONF_TRANSFORMATION_METADATA_BUFFER_SIZE, 1024);
+        TransformationConfiguration tc = conf.loadTransformationConfiguration(map);
+        assertEquals(tc.getMetadataBufferSize(), 1024);
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testLoadingTransformationConfigurationWithNegativeMetadataBufferSize() throws Exception {
+        addDescription("Test loading the transformation configuration with a negative metadata buffer size.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = (Map<String, Object>) ((Map<String, Map>) YamlTools.loadYamlSettings(confFileWithoutImport).get(Configuration.CONF_GINNUNGAGAP)).get(Configuration.CONF_TRANSFORMATION);
+        map.put(Configuration.CONF_TRANSFORMATION_METADATA_BUFFER_SIZE, -1);
+        conf.loadTransformationConfiguration(map);
+    }
+    
+    @Test
+    public void testLoadingBitmagConfigurationWithBackgroundUploads() throws Exception {
+        addDescription("Test loading the bitrepository configuration with background uploads.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = (Map<String, Object>) ((Map<String, Map>) YamlTools.loadYamlSettings(confFileWithoutImport).get(Configuration.CONF_GINNUNGAGAP)).get(Configuration.CONF_BITREPOSITORY);
+        map.put(Configuration.CONF_BITREPOSITORY_UPLOAD_THREADS, 2);
+        map.put(Configuration.CONF_BITREPOSITORY_UPLOAD_QUEUE_SIZE, 3);
+        BitmagConfiguration bc = conf.loadBitmagConf(map);
+        assertEquals(bc.getUploadThreads(), 2);
+        assertEquals(bc.getUploadQueueSize(), 3);
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testLoadingBitmagConfigurationWithEmptyUploadQueue() throws Exception {
+        addDescription("Test loading the bitrepository configuration with an upload queue without room.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = (Map<String, Object>) ((Map<String, Map>) YamlTools.loadYamlSettings(confFileWithoutImport).get(Configuration.CONF_GINNUNGAGAP)).get(Configuration.CONF_BITREPOSITORY);
+        map.put(Configuration.CONF_BITREPOSITORY_UPLOAD_THREADS, 2);
+        map.put(Configuration.CONF_BITREPOSITORY_UPLOAD_QUEUE_SIZE, 0);
+        conf.loadBitmagConf(map);
+    }
+    
+    @Test
+    public void testLoadingBitmagConfigurationWithWriteBack() throws Exception {
+        addDescription("Test loading the bitrepository configuration with the write-back to Cumulus.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = (Map<String, Object>) ((Map<String, Map>) YamlTools.loadYamlSettings(confFileWithoutImport).get(Configuration.CONF_GINNUNGAGAP)).get(Configuration.CONF_BITREPOSITORY);
+        BitmagConfiguration defaultConf = conf.loadBitmagConf(map);
+        assertEquals(defaultConf.getWriteBackThreads(), 0);
+        assertEquals(defaultConf.getWriteBackBatchSize(), BitmagConfiguration.DEFAULT_WRITE_BACK_BATCH_SIZE);
+        assertEquals(defaultConf.getWriteBackRetries(), BitmagConfiguration.DEFAULT_WRITE_BACK_RETRIES);
+        
+        map.put(Configuration.CONF_BITREPOSITORY_WRITE_BACK_THREADS, 4);
+        map.put(Configuration.CONF_BITREPOSITORY_WRITE_BACK_BATCH_SIZE, 50);
+        map.put(Configuration.CONF_BITREPOSITORY_WRITE_BACK_RETRIES, 0);
+        BitmagConfiguration bc = conf.loadBitmagConf(map);
+        assertEquals(bc.getWriteBackThreads(), 4);
+        assertEquals(bc.getWriteBackBatchSize(), 50);
+        assertEquals(bc.getWriteBackRetries(), 0);
+    }
+    
+    @Test
+    public void testLoadingBitmagConfigurationWithJournalSync() throws Exception {
+        addDescription("Test loading the bitrepository configuration with the syncing of the packaging journals.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = (Map<String, Object>) ((Map<String, Map>) YamlTools.loadYamlSettings(confFileWithoutImport).get(Configuration.CONF_GINNUNGAGAP)).get(Configuration.CONF_BITREPOSITORY);
+        BitmagConfiguration defaultConf = conf.loadBitmagConf(map);
+        assertEquals(defaultConf.getJournalSyncRecords(), BitmagConfiguration.DEFAULT_JOURNAL_SYNC_RECORDS);
+        assertEquals(defaultConf.getJournalSyncInterval(), BitmagConfiguration.DEFAULT_JOURNAL_SYNC_INTERVAL);
+        
+        map.put(Configuration.CONF_BITREPOSITORY_JOURNAL_SYNC_RECORDS, 1);
+        map.put(Configuration.CONF_BITREPOSITORY_JOURNAL_SYNC_INTERVAL, 0);
+        BitmagConfiguration bc = conf.loadBitmagConf(map);
+        assertEquals(bc.getJournalSyncRecords(), 1);
+        assertEquals(bc.getJournalSyncInterval(), 0L);
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testLoadingBitmagConfigurationWithoutJournalSyncRecords() throws Exception {
+        addDescription("Test loading the bitrepository configuration with no records between the journal syncs.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = (Map<String, Object>) ((Map<String, Map>) YamlTools.loadYamlSettings(confFileWithoutImport).get(Configuration.CONF_GINNUNGAGAP)).get(Configuration.CONF_BITREPOSITORY);
+        map.put(Configuration.CONF_BITREPOSITORY_JOURNAL_SYNC_RECORDS, 0);
+        conf.loadBitmagConf(map);
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testLoadingBitmagConfigurationWithEmptyWriteBackBatches() throws Exception {
+        addDescription("Test loading the bitrepository configuration with write-back batches without room.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = (Map<String, Object>) ((Map<String, Map>) YamlTools.loadYamlSettings(confFileWithoutImport).get(Configuration.CONF_GINNUNGAGAP)).get(Configuration.CONF_BITREPOSITORY);
+        map.put(Configuration.CONF_BITREPOSITORY_WRITE_BACK_BATCH_SIZE, 0);
+        conf.loadBitmagConf(map);
+    }
+    
+    @Test
+    public void testLoadingBitmagConfigurationWithCache() throws Exception {
+        addDescription("Test loading the bitrepository configuration with a cache of the retrieved WARC files.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = (Map<String, Object>) ((Map<String, Map>) YamlTools.loadYamlSettings(confFileWithoutImport).get(Configuration.CONF_GINNUNGAGAP)).get(Configuration.CONF_BITREPOSITORY);
+        BitmagConfiguration defaultConf = conf.loadBitmagConf(map);
+        assertEquals(defaultConf.getCacheDir(), new File(defaultConf.getTempDir(), BitmagConfiguration.DEFAULT_CACHE_DIR_NAME));
+        
+        File cacheDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        map.put(Configuration.CONF_BITREPOSITORY_CACHE_DIR, cacheDir.getAbsolutePath());
+        map.put(Configuration.CONF_BITREPOSITORY_CACHE_SIZE, 20000000000L);
+        BitmagConfiguration bc = conf.loadBitmagConf(map);
+        assertEquals(bc.getCacheDir().getAbsolutePath(), cacheDir.getAbsolutePath());
+        assertTrue(cacheDir.isDirectory());
+        assertEquals(bc.getCacheSize(), 20000000000L);
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testLoadingBitmagConfigurationWithNegativeCacheSize() throws Exception {
+        addDescription("Test loading the bitrepository configuration with a negative cache size.");
+        Configuration conf = new Configuration(confFileWithoutImport.getAbsolutePath());
+        
+        Map<String, Object> map = (Map<String, Object>) ((Map<String, Map>) YamlTools.loadYamlSettings(confFileWithoutImport).get(Configuration.CONF_GINNUNGAGAP)).get(Configuration.CONF_BITREPOSITORY);
+        map.put(Configuration.CONF_BITREPOSITORY_CACHE_SIZE, -1);
+        conf.loadBitmagConf(map);
+    }
+    
     @Test
     public void testLoadLocalConfiguration() throws Exception {
         addDescription("Test the loadLocalConfiguration method");
@@ -44,7 +44,8 @@ public class TestConfiguration extends Configuration {
     public void removeRequiredFields() {
         TransformationConfiguration tc = getTransformationConf();
         transConf = new TransformationConfiguration(tc.getXsltDir(), tc.getXsdDir(), tc.getMetadataTempDir(), 
-                new RequiredFields(new ArrayList<String>(), new ArrayList<String>()));
+                new RequiredFields(new ArrayList<String>(), new ArrayList<String>()), tc.isWarmUp(), 
+                tc.getMetadataBufferSize());
     }
     
     @Override
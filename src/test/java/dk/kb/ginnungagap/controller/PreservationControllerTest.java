@@ -1,5 +1,6 @@
 package dk.kb.ginnungagap.controller;
 
+import dk.kb.ginnungagap.archive.BitmagPreserver;
 import dk.kb.ginnungagap.workflow.PreservationWorkflow;
 import dk.kb.ginnungagap.workflow.ValidationWorkflow;
 import org.jaccept.structure.ExtendedTestCase;
@@ -17,16 +18,20 @@ public class PreservationControllerTest extends ExtendedTestCase {
         PreservationController controller = new PreservationController();
         Model model = Mockito.mock(Model.class);
         PreservationWorkflow workflow = Mockito.mock(PreservationWorkflow.class);
+        BitmagPreserver preserver = Mockito.mock(BitmagPreserver.class);
 
         controller.workflow = workflow;
+        controller.preserver = preserver;
 
         String path = controller.getWorkflow(model);
         Assert.assertEquals(path, PreservationController.PATH);
 
         Mockito.verify(model).addAttribute(Mockito.eq("workflow"), Mockito.eq(workflow));
+        Mockito.verify(model).addAttribute(Mockito.eq("preserver"), Mockito.eq(preserver));
         Mockito.verifyNoMoreInteractions(model);
 
         Mockito.verifyZeroInteractions(workflow);
+        Mockito.verifyZeroInteractions(preserver);
     }
 
     @Test
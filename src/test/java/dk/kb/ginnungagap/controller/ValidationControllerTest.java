@@ -1,5 +1,7 @@
 package dk.kb.ginnungagap.controller;
 
+import dk.kb.ginnungagap.archive.ArchiveCache;
+import dk.kb.ginnungagap.archive.ArchiveWrapper;
 import dk.kb.ginnungagap.workflow.ValidationWorkflow;
 import org.jaccept.structure.ExtendedTestCase;
 import org.mockito.Mockito;
@@ -16,14 +18,23 @@ public class ValidationControllerTest extends ExtendedTestCase {
         ValidationController controller = new ValidationController();
         Model model = Mockito.mock(Model.class);
         ValidationWorkflow workflow = Mockito.mock(ValidationWorkflow.class);
+        ArchiveWrapper archive = Mockito.mock(ArchiveWrapper.class);
+        ArchiveCache cache = Mockito.mock(ArchiveCache.class);
+        Mockito.when(archive.getCache()).thenReturn(cache);
 
         controller.workflow = workflow;
+        controller.archive = archive;
 
         String path = controller.getWorkflow(model);
         Assert.assertEquals(path, ValidationController.PATH);
 
         Mockito.verify(model).addAttribute(Mockito.eq("workflow"), Mockito.eq(workflow));
+        Mockito.verify(model).addAttribute(Mockito.eq("cache"), Mockito.eq(cache));
         Mockito.verifyNoMoreInteractions(model);
+        
+        Mockito.verify(archive).getCache();
+        Mockito.verifyNoMoreInteractions(archive);
+        Mockito.verifyZeroInteractions(cache);
 
         Mockito.verifyZeroInteractions(workflow);
     }
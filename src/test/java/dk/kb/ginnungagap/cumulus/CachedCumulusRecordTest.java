@@ -0,0 +1,301 @@
+package dk.kb.ginnungagap.cumulus;
+
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.mockito.InOrder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusRecord;
+
+public class CachedCumulusRecordTest extends ExtendedTestCase {
+
+    @Test
+    public void testReadThrough() {
+        addDescription("Test that a field value is only read once from the wrapped record.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn("collection");
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+
+        addStep("Read the field value three times", "Only the first read is delegated");
+        for(int i = 0; i < 3; i++) {
+            Assert.assertEquals(cachedRecord.getFieldValue(Constants.FieldNames.COLLECTION_ID), "collection");
+        }
+        verify(record).getFieldValue(eq(Constants.FieldNames.COLLECTION_ID));
+        verifyNoMoreInteractions(record);
+
+        Assert.assertEquals(cachedRecord.getSdkReads(), 1L);
+        Assert.assertEquals(cachedRecord.getCachedReads(), 2L);
+    }
+
+    @Test
+    public void testReadThroughNullValue() {
+        addDescription("Test that a null field value is also cached.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER))).thenReturn(null);
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+
+        Assert.assertNull(cachedRecord.getFieldValueOrNull(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
+        Assert.assertNull(cachedRecord.getFieldValueOrNull(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
+
+        verify(record).getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
+        verifyNoMoreInteractions(record);
+        Assert.assertEquals(cachedRecord.getCachedReads(), 1L);
+    }
+
+    @Test
+    public void testReadTypesAreCachedSeparately() {
+        addDescription("Test that the different types of reads of the same field are cached separately.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        Date date = new Date(123456789L);
+        when(record.getFieldValue(eq(Constants.FieldNames.BEVARINGS_DATO))).thenReturn("date");
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.BEVARINGS_DATO))).thenReturn("date or null");
+        when(record.getFieldValueForNonStringField(eq(Constants.FieldNames.BEVARINGS_DATO))).thenReturn("non-string");
+        when(record.getFieldLongValue(eq(Constants.FieldNames.BEVARINGS_DATO))).thenReturn(42L);
+        when(record.getFieldDateValue(eq(Constants.FieldNames.BEVARINGS_DATO))).thenReturn(date);
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+
+        for(int i = 0; i < 2; i++) {
+            Assert.assertEquals(cachedRecord.getFieldValue(Constants.FieldNames.BEVARINGS_DATO), "date");
+            Assert.assertEquals(cachedRecord.getFieldValueOrNull(Constants.FieldNames.BEVARINGS_DATO), "date or null");
+            Assert.assertEquals(cachedRecord.getFieldValueForNonStringField(Constants.FieldNames.BEVARINGS_DATO),
+                    "non-string");
+            Assert.assertEquals(cachedRecord.getFieldLongValue(Constants.FieldNames.BEVARINGS_DATO).longValue(), 42L);
+            Assert.assertEquals(cachedRecord.getFieldDateValue(Constants.FieldNames.BEVARINGS_DATO), date);
+        }
+
+        verify(record).getFieldValue(eq(Constants.FieldNames.BEVARINGS_DATO));
+        verify(record).getFieldValueOrNull(eq(Constants.FieldNames.BEVARINGS_DATO));
+        verify(record).getFieldValueForNonStringField(eq(Constants.FieldNames.BEVARINGS_DATO));
+        verify(record).getFieldLongValue(eq(Constants.FieldNames.BEVARINGS_DATO));
+        verify(record).getFieldDateValue(eq(Constants.FieldNames.BEVARINGS_DATO));
+        verifyNoMoreInteractions(record);
+        Assert.assertEquals(cachedRecord.getSdkReads(), 5L);
+        Assert.assertEquals(cachedRecord.getCachedReads(), 5L);
+    }
+
+    @Test
+    public void testWriteThrough() {
+        addDescription("Test that a written string value is served by the following reads, and written when flushed.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.METADATA_GUID))).thenReturn(null);
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+
+        Assert.assertNull(cachedRecord.getFieldValueOrNull(Constants.FieldNames.METADATA_GUID));
+        cachedRecord.setStringValueInField(Constants.FieldNames.METADATA_GUID, "guid");
+        Assert.assertEquals(cachedRecord.getFieldValueOrNull(Constants.FieldNames.METADATA_GUID), "guid");
+        Assert.assertEquals(cachedRecord.getFieldValue(Constants.FieldNames.METADATA_GUID), "guid");
+        Assert.assertEquals(cachedRecord.getPendingWrites(), 1);
+
+        verify(record).getFieldValueOrNull(eq(Constants.FieldNames.METADATA_GUID));
+        verifyNoMoreInteractions(record);
+
+        cachedRecord.flush();
+        verify(record).setStringValueInField(eq(Constants.FieldNames.METADATA_GUID), eq("guid"));
+        verifyNoMoreInteractions(record);
+        Assert.assertEquals(cachedRecord.getSdkReads(), 1L);
+        Assert.assertEquals(cachedRecord.getCachedReads(), 2L);
+        Assert.assertEquals(cachedRecord.getSdkWrites(), 1L);
+        Assert.assertEquals(cachedRecord.getPendingWrites(), 0);
+    }
+
+    @Test
+    public void testCoalescedWrites() {
+        addDescription("Test that the writes are coalesced per field, and flushed in the order of the first writes.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        Date date = new Date(0L);
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+
+        addStep("Write a status field twice, and two other fields in between", "Nothing is written");
+        cachedRecord.setStringEnumValueForField(Constants.FieldNames.PRESERVATION_STATUS, "failed");
+        cachedRecord.setStringValueInField(Constants.FieldNames.QA_ERROR, "error");
+        cachedRecord.setDateValueInField(Constants.FieldNames.BEVARINGS_DATO, date);
+        cachedRecord.setStringEnumValueForField(Constants.FieldNames.PRESERVATION_STATUS, "finished");
+        cachedRecord.setStringValueInField(Constants.FieldNames.QA_ERROR, "");
+        verifyZeroInteractions(record);
+        Assert.assertEquals(cachedRecord.getPendingWrites(), 3);
+
+        addStep("Flush the record", "Only the latest value of each field is written");
+        cachedRecord.flush();
+        InOrder order = inOrder(record);
+        order.verify(record).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), eq("finished"));
+        order.verify(record).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq(""));
+        order.verify(record).setDateValueInField(eq(Constants.FieldNames.BEVARINGS_DATO), eq(date));
+        verifyNoMoreInteractions(record);
+        Assert.assertEquals(cachedRecord.getSdkWrites(), 3L);
+        Assert.assertEquals(cachedRecord.getCoalescedWrites(), 2L);
+
+        addStep("Flush again", "Nothing more is written");
+        cachedRecord.flush();
+        CachedCumulusRecord.flushWrites(cachedRecord);
+        verifyNoMoreInteractions(record);
+    }
+
+    @Test
+    public void testFlushBeforeDependentCalls() throws Exception {
+        addDescription("Test that the buffered writes are flushed before the calls, which depend on the fields.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        OutputStream out = mock(OutputStream.class);
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+        InOrder order = inOrder(record);
+
+        cachedRecord.setStringValueInField(Constants.FieldNames.METADATA_GUID, "guid");
+        cachedRecord.validateFieldsExists(Arrays.asList("field"));
+        order.verify(record).setStringValueInField(eq(Constants.FieldNames.METADATA_GUID), eq("guid"));
+        order.verify(record).validateFieldsExists(eq(Arrays.asList("field")));
+
+        cachedRecord.setStringValueInField(Constants.FieldNames.BEVARINGS_METADATA, "standards");
+        cachedRecord.writeFieldMetadata(out);
+        order.verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARINGS_METADATA), eq("standards"));
+        order.verify(record).writeFieldMetadata(eq(out));
+        verifyNoMoreInteractions(record);
+    }
+
+    @Test
+    public void testFlushBeforeReadingBufferedField() {
+        addDescription("Test that a field with a buffered write is flushed, before it is read from the record.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValue(eq(Constants.FieldNames.PRESERVATION_STATUS))).thenReturn("finished");
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+
+        cachedRecord.setStringEnumValueForField(Constants.FieldNames.PRESERVATION_STATUS, "finished");
+        Assert.assertEquals(cachedRecord.getFieldValue(Constants.FieldNames.PRESERVATION_STATUS), "finished");
+
+        InOrder order = inOrder(record);
+        order.verify(record).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), eq("finished"));
+        order.verify(record).getFieldValue(eq(Constants.FieldNames.PRESERVATION_STATUS));
+        verifyNoMoreInteractions(record);
+    }
+
+    @Test
+    public void testFlushFailure() {
+        addDescription("Test that a failed write is kept in the buffer together with the following writes.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        doThrow(new IllegalStateException("THIS MUST FAIL")).doNothing().when(record)
+                .setStringValueInField(eq(Constants.FieldNames.QA_ERROR), anyString());
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+
+        cachedRecord.setStringValueInField(Constants.FieldNames.METADATA_GUID, "guid");
+        cachedRecord.setStringValueInField(Constants.FieldNames.QA_ERROR, "error");
+        cachedRecord.setStringValueInField(Constants.FieldNames.BEVARINGS_METADATA, "standards");
+        try {
+            cachedRecord.flush();
+            Assert.fail("Must throw an exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(cachedRecord.getPendingWrites(), 2);
+        Assert.assertEquals(cachedRecord.getSdkWrites(), 1L);
+
+        cachedRecord.flush();
+        verify(record).setStringValueInField(eq(Constants.FieldNames.METADATA_GUID), eq("guid"));
+        verify(record, times(2)).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), eq("error"));
+        verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARINGS_METADATA), eq("standards"));
+        verifyNoMoreInteractions(record);
+        Assert.assertEquals(cachedRecord.getPendingWrites(), 0);
+        Assert.assertEquals(cachedRecord.getSdkWrites(), 3L);
+    }
+
+    @Test
+    public void testWriteInvalidatesOtherReadTypes() {
+        addDescription("Test that a write removes the cached values of the field, which it cannot replace.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        Date date = new Date(0L);
+        when(record.getFieldValue(eq(Constants.FieldNames.PRESERVATION_STATUS))).thenReturn("before", "after");
+        when(record.getFieldValueForNonStringField(eq(Constants.FieldNames.BEVARINGS_DATO))).thenReturn("0");
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+
+        addStep("Change an enum field", "The field is read again afterwards");
+        Assert.assertEquals(cachedRecord.getFieldValue(Constants.FieldNames.PRESERVATION_STATUS), "before");
+        cachedRecord.setStringEnumValueForField(Constants.FieldNames.PRESERVATION_STATUS, "after");
+        Assert.assertEquals(cachedRecord.getFieldValue(Constants.FieldNames.PRESERVATION_STATUS), "after");
+        verify(record, times(2)).getFieldValue(eq(Constants.FieldNames.PRESERVATION_STATUS));
+        verify(record).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), eq("after"));
+
+        addStep("Change a date field", "The date is served by the cache, the non-string value is read again");
+        cachedRecord.getFieldValueForNonStringField(Constants.FieldNames.BEVARINGS_DATO);
+        cachedRecord.setDateValueInField(Constants.FieldNames.BEVARINGS_DATO, date);
+        Assert.assertEquals(cachedRecord.getFieldDateValue(Constants.FieldNames.BEVARINGS_DATO), date);
+        cachedRecord.getFieldValueForNonStringField(Constants.FieldNames.BEVARINGS_DATO);
+        verify(record, times(2)).getFieldValueForNonStringField(eq(Constants.FieldNames.BEVARINGS_DATO));
+        verify(record).setDateValueInField(eq(Constants.FieldNames.BEVARINGS_DATO), eq(date));
+        verifyNoMoreInteractions(record);
+    }
+
+    @Test
+    public void testRecordProperties() {
+        addDescription("Test that the UUID, file and master asset flag are cached, and invalidated by changes.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        File file = new File("asset");
+        when(record.getUUID()).thenReturn("uuid1", "uuid2");
+        when(record.getFile()).thenReturn(file);
+        when(record.isMasterAsset()).thenReturn(true);
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+
+        for(int i = 0; i < 2; i++) {
+            Assert.assertEquals(cachedRecord.getUUID(), "uuid1");
+            Assert.assertEquals(cachedRecord.getFile(), file);
+            Assert.assertTrue(cachedRecord.isMasterAsset());
+        }
+        verify(record).getUUID();
+        verify(record).getFile();
+        verify(record).isMasterAsset();
+
+        addStep("Change the GUID, the asset reference and the relations", "Everything is read again");
+        cachedRecord.setStringValueInField(Constants.FieldNames.GUID, "uuid2");
+        cachedRecord.setNewAssetReference(file);
+        CumulusRecord otherRecord = mock(CumulusRecord.class);
+        cachedRecord.addMasterAsset(new CachedCumulusRecord(otherRecord));
+        Assert.assertEquals(cachedRecord.getUUID(), "uuid2");
+        Assert.assertEquals(cachedRecord.getFile(), file);
+        Assert.assertTrue(cachedRecord.isMasterAsset());
+
+        verify(record, times(2)).getUUID();
+        verify(record, times(2)).getFile();
+        verify(record, times(2)).isMasterAsset();
+        verify(record).setStringValueInField(eq(Constants.FieldNames.GUID), eq("uuid2"));
+        verify(record).setNewAssetReference(eq(file));
+        verify(record).addMasterAsset(eq(otherRecord));
+        verifyNoMoreInteractions(record);
+        verifyZeroInteractions(otherRecord);
+    }
+
+    @Test
+    public void testDelegation() throws Exception {
+        addDescription("Test that the calls, which are not reads of field values, are delegated.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        CumulusRecord relatedRecord = mock(CumulusRecord.class);
+        OutputStream out = mock(OutputStream.class);
+        CachedCumulusRecord cachedRecord = new CachedCumulusRecord(record);
+
+        cachedRecord.writeFieldMetadata(out);
+        cachedRecord.validateFieldsExists(Arrays.asList("field"));
+        cachedRecord.validateFieldsHasValue(Arrays.asList("field"));
+        cachedRecord.createRelationToRecord(relatedRecord, Constants.FieldNames.RELATED_SUB_ASSETS, "relation");
+
+        verify(record).writeFieldMetadata(eq(out));
+        verify(record).validateFieldsExists(eq(Arrays.asList("field")));
+        verify(record).validateFieldsHasValue(eq(Arrays.asList("field")));
+        verify(record).createRelationToRecord(eq(relatedRecord), eq(Constants.FieldNames.RELATED_SUB_ASSETS),
+                eq("relation"));
+        verifyNoMoreInteractions(record);
+        Assert.assertEquals(cachedRecord.getSdkReads(), 0L);
+        Assert.assertEquals(cachedRecord.getCachedReads(), 0L);
+    }
+
+    @Test
+    public void testWrap() {
+        addDescription("Test that wrapping only creates a cache, when the record is not already cached.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        CachedCumulusRecord cachedRecord = CachedCumulusRecord.wrap(record);
+        Assert.assertEquals(cachedRecord.getRecord(), record);
+        Assert.assertSame(CachedCumulusRecord.wrap(cachedRecord), cachedRecord);
+    }
+}
@@ -14,6 +14,8 @@ import org.testng.annotations.Test;
 import dk.kb.cumulus.Constants;
 import dk.kb.cumulus.CumulusRecord;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.FileDigests;
 
 public class CumulusPreservationUtilsTest extends ExtendedTestCase {
     
@@ -140,4 +142,39 @@ public class CumulusPreservationUtilsTest extends ExtendedTestCase {
             ieRawFile.getParentFile().setWritable(true);            
         }
     }
+    
+    @Test
+    public void testInitialiseRecordForPreservationWithPackagingAlgorithm() {
+        addDescription("Test the initialiseRecordForPreservation method with a packaging algorithm.");
+        File testFile = new File("src/test/resources/test-resource.txt");
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFile()).thenReturn(testFile);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER))).thenReturn(null);
+        
+        FileDigests digests = CumulusPreservationUtils.initialiseRecordForPreservation(record, "SHA-1");
+        
+        Assert.assertEquals(digests.getFile(), testFile);
+        Assert.assertEquals(digests.getDigest("SHA-1").digestString, 
+                ChecksumUtils.calculateChecksum(testFile, "SHA-1").digestString);
+        verify(record).setStringValueInField(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER), 
+                eq("37e9a7db97d6050911038d72b0f0585c"));
+        verify(record).getFile();
+    }
+    
+    @Test
+    public void testInitRecordChecksumWhenItHasValue() {
+        addDescription("Test the initRecordChecksum method with a packaging algorithm, when the record has a checksum.");
+        File testFile = new File("src/test/resources/test-resource.txt");
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFile()).thenReturn(testFile);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER))).thenReturn("checksum");
+        
+        FileDigests digests = CumulusPreservationUtils.initRecordChecksum(record, "SHA-1");
+        Assert.assertNotNull(digests.getDigest(ChecksumUtils.MD5_ALGORITHM));
+        Assert.assertNotNull(digests.getDigest("SHA-1"));
+        
+        verify(record).getFile();
+        verify(record).getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
+        verifyNoMoreInteractions(record);
+    }
 }
@@ -1,5 +1,7 @@
 package dk.kb.ginnungagap.cumulus;
 
+import java.util.Arrays;
+import java.util.Date;
 import java.util.UUID;
 
 import org.jaccept.structure.ExtendedTestCase;
@@ -50,6 +52,20 @@ public class CumulusQueryUtilsTest extends ExtendedTestCase {
         Assert.assertTrue(cq.getQuery().contains(uuid));        
     }
     
+    @Test
+    public void testGetQueryForSpecificUUIDs() {
+        String catalogName = UUID.randomUUID().toString();
+        String uuid1 = UUID.randomUUID().toString();
+        String uuid2 = UUID.randomUUID().toString();
+        CumulusQuery cq = CumulusQueryUtils.getQueryForSpecificUUIDs(catalogName, Arrays.asList(uuid1, uuid2));
+        
+        Assert.assertTrue(cq.getQuery().contains(uuid1));        
+        Assert.assertTrue(cq.getQuery().contains(uuid2));        
+        Assert.assertTrue(cq.getQuery().contains(catalogName));
+        Assert.assertEquals(cq.getQuery().split(catalogName, -1).length - 1, 2, 
+                "The catalog condition must be combined with each UUID condition");
+    }
+    
     @Test
     public void testGetQueryForSpecificRecordName() {
         String catalogName = UUID.randomUUID().toString();
@@ -77,4 +93,30 @@ public class CumulusQueryUtilsTest extends ExtendedTestCase {
         
         Assert.assertTrue(cq.getQuery().contains(catalogName));
     }
+
+    @Test
+    public void testGetQueriesModifiedSince() {
+        String catalogName = UUID.randomUUID().toString();
+        Date modifiedSince = new Date();
+        
+        Assert.assertTrue(CumulusQueryUtils.getPreservationAllQuery(catalogName, modifiedSince).getQuery()
+                .contains(CumulusQueryUtils.FIELD_RECORD_MODIFICATION_DATE));
+        Assert.assertTrue(CumulusQueryUtils.getPreservationUpdateQuery(catalogName, modifiedSince).getQuery()
+                .contains(CumulusQueryUtils.FIELD_RECORD_MODIFICATION_DATE));
+        Assert.assertTrue(CumulusQueryUtils.getQueryForPreservationValidation(catalogName, "value", modifiedSince)
+                .getQuery().contains(CumulusQueryUtils.FIELD_RECORD_MODIFICATION_DATE));
+        Assert.assertFalse(CumulusQueryUtils.getPreservationAllQuery(catalogName).getQuery()
+                .contains(CumulusQueryUtils.FIELD_RECORD_MODIFICATION_DATE));
+    }
+    
+    @Test
+    public void testAddModifiedSince() {
+        String query = UUID.randomUUID().toString();
+        Assert.assertEquals(CumulusQueryUtils.addModifiedSince(query, null), query);
+        
+        String res = CumulusQueryUtils.addModifiedSince(query, new Date(12 * 60 * 60 * 1000L));
+        Assert.assertTrue(res.startsWith(query + "\nand\t" + CumulusQueryUtils.FIELD_RECORD_MODIFICATION_DATE 
+                + "\tis after\t"));
+        Assert.assertTrue(res.contains("1970-01-01"));
+    }
 }
@@ -0,0 +1,210 @@
+package dk.kb.ginnungagap.cumulus;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusQuery;
+import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusRecordCollection;
+import dk.kb.cumulus.CumulusServer;
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+
+public class CumulusRecordHandleTest extends ExtendedTestCase {
+
+    String catalogName = "test-catalog-name";
+
+    @Test
+    public void testForRecord() {
+        addDescription("Test creating the handle for a record from its catalog name and UUID.");
+        String uuid = UUID.randomUUID().toString();
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+        when(record.getUUID()).thenReturn(uuid);
+
+        CumulusRecordHandle handle = CumulusRecordHandle.forRecord(record);
+        Assert.assertEquals(handle.getCatalogName(), catalogName);
+        Assert.assertEquals(handle.getUUID(), uuid);
+        Assert.assertSame(handle.resolve(null), record);
+        Assert.assertEquals(handle.toString(), catalogName + ":" + uuid);
+    }
+
+    @Test
+    public void testEquality() {
+        addDescription("Test that the handles are identified by the catalog name and UUID of their records.");
+        String uuid = UUID.randomUUID().toString();
+        CumulusRecordHandle handle = new CumulusRecordHandle(catalogName, uuid, mock(CumulusRecord.class));
+
+        addStep("Compare with a handle for another instance of the same record", "Equal");
+        CumulusRecordHandle sameHandle = new CumulusRecordHandle(new String(catalogName), new String(uuid),
+                mock(CumulusRecord.class));
+        Assert.assertEquals(handle, sameHandle);
+        Assert.assertEquals(handle.hashCode(), sameHandle.hashCode());
+
+        addStep("Compare with handles for other records", "Not equal");
+        Assert.assertNotEquals(handle, new CumulusRecordHandle(catalogName, UUID.randomUUID().toString(),
+                mock(CumulusRecord.class)));
+        Assert.assertNotEquals(handle, new CumulusRecordHandle("other-catalog", uuid, mock(CumulusRecord.class)));
+    }
+
+    @Test
+    public void testRecordWithoutUUID() {
+        addDescription("Test that a record without UUID is kept by its handle, and identified by the record.");
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+
+        CumulusRecordHandle handle = CumulusRecordHandle.forRecord(record);
+        Assert.assertNull(handle.getCatalogName());
+        Assert.assertNull(handle.getUUID());
+        Assert.assertSame(handle.resolve(null), record);
+        Assert.assertEquals(handle, new CumulusRecordHandle(null, null, record));
+        Assert.assertNotEquals(handle, new CumulusRecordHandle(null, null, mock(CumulusRecord.class)));
+    }
+
+    @Test
+    public void testResolveCollectedRecord() {
+        addDescription("Test that a record, which has been garbage collected, is found again on the Cumulus server.");
+        String uuid = UUID.randomUUID().toString();
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecord foundRecord = mock(CumulusRecord.class);
+        when(server.findCumulusRecord(eq(catalogName), eq(uuid))).thenReturn(foundRecord);
+
+        CumulusRecordHandle handle = new CumulusRecordHandle(catalogName, uuid, mock(CumulusRecord.class));
+        handle.recordReference.clear();
+        Assert.assertSame(handle.resolve(server), foundRecord);
+        verify(server).findCumulusRecord(eq(catalogName), eq(uuid));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testResolveCollectedRecordWithoutServer() {
+        addDescription("Test that a record, which has been garbage collected, cannot be resolved without a server.");
+        CumulusRecordHandle handle = new CumulusRecordHandle(catalogName, UUID.randomUUID().toString(),
+                mock(CumulusRecord.class));
+        handle.recordReference.clear();
+        handle.resolve(null);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testResolveMissingRecord() {
+        addDescription("Test the failure, when a record, which has been garbage collected, is not found again.");
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecordHandle handle = new CumulusRecordHandle(catalogName, UUID.randomUUID().toString(),
+                mock(CumulusRecord.class));
+        handle.recordReference.clear();
+        try {
+            handle.resolve(server);
+        } finally {
+            verify(server).findCumulusRecord(eq(catalogName), anyString());
+        }
+    }
+
+    @Test
+    public void testForIdentifier() {
+        addDescription("Test that a handle for a record, which is not in use, finds the record on the Cumulus server.");
+        String uuid = UUID.randomUUID().toString();
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecord foundRecord = mock(CumulusRecord.class);
+        when(server.findCumulusRecord(eq(catalogName), eq(uuid))).thenReturn(foundRecord);
+
+        CumulusRecordHandle handle = CumulusRecordHandle.forIdentifier(catalogName, uuid);
+        Assert.assertEquals(handle, new CumulusRecordHandle(catalogName, uuid, mock(CumulusRecord.class)));
+        Assert.assertSame(handle.resolve(server), foundRecord);
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testForIdentifierWithoutUUID() {
+        addDescription("Test that a handle for a record, which is not in use, requires the UUID of the record.");
+        CumulusRecordHandle.forIdentifier(catalogName, "");
+    }
+
+    @Test
+    public void testResolveAll() {
+        addDescription("Test that the records of many handles are resolved with one query per catalog.");
+        String otherCatalogName = "other-catalog-name";
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecord recordInUse = mock(CumulusRecord.class);
+        CumulusRecord unidentifiedRecord = mock(CumulusRecord.class);
+        List<CumulusRecord> foundRecords = new ArrayList<CumulusRecord>();
+        List<CumulusRecordHandle> handles = new ArrayList<CumulusRecordHandle>();
+        handles.add(new CumulusRecordHandle(catalogName, UUID.randomUUID().toString(), recordInUse));
+        handles.add(new CumulusRecordHandle(null, null, unidentifiedRecord));
+        for(int i = 0; i < 3; i++) {
+            String uuid = UUID.randomUUID().toString();
+            CumulusRecord foundRecord = mock(CumulusRecord.class);
+            when(foundRecord.getUUID()).thenReturn(uuid);
+            foundRecords.add(foundRecord);
+            handles.add(CumulusRecordHandle.forIdentifier(catalogName, uuid));
+        }
+        CumulusRecordHandle missing = CumulusRecordHandle.forIdentifier(otherCatalogName, 
+                UUID.randomUUID().toString());
+        handles.add(missing);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        when(items.iterator()).thenReturn(foundRecords.iterator());
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+        CumulusRecordCollection noItems = mock(CumulusRecordCollection.class);
+        when(noItems.iterator()).thenReturn(new ArrayList<CumulusRecord>().iterator());
+        when(server.getItems(eq(otherCatalogName), any(CumulusQuery.class))).thenReturn(noItems);
+
+        Map<CumulusRecordHandle, CumulusRecord> records = CumulusRecordHandle.resolveAll(handles, server);
+        Assert.assertEquals(records.size(), 5);
+        Assert.assertSame(records.get(handles.get(0)), recordInUse);
+        Assert.assertSame(records.get(handles.get(1)), unidentifiedRecord);
+        for(int i = 0; i < 3; i++) {
+            Assert.assertSame(records.get(handles.get(i + 2)), foundRecords.get(i));
+        }
+        Assert.assertFalse(records.containsKey(missing));
+        verify(server).getItems(eq(catalogName), any(CumulusQuery.class));
+        verify(server).getItems(eq(otherCatalogName), any(CumulusQuery.class));
+        verifyNoMoreInteractions(server);
+    }
+
+    @Test
+    public void testResolveAllIgnoresNonMatchingRecords() {
+        addDescription("Test that the records found by the query must have the exact UUID of a handle, and "
+                + "belong to the catalog of the handle.");
+        String uuid = UUID.randomUUID().toString();
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecordHandle handle = CumulusRecordHandle.forIdentifier(catalogName, uuid);
+
+        CumulusRecord longerUUIDRecord = mock(CumulusRecord.class);
+        when(longerUUIDRecord.getUUID()).thenReturn(uuid + "-1");
+        CumulusRecord otherCatalogRecord = mock(CumulusRecord.class);
+        when(otherCatalogRecord.getUUID()).thenReturn(uuid);
+        when(otherCatalogRecord.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME)))
+                .thenReturn("other-catalog-name");
+        CumulusRecord matchingRecord = mock(CumulusRecord.class);
+        when(matchingRecord.getUUID()).thenReturn(uuid);
+        when(matchingRecord.getFieldValueOrNull(eq(Constants.FieldNames.CATALOG_NAME))).thenReturn(catalogName);
+
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        when(items.iterator()).thenReturn(Arrays.asList(longerUUIDRecord, otherCatalogRecord, matchingRecord)
+                .iterator());
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+
+        Map<CumulusRecordHandle, CumulusRecord> records = CumulusRecordHandle.resolveAll(
+                Arrays.asList(handle), server);
+        Assert.assertEquals(records.size(), 1);
+        Assert.assertSame(records.get(handle), matchingRecord);
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testNoRecord() {
+        addDescription("Test that the handle requires a record.");
+        new CumulusRecordHandle(catalogName, UUID.randomUUID().toString(), null);
+    }
+}
@@ -0,0 +1,194 @@
+package dk.kb.ginnungagap.cumulus;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.cumulus.CumulusQuery;
+import dk.kb.cumulus.CumulusRecordCollection;
+import dk.kb.cumulus.CumulusServer;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+
+public class QueryWatermarkTest extends ExtendedTestCase {
+
+    String catalogName = "catalog-" + UUID.randomUUID().toString();
+    long fullSweepInterval = 3600000L;
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testIncrementalQueryAfterCommit() {
+        addDescription("Test that the query is full until a run has been committed, and then incremental.");
+        File watermarkDir = createWatermarkDir();
+        QueryWatermark watermark = QueryWatermark.getWatermark(watermarkDir, "preservation-" + catalogName, 
+                fullSweepInterval);
+        List<Date> dates = new ArrayList<Date>();
+        CumulusServer server = createServer(3);
+
+        addStep("Find the items before any run", "A full query");
+        long before = System.currentTimeMillis();
+        CumulusRecordCollection items = watermark.findItems(server, catalogName, d -> createQuery(d, dates));
+        Assert.assertEquals(items.getCount(), 3);
+        Assert.assertNull(dates.get(0));
+        Assert.assertTrue(watermark.isLastQueryFull());
+        Assert.assertEquals(watermark.getLastHitCount(), 3L);
+        Assert.assertTrue(watermark.getLastQueryTime() >= 0L);
+        Assert.assertNull(watermark.getWatermark());
+
+        addStep("Commit the run", "The start of the run becomes the watermark, and is persisted");
+        watermark.commit();
+        Assert.assertNotNull(watermark.getWatermark());
+        Assert.assertTrue(watermark.getWatermark() >= before);
+        Assert.assertEquals(watermark.getLastFullSweep(), watermark.getWatermark());
+        Assert.assertEquals(watermarkDir.list(), new String[]{"preservation-" + catalogName 
+                + QueryWatermark.WATERMARK_FILE_SUFFIX});
+
+        addStep("Find the items again", "An incremental query, which overlaps the previous run");
+        watermark.findItems(server, catalogName, d -> createQuery(d, dates));
+        Assert.assertEquals(dates.get(1).getTime(), watermark.getWatermark() - QueryWatermark.OVERLAP);
+        Assert.assertFalse(watermark.isLastQueryFull());
+        Assert.assertEquals(watermark.getNumberOfFullQueries(), 1L);
+        Assert.assertEquals(watermark.getNumberOfIncrementalQueries(), 1L);
+        Assert.assertEquals(watermark.getTotalHitCount(), 6L);
+
+        addStep("Load the watermark from the directory", "Continues with incremental queries");
+        QueryWatermark loaded = QueryWatermark.getWatermark(watermarkDir, "preservation-" + catalogName, 
+                fullSweepInterval);
+        Assert.assertEquals(loaded.getWatermark(), watermark.getWatermark());
+        Assert.assertNotNull(loaded.getModifiedSince());
+    }
+
+    @Test
+    public void testNoCommitKeepsTheWatermark() {
+        addDescription("Test that a run, which is not committed (e.g. a failure), does not move the watermark.");
+        QueryWatermark watermark = QueryWatermark.getWatermark(createWatermarkDir(), catalogName, 
+                fullSweepInterval);
+        CumulusServer server = createServer(0);
+        List<Date> dates = new ArrayList<Date>();
+
+        watermark.findItems(server, catalogName, d -> createQuery(d, dates));
+        watermark.commit();
+        Long committed = watermark.getWatermark();
+
+        watermark.findItems(server, catalogName, d -> createQuery(d, dates));
+        Assert.assertEquals(watermark.getWatermark(), committed);
+        watermark.findItems(server, catalogName, d -> createQuery(d, dates));
+        Assert.assertEquals(dates.get(2), dates.get(1));
+    }
+
+    @Test
+    public void testFullSweep() throws IOException {
+        addDescription("Test that a full query is performed, when the full sweep interval has passed.");
+        File watermarkDir = createWatermarkDir();
+        long now = System.currentTimeMillis();
+        writeWatermarkFile(new File(watermarkDir, "sweep" + QueryWatermark.WATERMARK_FILE_SUFFIX), now - 1000L, 
+                now - 2 * fullSweepInterval);
+        QueryWatermark watermark = QueryWatermark.getWatermark(watermarkDir, "sweep", fullSweepInterval);
+        Assert.assertEquals(watermark.getWatermark().longValue(), now - 1000L);
+        Assert.assertNull(watermark.getModifiedSince());
+
+        addStep("Commit a full query", "The full sweep time is updated, thus the next query is incremental");
+        List<Date> dates = new ArrayList<Date>();
+        watermark.findItems(createServer(0), catalogName, d -> createQuery(d, dates));
+        watermark.commit();
+        Assert.assertNotNull(watermark.getModifiedSince());
+    }
+
+    @Test
+    public void testWithoutWatermarkDir() {
+        addDescription("Test that only full queries are used, when there is no watermark directory.");
+        QueryWatermark watermark = QueryWatermark.getWatermark(null, catalogName, fullSweepInterval);
+        List<Date> dates = new ArrayList<Date>();
+        CumulusServer server = createServer(1);
+        for(int i = 0; i < 2; i++) {
+            watermark.findItems(server, catalogName, d -> createQuery(d, dates));
+            watermark.commit();
+        }
+        Assert.assertNull(dates.get(0));
+        Assert.assertNull(dates.get(1));
+        Assert.assertEquals(watermark.getNumberOfFullQueries(), 2L);
+        verify(server, org.mockito.Mockito.times(2)).getItems(eq(catalogName), any(CumulusQuery.class));
+    }
+
+    @Test
+    public void testInvalidWatermarkFile() throws IOException {
+        addDescription("Test that an invalid watermark file results in a full query.");
+        File watermarkDir = createWatermarkDir();
+        File watermarkFile = new File(watermarkDir, "invalid" + QueryWatermark.WATERMARK_FILE_SUFFIX);
+        try (OutputStream out = new FileOutputStream(watermarkFile)) {
+            out.write("watermark=not-a-number\n".getBytes());
+        }
+        QueryWatermark watermark = QueryWatermark.getWatermark(watermarkDir, "invalid", fullSweepInterval);
+        Assert.assertNull(watermark.getWatermark());
+        Assert.assertNull(watermark.getModifiedSince());
+    }
+
+    /**
+     * Writes a watermark file.
+     * @param file The file.
+     * @param watermark The watermark.
+     * @param lastFullSweep The time of the last full query.
+     */
+    protected void writeWatermarkFile(File file, long watermark, long lastFullSweep) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write((QueryWatermark.PROPERTY_WATERMARK + "=" + watermark + "\n" 
+                    + QueryWatermark.PROPERTY_LAST_FULL_SWEEP + "=" + lastFullSweep + "\n").getBytes());
+        }
+    }
+
+    /**
+     * @param modifiedSince The date for the query.
+     * @param dates The list where the date is registered.
+     * @return A mock query.
+     */
+    protected CumulusQuery createQuery(Date modifiedSince, List<Date> dates) {
+        dates.add(modifiedSince);
+        return mock(CumulusQuery.class);
+    }
+
+    /**
+     * @param count The number of records found by the queries.
+     * @return A mock Cumulus server.
+     */
+    protected CumulusServer createServer(int count) {
+        CumulusServer server = mock(CumulusServer.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        when(items.getCount()).thenReturn(count);
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+        return server;
+    }
+
+    /**
+     * @return A new watermark directory.
+     */
+    protected File createWatermarkDir() {
+        File res = new File(TestFileUtils.getTempDir(), "watermarks-" + UUID.randomUUID().toString());
+        res.mkdirs();
+        return res;
+    }
+}
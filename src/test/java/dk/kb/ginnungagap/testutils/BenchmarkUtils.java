@@ -0,0 +1,17 @@
+package dk.kb.ginnungagap.testutils;
+
+import org.testng.SkipException;
+
+public class BenchmarkUtils {
+
+    /** The system property, which must be 'true' for running the benchmarks, e.g. -Dginnungagap.benchmark=true.*/
+    public static final String BENCHMARK_PROPERTY = "ginnungagap.benchmark";
+
+    public static void skipUnlessBenchmarking() {
+        if(!Boolean.getBoolean(BENCHMARK_PROPERTY)) {
+            throw new SkipException("Benchmarks are only run with the system property '" 
+                    + BENCHMARK_PROPERTY + "=true'.");
+        }
+    }
+
+}
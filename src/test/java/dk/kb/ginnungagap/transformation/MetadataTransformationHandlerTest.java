@@ -1,5 +1,14 @@
 package dk.kb.ginnungagap.transformation;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
@@ -8,10 +17,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
 
 import org.jaccept.structure.ExtendedTestCase;
 import org.testng.annotations.AfterClass;
@@ -28,6 +44,16 @@ public class MetadataTransformationHandlerTest extends ExtendedTestCase {
     
     protected boolean writeOutput = false;
     
+    static final String TEST_NAMESPACE = "http://id.kb.dk/schemas/test";
+    static final String TEST_XSLT = "<xsl:stylesheet version=\"1.0\" "
+            + "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" xmlns:t=\"" + TEST_NAMESPACE + "\" "
+            + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+            + "<xsl:output method=\"xml\" encoding=\"UTF-8\" indent=\"yes\"/>"
+            + "<xsl:template match=\"/record\"><xsl:comment>transformed record</xsl:comment>"
+            + "<t:test xsi:schemaLocation=\"" + TEST_NAMESPACE + " " + SchemaValidatorTest.TEST_SCHEMA_LOCATION + "\">"
+            + "<xsl:for-each select=\"field\"><t:value><xsl:value-of select=\".\"/></t:value></xsl:for-each>"
+            + "</t:test></xsl:template></xsl:stylesheet>";
+    
     MetadataTransformationHandler transformationHandler;
     
     Configuration conf;
@@ -348,4 +374,93 @@ public class MetadataTransformationHandlerTest extends ExtendedTestCase {
             }
         }
     }
+    
+    @Test
+    public void testTransformersCompiledAtInitialization() throws Exception {
+        addDescription("Test that all the XSLT scripts are compiled, when the handler is initialized.");
+        File[] xsltFiles = conf.getTransformationConf().getXsltDir().listFiles();
+        assertNotNull(xsltFiles);
+        assertTrue(xsltFiles.length > 0);
+        for(File xsltFile : xsltFiles) {
+            assertTrue(transformationHandler.transformers.containsKey(xsltFile.getName()), 
+                    "Missing compiled XSLT script: " + xsltFile.getName());
+        }
+        
+        addStep("Retrieve the same transformer twice", "The same compiled transformer");
+        assertSame(transformationHandler.getTransformer(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS), 
+                transformationHandler.getTransformer(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS));
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testGetTransformerForMissingXsltFile() throws Exception {
+        addDescription("Test that retrieving the transformer for a non-existing XSLT script fails.");
+        transformationHandler.getTransformer("non-existing-script-" + Math.random() + ".xsl");
+    }
+    
+    @Test
+    public void testWarmUp() throws Exception {
+        addDescription("Test that the warm-up test-runs the XSLT scripts, and ignores their failures.");
+        MetadataTransformationHandler handler = new MetadataTransformationHandler();
+        handler.conf = conf;
+        handler.xsltDir = conf.getTransformationConf().getXsltDir();
+        handler.transformers = new ConcurrentHashMap<String, MetadataTransformer>();
+        
+        MetadataTransformer transformer = mock(MetadataTransformer.class);
+        MetadataTransformer failingTransformer = mock(MetadataTransformer.class);
+        doThrow(new IllegalStateException("Failed transformation")).when(failingTransformer)
+                .transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
+        handler.transformers.put("transformer.xsl", transformer);
+        handler.transformers.put("failing.xsl", failingTransformer);
+        
+        addStep("Warm up the transformers", "Each transformer is run once");
+        handler.warmUpTransformers();
+        verify(transformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
+        verify(failingTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
+        verifyNoMoreInteractions(transformer);
+        verifyNoMoreInteractions(failingTransformer);
+    }
+    
+    @Test
+    public void testTransformAndValidate() throws Exception {
+        addDescription("Test that the metadata is transformed, validated and has its schema locations extracted "
+                + "in a single pass, and that the output is the same as the output of the transformation alone.");
+        MetadataTransformationHandler handler = new MetadataTransformationHandler();
+        handler.schemaValidator = new SchemaValidator(SchemaValidatorTest.createTestXsdDir());
+        handler.serializerFactory = (SAXTransformerFactory) TransformerFactory.newInstance();
+        File xsltFile = new File(TestFileUtils.getTempDir(), "transformToTest-" + Math.random() + ".xsl");
+        Files.write(xsltFile.toPath(), TEST_XSLT.getBytes(StandardCharsets.UTF_8));
+        MetadataTransformer transformer = new MetadataTransformer(xsltFile);
+        byte[] metadata = "<record><field>1</field><field>2</field></record>".getBytes(StandardCharsets.UTF_8);
+        
+        addStep("Transform and validate the metadata", "The schema location of the transformed metadata");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Collection<String> schemaLocations = handler.transformAndValidate(transformer, 
+                new ByteArrayInputStream(metadata), out);
+        assertEquals(schemaLocations, Collections.singleton(TEST_NAMESPACE + " " 
+                + SchemaValidatorTest.TEST_SCHEMA_LOCATION));
+        
+        addStep("Transform the metadata alone", "The same output, without the default attributes of the schema");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        transformer.transformXmlMetadata(new ByteArrayInputStream(metadata), expected);
+        assertEquals(out.toString("UTF-8"), expected.toString("UTF-8"));
+        assertTrue(out.toString("UTF-8").contains("<!--transformed record-->"));
+        assertFalse(out.toString("UTF-8").contains("xlink:type"));
+        
+        addStep("Extract the metadata standards of the output", "The same schema locations");
+        assertEquals(handler.getMetadataStandards(new ByteArrayInputStream(out.toByteArray())), schemaLocations);
+    }
+    
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testTransformAndValidateFailure() throws Exception {
+        addDescription("Test that the transformation fails, when the transformed metadata is not valid.");
+        MetadataTransformationHandler handler = new MetadataTransformationHandler();
+        handler.schemaValidator = new SchemaValidator(SchemaValidatorTest.createTestXsdDir());
+        handler.serializerFactory = (SAXTransformerFactory) TransformerFactory.newInstance();
+        File xsltFile = new File(TestFileUtils.getTempDir(), "transformToTest-" + Math.random() + ".xsl");
+        Files.write(xsltFile.toPath(), TEST_XSLT.getBytes(StandardCharsets.UTF_8));
+        MetadataTransformer transformer = new MetadataTransformer(xsltFile);
+        
+        handler.transformAndValidate(transformer, new ByteArrayInputStream(
+                "<record><field>two</field></record>".getBytes(StandardCharsets.UTF_8)), new ByteArrayOutputStream());
+    }
 }
@@ -1,9 +1,24 @@
 package dk.kb.ginnungagap.transformation;
 
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.jaccept.structure.ExtendedTestCase;
 import org.testng.annotations.AfterClass;
@@ -15,6 +30,8 @@ import dk.kb.ginnungagap.transformation.MetadataTransformer;
 
 public class MetadataTransformerTest extends ExtendedTestCase {
 
+    protected static final Pattern ID_PATTERN = Pattern.compile("(ID|FILEID|DMDID|ADMID)=\"[^\"]*\"");
+
     @BeforeClass
     public void setup() {
         TestFileUtils.setup();
@@ -44,5 +61,63 @@ public class MetadataTransformerTest extends ExtendedTestCase {
         transformer.transformXmlMetadata(new FileInputStream(nonXmlFile), out);
     }
     
+    @Test
+    public void testConcurrentTransformations() throws Exception {
+        addDescription("Stress test, where many METS transformations are performed at the same time, "
+                + "and the ids generated by the java helper methods must be the same as for a single transformation.");
+        final File xsltFile = new File("src/main/resources/scripts/xslt/transformToMets.xsl");
+        final File xmlFile = new File("src/test/resources/audio_example_1345.xml");
+        final int numberOfThreads = 8;
+        final int numberOfTransformations = 10;
+        
+        addStep("Perform a single transformation", "Extract the reference ids");
+        final List<String> expectedIds = extractIds(transform(new MetadataTransformer(xsltFile), xmlFile));
+        assertTrue(expectedIds.contains("DMDID=\"Mods1 PBCoreDescription1\""), expectedIds.toString());
+        assertTrue(expectedIds.contains("FILEID=\"fileId1\""), expectedIds.toString());
+        
+        addStep("Perform the transformations concurrently", "Each must have the same ids as the reference");
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for(int i = 0; i < numberOfThreads; i++) {
+                final MetadataTransformer transformer = new MetadataTransformer(xsltFile);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for(int j = 0; j < numberOfTransformations; j++) {
+                            assertEquals(extractIds(transform(transformer, xmlFile)), expectedIds);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for(Future<Void> result : results) {
+                result.get(5, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    protected String transform(MetadataTransformer transformer, File xmlFile) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(xmlFile)) {
+            transformer.transformXmlMetadata(in, out);
+        }
+        return out.toString(StandardCharsets.UTF_8.name());
+    }
+    
+    protected List<String> extractIds(String metadata) {
+        List<String> res = new ArrayList<String>();
+        Matcher matcher = ID_PATTERN.matcher(metadata);
+        while(matcher.find()) {
+            res.add(matcher.group());
+        }
+        return res;
+    }
+    
     // REMAINING TESTS PLACED IN MetadataTransformationHandlerTest
 }
@@ -0,0 +1,127 @@
+package dk.kb.ginnungagap.transformation;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.withSettings;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.annotations.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+public class SchemaLocationCollectorTest extends ExtendedTestCase {
+
+    static final String XML = "<a:root xmlns:a=\"http://a\" xmlns:b=\"http://b\" "
+            + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"http://a a.xsd\">"
+            + "<b:child xsi:schemaLocation=\"http://b b.xsd\"/>"
+            + "<b:child xsi:schemaLocation=\"http://b b.xsd\">text</b:child>"
+            + "<a:child schemaLocation=\"not-xsi\"/></a:root>";
+
+    @Test
+    public void testCollectingSchemaLocations() throws Exception {
+        addDescription("Test that the unique schema locations of a document are collected, including those of "
+                + "elements without content.");
+        SchemaLocationCollector collector = new SchemaLocationCollector();
+        parse(XML, collector);
+        assertEquals(collector.getSchemaLocations(), new HashSet<String>(Arrays.asList("http://a a.xsd",
+                "http://b b.xsd")));
+    }
+
+    @Test
+    public void testNoSchemaLocations() throws Exception {
+        addDescription("Test that no schema locations are collected from a document without schema locations.");
+        SchemaLocationCollector collector = new SchemaLocationCollector();
+        parse("<record><field>value</field></record>", collector);
+        assertTrue(collector.getSchemaLocations().isEmpty());
+    }
+
+    @Test
+    public void testDeliveringEventsToHandlers() throws Exception {
+        addDescription("Test that the SAX events are delivered unchanged to all the handlers, "
+                + "and the lexical events only to the lexical handlers.");
+        ContentHandler handler = mock(ContentHandler.class);
+        ContentHandler lexicalHandler = mock(ContentHandler.class, withSettings().extraInterfaces(LexicalHandler.class));
+        SchemaLocationCollector collector = new SchemaLocationCollector(handler, lexicalHandler);
+        Locator locator = mock(Locator.class);
+        Attributes atts = new AttributesImpl();
+        char[] text = "text".toCharArray();
+
+        addStep("Deliver the content events", "Delivered to both handlers");
+        collector.setDocumentLocator(locator);
+        collector.startDocument();
+        collector.startPrefixMapping("a", "http://a");
+        collector.startElement("http://a", "root", "a:root", atts);
+        collector.characters(text, 0, 4);
+        collector.ignorableWhitespace(text, 1, 2);
+        collector.processingInstruction("target", "data");
+        collector.skippedEntity("entity");
+        collector.endElement("http://a", "root", "a:root");
+        collector.endPrefixMapping("a");
+        collector.endDocument();
+        for(ContentHandler h : new ContentHandler[]{handler, lexicalHandler}) {
+            verify(h).setDocumentLocator(eq(locator));
+            verify(h).startDocument();
+            verify(h).startPrefixMapping(eq("a"), eq("http://a"));
+            verify(h).startElement(eq("http://a"), eq("root"), eq("a:root"), eq(atts));
+            verify(h).characters(eq(text), eq(0), eq(4));
+            verify(h).ignorableWhitespace(eq(text), eq(1), eq(2));
+            verify(h).processingInstruction(eq("target"), eq("data"));
+            verify(h).skippedEntity(eq("entity"));
+            verify(h).endElement(eq("http://a"), eq("root"), eq("a:root"));
+            verify(h).endPrefixMapping(eq("a"));
+            verify(h).endDocument();
+        }
+
+        addStep("Deliver the lexical events", "Only delivered to the lexical handler");
+        collector.startDTD("root", null, null);
+        collector.endDTD();
+        collector.startEntity("entity");
+        collector.endEntity("entity");
+        collector.startCDATA();
+        collector.endCDATA();
+        collector.comment(text, 0, 4);
+        LexicalHandler lexical = (LexicalHandler) lexicalHandler;
+        verify(lexical).startDTD(eq("root"), anyString(), anyString());
+        verify(lexical).endDTD();
+        verify(lexical).startEntity(eq("entity"));
+        verify(lexical).endEntity(eq("entity"));
+        verify(lexical).startCDATA();
+        verify(lexical).endCDATA();
+        verify(lexical, times(1)).comment(any(char[].class), anyInt(), anyInt());
+
+        verifyNoMoreInteractions(handler);
+        verifyNoMoreInteractions(lexicalHandler);
+    }
+
+    /**
+     * Parses the XML document into the collector.
+     * @param xml The XML document.
+     * @param collector The collector.
+     */
+    protected void parse(String xml, SchemaLocationCollector collector) throws Exception {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        XMLReader reader = factory.newSAXParser().getXMLReader();
+        reader.setContentHandler(collector);
+        reader.parse(new InputSource(new StringReader(xml)));
+    }
+}
@@ -0,0 +1,221 @@
+package dk.kb.ginnungagap.transformation;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.yggdrasil.xslt.XmlErrorHandler;
+
+public class SchemaValidatorTest extends ExtendedTestCase {
+
+    static final String TEST_SCHEMA_LOCATION = "http://id.kb.dk/schemas/test/test.xsd";
+    static final String VALID_XML = "<t:test xmlns:t=\"http://id.kb.dk/schemas/test\" "
+            + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+            + "xmlns:xlink=\"http://www.w3.org/1999/xlink\" xlink:type=\"simple\" "
+            + "xsi:schemaLocation=\"http://id.kb.dk/schemas/test " + TEST_SCHEMA_LOCATION + "\">"
+            + "<t:value>1</t:value><t:value>2</t:value></t:test>";
+    static final String INVALID_XML = VALID_XML.replace("<t:value>2</t:value>", "<t:value>two</t:value>");
+    static final String XML_WITHOUT_SCHEMA = "<record><field>value</field></record>";
+
+    File xsdDir;
+    File testXsdFile;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        TestFileUtils.setup();
+        xsdDir = createTestXsdDir();
+        testXsdFile = new File(xsdDir, "test.xsd");
+    }
+    
+    /**
+     * Creates a XSD directory with the test schema and a schema catalog, so the test schema can be resolved offline.
+     * @return The XSD directory.
+     */
+    static File createTestXsdDir() throws Exception {
+        File xsdDir = new File(TestFileUtils.getTempDir(), "xsd-" + Math.random());
+        assertTrue(xsdDir.mkdirs());
+        for(String name : new String[]{"xlink.xsd", "xml.xsd"}) {
+            Files.copy(new File("src/main/resources/scripts/xsd", name).toPath(), 
+                    new File(xsdDir, name).toPath());
+        }
+        Files.copy(new File("src/test/resources/xsd/test.xsd").toPath(), new File(xsdDir, "test.xsd").toPath());
+        String catalog = "schema_catalog:\n"
+                + "  'http://www.loc.gov/standards/xlink/xlink.xsd': xlink.xsd\n"
+                + "  '" + TEST_SCHEMA_LOCATION + "': test.xsd\n";
+        Files.write(new File(xsdDir, LocalSchemaCatalog.CATALOG_FILE_NAME).toPath(), 
+                catalog.getBytes(StandardCharsets.UTF_8));
+        return xsdDir;
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testCatalog() throws Exception {
+        addDescription("Test that the catalog resolves the schema locations to the local XSD files.");
+        LocalSchemaCatalog catalog = new LocalSchemaCatalog(xsdDir);
+        assertEquals(catalog.getSchemaFile(TEST_SCHEMA_LOCATION), testXsdFile);
+        assertNull(catalog.getSchemaFile("http://id.kb.dk/schemas/unknown.xsd"));
+        
+        addStep("Resolve a schema location in the catalog", "Input for the local file");
+        assertNotNull(catalog.resolveResource(null, null, null, TEST_SCHEMA_LOCATION, null));
+        assertEquals(catalog.resolveResource(null, null, null, TEST_SCHEMA_LOCATION, null).getSystemId(),
+                testXsdFile.toURI().toString());
+        
+        addStep("Resolve a location relative to a local XSD file", "Default resolution");
+        assertNull(catalog.resolveResource(null, null, null, "other.xsd", testXsdFile.toURI().toString()));
+        
+        addStep("Extract the schema locations of a document, which are not in the catalog", 
+                "Only the unknown location");
+        assertTrue(catalog.getUncatalogedLocations("http://id.kb.dk/schemas/test " + TEST_SCHEMA_LOCATION)
+                .isEmpty());
+        assertEquals(catalog.getUncatalogedLocations("http://id.kb.dk/schemas/test " + TEST_SCHEMA_LOCATION 
+                + "\n  http://id.kb.dk/schemas/unknown http://id.kb.dk/schemas/unknown.xsd"), 
+                Arrays.asList("http://id.kb.dk/schemas/unknown.xsd"));
+    }
+
+    @Test
+    public void testCatalogUnknownLocation() throws Exception {
+        addDescription("Test that a schema location, which is not in the catalog, is logged and resolved "
+                + "the default way.");
+        LocalSchemaCatalog catalog = new LocalSchemaCatalog(xsdDir);
+        assertNull(catalog.resolveResource(null, null, null, "http://id.kb.dk/schemas/unknown.xsd", null));
+        assertTrue(catalog.uncatalogedLocations.contains("http://id.kb.dk/schemas/unknown.xsd"));
+    }
+    
+    @Test
+    public void testMainSchemaCatalog() throws Exception {
+        addDescription("Test that the shipped schema catalog refers to existing local XSD files.");
+        LocalSchemaCatalog catalog = new LocalSchemaCatalog(new File("src/main/resources/scripts/xsd"));
+        assertNotNull(catalog.getSchemaFile("http://www.loc.gov/standards/xlink/xlink.xsd"));
+        assertNotNull(catalog.getSchemaFile("http://www.loc.gov/mods/xml.xsd"));
+        assertNotNull(catalog.getSchemaFile("http://www.loc.gov/standards/mix/mix20/mix20.xsd"));
+        
+        addStep("Compile the shipped schemas", "Compiled without retrieving any schemas over the network");
+        assertNotNull(new SchemaValidator(new File("src/main/resources/scripts/xsd")));
+    }
+
+    @Test
+    public void testValidation() throws Exception {
+        addDescription("Test the validation of documents against the schemas in the local catalog.");
+        SchemaValidator validator = new SchemaValidator(xsdDir);
+
+        addStep("Validate a valid document", "No errors");
+        XmlErrorHandler errorHandler = validate(validator, VALID_XML);
+        assertTrue(errorHandler.errors.isEmpty(), errorHandler.errors.toString());
+        assertTrue(errorHandler.fatalErrors.isEmpty(), errorHandler.fatalErrors.toString());
+
+        addStep("Validate an invalid document", "Errors");
+        errorHandler = validate(validator, INVALID_XML);
+        assertFalse(errorHandler.errors.isEmpty());
+
+        addStep("Validate a document without a schema", "Errors");
+        errorHandler = validate(validator, XML_WITHOUT_SCHEMA);
+        assertFalse(errorHandler.errors.isEmpty());
+
+        addStep("Validate a document, which also refers to an unused schema location not in the catalog", 
+                "No errors, and the schema location is logged");
+        errorHandler = validate(validator, VALID_XML.replace("\">", " http://id.kb.dk/schemas/unknown "
+                + "http://id.kb.dk/schemas/unknown.xsd\">"));
+        assertTrue(errorHandler.errors.isEmpty(), errorHandler.errors.toString());
+        assertTrue(validator.getCatalog().uncatalogedLocations.contains("http://id.kb.dk/schemas/unknown.xsd"));
+    }
+
+    @Test
+    public void testValidationOfUncatalogedLocation() throws Exception {
+        addDescription("Test that a document, which refers to a schema location not in the catalog, is validated "
+                + "against the schema it refers to.");
+        SchemaValidator validator = new SchemaValidator(xsdDir);
+        String uncatalogedLocation = testXsdFile.toURI().toString();
+        assertNull(validator.getCatalog().getSchemaFile(uncatalogedLocation));
+
+        addStep("Validate a valid document, which refers to the local XSD file outside the catalog", "No errors");
+        XmlErrorHandler errorHandler = validate(validator, 
+                VALID_XML.replace(TEST_SCHEMA_LOCATION, uncatalogedLocation));
+        assertTrue(errorHandler.errors.isEmpty(), errorHandler.errors.toString());
+        assertTrue(errorHandler.fatalErrors.isEmpty(), errorHandler.fatalErrors.toString());
+        assertTrue(validator.getCatalog().uncatalogedLocations.contains(uncatalogedLocation));
+
+        addStep("Validate an invalid document, which refers to the local XSD file outside the catalog", "Errors");
+        errorHandler = validate(validator, INVALID_XML.replace(TEST_SCHEMA_LOCATION, uncatalogedLocation));
+        assertFalse(errorHandler.errors.isEmpty());
+    }
+
+    @Test
+    public void testCompiledSchemasAreReused() throws Exception {
+        addDescription("Test that the schemas are only resolved and compiled once.");
+        File xsdCopyDir = new File(TestFileUtils.getTempDir(), "xsd-copy-" + Math.random());
+        assertTrue(xsdCopyDir.mkdirs());
+        for(File f : xsdDir.listFiles()) {
+            Files.copy(f.toPath(), new File(xsdCopyDir, f.getName()).toPath());
+        }
+        SchemaValidator validator = new SchemaValidator(xsdCopyDir);
+        XmlErrorHandler errorHandler = validate(validator, VALID_XML);
+        assertTrue(errorHandler.errors.isEmpty(), errorHandler.errors.toString());
+
+        addStep("Remove the local XSD file and validate again", "The compiled schema is still used");
+        assertTrue(new File(xsdCopyDir, "test.xsd").delete());
+        errorHandler = validate(validator, VALID_XML);
+        assertTrue(errorHandler.errors.isEmpty(), errorHandler.errors.toString());
+        assertTrue(errorHandler.warnings.isEmpty(), errorHandler.warnings.toString());
+        errorHandler = validate(validator, INVALID_XML);
+        assertFalse(errorHandler.errors.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentValidation() throws Exception {
+        addDescription("Test that several threads can validate with the same validator at the same time.");
+        final SchemaValidator validator = new SchemaValidator(xsdDir);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for(int i = 0; i < 80; i++) {
+                final boolean valid = i % 2 == 0;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        XmlErrorHandler errorHandler = validate(validator, valid ? VALID_XML : INVALID_XML);
+                        return errorHandler.errors.isEmpty() == valid;
+                    }
+                }));
+            }
+            for(Future<Boolean> result : results) {
+                assertTrue(result.get(1, TimeUnit.MINUTES));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected XmlErrorHandler validate(SchemaValidator validator, String xml) throws Exception {
+        XmlErrorHandler errorHandler = new XmlErrorHandler();
+        try (InputStream in = new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))) {
+            validator.validate(in, errorHandler);
+        }
+        return errorHandler;
+    }
+}
@@ -3,6 +3,7 @@ package dk.kb.ginnungagap.utils;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import org.bitrepository.access.getchecksums.conversation.ChecksumsCompletePillarEvent;
@@ -41,6 +42,29 @@ public class ChecksumUtilsTest extends ExtendedTestCase {
         Assert.assertEquals(expectedChecksum, digest.digestString);
     }
     
+    @Test
+    public void testCalculateChecksumsSuccess() {
+        addDescription("Test that calculating several checksums at once gives the same as calculating them one by one.");
+        File f = new File(testFilePath);
+        Assert.assertTrue(f.isFile());
+        Map<String, WarcDigest> digests = ChecksumUtils.calculateChecksums(f, "MD5", "SHA-1", "SHA-256");
+        
+        Assert.assertEquals(3, digests.size());
+        Assert.assertEquals(expectedChecksum, digests.get("MD5").digestString);
+        for(String algorithm : digests.keySet()) {
+            Assert.assertEquals(ChecksumUtils.calculateChecksum(f, algorithm).digestString, 
+                    digests.get(algorithm).digestString);
+        }
+    }
+    
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testCalculateChecksumsFailureChecksumAlgorithm() {
+        addDescription("Test calculating several checksums, when one of the algorithms is unknown.");
+        File f = new File(testFilePath);
+        Assert.assertTrue(f.isFile());
+        ChecksumUtils.calculateChecksums(f, "md5", "md6");
+    }
+    
     @Test(expectedExceptions = IllegalStateException.class)
     public void testCalculateChecksumFailureChecksumAlgorith() {
         addDescription("Test calculating the checksum with an unknown algorithm.");
@@ -113,6 +137,79 @@ public class ChecksumUtilsTest extends ExtendedTestCase {
         ChecksumUtils.getAgreedChecksum(checksumEvents);
     }
     
+    @Test
+    public void testGetAgreedChecksumsSuccess() {
+        addDescription("Test the GetAgreedChecksums method, when the pillars deliver the checksums of several files.");
+        String otherFileID = UUID.randomUUID().toString();
+        String otherChecksum = "0123456789abcdef0123456789abcdef";
+        List<ChecksumsCompletePillarEvent> checksumEvents = new ArrayList<ChecksumsCompletePillarEvent>();
+        ChecksumsCompletePillarEvent event1 = makeEvent(UUID.randomUUID().toString(), UUID.randomUUID().toString(), defaultFileID, expectedChecksum, ChecksumType.MD5);
+        addChecksum(event1, otherFileID, otherChecksum);
+        checksumEvents.add(event1);
+        ChecksumsCompletePillarEvent event2 = makeEvent(UUID.randomUUID().toString(), UUID.randomUUID().toString(), otherFileID, otherChecksum, ChecksumType.MD5);
+        addChecksum(event2, defaultFileID, expectedChecksum);
+        checksumEvents.add(event2);
+        
+        Map<String, String> checksums = ChecksumUtils.getAgreedChecksums(checksumEvents);
+        Assert.assertEquals(2, checksums.size());
+        Assert.assertEquals(expectedChecksum, checksums.get(defaultFileID));
+        Assert.assertEquals(otherChecksum, checksums.get(otherFileID));
+    }
+    
+    @Test
+    public void testGetAgreedChecksumsDisagreement() {
+        addDescription("Test the GetAgreedChecksums method, when the pillars do not agree on all the files.");
+        String differentFileID = UUID.randomUUID().toString();
+        String missingFileID = UUID.randomUUID().toString();
+        List<ChecksumsCompletePillarEvent> checksumEvents = new ArrayList<ChecksumsCompletePillarEvent>();
+        ChecksumsCompletePillarEvent event1 = makeEvent(UUID.randomUUID().toString(), UUID.randomUUID().toString(), defaultFileID, expectedChecksum, ChecksumType.MD5);
+        addChecksum(event1, differentFileID, "00000000000000000000000000000000");
+        addChecksum(event1, missingFileID, expectedChecksum);
+        checksumEvents.add(event1);
+        ChecksumsCompletePillarEvent event2 = makeEvent(UUID.randomUUID().toString(), UUID.randomUUID().toString(), defaultFileID, expectedChecksum, ChecksumType.MD5);
+        addChecksum(event2, differentFileID, "11111111111111111111111111111111");
+        checksumEvents.add(event2);
+        
+        Map<String, String> checksums = ChecksumUtils.getAgreedChecksums(checksumEvents);
+        Assert.assertEquals(1, checksums.size());
+        Assert.assertEquals(expectedChecksum, checksums.get(defaultFileID));
+    }
+    
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testGetAgreedChecksumsFailureEventFailure() {
+        addDescription("Test the GetAgreedChecksums method in the failure scenario when one event has a failure event.");
+        List<ChecksumsCompletePillarEvent> checksumEvents = new ArrayList<ChecksumsCompletePillarEvent>();
+        ChecksumsCompletePillarEvent event = makeEvent(UUID.randomUUID().toString(), UUID.randomUUID().toString(), defaultFileID, expectedChecksum, ChecksumType.MD5);
+        event.setEventType(OperationEventType.COMPONENT_FAILED);
+        checksumEvents.add(event);
+        
+        ChecksumUtils.getAgreedChecksums(checksumEvents);
+    }
+    
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testGetAgreedChecksumsFailureEmpty() {
+        addDescription("Test the GetAgreedChecksums method in the failure scenario when no events are given.");
+        ChecksumUtils.getAgreedChecksums(new ArrayList<ChecksumsCompletePillarEvent>());
+    }
+    
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testGetAgreedChecksumsFailureDifferentChecksumSpecs() {
+        addDescription("Test the GetAgreedChecksums method in the failure scenario when different checksum specification has been used.");
+        List<ChecksumsCompletePillarEvent> checksumEvents = new ArrayList<ChecksumsCompletePillarEvent>();
+        checksumEvents.add(makeEvent(UUID.randomUUID().toString(), UUID.randomUUID().toString(), defaultFileID, expectedChecksum, ChecksumType.MD5));
+        checksumEvents.add(makeEvent(UUID.randomUUID().toString(), UUID.randomUUID().toString(), defaultFileID, expectedChecksum, ChecksumType.SHA1));
+        
+        ChecksumUtils.getAgreedChecksums(checksumEvents);
+    }
+    
+    protected void addChecksum(ChecksumsCompletePillarEvent event, String fileId, String checksum) {
+        ChecksumDataForChecksumSpecTYPE resultContent = new ChecksumDataForChecksumSpecTYPE();
+        resultContent.setFileID(fileId);
+        resultContent.setCalculationTimestamp(org.bitrepository.common.utils.CalendarUtils.getNow());
+        resultContent.setChecksumValue(Base16Utils.encodeBase16(checksum));
+        event.getChecksums().getChecksumDataItems().add(resultContent);
+    }
+    
     protected ChecksumsCompletePillarEvent makeEvent(String pillarID, String collectionID, String fileId, String checksum, ChecksumType csType) {
         ChecksumSpecTYPE checksumSpec = new ChecksumSpecTYPE();
         checksumSpec.setChecksumType(csType);
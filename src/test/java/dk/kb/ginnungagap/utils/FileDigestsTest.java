@@ -0,0 +1,64 @@
+package dk.kb.ginnungagap.utils;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+
+public class FileDigestsTest extends ExtendedTestCase {
+
+    File testFile;
+    
+    @BeforeClass
+    public void setup() throws IOException {
+        TestFileUtils.setup();
+        
+        File origTestFile = new File("src/test/resources/test-resource.txt");
+        testFile = new File(TestFileUtils.getTempDir(), "file-digests-" + origTestFile.getName());
+        FileUtils.copyFile(origTestFile, testFile);
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test
+    public void testCalculate() {
+        addDescription("Test calculating the digests of a file.");
+        FileDigests digests = FileDigests.calculate(testFile, ChecksumUtils.MD5_ALGORITHM, "SHA-1");
+        
+        Assert.assertEquals(digests.getFile(), testFile);
+        Assert.assertEquals(digests.getDigest(ChecksumUtils.MD5_ALGORITHM).digestString, 
+                "37e9a7db97d6050911038d72b0f0585c");
+        Assert.assertEquals(digests.getDigest("SHA-1").digestString, 
+                ChecksumUtils.calculateChecksum(testFile, "SHA-1").digestString);
+        Assert.assertNull(digests.getDigest("SHA-256"));
+        Assert.assertTrue(digests.isUnchanged());
+    }
+    
+    @Test
+    public void testIsUnchangedAfterChange() throws IOException {
+        addDescription("Test that the digests are detected as outdated, when the file has been changed.");
+        File f = new File(TestFileUtils.getTempDir(), "file-digests-changing.txt");
+        FileUtils.writeStringToFile(f, "first content", "UTF-8");
+        
+        FileDigests digests = FileDigests.calculate(f, ChecksumUtils.MD5_ALGORITHM);
+        Assert.assertTrue(digests.isUnchanged());
+        
+        addStep("Change the content of the file", "No longer unchanged");
+        FileUtils.writeStringToFile(f, "the new and longer content", "UTF-8");
+        Assert.assertFalse(digests.isUnchanged());
+        
+        addStep("Delete the file", "No longer unchanged");
+        Assert.assertTrue(f.delete());
+        Assert.assertFalse(digests.isUnchanged());
+    }
+}
@@ -0,0 +1,100 @@
+package dk.kb.ginnungagap.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+
+public class MetadataBufferTest extends ExtendedTestCase {
+
+    File spoolDir;
+    
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+        spoolDir = FileUtils.getDirectory(TestFileUtils.getTempDir(), "metadata-buffer-" + System.currentTimeMillis());
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test
+    public void testInMemory() throws IOException {
+        addDescription("Test that metadata below the threshold is kept in memory, and can be read several times.");
+        MetadataBuffer buffer = new MetadataBuffer(spoolDir, 1024);
+        buffer.reset("metadata-id");
+        byte[] content = "<record>in memory</record>".getBytes(StandardCharsets.UTF_8);
+        buffer.write(content);
+        buffer.close();
+        
+        Assert.assertEquals(buffer.getId(), "metadata-id");
+        Assert.assertEquals(buffer.size(), content.length);
+        Assert.assertFalse(buffer.isSpooled());
+        Assert.assertEquals(spoolDir.list().length, 0);
+        for(int i = 0; i < 2; i++) {
+            try (InputStream in = buffer.getInputStream()) {
+                Assert.assertEquals(IOUtils.toByteArray(in), content);
+            }
+        }
+    }
+    
+    @Test
+    public void testSpoolingAboveThreshold() throws IOException {
+        addDescription("Test that metadata above the threshold is spooled to disk, and the spool file is deleted "
+                + "when the buffer is reset.");
+        MetadataBuffer buffer = new MetadataBuffer(spoolDir, 16);
+        buffer.reset("spooled-id");
+        StringBuilder expected = new StringBuilder();
+        for(int i = 0; i < 100; i++) {
+            String line = "<line>" + i + "</line>\n";
+            buffer.write(line.getBytes(StandardCharsets.UTF_8));
+            expected.append(line);
+        }
+        buffer.write('!');
+        expected.append('!');
+        buffer.close();
+        
+        Assert.assertTrue(buffer.isSpooled());
+        Assert.assertEquals(spoolDir.list().length, 1);
+        Assert.assertEquals(buffer.size(), expected.length());
+        try (InputStream in = buffer.getInputStream()) {
+            Assert.assertEquals(IOUtils.toString(in, StandardCharsets.UTF_8), expected.toString());
+        }
+        
+        addStep("Reset the buffer and reuse it for small metadata", "Spool file deleted, content in memory");
+        buffer.reset("next-id");
+        Assert.assertEquals(spoolDir.list().length, 0);
+        Assert.assertEquals(buffer.size(), 0L);
+        buffer.write("small".getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(buffer.isSpooled());
+        try (InputStream in = buffer.getInputStream()) {
+            Assert.assertEquals(IOUtils.toString(in, StandardCharsets.UTF_8), "small");
+        }
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testWriteToClosedSpooledBuffer() throws IOException {
+        addDescription("Test that a spooled buffer cannot be written to after it has been closed.");
+        MetadataBuffer buffer = new MetadataBuffer(spoolDir, 4);
+        buffer.reset("closed-id");
+        try {
+            buffer.write("more than four bytes".getBytes(StandardCharsets.UTF_8));
+            buffer.close();
+            buffer.write('x');
+        } finally {
+            buffer.reset(null);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package dk.kb.ginnungagap.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.exception.ArgumentCheck;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+
+public class RangeInputStreamTest extends ExtendedTestCase {
+
+    String content = "0123456789abcdefghijklmnopqrstuvwxyz";
+    File file;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        TestFileUtils.setup();
+        file = TestFileUtils.createFileWithContent(content);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testReadingRange() throws IOException {
+        addDescription("Test that only the bytes of the range are read.");
+        try (InputStream in = RangeInputStream.open(file, 10L, 6L)) {
+            Assert.assertEquals(readAll(in), "abcdef");
+            Assert.assertEquals(in.read(), -1);
+            Assert.assertEquals(in.read(new byte[10], 0, 10), -1);
+        }
+    }
+
+    @Test
+    public void testReadingSingleBytesAndSkipping() throws IOException {
+        addDescription("Test reading single bytes and skipping within the range.");
+        try (InputStream in = RangeInputStream.open(file, 0L, 5L)) {
+            Assert.assertEquals(in.read(), '0');
+            Assert.assertEquals(in.skip(2L), 2L);
+            Assert.assertEquals(in.read(), '3');
+            Assert.assertEquals(in.skip(10L), 1L);
+            Assert.assertEquals(in.read(), -1);
+        }
+    }
+
+    @Test
+    public void testReadingRangeAtTheEndOfTheFile() throws IOException {
+        addDescription("Test reading a range, which ends at the end of the file.");
+        try (InputStream in = RangeInputStream.open(file, content.length() - 3, 3L)) {
+            Assert.assertEquals(readAll(in), "xyz");
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testRangeBeyondTheEndOfTheFile() throws IOException {
+        addDescription("Test that a range beyond the end of the file cannot be opened.");
+        RangeInputStream.open(file, content.length() - 3, 4L);
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testNegativeOffset() throws IOException {
+        addDescription("Test that a range with a negative offset cannot be opened.");
+        RangeInputStream.open(file, -1L, 4L);
+    }
+
+    /**
+     * Reads the rest of the stream as a string.
+     * @param in The stream.
+     * @return The content of the stream.
+     */
+    protected String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4];
+        int read;
+        while((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,170 @@
+package dk.kb.ginnungagap.utils;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.ginnungagap.archive.Archive;
+import dk.kb.ginnungagap.archive.WarcRecordIndex;
+import dk.kb.ginnungagap.testutils.TestFileUtils;
+
+public class WarcUtilsTest extends ExtendedTestCase {
+
+    File warcFile = new File("src/test/resources/warc/warcexample.warc");
+    String warcInfoRecordId = "fe271a89-6b19-4983-816f-90e23f137762";
+    String resourceRecordId = "random-file-uuid";
+    String resourceRecordChecksum = "a2919627d81e5e53bf9e2bce13fa44ae";
+    String warcId = "warc-" + UUID.randomUUID().toString();
+    String collectionId = "collection-" + UUID.randomUUID().toString();
+
+    Map<String, Long> offsets;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        TestFileUtils.setup();
+        offsets = new HashMap<String, Long>();
+        try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(warcFile))) {
+            for(WarcRecord record : reader) {
+                offsets.put(record.header.warcRecordIdStr, record.getStartOffset());
+            }
+        }
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testExtractRecordWithoutIndex() throws IOException {
+        addDescription("Test extracting a record by parsing the WARC file from the beginning");
+        File outputFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        WarcUtils.extractRecord(warcFile, resourceRecordId, outputFile);
+        Assert.assertEquals(ChecksumUtils.calculateChecksum(outputFile, ChecksumUtils.MD5_ALGORITHM).digestString,
+                resourceRecordChecksum);
+    }
+
+    @Test
+    public void testExtractRecordWithIndex() throws IOException {
+        addDescription("Test extracting a record from its offset in the index");
+        WarcRecordIndex index = createIndex();
+        long offset = offsets.get("<urn:uuid:" + resourceRecordId + ">");
+        index.addEntry("urn:uuid:" + resourceRecordId, offset, warcFile.length() - offset, "resource", null);
+
+        File outputFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        WarcUtils.extractRecord(warcFile, index, resourceRecordId, outputFile);
+        Assert.assertEquals(ChecksumUtils.calculateChecksum(outputFile, ChecksumUtils.MD5_ALGORITHM).digestString,
+                resourceRecordChecksum);
+    }
+
+    @Test
+    public void testExtractRecordNotInIndex() throws IOException {
+        addDescription("Test extracting a record, which is not in the index, by parsing the WARC file");
+        WarcRecordIndex index = createIndex();
+        File outputFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        WarcUtils.extractRecord(warcFile, index, resourceRecordId, outputFile);
+        Assert.assertEquals(ChecksumUtils.calculateChecksum(outputFile, ChecksumUtils.MD5_ALGORITHM).digestString,
+                resourceRecordChecksum);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testReaderStartsAtTheIndexedOffset() throws IOException {
+        addDescription("Test that the WARC file is read from the indexed offset, thus the records before the offset "
+                + "are not found");
+        WarcRecordIndex index = createIndex();
+        long offset = offsets.get("<urn:uuid:" + resourceRecordId + ">");
+        index.addEntry("urn:uuid:" + warcInfoRecordId, offset, warcFile.length() - offset, "warcinfo", null);
+
+        File outputFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        WarcUtils.extractRecord(warcFile, index, warcInfoRecordId, outputFile);
+    }
+
+    @Test
+    public void testIndexBeyondTheEndOfTheFile() throws IOException {
+        addDescription("Test that an index entry beyond the end of the WARC file is ignored");
+        WarcRecordIndex index = createIndex();
+        index.addEntry("urn:uuid:" + resourceRecordId, warcFile.length(), 100L, "resource", null);
+
+        try (WarcReader reader = WarcUtils.getReader(warcFile, index, resourceRecordId)) {
+            Assert.assertNotNull(WarcUtils.getWarcRecord(reader, resourceRecordId));
+        }
+    }
+
+    /**
+     * @return A new empty index.
+     */
+    protected WarcRecordIndex createIndex() {
+        return WarcRecordIndex.createIndex(new File(TestFileUtils.getTempDir(), "index"),
+                UUID.randomUUID().toString());
+    }
+
+    @Test
+    public void testExtractRecordFromArchiveWithIndex() throws IOException {
+        addDescription("Test that only the range of an indexed record is read from the archive");
+        WarcRecordIndex index = createIndex();
+        long offset = offsets.get("<urn:uuid:" + resourceRecordId + ">");
+        index.addEntry("urn:uuid:" + resourceRecordId, offset, warcFile.length() - offset, "resource", null);
+        Archive archive = createArchive();
+
+        File outputFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        WarcUtils.extractRecord(archive, warcId, collectionId, index, resourceRecordId, outputFile);
+        Assert.assertEquals(ChecksumUtils.calculateChecksum(outputFile, ChecksumUtils.MD5_ALGORITHM).digestString,
+                resourceRecordChecksum);
+
+        verify(archive).openRange(eq(warcId), eq(collectionId), eq(offset), eq(warcFile.length() - offset));
+        verifyNoMoreInteractions(archive);
+    }
+
+    @Test
+    public void testExtractRecordFromArchiveWithoutIndex() throws IOException {
+        addDescription("Test that the whole WARC file is retrieved from the archive, when the record is not indexed");
+        Archive archive = createArchive();
+
+        File outputFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        WarcUtils.extractRecord(archive, warcId, collectionId, createIndex(), resourceRecordId, outputFile);
+        Assert.assertEquals(ChecksumUtils.calculateChecksum(outputFile, ChecksumUtils.MD5_ALGORITHM).digestString,
+                resourceRecordChecksum);
+
+        verify(archive).getFile(eq(warcId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+    }
+
+    /**
+     * @return A mock archive, which delivers the example WARC file and ranges of it.
+     */
+    protected Archive createArchive() throws IOException {
+        Archive archive = mock(Archive.class);
+        when(archive.getFile(eq(warcId), eq(collectionId))).thenReturn(warcFile);
+        when(archive.openRange(eq(warcId), eq(collectionId), anyLong(), anyLong())).thenAnswer(
+                new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) throws Throwable {
+                return RangeInputStream.open(warcFile, (Long) invocation.getArguments()[2], 
+                        (Long) invocation.getArguments()[3]);
+            }
+        });
+        return archive;
+    }
+}
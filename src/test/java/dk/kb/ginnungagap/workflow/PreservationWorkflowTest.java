@@ -36,6 +36,7 @@ import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.BitmagPreserver;
+import dk.kb.ginnungagap.archive.BitmagPreserver.RecordPackaging;
 import dk.kb.ginnungagap.config.TestConfiguration;
 import dk.kb.ginnungagap.cumulus.CumulusWrapper;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
@@ -117,7 +118,7 @@ public class PreservationWorkflowTest extends ExtendedTestCase {
         MetadataTransformer metsTransformer = mock(MetadataTransformer.class);
         MetadataTransformer ieTransformer = mock(MetadataTransformer.class);
         MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
-        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        BitmagPreserver preserver = mockPreserver();
         MailDispatcher mailer = mock(MailDispatcher.class);
 
         CumulusRecordCollection items = mock(CumulusRecordCollection.class);
@@ -184,6 +185,7 @@ public class PreservationWorkflowTest extends ExtendedTestCase {
         verify(preserver).packRecordResource(any(CumulusRecord.class));
         verify(preserver).packRecordMetadata(any(CumulusRecord.class), any(File.class));
         verify(preserver).packRepresentationMetadata(any(File.class), anyString(), anyString());
+        verify(preserver).packRecordAsTransaction(any(CumulusRecord.class), any(RecordPackaging.class));
         verify(preserver).checkConditions();
         verify(preserver).uploadAll();
         verifyNoMoreInteractions(preserver);
@@ -192,18 +194,15 @@ public class PreservationWorkflowTest extends ExtendedTestCase {
         verify(items).iterator();
         verifyNoMoreInteractions(items);
         
-        verify(record).getFieldValue(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY));
-        verify(record, times(2)).getFieldValue(eq(Constants.FieldNames.METADATA_GUID));
         verify(record).getFieldValue(eq(Constants.FieldNames.COLLECTION_ID));
         verify(record).setStringValueInField(eq(Constants.FieldNames.METADATA_GUID), anyString());
         verify(record).validateFieldsExists(any(Collection.class));
         verify(record).validateFieldsHasValue(any(Collection.class));
         verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARINGS_METADATA), anyString());
-        verify(record, times(3)).getUUID();
+        verify(record).getUUID();
         verify(record).isMasterAsset();
         verify(record).writeFieldMetadata(any(OutputStream.class));
-        verify(record, times(2)).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
-        verify(record).getFieldValue(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY));
+        verify(record).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
         verify(record).getFieldValueOrNull(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY));
         verify(record).getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
         verify(record).setStringValueInField(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER), anyString());
@@ -247,4 +246,19 @@ public class PreservationWorkflowTest extends ExtendedTestCase {
         Assert.assertFalse(name.isEmpty());
         Assert.assertEquals(name, PreservationWorkflow.WORKFLOW_NAME);
     }
+    
+    /**
+     * @return A mocked preserver, which performs the packaging of the records, which are packaged as transactions.
+     */
+    protected BitmagPreserver mockPreserver() throws Exception {
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((RecordPackaging) invocation.getArguments()[1]).pack();
+                return null;
+            }
+        }).when(preserver).packRecordAsTransaction(any(CumulusRecord.class), any(RecordPackaging.class));
+        return preserver;
+    }
 }
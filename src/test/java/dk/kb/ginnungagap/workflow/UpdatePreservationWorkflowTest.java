@@ -33,6 +33,7 @@ import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.BitmagPreserver;
+import dk.kb.ginnungagap.archive.BitmagPreserver.RecordPackaging;
 import dk.kb.ginnungagap.config.TestConfiguration;
 import dk.kb.ginnungagap.cumulus.CumulusWrapper;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
@@ -64,7 +65,7 @@ public class UpdatePreservationWorkflowTest extends ExtendedTestCase {
         MetadataTransformer metsTransformer = mock(MetadataTransformer.class);
         MetadataTransformer ieTransformer = mock(MetadataTransformer.class);
         MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
-        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        BitmagPreserver preserver = mockPreserver();
         WorkflowReport report = mock(WorkflowReport.class);
         
         CumulusRecordCollection items = mock(CumulusRecordCollection.class);
@@ -133,19 +134,18 @@ public class UpdatePreservationWorkflowTest extends ExtendedTestCase {
         verify(preserver, times(0)).packRecordResource(any(CumulusRecord.class));
         verify(preserver).packRecordMetadata(any(CumulusRecord.class), any(File.class));
         verify(preserver).packRepresentationMetadata(any(File.class), anyString(), anyString());
+        verify(preserver).packRecordAsTransaction(any(CumulusRecord.class), any(RecordPackaging.class));
         verify(preserver).checkConditions();
         verify(preserver).uploadAll();
         verifyNoMoreInteractions(preserver);
         
-        verify(items, times(3)).getCount();
+        verify(items, times(4)).getCount();
         verify(items).iterator();
         verifyNoMoreInteractions(items);
         
         verify(record).getFieldValue(eq(Constants.FieldNames.COLLECTION_ID));
-        verify(record, times(3)).getFieldValue(eq(Constants.FieldNames.METADATA_GUID));
-        verify(record).getFieldValue(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY));
         verify(record).getFieldValue(eq(Constants.FieldNames.METADATA_PACKAGE_ID));
-        verify(record,times(2)).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
+        verify(record).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
         verify(record).getFieldValueOrNull(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY));
         verify(record).getFieldValueOrNull(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
         verify(record).getFieldValueOrNull(eq(UpdatePreservationStep.PRESERVATION_UPDATE_HISTORY_FIELD_NAME));
@@ -154,7 +154,7 @@ public class UpdatePreservationWorkflowTest extends ExtendedTestCase {
         verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARINGS_METADATA), anyString());
         verify(record).setStringValueInField(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY), anyString());
         verify(record).setStringValueInField(eq(UpdatePreservationStep.PRESERVATION_UPDATE_HISTORY_FIELD_NAME), anyString());
-        verify(record, times(2)).getUUID();
+        verify(record).getUUID();
         verify(record).validateFieldsExists(any(Collection.class));
         verify(record).validateFieldsHasValue(any(Collection.class));
         verify(record).writeFieldMetadata(any(OutputStream.class));
@@ -200,4 +200,19 @@ public class UpdatePreservationWorkflowTest extends ExtendedTestCase {
         Assert.assertFalse(name.isEmpty());
         Assert.assertEquals(name, UpdatePreservationWorkflow.WORKFLOW_NAME);
     }
+    
+    /**
+     * @return A mocked preserver, which performs the packaging of the records, which are packaged as transactions.
+     */
+    protected BitmagPreserver mockPreserver() throws Exception {
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((RecordPackaging) invocation.getArguments()[1]).pack();
+                return null;
+            }
+        }).when(preserver).packRecordAsTransaction(any(CumulusRecord.class), any(RecordPackaging.class));
+        return preserver;
+    }
 }
@@ -2,8 +2,10 @@ package dk.kb.ginnungagap.workflow;
 
 import dk.kb.ginnungagap.MailDispatcher;
 import dk.kb.ginnungagap.config.TestConfiguration;
+import dk.kb.ginnungagap.config.WorkflowConfiguration;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
+import dk.kb.ginnungagap.workflow.schedule.WorkflowScheduler;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowState;
 import dk.kb.ginnungagap.workflow.schedule.WorkflowStep;
 import org.jaccept.structure.ExtendedTestCase;
@@ -17,9 +19,14 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
@@ -190,6 +197,7 @@ public class WorkflowTest extends ExtendedTestCase {
         Mockito.verify(step).run(Mockito.any(WorkflowReport.class));
         Mockito.verify(step, Mockito.times(3)).getName();
         Mockito.verify(step).runForCatalog(Mockito.eq(null));
+        Mockito.verify(step).getCatalogName();
         Mockito.verifyNoMoreInteractions(step);
     }
 
@@ -414,4 +422,180 @@ public class WorkflowTest extends ExtendedTestCase {
         Assert.assertEquals(workflow.getSteps().get(0), step);        
     }
     
+    @Test
+    public void testStartManually() {
+        addDescription("Test that starting the workflow manually dispatches it directly to the scheduler");
+        Workflow workflow = new Workflow() {
+            @Override
+            Collection<WorkflowStep> createSteps() {
+                throw new RuntimeException("FAIL");
+            }
+            
+            @Override
+            public String getName() {
+                throw new RuntimeException("FAIL");
+            }
+            
+            @Override
+            Long getInterval() {
+                throw new RuntimeException("FAIL");
+            }
+            
+            @Override
+            String getDescription() {
+                throw new RuntimeException("FAIL");
+            }
+        };
+        workflow.scheduler = mock(WorkflowScheduler.class);
+        Assert.assertFalse(workflow.isReadyToRun());
+        Assert.assertNull(workflow.getDelayUntilNextRun());
+        
+        workflow.startManually("catalog");
+        
+        Assert.assertTrue(workflow.isReadyToRun());
+        Assert.assertEquals(workflow.getDelayUntilNextRun().longValue(), 0L);
+        Assert.assertEquals(workflow.catalogForNextRun, "catalog");
+        Mockito.verify(workflow.scheduler).dispatch(workflow);
+        Mockito.verifyNoMoreInteractions(workflow.scheduler);
+    }
+
+    @Test
+    public void testRunCatalogStepsConcurrently() {
+        addDescription("Test that the steps for different catalogs are run at the same time, when more catalog "
+                + "threads are configured, and that the finalization step is run after all of them");
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch started = new CountDownLatch(2);
+        WorkflowStep a1 = new TestStep("a", "a1", events, started);
+        WorkflowStep a2 = new TestStep("a", "a2", events, null);
+        WorkflowStep b1 = new TestStep("b", "b1", events, started);
+        WorkflowStep finalization = new TestStep(null, "finalization", events, null);
+        Workflow workflow = createWorkflow(2, a1, a2, b1, finalization);
+        
+        workflow.run();
+        
+        Assert.assertEquals(workflow.getState(), WorkflowState.SUCCEEDED);
+        Assert.assertEquals(a1.getStatus(), "Finished");
+        Assert.assertEquals(b1.getStatus(), "Finished");
+        Assert.assertTrue(events.indexOf("a1") < events.indexOf("a2"));
+        Assert.assertEquals(events.size(), 4);
+        Assert.assertEquals(events.get(3), "finalization");
+        Assert.assertTrue(workflow.getLastRunTime() < a1.getTimeForLastRun() + b1.getTimeForLastRun(), 
+                "The time of the run must not be the sum of the concurrent steps");
+    }
+    
+    @Test
+    public void testRunCatalogStepsSequentially() {
+        addDescription("Test that the steps are run in their order, when only a single catalog thread is configured");
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        WorkflowStep a1 = new TestStep("a", "a1", events, null);
+        WorkflowStep b1 = new TestStep("b", "b1", events, null);
+        WorkflowStep finalization = new TestStep(null, "finalization", events, null);
+        Workflow workflow = createWorkflow(1, a1, b1, finalization);
+        
+        workflow.run();
+        
+        Assert.assertEquals(workflow.getState(), WorkflowState.SUCCEEDED);
+        Assert.assertEquals(events, Arrays.asList("a1", "b1", "finalization"));
+        Assert.assertEquals(workflow.getLastRunTime().longValue(), 
+                a1.getTimeForLastRun() + b1.getTimeForLastRun() + finalization.getTimeForLastRun());
+    }
+    
+    @Test
+    public void testRunCatalogStepsConcurrentlyWithFailure() {
+        addDescription("Test that a failing catalog step does not stop the other catalogs, "
+                + "but the finalization step is not run");
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        WorkflowStep a1 = new TestStep("a", "a1", events, null);
+        WorkflowStep b1 = new TestStep("b", "b1", events, null);
+        WorkflowStep finalization = new TestStep(null, "finalization", events, null);
+        Workflow workflow = createWorkflow(2, a1, b1, finalization);
+        workflow.steps.add(1, new TestStep("b", "failure", events, null) {
+            @Override
+            public void run(WorkflowReport report) {
+                throw new RuntimeException("FAIL");
+            }
+        });
+        
+        workflow.run();
+        
+        Assert.assertEquals(workflow.getState(), WorkflowState.ABORTED);
+        Assert.assertTrue(events.contains("a1"));
+        Assert.assertFalse(events.contains("finalization"));
+    }
+    
+    /**
+     * Creates a workflow with the given steps, which is waiting to run.
+     * @param catalogThreads The number of catalog threads.
+     * @param workflowSteps The steps of the workflow.
+     * @return The workflow.
+     */
+    protected Workflow createWorkflow(int catalogThreads, WorkflowStep ... workflowSteps) {
+        Workflow workflow = new Workflow() {
+            @Override
+            Collection<WorkflowStep> createSteps() {
+                return Arrays.asList(workflowSteps);
+            }
+            
+            @Override
+            public String getName() {
+                return UUID.randomUUID().toString();
+            }
+            
+            @Override
+            Long getInterval() {
+                return -1L;
+            }
+            
+            @Override
+            String getDescription() {
+                throw new RuntimeException("FAIL");
+            }
+        };
+        TestConfiguration workflowConf = TestFileUtils.createTempConf();
+        workflowConf.setWorkflowConf(new WorkflowConfiguration(-1, conf.getWorkflowConf().getRetainDir(), 1, 1, 
+                catalogThreads));
+        workflow.conf = workflowConf;
+        workflow.mailer = mock(MailDispatcher.class);
+        workflow.init();
+        workflow.state = WorkflowState.WAITING;
+        workflow.nextRun = new Date();
+        return workflow;
+    }
+    
+    /**
+     * Step, which registers when it is performed, and optionally waits for the other steps with the same latch.
+     */
+    protected class TestStep extends WorkflowStep {
+        /** The name of the step.*/
+        final String name;
+        /** The list of performed steps.*/
+        final List<String> events;
+        /** The latch for the steps, which must run at the same time. May be null.*/
+        final CountDownLatch started;
+        
+        TestStep(String catalog, String name, List<String> events, CountDownLatch started) {
+            super(catalog);
+            this.name = name;
+            this.events = events;
+            this.started = started;
+        }
+        
+        @Override
+        public String getName() {
+            return name;
+        }
+        
+        @Override
+        protected void performStep(WorkflowReport report) throws Exception {
+            if(started != null) {
+                started.countDown();
+                if(!started.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("The steps did not run at the same time");
+                }
+                Thread.sleep(200);
+            }
+            report.addSuccessRecord(name, getCatalogName());
+            events.add(name);
+        }
+    }
 }
@@ -3,9 +3,13 @@ package dk.kb.ginnungagap.workflow.schedule;
 import dk.kb.ginnungagap.workflow.*;
 import org.jaccept.structure.ExtendedTestCase;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.Test;
 
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class WorkflowSchedulerTest extends ExtendedTestCase {
 
@@ -41,4 +45,80 @@ public class WorkflowSchedulerTest extends ExtendedTestCase {
         Mockito.verify(importWorkflow).cancel();
         Mockito.verifyNoMoreInteractions(importWorkflow);        
     }
+
+    @Test
+    public void testDispatch() {
+        addDescription("Test that a dispatched workflow is run directly, instead of waiting for the next check.");
+        WorkflowScheduler scheduler = createScheduler();
+        try {
+            Mockito.when(scheduler.updateWorkflow.isReadyToRun()).thenReturn(true, false);
+            
+            scheduler.dispatch(scheduler.updateWorkflow);
+            
+            Mockito.verify(scheduler.updateWorkflow, Mockito.timeout(500)).run();
+            Mockito.verify(scheduler.preservationWorkflow, Mockito.never()).run();
+        } finally {
+            scheduler.shutDown();
+        }
+    }
+    
+    @Test
+    public void testArchiveAdmission() throws Exception {
+        addDescription("Test that only one archive intensive workflow runs at the time, while the other workflows "
+                + "are not hindered.");
+        WorkflowScheduler scheduler = createScheduler();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        try {
+            for(Workflow workflow : scheduler.getWorkflows()) {
+                Mockito.when(workflow.isReadyToRun()).thenReturn(true, false);
+            }
+            Mockito.when(scheduler.preservationWorkflow.isArchiveIntensive()).thenReturn(true);
+            Mockito.when(scheduler.validationWorkflow.isArchiveIntensive()).thenReturn(true);
+            Mockito.doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) throws Throwable {
+                    started.countDown();
+                    release.await();
+                    return null;
+                }
+            }).when(scheduler.preservationWorkflow).run();
+            
+            addStep("Dispatch the preservation workflow, which keeps running", "It runs");
+            scheduler.dispatch(scheduler.preservationWorkflow);
+            started.await(1, TimeUnit.SECONDS);
+            Mockito.verify(scheduler.preservationWorkflow).run();
+            
+            addStep("Dispatch the validation and the update workflow", 
+                    "Only the update workflow runs, since the validation workflow uses the archive");
+            scheduler.dispatch(scheduler.validationWorkflow);
+            scheduler.dispatch(scheduler.updateWorkflow);
+            Mockito.verify(scheduler.updateWorkflow, Mockito.timeout(500)).run();
+            Thread.sleep(100);
+            Mockito.verify(scheduler.validationWorkflow, Mockito.never()).run();
+            
+            addStep("Finish the preservation workflow", "The validation workflow runs");
+            release.countDown();
+            Mockito.verify(scheduler.validationWorkflow, Mockito.timeout(500)).run();
+        } finally {
+            release.countDown();
+            scheduler.shutDown();
+        }
+    }
+    
+    /**
+     * @return A started scheduler with mock workflows, which are not waiting for a next run.
+     */
+    protected WorkflowScheduler createScheduler() {
+        WorkflowScheduler scheduler = new WorkflowScheduler();
+        scheduler.importWorkflow = Mockito.mock(ImportWorkflow.class);
+        scheduler.preservationWorkflow = Mockito.mock(PreservationWorkflow.class);
+        scheduler.updateWorkflow = Mockito.mock(UpdatePreservationWorkflow.class);
+        scheduler.validationWorkflow = Mockito.mock(ValidationWorkflow.class);
+        for(Workflow workflow : scheduler.getWorkflows()) {
+            Mockito.when(workflow.getDelayUntilNextRun()).thenReturn(null);
+        }
+        scheduler.scheduleWorkflows();
+        return scheduler;
+    }
 }
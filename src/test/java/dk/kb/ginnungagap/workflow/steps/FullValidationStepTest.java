@@ -1,5 +1,6 @@
 package dk.kb.ginnungagap.workflow.steps;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
@@ -11,11 +12,20 @@ import static org.mockito.Mockito.when;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.common.ContentType;
+import org.jwat.warc.WarcDigest;
 import org.jwat.warc.WarcReader;
 import org.jwat.warc.WarcReaderFactory;
 import org.jwat.warc.WarcRecord;
@@ -25,11 +35,20 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import dk.kb.cumulus.Constants;
+import dk.kb.cumulus.CumulusQuery;
 import dk.kb.cumulus.CumulusRecord;
+import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.Archive;
+import dk.kb.ginnungagap.archive.WarcPacker;
+import dk.kb.ginnungagap.archive.WarcRecordIndex;
 import dk.kb.ginnungagap.config.Configuration;
+import dk.kb.ginnungagap.testutils.BenchmarkUtils;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.FileUtils;
+import dk.kb.ginnungagap.utils.StreamUtils;
+import dk.kb.yggdrasil.warc.WarcWriterWrapper;
 
 public class FullValidationStepTest extends ExtendedTestCase {
 
@@ -40,6 +59,13 @@ public class FullValidationStepTest extends ExtendedTestCase {
     Long warcRecordSize = 36L;
     
     Configuration conf;
+    
+    /** The system property for the size of the payload in the benchmark.*/
+    static final String BENCHMARK_PAYLOAD_SIZE_PROPERTY = "ginnungagap.benchmark.payload.size";
+    /** The default size of the payload in the benchmark.*/
+    static final long DEFAULT_BENCHMARK_PAYLOAD_SIZE = 64L * 1024 * 1024;
+    /** The number of rounds of the benchmark.*/
+    static final int BENCHMARK_ROUNDS = 3;
     String catalogName = "test-catalog-name";
     
     @BeforeClass
@@ -257,7 +283,7 @@ public class FullValidationStepTest extends ExtendedTestCase {
         verify(record).getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID));
         verify(record).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
         verify(record).getFieldValue(eq(Constants.FieldNames.COLLECTION_ID));
-        verify(record, times(2)).getUUID();
+        verify(record).getUUID();
         verify(record).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_CHECK),
                 eq(Constants.FieldValues.PRESERVATION_VALIDATION_OK));
         verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARING_CHECK_STATUS), anyString());
@@ -266,6 +292,49 @@ public class FullValidationStepTest extends ExtendedTestCase {
         verifyZeroInteractions(server);
     }
     
+    @Test
+    public void testValidateRecordWithIndex() throws Exception {
+        addDescription("Test the ValidateRecord method, when the WARC record is read from its offset in the index.");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        CumulusRecord record = mock(CumulusRecord.class);
+        File exampleWarc = new File(warcPath);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        String warcId = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        String collectionId = "TEST-COLLECTION-ID-" + UUID.randomUUID().toString();
+
+        long offset = -1L;
+        try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(exampleWarc))) {
+            for(WarcRecord warcRecord : reader) {
+                if(warcRecord.header.warcRecordIdStr.contains(warcRecordId)) {
+                    offset = warcRecord.getStartOffset();
+                }
+            }
+        }
+        WarcRecordIndex index = WarcRecordIndex.createIndex(conf.getBitmagConf().getIndexDir(), warcId);
+        index.addEntry(warcRecordId, offset, exampleWarc.length() - offset, "resource", null);
+
+        when(record.getFieldValue(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER))).thenReturn(warcRecordChecksum);        
+        when(record.getFieldLongValue(eq(Constants.FieldNames.FILE_DATA_SIZE))).thenReturn(warcRecordSize);
+        when(record.getFieldValue(eq(Constants.FieldNames.ARCHIVE_MD5))).thenReturn(warcFileChecksum);
+        when(record.getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID))).thenReturn(warcId);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(record.getUUID()).thenReturn(warcRecordId);
+        
+        when(archive.getFile(eq(warcId), eq(collectionId))).thenReturn(exampleWarc);
+
+        FullValidationStep step = new FullValidationStep(server, catalogName, archive, conf);
+        step.validateRecord(record, report);
+
+        verify(report).addSuccessRecord(anyString(), anyString());
+        verifyNoMoreInteractions(report);
+        verify(record).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_CHECK),
+                eq(Constants.FieldValues.PRESERVATION_VALIDATION_OK));
+        
+        verifyZeroInteractions(server);
+    }
+    
     @Test
     public void testValidateRecordFailureValidation() throws Exception {
         addDescription("Test the ValidateRecord method for the scenario when it fails the validation.");
@@ -348,6 +417,158 @@ public class FullValidationStepTest extends ExtendedTestCase {
         verifyZeroInteractions(server);
     }
 //    
+    @Test
+    public void testPerformStepGroupsRecordsByWarcFile() throws Exception {
+        addDescription("Test that the records are validated per WARC file, so each WARC file is only retrieved once.");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+        String collectionId = "TEST-COLLECTION-ID-" + UUID.randomUUID().toString();
+        File resourceFile = new File("src/test/resources/test-resource.txt");
+        String resourceChecksum = ChecksumUtils.calculateChecksum(resourceFile, 
+                ChecksumUtils.MD5_ALGORITHM).digestString;
+        
+        addStep("Create a WARC file with three resources", "");
+        WarcPacker wp = new WarcPacker(conf.getBitmagConf());
+        String[] uuids = new String[3];
+        for(int i = 0; i < uuids.length; i++) {
+            uuids[i] = UUID.randomUUID().toString();
+            CumulusRecord packedRecord = mock(CumulusRecord.class);
+            when(packedRecord.getUUID()).thenReturn(uuids[i]);
+            wp.packRecordAssetFile(packedRecord, resourceFile);
+        }
+        wp.close();
+        String packedWarcId = wp.getWarcFile().getName();
+        String packedChecksum = wp.getWarcFileChecksum().digestString;
+        String exampleWarcId = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        
+        when(archive.getFile(eq(packedWarcId), eq(collectionId))).thenReturn(wp.getWarcFile());
+        when(archive.getFile(eq(exampleWarcId), eq(collectionId))).thenReturn(new File(warcPath));
+        
+        addStep("Validate records in both WARC files", 
+                "Each WARC file is retrieved once, the missing record and the wrong size are invalid");
+        CumulusRecord valid1 = createRecord(packedWarcId, collectionId, uuids[0], packedChecksum, 
+                resourceFile.length(), resourceChecksum);
+        CumulusRecord example = createRecord(exampleWarcId, collectionId, warcRecordId, warcFileChecksum, 
+                warcRecordSize, warcRecordChecksum);
+        CumulusRecord valid2 = createRecord(packedWarcId, collectionId, uuids[2], packedChecksum, 
+                resourceFile.length(), resourceChecksum);
+        CumulusRecord badSize = createRecord(packedWarcId, collectionId, uuids[1], packedChecksum, 
+                resourceFile.length() + 1, resourceChecksum);
+        CumulusRecord missing = createRecord(packedWarcId, collectionId, UUID.randomUUID().toString(), 
+                packedChecksum, resourceFile.length(), resourceChecksum);
+        CumulusRecordCollection items = createItems(valid1, example, valid2, badSize, missing);
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+        
+        FullValidationStep step = new FullValidationStep(server, catalogName, archive, conf);
+        step.performStep(report);
+        
+        verify(archive).getFile(eq(packedWarcId), eq(collectionId));
+        verify(archive).getFile(eq(exampleWarcId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+        
+        verify(report, times(3)).addSuccessRecord(anyString(), anyString());
+        verify(report, times(2)).addFailedRecord(anyString(), anyString(), anyString());
+        verifyNoMoreInteractions(report);
+        for(CumulusRecord record : Arrays.asList(valid1, example, valid2)) {
+            verify(record).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_CHECK),
+                    eq(Constants.FieldValues.PRESERVATION_VALIDATION_OK));
+        }
+        for(CumulusRecord record : Arrays.asList(badSize, missing)) {
+            verify(record).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_CHECK),
+                    eq(Constants.FieldValues.PRESERVATION_VALIDATION_FAILURE));
+        }
+        Assert.assertTrue(step.getResultOfLastRun().contains("2 WARC files"));
+    }
+    
+    @Test
+    public void testPerformStepWithWrongWarcFileChecksum() throws Exception {
+        addDescription("Test that the records of a WARC file are invalid, when the WARC file checksum does not match");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+        String warcId = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        String collectionId = "TEST-COLLECTION-ID-" + UUID.randomUUID().toString();
+        
+        when(archive.getFile(eq(warcId), eq(collectionId))).thenReturn(new File(warcPath));
+        CumulusRecord record = createRecord(warcId, collectionId, warcRecordId, UUID.randomUUID().toString(), 
+                warcRecordSize, warcRecordChecksum);
+        CumulusRecordCollection items = createItems(record);
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+        
+        FullValidationStep step = new FullValidationStep(server, catalogName, archive, conf);
+        step.performStep(report);
+        
+        verify(archive).getFile(eq(warcId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+        verify(report).addFailedRecord(anyString(), anyString(), anyString());
+        verifyNoMoreInteractions(report);
+        verify(record).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_CHECK),
+                eq(Constants.FieldValues.PRESERVATION_VALIDATION_FAILURE));
+    }
+    
+    @Test
+    public void testPerformStepFailingToRetrieveWarcFile() throws Exception {
+        addDescription("Test that all the records of a WARC file are invalid, when the WARC file cannot be retrieved");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+        String warcId = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        String collectionId = "TEST-COLLECTION-ID-" + UUID.randomUUID().toString();
+        
+        when(archive.getFile(eq(warcId), eq(collectionId))).thenThrow(new IllegalStateException("No such file"));
+        CumulusRecord record1 = createRecord(warcId, collectionId, UUID.randomUUID().toString(), warcFileChecksum, 
+                warcRecordSize, warcRecordChecksum);
+        CumulusRecord record2 = createRecord(warcId, collectionId, UUID.randomUUID().toString(), warcFileChecksum, 
+                warcRecordSize, warcRecordChecksum);
+        CumulusRecordCollection items = createItems(record1, record2);
+        when(server.getItems(eq(catalogName), any(CumulusQuery.class))).thenReturn(items);
+        
+        FullValidationStep step = new FullValidationStep(server, catalogName, archive, conf);
+        step.performStep(report);
+        
+        verify(archive).getFile(eq(warcId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+        verify(report, times(2)).addFailedRecord(anyString(), anyString(), anyString());
+        verifyNoMoreInteractions(report);
+    }
+    
+    /**
+     * Creates a mock Cumulus record for the validation.
+     * @param warcId The id of the WARC file with the resource.
+     * @param collectionId The id of the collection.
+     * @param uuid The UUID of the record.
+     * @param warcChecksum The checksum of the WARC file.
+     * @param size The size of the resource.
+     * @param checksum The checksum of the resource.
+     * @return The mock Cumulus record.
+     */
+    protected CumulusRecord createRecord(String warcId, String collectionId, String uuid, String warcChecksum, 
+            long size, String checksum) {
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID))).thenReturn(warcId);
+        when(record.getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID))).thenReturn(warcId);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(record.getFieldValue(eq(Constants.FieldNames.ARCHIVE_MD5))).thenReturn(warcChecksum);
+        when(record.getFieldLongValue(eq(Constants.FieldNames.FILE_DATA_SIZE))).thenReturn(size);
+        when(record.getFieldValue(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER))).thenReturn(checksum);
+        when(record.getUUID()).thenReturn(uuid);
+        return record;
+    }
+    
+    /**
+     * Creates a mock collection of Cumulus records.
+     * @param records The Cumulus records.
+     * @return The mock collection.
+     */
+    protected CumulusRecordCollection createItems(CumulusRecord ... records) {
+        List<CumulusRecord> recordList = Arrays.asList(records);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        when(items.iterator()).thenReturn(recordList.iterator());
+        when(items.getCount()).thenReturn(recordList.size());
+        return items;
+    }
+    
 //    @Test
 //    public void testPerformStep() throws Exception {
 //        addDescription("Test the performStep method in the parent class");
@@ -394,4 +615,90 @@ public class FullValidationStepTest extends ExtendedTestCase {
 //        verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARING_CHECK_STATUS), anyString());
 //        verifyNoMoreInteractions(record);
 //    }
+    
+    @Test
+    public void testValidateRecordChecksumBenchmark() throws Exception {
+        addDescription("Benchmark of validating the checksum of a large WARC record, by streaming the payload through "
+                + "the digest compared to copying the payload to a temporary file and digesting the file. "
+                + "The payload size can be set with the system property '" + BENCHMARK_PAYLOAD_SIZE_PROPERTY + "'. "
+                + "Only run with the system property '" + BenchmarkUtils.BENCHMARK_PROPERTY + "=true'.");
+        BenchmarkUtils.skipUnlessBenchmarking();
+        long payloadSize = Long.getLong(BENCHMARK_PAYLOAD_SIZE_PROPERTY, DEFAULT_BENCHMARK_PAYLOAD_SIZE);
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        CumulusRecord record = mock(CumulusRecord.class);
+        String uuid = UUID.randomUUID().toString();
+        
+        addStep("Create a WARC file with a synthetic payload of " + payloadSize + " bytes", "");
+        File payloadFile = new File(TestFileUtils.getTempDir(), "payload-" + uuid);
+        Random random = new Random(payloadSize);
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream out = new FileOutputStream(payloadFile)) {
+            for(long written = 0; written < payloadSize; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, payloadSize - written));
+            }
+        }
+        Map<String, WarcDigest> digests = ChecksumUtils.calculateChecksums(payloadFile, 
+                ChecksumUtils.MD5_ALGORITHM, "SHA-1");
+        WarcWriterWrapper warcWrapper = WarcWriterWrapper.getWriter(TestFileUtils.getTempDir(), "warc-" + uuid);
+        try (InputStream in = new FileInputStream(payloadFile)) {
+            warcWrapper.writeResourceRecord(in, payloadFile.length(), 
+                    ContentType.parseContentType("application/octet-stream"), digests.get("SHA-1"), uuid);
+        } finally {
+            warcWrapper.close();
+        }
+        FileUtils.deleteFile(payloadFile);
+        File warcFile = warcWrapper.getWarcFile();
+        
+        when(record.getFieldValue(eq(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER)))
+                .thenReturn(digests.get(ChecksumUtils.MD5_ALGORITHM).digestString);
+        when(record.getUUID()).thenReturn(uuid);
+        FullValidationStep step = new FullValidationStep(server, catalogName, archive, conf);
+        
+        try {
+            long tempFileMillis = Long.MAX_VALUE;
+            long streamingMillis = Long.MAX_VALUE;
+            for(int i = 0; i < BENCHMARK_ROUNDS; i++) {
+                long start = System.nanoTime();
+                try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(warcFile))) {
+                    validateRecordChecksumThroughTempFile(step.getWarcRecord(reader, uuid), record);
+                }
+                tempFileMillis = Math.min(tempFileMillis, (System.nanoTime() - start) / 1000000L);
+                
+                start = System.nanoTime();
+                try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(warcFile))) {
+                    step.validateRecordChecksum(step.getWarcRecord(reader, uuid), record);
+                }
+                streamingMillis = Math.min(streamingMillis, (System.nanoTime() - start) / 1000000L);
+            }
+            addStep("Validate the checksum of the record through a temporary file", 
+                    "Best of " + BENCHMARK_ROUNDS + " rounds: " + tempFileMillis + " ms");
+            addStep("Validate the checksum of the record by streaming the payload", 
+                    "Best of " + BENCHMARK_ROUNDS + " rounds: " + streamingMillis + " ms");
+        } finally {
+            FileUtils.deleteFile(warcFile);
+        }
+    }
+    
+    /**
+     * The previous way of validating the checksum of a WARC record, by copying the payload to a temporary file 
+     * and calculating the checksum of the file. Only used for the benchmark.
+     * @param warcRecord The WARC record.
+     * @param cumulusRecord The Cumulus record.
+     */
+    protected void validateRecordChecksumThroughTempFile(WarcRecord warcRecord, CumulusRecord cumulusRecord) 
+            throws IOException {
+        File tmpFile = new File(conf.getBitmagConf().getTempDir(), cumulusRecord.getUUID());
+        WarcDigest digest;
+        try (OutputStream os = new FileOutputStream(tmpFile)) {
+            StreamUtils.copyInputStreamToOutputStream(warcRecord.getPayloadContent(), os);
+            os.close();
+            digest = ChecksumUtils.calculateChecksum(tmpFile, ChecksumUtils.MD5_ALGORITHM);
+        } finally {
+            FileUtils.deleteFile(tmpFile);
+        }
+        Assert.assertEquals(digest.digestString, 
+                cumulusRecord.getFieldValue(Constants.FieldNames.CHECKSUM_ORIGINAL_MASTER));
+    }
 }
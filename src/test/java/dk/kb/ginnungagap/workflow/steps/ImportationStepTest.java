@@ -1,6 +1,7 @@
 package dk.kb.ginnungagap.workflow.steps;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
@@ -10,12 +11,16 @@ import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.UUID;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.jaccept.structure.ExtendedTestCase;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -28,9 +33,12 @@ import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.Archive;
+import dk.kb.ginnungagap.archive.WarcRecordIndex;
 import dk.kb.ginnungagap.config.Configuration;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
 import dk.kb.ginnungagap.utils.FileUtils;
+import dk.kb.ginnungagap.utils.RangeInputStream;
 
 public class ImportationStepTest extends ExtendedTestCase {
 
@@ -124,6 +132,54 @@ public class ImportationStepTest extends ExtendedTestCase {
         verifyZeroInteractions(server);
     }
     
+    @Test
+    public void testImportRecordWithIndex() throws Exception {
+        addDescription("Test the importation of a record, which is in the index of the WARC file, "
+                + "thus only its range of the WARC file is read from the archive.");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+        File warcFile = new File(warcResourcePath);
+        
+        File outFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        File indexDir = new File(TestFileUtils.getTempDir(), "index-" + UUID.randomUUID().toString());
+        long offset = -1L;
+        try (WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(warcFile))) {
+            for(WarcRecord warcRecord : reader) {
+                if(warcRecord.header.warcRecordIdStr.contains(recordGuid)) {
+                    offset = warcRecord.getStartOffset();
+                }
+            }
+        }
+        WarcRecordIndex.createIndex(indexDir, warcFileId).addEntry("urn:uuid:" + recordGuid, offset, 
+                warcFile.length() - offset, "resource", null);
+        
+        ImportationStep step = new ImportationStep(server, archive, catalogName, retainDir, indexDir);
+
+        CumulusRecord record = mock(CumulusRecord.class);
+
+        when(record.getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID))).thenReturn(warcFileId);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(record.getUUID()).thenReturn(recordGuid);
+        when(record.getFieldValueForNonStringField(eq(Constants.FieldNames.ASSET_REFERENCE))).thenReturn(outFile.getAbsolutePath());
+        
+        when(archive.openRange(eq(warcFileId), eq(collectionId), anyLong(), anyLong())).thenReturn(
+                RangeInputStream.open(warcFile, offset, warcFile.length() - offset));
+        
+        step.importRecord(record, report);
+
+        verify(report).addSuccessRecord(anyString(), anyString());
+        verifyNoMoreInteractions(report);
+        Assert.assertTrue(outFile.isFile());
+        Assert.assertEquals(ChecksumUtils.calculateChecksum(outFile, ChecksumUtils.MD5_ALGORITHM).digestString, 
+                warcRecordChecksum);
+
+        verify(archive).openRange(eq(warcFileId), eq(collectionId), eq(offset), eq(warcFile.length() - offset));
+        verifyNoMoreInteractions(archive);
+
+        verifyZeroInteractions(server);
+    }
+    
     @Test
     public void testImportRecordFailedToFindWarcRecord() throws Exception {
         addDescription("Test the importation of a record, when it cannot find the given warc record.");
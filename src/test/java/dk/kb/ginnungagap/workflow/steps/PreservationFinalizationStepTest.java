@@ -2,8 +2,10 @@ package dk.kb.ginnungagap.workflow.steps;
 
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.jaccept.structure.ExtendedTestCase;
@@ -14,6 +16,7 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import dk.kb.ginnungagap.archive.BitmagPreserver;
+import dk.kb.ginnungagap.archive.CumulusWriteBack;
 
 public class PreservationFinalizationStepTest extends ExtendedTestCase {
 
@@ -27,7 +30,34 @@ public class PreservationFinalizationStepTest extends ExtendedTestCase {
         step.performStep(report);
         
         verify(preserver).uploadAll();
+        verify(preserver).waitForUploads();
+        verify(preserver).waitForWriteBacks();
+        verify(preserver, times(2)).getWriteBack();
         verifyNoMoreInteractions(preserver);
+        Assert.assertEquals(step.getResultOfLastRun(), "Uploaded all WARC files");
+    }
+    
+    @Test
+    public void testStepWithWriteBack() throws Exception {
+        addDescription("Test that the result of the step contains the write-back since the previous run.");
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        CumulusWriteBack writeBack = mock(CumulusWriteBack.class);
+        when(preserver.getWriteBack()).thenReturn(writeBack);
+        when(writeBack.getUpdatedRecords()).thenReturn(10L, 10L, 25L);
+        when(writeBack.getFailedRecords()).thenReturn(2L);
+        PreservationFinalizationStep step = new PreservationFinalizationStep(preserver);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        addStep("Run the step the first time", "The result has all the written back records");
+        step.performStep(report);
+        Assert.assertEquals(step.getResultOfLastRun(), 
+                "Uploaded all WARC files, and wrote back the results of 10 records to Cumulus, with 2 failures");
+
+        addStep("Run the step again", "The result only has the records written back since the first run");
+        step.performStep(report);
+        Assert.assertEquals(step.getResultOfLastRun(), 
+                "Uploaded all WARC files, and wrote back the results of 15 records to Cumulus");
+        verify(preserver, times(2)).waitForWriteBacks();
     }
     
     @Test
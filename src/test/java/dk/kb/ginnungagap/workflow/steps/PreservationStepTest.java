@@ -2,9 +2,13 @@ package dk.kb.ginnungagap.workflow.steps;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -16,12 +20,19 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Future;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.jaccept.structure.ExtendedTestCase;
+import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.testng.Assert;
@@ -35,10 +46,16 @@ import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.BitmagPreserver;
+import dk.kb.ginnungagap.archive.BitmagPreserver.RecordPackaging;
 import dk.kb.ginnungagap.config.Configuration;
+import dk.kb.ginnungagap.config.TransformationConfiguration;
+import dk.kb.ginnungagap.cumulus.CachedCumulusRecord;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
 import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
 import dk.kb.ginnungagap.transformation.MetadataTransformer;
+import dk.kb.ginnungagap.utils.ChecksumUtils;
+import dk.kb.ginnungagap.utils.FileDigests;
+import dk.kb.ginnungagap.utils.MetadataBuffer;
 import dk.kb.ginnungagap.utils.StreamUtils;
 
 public class PreservationStepTest extends ExtendedTestCase {
@@ -96,14 +113,15 @@ public class PreservationStepTest extends ExtendedTestCase {
 
         verifyZeroInteractions(report);
 
-        verify(server).getItems(anyString(), any(CumulusQuery.class));
+        InOrder recoveryBeforeQuery = inOrder(preserver, server);
+        recoveryBeforeQuery.verify(preserver).recoverWarcFiles();
+        recoveryBeforeQuery.verify(server).getItems(anyString(), any(CumulusQuery.class));
         verifyNoMoreInteractions(server);
-        
-        verifyZeroInteractions(preserver);
+        verifyNoMoreInteractions(preserver);
         
         verifyZeroInteractions(transformationHandler);
         
-        verify(records, times(2)).getCount();
+        verify(records, times(3)).getCount();
         verifyNoMoreInteractions(records);
     }
     
@@ -146,11 +164,14 @@ public class PreservationStepTest extends ExtendedTestCase {
         verifyNoMoreInteractions(items);
 
         verify(record).getFieldValueOrNull(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY));
-        verify(record, times(2)).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
+        verify(record).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
         verify(record).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_FAILED));
         verify(record).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), anyString());
-        verify(record, times(4)).getUUID();
+        verify(record).getUUID();
         verifyNoMoreInteractions(record);
+        
+        Assert.assertEquals(step.getFieldSdkReads(), 3L);
+        Assert.assertEquals(step.getFieldCachedReads(), 4L);
     }
     
     @Test
@@ -205,26 +226,219 @@ public class PreservationStepTest extends ExtendedTestCase {
         verify(items).getCount();
         verifyNoMoreInteractions(items);
 
-        verify(record1, times(2)).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
+        verify(record1).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
         verify(record1).getFieldValueOrNull(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY));
         verify(record1).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_FAILED));
         verify(record1).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), anyString());
-        verify(record1, times(4)).getUUID();
+        verify(record1).getUUID();
         verifyNoMoreInteractions(record1);
 
-        verify(record2, times(2)).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
+        verify(record2).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
         verify(record2).getFieldValueOrNull(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY));
         verify(record2).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_FAILED));
         verify(record2).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), anyString());
-        verify(record2, times(4)).getUUID();
+        verify(record2).getUUID();
         verifyNoMoreInteractions(record2);
     }
 
+    @Test
+    public void testPreserveRecordItemsConcurrently() throws Exception {
+        addDescription("Test that the preserve record items method prepares the records concurrently, "
+                + "but packages and reports them in the order of the collection.");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        int numberOfRecords = 10;
+        List<CumulusRecord> records = new ArrayList<CumulusRecord>();
+        for(int i = 0; i < numberOfRecords; i++) {
+            CumulusRecord record = mock(CumulusRecord.class);
+            when(record.getFieldValue(eq(Constants.FieldNames.RECORD_NAME))).thenReturn("record-" + i);
+            records.add(record);
+        }
+        when(items.iterator()).thenReturn(records.iterator());
+        when(items.getCount()).thenReturn(numberOfRecords);
+
+        final Set<String> preparationThreads = Collections.synchronizedSet(new HashSet<String>());
+        final List<CumulusRecord> packagedRecords = new ArrayList<CumulusRecord>();
+        PreservationStep step = new PreservationStep(conf.getTransformationConf(), server, transformationHandler, 
+                preserver, catalogName, 4) {
+            @Override
+            protected PreparedRecord prepareRecordForPreservation(CumulusRecord record) {
+                preparationThreads.add(Thread.currentThread().getName());
+                try {
+                    Thread.sleep((numberOfRecords - records.indexOf(((CachedCumulusRecord) record).getRecord())) * 10L);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return new PreparedRecord(record);
+            }
+            @Override
+            protected void sendPreparedRecordToPreservation(PreparedRecord prepared) {
+                packagedRecords.add(((CachedCumulusRecord) prepared.getRecord()).getRecord());
+            }
+        };
+
+        step.preserveRecordItems(items, catalogName, report);
+
+        Assert.assertEquals(packagedRecords, records);
+        Assert.assertTrue(preparationThreads.size() > 1, "Prepared by threads: " + preparationThreads);
+        Assert.assertFalse(preparationThreads.contains(Thread.currentThread().getName()));
+        Assert.assertEquals(step.getResultOfLastRun(), "Preservation of " + numberOfRecords + " records");
+
+        InOrder order = inOrder(report);
+        for(int i = 0; i < numberOfRecords; i++) {
+            order.verify(report).addSuccessRecord(eq("record-" + i), eq(catalogName));
+        }
+        verifyNoMoreInteractions(report);
+        verifyZeroInteractions(server);
+        verifyZeroInteractions(preserver);
+    }
+    
+    @Test
+    public void testPreserveRecordItemsConcurrentlyWithFailure() throws Exception {
+        addDescription("Test that a failure during the concurrent preparation of a record is reported for that "
+                + "record only.");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mockPreserver();
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        CumulusRecord record1 = mock(CumulusRecord.class);
+        CumulusRecord record2 = mock(CumulusRecord.class);
+        CumulusRecord record3 = mock(CumulusRecord.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        when(items.iterator()).thenReturn(Arrays.asList(record1, record2, record3).iterator());
+        when(items.getCount()).thenReturn(3);
+        when(record1.getFieldValue(eq(Constants.FieldNames.RECORD_NAME))).thenReturn("record-1");
+        when(record2.getFieldValue(eq(Constants.FieldNames.RECORD_NAME))).thenReturn("record-2");
+        when(record3.getFieldValue(eq(Constants.FieldNames.RECORD_NAME))).thenReturn("record-3");
+
+        PreservationStep step = new PreservationStep(conf.getTransformationConf(), server, transformationHandler, 
+                preserver, catalogName, 2) {
+            @Override
+            protected PreparedRecord prepareRecordForPreservation(CumulusRecord record) {
+                PreparedRecord prepared = new PreparedRecord(record);
+                if(((CachedCumulusRecord) record).getRecord() == record2) {
+                    prepared.setFailure(new IllegalStateException("THIS MUST FAIL"));
+                }
+                return prepared;
+            }
+            @Override
+            protected void preserveFile(CumulusRecord record) {}
+        };
+
+        step.preserveRecordItems(items, catalogName, report);
+
+        Assert.assertTrue(step.getResultOfLastRun().contains("1 failures"));
+        Assert.assertTrue(step.getResultOfLastRun().contains("THIS MUST FAIL"));
+
+        InOrder order = inOrder(report);
+        order.verify(report).addSuccessRecord(eq("record-1"), eq(catalogName));
+        order.verify(report).addFailedRecord(eq("record-2"), eq("THIS MUST FAIL"), eq(catalogName));
+        order.verify(report).addSuccessRecord(eq("record-3"), eq(catalogName));
+        verifyNoMoreInteractions(report);
+
+        verify(preserver, times(2)).packRecordMetadata(any(CumulusRecord.class), any(File.class));
+        verify(preserver, times(2)).packRepresentationMetadata(any(File.class), anyString(), anyString());
+        verify(preserver, times(2)).packRecordAsTransaction(any(CumulusRecord.class), any(RecordPackaging.class));
+        verify(preserver, times(2)).checkConditions();
+        verifyNoMoreInteractions(preserver);
+
+        verify(record2).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), 
+                eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_FAILED));
+        verify(record2).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), anyString());
+    }
+
+    @Test
+    public void testPreserveRecordItemsReleasesPendingBuffersOnFailure() throws Exception {
+        addDescription("Test that the metadata buffers of the pending records are released, when the "
+                + "preservation of the record items is aborted by a failure.");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        int numberOfRecords = 20;
+        List<CumulusRecord> records = new ArrayList<CumulusRecord>();
+        for(int i = 0; i < numberOfRecords; i++) {
+            records.add(mock(CumulusRecord.class));
+        }
+        when(items.iterator()).thenReturn(records.iterator());
+        when(items.getCount()).thenReturn(numberOfRecords);
+
+        TransformationConfiguration tc = conf.getTransformationConf();
+        TransformationConfiguration bufferedConf = new TransformationConfiguration(tc.getXsltDir(), tc.getXsdDir(), 
+                tc.getMetadataTempDir(), tc.getRequiredFields(), false, 1024);
+        final Set<MetadataBuffer> obtainedBuffers = Collections.synchronizedSet(new HashSet<MetadataBuffer>());
+        PreservationStep step = new PreservationStep(bufferedConf, server, transformationHandler, 
+                preserver, catalogName, 2) {
+            @Override
+            protected PreparedRecord prepareRecordForPreservation(CumulusRecord record) {
+                PreparedRecord prepared = new PreparedRecord(record);
+                prepared.setMetadataBuffer(obtainMetadataBuffer(UUID.randomUUID().toString()));
+                obtainedBuffers.add(prepared.getMetadataBuffer());
+                return prepared;
+            }
+            @Override
+            protected PreparedRecord getPreparedRecord(Future<PreparedRecord> future) {
+                super.getPreparedRecord(future);
+                throw new IllegalStateException("THIS MUST FAIL");
+            }
+        };
+
+        addStep("Preserve the record items, when retrieving the first prepared record fails", 
+                "The failure is thrown, and the metadata buffers of all the prepared records are released");
+        try {
+            step.preserveRecordItems(items, catalogName, report);
+            Assert.fail("Should throw an exception");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "THIS MUST FAIL");
+        }
+        Assert.assertFalse(obtainedBuffers.isEmpty());
+        Assert.assertEquals(new HashSet<MetadataBuffer>(step.metadataBuffers), obtainedBuffers);
+
+        verifyZeroInteractions(report);
+        verifyZeroInteractions(preserver);
+    }
+
+    @Test
+    public void testPreservePreparedFileWithDigests() throws Exception {
+        addDescription("Test that the digests calculated during the preparation are used for packaging the file.");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+        CumulusRecord record = mock(CumulusRecord.class);
+        
+        PreservationStep step = new PreservationStep(conf.getTransformationConf(), server, transformationHandler, 
+                preserver, catalogName, 1, conf.getBitmagConf().getAlgorithm());
+        
+        addStep("Preserve a prepared record without digests", "The file must be packaged as usual");
+        PreparedRecord prepared = new PreparedRecord(record);
+        step.preservePreparedFile(prepared);
+        verify(preserver).packRecordResource(eq(record));
+        
+        addStep("Preserve a prepared record with digests", "The file must be packaged with the digests");
+        FileDigests digests = FileDigests.calculate(contentFile, ChecksumUtils.MD5_ALGORITHM, 
+                conf.getBitmagConf().getAlgorithm());
+        prepared.setFileDigests(digests);
+        step.preservePreparedFile(prepared);
+        verify(preserver).packRecordResource(eq(record), eq(digests));
+        verifyNoMoreInteractions(preserver);
+        
+        verifyZeroInteractions(server);
+        verifyZeroInteractions(transformationHandler);
+        verifyZeroInteractions(record);
+    }
+    
     @Test
     public void testSendRecordToPreservationSuccessMaster() throws Exception {
         addDescription("Test the sendRecordToPreservation method for the success scenario for a master record.");
         CumulusServer server = mock(CumulusServer.class);
-        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        BitmagPreserver preserver = mockPreserver();
         MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
         MetadataTransformer metsTransformer = mock(MetadataTransformer.class);
         MetadataTransformer ieTransformer = mock(MetadataTransformer.class);
@@ -266,23 +480,20 @@ public class PreservationStepTest extends ExtendedTestCase {
         verify(preserver).packRecordResource(eq(record));
         verify(preserver).packRecordMetadata(eq(record), any(File.class));
         verify(preserver, times(3)).packRepresentationMetadata(any(File.class), anyString(), anyString());
+        verify(preserver).packRecordAsTransaction(any(CumulusRecord.class), any(RecordPackaging.class));
         verify(preserver).checkConditions();
         verifyNoMoreInteractions(preserver);
 
-        verify(metsTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
-        verifyNoMoreInteractions(metsTransformer);
-        
-        verify(ieTransformer, times(2)).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
-        verifyNoMoreInteractions(ieTransformer);
-        
-        verify(representationTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
-        verifyNoMoreInteractions(representationTransformer);
+        verifyZeroInteractions(metsTransformer);
+        verifyZeroInteractions(ieTransformer);
+        verifyZeroInteractions(representationTransformer);
         
-        verify(transformationHandler).getMetadataStandards(any(InputStream.class));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS));
         verify(transformationHandler, times(2)).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_REPRESENTATION));
-        verify(transformationHandler, times(4)).validate(any(InputStream.class));
+        verify(transformationHandler).transformAndValidate(eq(metsTransformer), any(InputStream.class), any(OutputStream.class));
+        verify(transformationHandler, times(2)).transformAndValidate(eq(ieTransformer), any(InputStream.class), any(OutputStream.class));
+        verify(transformationHandler).transformAndValidate(eq(representationTransformer), any(InputStream.class), any(OutputStream.class));
         verifyNoMoreInteractions(transformationHandler);
 
         verify(record, times(2)).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
@@ -310,11 +521,113 @@ public class PreservationStepTest extends ExtendedTestCase {
         verifyNoMoreInteractions(record);
     }
 
+    @Test
+    public void testSendRecordToPreservationWithBufferedMetadata() throws Exception {
+        addDescription("Test the sendRecordToPreservation method for a master record, when the metadata is buffered.");
+        CumulusServer server = mock(CumulusServer.class);
+        BitmagPreserver preserver = mockPreserver();
+        MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+        MetadataTransformer metsTransformer = mock(MetadataTransformer.class);
+        MetadataTransformer ieTransformer = mock(MetadataTransformer.class);
+        MetadataTransformer representationTransformer = mock(MetadataTransformer.class);
+        CumulusRecord record = mock(CumulusRecord.class);
+        
+        TransformationConfiguration tc = conf.getTransformationConf();
+        TransformationConfiguration bufferedConf = new TransformationConfiguration(tc.getXsltDir(), tc.getXsdDir(), 
+                tc.getMetadataTempDir(), tc.getRequiredFields(), false, 1024);
+        PreservationStep step = new PreservationStep(bufferedConf, server, transformationHandler, preserver, catalogName);
+        
+        String metadataGuid = UUID.randomUUID().toString();
+        String ieUUID = UUID.randomUUID().toString();
+        String repMetadataUUID = UUID.randomUUID().toString();
+        String repIeUUID = UUID.randomUUID().toString();
+        
+        when(record.getFieldValue(eq(Constants.FieldNames.METADATA_GUID))).thenReturn(metadataGuid);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        when(record.getFieldValue(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY))).thenReturn(ieUUID);
+        when(record.getFieldValue(eq(Constants.FieldNames.REPRESENTATION_METADATA_GUID))).thenReturn(repMetadataUUID);
+        when(record.getFieldValue(eq(Constants.FieldNames.REPRESENTATION_INTELLECTUAL_ENTITY_UUID))).thenReturn(repIeUUID);
+        when(record.getFieldValueOrNull(eq(Constants.FieldNames.REPRESENTATION_INTELLECTUAL_ENTITY_UUID))).thenReturn(repIeUUID);
+        when(record.isMasterAsset()).thenReturn(true);
+        when(record.getFile()).thenReturn(contentFile);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                OutputStream out = (OutputStream) invocation.getArguments()[0];
+                StreamUtils.copyInputStreamToOutputStream(new FileInputStream(new File(testRecordMetadataPath)), out);
+                return null;
+            }
+        }).when(record).writeFieldMetadata(any(OutputStream.class));
+        doAnswer(new Answer<Collection<String>>() {
+            @Override
+            public Collection<String> answer(InvocationOnMock invocation) throws Throwable {
+                InputStream in = (InputStream) invocation.getArguments()[1];
+                OutputStream out = (OutputStream) invocation.getArguments()[2];
+                StreamUtils.copyInputStreamToOutputStream(in, out);
+                return Arrays.asList("http://www.loc.gov/METS/ http://www.loc.gov/standards/mets/version111/mets.xsd");
+            }
+        }).when(transformationHandler).transformAndValidate(any(MetadataTransformer.class), any(InputStream.class), any(OutputStream.class));
+        
+        when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS))).thenReturn(metsTransformer);
+        when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY))).thenReturn(ieTransformer);
+        when(transformationHandler.getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_REPRESENTATION))).thenReturn(representationTransformer);
+        
+        final List<String> packagedIds = new ArrayList<String>();
+        final List<Long> packagedSizes = new ArrayList<Long>();
+        Answer<Void> registerPackaging = new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                for(Object o : invocation.getArguments()) {
+                    if(o instanceof MetadataBuffer) {
+                        packagedIds.add(((MetadataBuffer) o).getId());
+                        packagedSizes.add(((MetadataBuffer) o).size());
+                    }
+                }
+                return null;
+            }
+        };
+        doAnswer(registerPackaging).when(preserver).packRecordMetadata(any(CumulusRecord.class), any(MetadataBuffer.class));
+        doAnswer(registerPackaging).when(preserver).packRepresentationMetadata(any(MetadataBuffer.class), anyString(), anyString());
+        
+        Set<String> tempFilesBefore = new HashSet<String>(Arrays.asList(tc.getMetadataTempDir().list()));
+        
+        step.sendRecordToPreservation(record);
+        
+        addStep("Check the packaging", "All metadata packaged from the buffers, without temporary files");
+        Assert.assertEquals(packagedIds, Arrays.asList(metadataGuid, ieUUID, repMetadataUUID, repIeUUID));
+        Assert.assertEquals(packagedSizes.get(0).longValue(), new File(testRecordMetadataPath).length());
+        Assert.assertEquals(packagedSizes.get(2).longValue(), new File(testRecordMetadataPath).length());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList(tc.getMetadataTempDir().list())), tempFilesBefore);
+
+        verify(preserver).packRecordResource(eq(record));
+        verify(preserver).packRecordMetadata(eq(record), any(MetadataBuffer.class));
+        verify(preserver, times(3)).packRepresentationMetadata(any(MetadataBuffer.class), eq(collectionId), anyString());
+        verify(preserver).packRecordAsTransaction(any(CumulusRecord.class), any(RecordPackaging.class));
+        verify(preserver).checkConditions();
+        verifyNoMoreInteractions(preserver);
+        
+        verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS));
+        verify(transformationHandler, times(2)).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY));
+        verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_REPRESENTATION));
+        verify(transformationHandler).transformAndValidate(eq(metsTransformer), any(InputStream.class), any(OutputStream.class));
+        verify(transformationHandler, times(2)).transformAndValidate(eq(ieTransformer), any(InputStream.class), any(OutputStream.class));
+        verify(transformationHandler).transformAndValidate(eq(representationTransformer), any(InputStream.class), any(OutputStream.class));
+        verifyNoMoreInteractions(transformationHandler);
+        verify(record).setStringValueInField(eq(Constants.FieldNames.BEVARINGS_METADATA), 
+                eq("http://www.loc.gov/METS/ http://www.loc.gov/standards/mets/version111/mets.xsd\n"));
+        
+        addStep("Preserve the record again", "The metadata buffers are reused");
+        int numberOfBuffers = step.metadataBuffers.size();
+        Assert.assertTrue(numberOfBuffers > 0);
+        step.sendRecordToPreservation(record);
+        Assert.assertEquals(step.metadataBuffers.size(), numberOfBuffers);
+    }
+    
     @Test
     public void testSendRecordToPreservationSuccessNonMaster() throws Exception {
         addDescription("Test the sendRecordToPreservation method for the success scenario for a non-master record.");
         CumulusServer server = mock(CumulusServer.class);
-        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        BitmagPreserver preserver = mockPreserver();
         MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
         MetadataTransformer metsTransformer = mock(MetadataTransformer.class);
         MetadataTransformer ieTransformer = mock(MetadataTransformer.class);
@@ -348,19 +661,17 @@ public class PreservationStepTest extends ExtendedTestCase {
         verify(preserver).packRecordResource(eq(record));
         verify(preserver).packRecordMetadata(eq(record), any(File.class));
         verify(preserver).packRepresentationMetadata(any(File.class), anyString(), anyString());
+        verify(preserver).packRecordAsTransaction(any(CumulusRecord.class), any(RecordPackaging.class));
         verify(preserver).checkConditions();
         verifyNoMoreInteractions(preserver);
 
-        verify(metsTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
-        verifyNoMoreInteractions(metsTransformer);
+        verifyZeroInteractions(metsTransformer);
+        verifyZeroInteractions(ieTransformer);
         
-        verify(ieTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
-        verifyNoMoreInteractions(ieTransformer);
-        
-        verify(transformationHandler).getMetadataStandards(any(InputStream.class));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY));
-        verify(transformationHandler, times(2)).validate(any(InputStream.class));
+        verify(transformationHandler).transformAndValidate(eq(metsTransformer), any(InputStream.class), any(OutputStream.class));
+        verify(transformationHandler).transformAndValidate(eq(ieTransformer), any(InputStream.class), any(OutputStream.class));
         verifyNoMoreInteractions(transformationHandler);
 
         verify(record).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
@@ -381,6 +692,68 @@ public class PreservationStepTest extends ExtendedTestCase {
         verifyNoMoreInteractions(record);
     }
     
+    @Test
+    public void testSendRecordToPreservationFailureAtEachStage() throws Exception {
+        addDescription("Test the sendRecordToPreservation method, when it fails at each stage of the preservation. "
+                + "Nothing must be packaged, when the preparation fails, and the packaging must be performed as a "
+                + "transaction, which fails, when any part of the packaging fails.");
+        for(String stage : new String[]{"preparation", "content file", "metadata", "intellectual entity"}) {
+            addStep("Fail the preservation of a record at the " + stage, "The record is marked as failed");
+            CumulusServer server = mock(CumulusServer.class);
+            BitmagPreserver preserver = mockPreserver();
+            MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
+            CumulusRecord record = mock(CumulusRecord.class);
+            
+            PreservationStep step = new PreservationStep(conf.getTransformationConf(), server, 
+                    transformationHandler, preserver, catalogName);
+            
+            when(record.getFieldValue(eq(Constants.FieldNames.METADATA_GUID))).thenReturn(recordGuid);
+            when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+            when(record.getFieldValue(eq(Constants.FieldNames.RELATED_OBJECT_IDENTIFIER_VALUE_INTELLECTUEL_ENTITY)))
+                    .thenReturn(UUID.randomUUID().toString());
+            when(record.isMasterAsset()).thenReturn(false);
+            when(record.getFile()).thenReturn(contentFile);
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) throws Throwable {
+                    OutputStream out = (OutputStream) invocation.getArguments()[0];
+                    StreamUtils.copyInputStreamToOutputStream(new FileInputStream(new File(testRecordMetadataPath)), 
+                            out);
+                    return null;
+                }
+            }).when(record).writeFieldMetadata(any(OutputStream.class));
+            
+            IllegalStateException failure = new IllegalStateException("THIS MUST FAIL at the " + stage);
+            if(stage.equals("preparation")) {
+                doThrow(failure).when(record).validateFieldsHasValue(any(Collection.class));
+            } else if(stage.equals("content file")) {
+                doThrow(failure).when(preserver).packRecordResource(any(CumulusRecord.class));
+            } else if(stage.equals("metadata")) {
+                doThrow(failure).when(preserver).packRecordMetadata(any(CumulusRecord.class), any(File.class));
+            } else {
+                doThrow(failure).when(preserver).packRepresentationMetadata(any(File.class), anyString(), 
+                        anyString());
+            }
+            
+            try {
+                step.sendRecordToPreservation(record);
+                Assert.fail("The preservation must fail at the " + stage);
+            } catch (IllegalStateException e) {
+                Assert.assertSame(e, failure);
+            }
+            
+            if(stage.equals("preparation")) {
+                verifyZeroInteractions(preserver);
+            } else {
+                verify(preserver).packRecordAsTransaction(eq(record), any(RecordPackaging.class));
+                verify(preserver, never()).checkConditions();
+            }
+            verify(record).setStringEnumValueForField(eq(Constants.FieldNames.PRESERVATION_STATUS), 
+                    eq(Constants.FieldValues.PRESERVATIONSTATE_ARCHIVAL_FAILED));
+            verify(record).setStringValueInField(eq(Constants.FieldNames.QA_ERROR), contains(failure.getMessage()));
+        }
+    }
+    
     @Test
     public void testSetMetadataStandardsForRecord() throws IOException {
         addDescription("Test the setMetadataStandardsForRecord method");
@@ -479,4 +852,19 @@ public class PreservationStepTest extends ExtendedTestCase {
             ieMetadataFile.setReadable(true);            
         }
     }
+    
+    /**
+     * @return A mocked preserver, which performs the packaging of the records, which are packaged as transactions.
+     */
+    protected BitmagPreserver mockPreserver() throws Exception {
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((RecordPackaging) invocation.getArguments()[1]).pack();
+                return null;
+            }
+        }).when(preserver).packRecordAsTransaction(any(CumulusRecord.class), any(RecordPackaging.class));
+        return preserver;
+    }
 }
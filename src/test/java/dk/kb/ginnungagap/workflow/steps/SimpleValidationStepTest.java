@@ -4,13 +4,19 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.Function;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.jaccept.structure.ExtendedTestCase;
@@ -23,6 +29,7 @@ import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.Archive;
+import dk.kb.ginnungagap.cumulus.QueryWatermark;
 
 public class SimpleValidationStepTest extends ExtendedTestCase {
 
@@ -216,7 +223,126 @@ public class SimpleValidationStepTest extends ExtendedTestCase {
         verifyNoMoreInteractions(server);
 
         verify(items).iterator();
-        verify(items).getCount();
+        verify(items, times(2)).getCount();
         verifyNoMoreInteractions(items);
     }
+    
+    @Test
+    public void testPerformStepWithChecksumsOfTheCollection() throws Exception {
+        addDescription("Test the perform step method, when the checksums are retrieved for the whole collection.");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        String collectionId = "TEST-COLLECTION-ID-" + UUID.randomUUID().toString();
+        String warcId1 = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        String warcId2 = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        String missingWarcId = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        
+        CumulusRecord record1 = createRecord(warcId1, collectionId);
+        CumulusRecord record2 = createRecord(warcId2, collectionId);
+        CumulusRecord record3 = createRecord(warcId1, collectionId);
+        CumulusRecord missingRecord = createRecord(missingWarcId, collectionId);
+        
+        Map<String, String> checksums = new HashMap<String, String>();
+        checksums.put(warcId1, warcFileChecksum);
+        checksums.put(warcId2, UUID.randomUUID().toString());
+        when(archive.getChecksums(eq(collectionId))).thenReturn(checksums);
+        when(archive.getChecksum(eq(missingWarcId), eq(collectionId))).thenReturn(warcFileChecksum);
+
+        when(items.iterator()).thenReturn(Arrays.asList(record1, record2, record3, missingRecord).iterator());
+        when(server.getItems(anyString(), any(CumulusQuery.class))).thenReturn(items);
+        
+        SimpleValidationStep step = new SimpleValidationStep(server, catalogName, archive);
+
+        addStep("Perform the step", "The checksums of the collection are only retrieved once, and only the "
+                + "checksum of the file, which is not among them, is retrieved individually");
+        step.performStep(report);
+        
+        verify(archive).getChecksums(eq(collectionId));
+        verify(archive).getChecksum(eq(missingWarcId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+        Assert.assertNull(step.collectionChecksums);
+
+        verify(report, times(3)).addSuccessRecord(anyString(), anyString());
+        verify(report).addFailedRecord(anyString(), anyString(), anyString());
+        verify(record2).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_CHECK),
+                eq(Constants.FieldValues.PRESERVATION_VALIDATION_FAILURE));
+        verify(record3).setStringEnumValueForField(eq(Constants.FieldNames.BEVARING_CHECK),
+                eq(Constants.FieldValues.PRESERVATION_VALIDATION_OK));
+    }
+    
+    @Test
+    public void testPerformStepFailingToRetrieveChecksumsOfTheCollection() throws Exception {
+        addDescription("Test the perform step method, when the checksums of the collection cannot be retrieved.");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        String collectionId = "TEST-COLLECTION-ID-" + UUID.randomUUID().toString();
+        String warcId = "TEST-WARC-ID-" + UUID.randomUUID().toString();
+        
+        CumulusRecord record1 = createRecord(warcId, collectionId);
+        CumulusRecord record2 = createRecord(warcId, collectionId);
+        
+        when(archive.getChecksums(eq(collectionId))).thenThrow(new IllegalStateException("CHECKSUMS FAILURE."));
+        when(archive.getChecksum(eq(warcId), eq(collectionId))).thenReturn(warcFileChecksum);
+
+        when(items.iterator()).thenReturn(Arrays.asList(record1, record2).iterator());
+        when(server.getItems(anyString(), any(CumulusQuery.class))).thenReturn(items);
+        
+        SimpleValidationStep step = new SimpleValidationStep(server, catalogName, archive);
+
+        addStep("Perform the step", "The checksums of the collection are only tried once, "
+                + "and then the checksums are retrieved individually");
+        step.performStep(report);
+        
+        verify(archive).getChecksums(eq(collectionId));
+        verify(archive, times(2)).getChecksum(eq(warcId), eq(collectionId));
+        verifyNoMoreInteractions(archive);
+
+        verify(report, times(2)).addSuccessRecord(anyString(), anyString());
+        verify(report, never()).addFailedRecord(anyString(), anyString(), anyString());
+    }
+    
+    /**
+     * Creates a mock record with a WARC id, collection id and the checksum of the WARC file.
+     * @param warcId The id of the WARC file.
+     * @param collectionId The id of the collection.
+     * @return The mock record.
+     */
+    protected CumulusRecord createRecord(String warcId, String collectionId) {
+        CumulusRecord record = mock(CumulusRecord.class);
+        when(record.getFieldValue(eq(Constants.FieldNames.ARCHIVE_MD5))).thenReturn(warcFileChecksum);
+        when(record.getFieldValue(eq(Constants.FieldNames.RESOURCE_PACKAGE_ID))).thenReturn(warcId);
+        when(record.getFieldValue(eq(Constants.FieldNames.COLLECTION_ID))).thenReturn(collectionId);
+        return record;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPerformStepWithWatermark() throws Exception {
+        addDescription("Test that the records are found through the watermark, which is committed after the run");
+        CumulusServer server = mock(CumulusServer.class);
+        Archive archive = mock(Archive.class);
+        CumulusRecordCollection items = mock(CumulusRecordCollection.class);
+        QueryWatermark watermark = mock(QueryWatermark.class);
+        WorkflowReport report = mock(WorkflowReport.class);
+
+        when(items.iterator()).thenReturn(new ArrayList<CumulusRecord>().iterator());
+        when(watermark.findItems(eq(server), eq(catalogName), any(Function.class))).thenReturn(items);
+        
+        SimpleValidationStep step = new SimpleValidationStep(server, catalogName, archive);
+        step.setWatermark(watermark);
+        Assert.assertEquals(step.getWatermark(), watermark);
+
+        step.performStep(report);
+
+        verify(watermark).findItems(eq(server), eq(catalogName), any(Function.class));
+        verify(watermark).commit();
+        verifyNoMoreInteractions(watermark);
+        verifyZeroInteractions(server);
+    }
 }
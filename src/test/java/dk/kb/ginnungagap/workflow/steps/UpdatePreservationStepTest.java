@@ -4,6 +4,7 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -22,6 +23,7 @@ import java.util.UUID;
 
 import dk.kb.ginnungagap.workflow.reporting.WorkflowReport;
 import org.jaccept.structure.ExtendedTestCase;
+import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.testng.Assert;
@@ -35,6 +37,7 @@ import dk.kb.cumulus.CumulusRecord;
 import dk.kb.cumulus.CumulusRecordCollection;
 import dk.kb.cumulus.CumulusServer;
 import dk.kb.ginnungagap.archive.BitmagPreserver;
+import dk.kb.ginnungagap.archive.BitmagPreserver.RecordPackaging;
 import dk.kb.ginnungagap.config.Configuration;
 import dk.kb.ginnungagap.testutils.TestFileUtils;
 import dk.kb.ginnungagap.transformation.MetadataTransformationHandler;
@@ -96,14 +99,15 @@ public class UpdatePreservationStepTest extends ExtendedTestCase {
 
         verifyZeroInteractions(report);
 
-        verify(server).getItems(anyString(), any(CumulusQuery.class));
+        InOrder recoveryBeforeQuery = inOrder(preserver, server);
+        recoveryBeforeQuery.verify(preserver).recoverWarcFiles();
+        recoveryBeforeQuery.verify(server).getItems(anyString(), any(CumulusQuery.class));
         verifyNoMoreInteractions(server);
-        
-        verifyZeroInteractions(preserver);
+        verifyNoMoreInteractions(preserver);
         
         verifyZeroInteractions(transformationHandler);
         
-        verify(records, times(3)).getCount();
+        verify(records, times(4)).getCount();
         verifyNoMoreInteractions(records);
     }
     
@@ -145,7 +149,7 @@ public class UpdatePreservationStepTest extends ExtendedTestCase {
 
         verify(record).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
         verify(record).getFieldValueOrNull(eq(UpdatePreservationStep.PRESERVATION_UPDATE_HISTORY_FIELD_NAME));
-        verify(record, times(2)).getUUID();
+        verify(record).getUUID();
         verifyNoMoreInteractions(record);
     }
 
@@ -153,7 +157,7 @@ public class UpdatePreservationStepTest extends ExtendedTestCase {
     public void testSendRecordToPreservationSuccessMaster() throws Exception {
         addDescription("Test the sendRecordToPreservation method for the success scenario for a master record.");
         CumulusServer server = mock(CumulusServer.class);
-        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        BitmagPreserver preserver = mockPreserver();
         MetadataTransformationHandler transformationHandler = mock(MetadataTransformationHandler.class);
         MetadataTransformer metsTransformer = mock(MetadataTransformer.class);
         MetadataTransformer ieTransformer = mock(MetadataTransformer.class);
@@ -190,23 +194,20 @@ public class UpdatePreservationStepTest extends ExtendedTestCase {
 
         verify(preserver).packRecordMetadata(eq(record), any(File.class));
         verify(preserver, times(3)).packRepresentationMetadata(any(File.class), anyString(), anyString());
+        verify(preserver).packRecordAsTransaction(any(CumulusRecord.class), any(RecordPackaging.class));
         verify(preserver).checkConditions();
         verifyNoMoreInteractions(preserver);
 
-        verify(metsTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
-        verifyNoMoreInteractions(metsTransformer);
+        verifyZeroInteractions(metsTransformer);
+        verifyZeroInteractions(ieTransformer);
+        verifyZeroInteractions(representationTransformer);
         
-        verify(ieTransformer, times(2)).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
-        verifyNoMoreInteractions(ieTransformer);
-        
-        verify(representationTransformer).transformXmlMetadata(any(InputStream.class), any(OutputStream.class));
-        verifyNoMoreInteractions(representationTransformer);
-        
-        verify(transformationHandler).getMetadataStandards(any(InputStream.class));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_METS));
         verify(transformationHandler, times(2)).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_INTELLECTUEL_ENTITY));
         verify(transformationHandler).getTransformer(eq(MetadataTransformationHandler.TRANSFORMATION_SCRIPT_FOR_REPRESENTATION));
-        verify(transformationHandler, times(4)).validate(any(InputStream.class));
+        verify(transformationHandler).transformAndValidate(eq(metsTransformer), any(InputStream.class), any(OutputStream.class));
+        verify(transformationHandler, times(2)).transformAndValidate(eq(ieTransformer), any(InputStream.class), any(OutputStream.class));
+        verify(transformationHandler).transformAndValidate(eq(representationTransformer), any(InputStream.class), any(OutputStream.class));
         verifyNoMoreInteractions(transformationHandler);
 
         verify(record,times(2)).getFieldValue(eq(Constants.FieldNames.RECORD_NAME));
@@ -309,6 +310,19 @@ public class UpdatePreservationStepTest extends ExtendedTestCase {
         String s = step.getOldMetadataReference(record);
         Assert.assertEquals(s, oldHistory);
     }
-
+    
+    /**
+     * @return A mocked preserver, which performs the packaging of the records, which are packaged as transactions.
+     */
+    protected BitmagPreserver mockPreserver() throws Exception {
+        BitmagPreserver preserver = mock(BitmagPreserver.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((RecordPackaging) invocation.getArguments()[1]).pack();
+                return null;
+            }
+        }).when(preserver).packRecordAsTransaction(any(CumulusRecord.class), any(RecordPackaging.class));
+        return preserver;
+    }
 }
-
@@ -2,10 +2,22 @@ package dk.kb.metadata;
 
 import org.jaccept.structure.ExtendedTestCase;
 import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 public class CleanerTest extends ExtendedTestCase {
 
+    @BeforeMethod
+    public void openContext() {
+        TransformationContext.open();
+    }
+
+    @AfterMethod
+    public void closeContext() {
+        TransformationContext.close();
+    }
+
     @Test
     public void testConstructor() {
         Cleaner c = new Cleaner();
@@ -0,0 +1,153 @@
+package dk.kb.metadata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import dk.kb.metadata.utils.ExceptionUtils;
+import dk.kb.metadata.utils.FileIdHandler;
+import dk.kb.metadata.utils.IdentifierManager;
+import dk.kb.metadata.utils.MdIdHandler;
+
+public class TransformationContextTest extends ExtendedTestCase {
+
+    @AfterMethod
+    public void closeContext() {
+        TransformationContext.close();
+    }
+
+    @Test
+    public void testOpenAndClose() {
+        addDescription("Test that opening a context binds a new and empty context to the current thread.");
+        TransformationContext context = TransformationContext.open();
+        Assert.assertSame(TransformationContext.getCurrent(), context);
+
+        FileIdHandler.getFileID(UUID.randomUUID().toString());
+        MdIdHandler.createNewMdId("Mods");
+        IdentifierManager.getEventIdentifier("fileId1");
+        ExceptionUtils.insertException(new IllegalStateException("test"));
+        Assert.assertEquals(context.getFileIds().size(), 1);
+        Assert.assertEquals(context.getMdIds().size(), 1);
+        Assert.assertEquals(context.getEventIdentifiers().size(), 1);
+        Assert.assertEquals(context.getExceptions().size(), 1);
+
+        addStep("Open a new context", "The new context must be empty");
+        TransformationContext newContext = TransformationContext.open();
+        Assert.assertNotSame(newContext, context);
+        Assert.assertTrue(FileIdHandler.getMap().isEmpty());
+        Assert.assertTrue(MdIdHandler.getMdIDs("Mods").isEmpty());
+        Assert.assertFalse(ExceptionUtils.hasFailure());
+
+        addStep("Close the context", "No context must be bound to the thread afterwards");
+        TransformationContext.close();
+        try {
+            TransformationContext.getCurrent();
+            Assert.fail("Should throw an exception, when no context is open");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testGetCurrentWithoutOpen() {
+        addDescription("Test that the current context cannot be retrieved without opening one.");
+        TransformationContext.close();
+        TransformationContext.getCurrent();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testHelperWithoutOpen() {
+        addDescription("Test that the helper methods cannot be used without an open context.");
+        TransformationContext.close();
+        MdIdHandler.createNewMdId("Mods");
+    }
+
+    @Test
+    public void testCleanerOnlyCleansCurrentThread() throws Exception {
+        addDescription("Test that the cleaner only cleans the context of the current thread.");
+        TransformationContext.open();
+        Assert.assertEquals(MdIdHandler.createNewMdId("Mods"), "Mods1");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    TransformationContext.open();
+                    try {
+                        Cleaner.cleanStuff();
+                    } finally {
+                        TransformationContext.close();
+                    }
+                    return null;
+                }
+            }).get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(MdIdHandler.createNewMdId("Mods"), "Mods2");
+        Cleaner.cleanStuff();
+        Assert.assertEquals(MdIdHandler.createNewMdId("Mods"), "Mods1");
+    }
+
+    @Test
+    public void testConcurrentContexts() throws Exception {
+        addDescription("Stress test, where many threads create ids at the same time in their own contexts.");
+        final int numberOfThreads = 16;
+        final int numberOfTransformations = 50;
+        final int numberOfIds = 20;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for(int t = 0; t < numberOfThreads; t++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for(int i = 0; i < numberOfTransformations; i++) {
+                            TransformationContext.open();
+                            try {
+                                for(int j = 1; j <= numberOfIds; j++) {
+                                    String guid = UUID.randomUUID().toString();
+                                    Assert.assertEquals(FileIdHandler.getFileID(guid), "fileId" + j);
+                                    Assert.assertEquals(FileIdHandler.getFileID(guid), "fileId" + j);
+                                    Assert.assertEquals(MdIdHandler.createNewMdId("Premis"), "Premis" + j);
+                                    Assert.assertEquals(IdentifierManager.getEventIdentifier("fileId" + j),
+                                            IdentifierManager.getEventIdentifier("fileId" + j));
+                                    Thread.yield();
+                                }
+                                Assert.assertEquals(FileIdHandler.getMap().size(), numberOfIds);
+                                Assert.assertEquals(MdIdHandler.getMdIDs("Premis").size(), numberOfIds);
+                                Assert.assertEquals(MdIdHandler.getDivAttributeFor("Premis").split(" ").length,
+                                        numberOfIds);
+                            } finally {
+                                TransformationContext.close();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for(Future<Void> result : results) {
+                result.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -3,18 +3,26 @@ package dk.kb.metadata.utils;
 import java.util.UUID;
 
 import org.jaccept.structure.ExtendedTestCase;
-import org.testng.annotations.BeforeClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import junit.framework.Assert;
 
+import dk.kb.metadata.TransformationContext;
+
 public class FileIdHandlerTest extends ExtendedTestCase {
 
     String defaultGUID = UUID.randomUUID().toString();
     
-    @BeforeClass
-    public void setupClass() {
-        FileIdHandler.clean();
+    @BeforeMethod
+    public void openContext() {
+        TransformationContext.open();
+    }
+
+    @AfterMethod
+    public void closeContext() {
+        TransformationContext.close();
     }
     
     @Test
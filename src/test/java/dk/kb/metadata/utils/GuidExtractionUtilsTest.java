@@ -3,12 +3,26 @@ package dk.kb.metadata.utils;
 import java.util.UUID;
 
 import org.jaccept.structure.ExtendedTestCase;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import junit.framework.Assert;
 
+import dk.kb.metadata.TransformationContext;
+
 public class GuidExtractionUtilsTest extends ExtendedTestCase {
 
+    @BeforeMethod
+    public void openContext() {
+        TransformationContext.open();
+    }
+
+    @AfterMethod
+    public void closeContext() {
+        TransformationContext.close();
+    }
+
     @Test
     public void testConstructor() {
         addDescription("Test the constructor.");
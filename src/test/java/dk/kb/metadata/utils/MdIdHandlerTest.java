@@ -2,10 +2,24 @@ package dk.kb.metadata.utils;
 
 import org.jaccept.structure.ExtendedTestCase;
 import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import dk.kb.metadata.TransformationContext;
+
 public class MdIdHandlerTest extends ExtendedTestCase {
 
+    @BeforeMethod
+    public void openContext() {
+        TransformationContext.open();
+    }
+
+    @AfterMethod
+    public void closeContext() {
+        TransformationContext.close();
+    }
+
     @Test
     public void testConstructor() {
         addDescription("Test the constructor.");